@@ -0,0 +1,96 @@
+package covertchannel.intent.receiver;
+
+import android.content.Intent;
+import android.test.ServiceTestCase;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import intent.covertchannel.intentencoderdecoder.BitstringEncoder;
+import intent.covertchannel.intentencoderdecoder.ChannelConfig;
+import intent.covertchannel.intentencoderdecoder.EncodingScheme;
+import intent.covertchannel.intentencoderdecoder.EncodingUtils;
+
+/**
+ * Sends the {@link MessageReceiver} the carriers of two messages on two
+ * streams, interleaved, and checks that each message is reassembled from its
+ * own stream's segments only, including once one of them has been recovered
+ * from the journal.
+ */
+public class InterleavedStreamsTest extends ServiceTestCase<MessageReceiver> {
+    private static final long STREAM_A = 1;
+    private static final long STREAM_B = 2;
+
+    // Long enough to take several segments each, so that both streams send the same segment numbers
+    private static final String MESSAGE_A = "the first stream's message is sent alongside the second stream's";
+    private static final String MESSAGE_B = "and the second stream's message is sent alongside the first one's";
+
+    private ChannelConfig config;
+    private SegmentJournal segmentJournal;
+
+    public InterleavedStreamsTest() {
+        super(MessageReceiver.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        config = new ChannelConfig(EncodingScheme.NUM_BASE_VALUES, EncodingUtils.NUM_EXPANSION_CODES, EncodingUtils.ACTIONS, EncodingScheme.BUILD_VERSION);
+        segmentJournal = SegmentJournal.getInstance(getContext());
+        segmentJournal.clear();
+    }
+
+    public void testInterleavedStreamsAreReassembledApart() throws IOException {
+        List<Intent> carriersA = encode(MESSAGE_A, STREAM_A);
+        List<Intent> carriersB = encode(MESSAGE_B, STREAM_B);
+        assertTrue(carriersA.size() > 1 && carriersB.size() > 1);
+
+        startService(createConfigurationIntent(STREAM_A));
+        startService(createConfigurationIntent(STREAM_B));
+
+        // B's last carrier is held back, so that A's message completes while B's is still partial
+        for(int i = 0; i < Math.max(carriersA.size(), carriersB.size() - 1); i++) {
+            if(i < carriersA.size()) {
+                startService(carriersA.get(i));
+            }
+
+            if(i < carriersB.size() - 1) {
+                startService(carriersB.get(i));
+            }
+        }
+
+        // Lets the decode pipeline drain
+        shutdownService();
+        assertEquals(MESSAGE_A, segmentJournal.takeMessage(SegmentJournal.MESSAGE_KIND_BITSTRING));
+
+        // B's segments are recovered from the journal, and configuring the recovered stream resumes its message
+        startService(createConfigurationIntent(STREAM_B));
+        startService(carriersB.get(carriersB.size() - 1));
+        shutdownService();
+        assertEquals(MESSAGE_B, segmentJournal.takeMessage(SegmentJournal.MESSAGE_KIND_BITSTRING));
+    }
+
+    private List<Intent> encode(String message, long streamId) {
+        List<Intent> carriers = new ArrayList<>();
+        for(Intent carrier: new BitstringEncoder(config).encodeMessage(message)) {
+            // The sender does not send empty Intents
+            if(!carrier.getExtras().isEmpty()) {
+                carrier.putExtra(EncodingUtils.STREAM_ID_KEY, streamId);
+                carriers.add(carrier);
+            }
+        }
+
+        return carriers;
+    }
+
+    private Intent createConfigurationIntent(long streamId) {
+        Intent configIntent = new Intent(EncodingUtils.SET_CHANNEL_CONFIGURATION_ACTION);
+        configIntent.putExtra(EncodingUtils.NUM_BASE_VALUES_KEY, config.getNumBaseValues());
+        configIntent.putExtra(EncodingUtils.NUM_EXPANSION_CODES_KEY, config.getNumExpansionCodes());
+        configIntent.putExtra(EncodingUtils.NUM_ACTIONS_KEY, config.getActionStrings().size());
+        configIntent.putExtra(EncodingUtils.PACKING_MODE_KEY, BitstringEncoder.PACKING_MODE_GREEDY);
+        configIntent.putExtra(EncodingUtils.STREAM_ID_KEY, streamId);
+        return configIntent;
+    }
+}
@@ -1,77 +1,322 @@
 package covertchannel.intent.receiver;
 
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import android.app.Activity;
-import android.content.SharedPreferences;
 import android.os.Bundle;
+import android.os.Handler;
+import android.util.Log;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.ListView;
 import android.widget.TextView;
 
-public class CovertChannelReceiver extends Activity 
+import intent.covertchannel.intentencoderdecoder.EncodingUtils;
+
+/**
+ * Displays the messages stored by the {@link MessageReceiver}.
+ *
+ * The {@link SegmentJournal} is synchronized and shared with the receiver's
+ * pipeline, which can hold it for a whole flush or compaction, so it is only
+ * ever used from a background thread: opening it, reading the status shown
+ * in the label and reading the pages of the message. The results are posted
+ * back to the main thread, and pages which have not been read yet are shown
+ * empty until they have.
+ */
+public class CovertChannelReceiver extends Activity
 {
 	// Message displayed when an Intent was received but no message could be decoded
 	// from it
 	private static final String NO_MESSAGE_ERROR = "No message found";
 
-	private TextView receivedMessageLabel, receivedMessageField;
+    private static final String TAG = EncodingUtils.TRACE_TAG;
+
+    // Characters per row of the message list; only the rows on screen are read from the journal
+    private static final int PAGE_LENGTH = 1024;
+
+    // How often the display is refreshed while the activity is visible, to show messages as they arrive
+    private static final long REFRESH_INTERVAL_MILLIS = 500;
+
+    private static final int NO_MESSAGE_KIND = -1;
+
+    // Pages kept in memory, so that scrolling back and forth does not re-read them
+    private static final int MAX_CACHED_PAGES = 64;
+
+	private TextView receivedMessageLabel;
+    private ListView receivedMessagePages;
+    private MessagePageAdapter pageAdapter;
+
+	// Used to retrieve messages received and persisted by the MessageReceiver
+	// service; only used on the journal thread, and opened by it
+    private SegmentJournal segmentJournal;
+
+    // The journal thread
+    private ExecutorService journalExecutor;
+
+    // Whether the activity is visible, i.e. whether the display is being refreshed
+    private boolean started;
+
+    // Runs on the main thread; the next refresh is scheduled once the status it reads has been displayed
+    private final Handler refreshHandler = new Handler();
+    private final Runnable refreshTask = new Runnable() {
+        @Override
+        public void run() {
+            journalExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    final DisplayStatus status = readStatus();
+                    refreshHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if(started) {
+                                updateDisplay(status);
+
+                                // A refresh from before the activity was last stopped may still have been running
+                                refreshHandler.removeCallbacks(refreshTask);
+                                refreshHandler.postDelayed(refreshTask, REFRESH_INTERVAL_MILLIS);
+                            }
+                        }
+                    });
+                }
+            });
+        }
+    };
+
+    /**
+     * What the display shows, as read from the journal.
+     */
+    private static final class DisplayStatus {
+        final String labelText;
+        final int messageKind;
+        final int messageLength;
+        final int messageGeneration;
+
+        DisplayStatus(String labelText, int messageKind, int messageLength, int messageGeneration) {
+            this.labelText = labelText;
+            this.messageKind = messageKind;
+            this.messageLength = messageLength;
+            this.messageGeneration = messageGeneration;
+        }
+    }
 
-	// Used to retrieve messages received and persisted by the MessageReceiver 
-	// service
-    private SharedPreferences messageStore;
-	
 	/** Called when the activity is first created. */
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.main);
-        
+
         receivedMessageLabel = (TextView) findViewById(R.id.received_message_label);
-        receivedMessageField = (TextView) findViewById(R.id.received_message);
-        
-        messageStore = getSharedPreferences(MessageReceiver.MESSAGE_STORE_KEY, MODE_PRIVATE);
+        receivedMessagePages = (ListView) findViewById(R.id.received_message_pages);
+
+        pageAdapter = new MessagePageAdapter();
+        receivedMessagePages.setAdapter(pageAdapter);
+
+        journalExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "CovertChannelReceiver-journal");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
     }
-    
+
     @Override
     public void onStart()
     {
     	super.onStart();
-    	SharedPreferences.Editor messageStoreEditor = messageStore.edit();
-
-        String alphaEncodedMessage = messageStore.getString(MessageReceiver.ALPHA_ENCODED_MESSAGE_STORAGE_KEY, "");
-        messageStoreEditor.remove(MessageReceiver.ALPHA_ENCODED_MESSAGE_STORAGE_KEY);
 
-        String bitstringEncodedMessage = messageStore.getString(MessageReceiver.BITSTRING_ENCODED_MESSAGE_STORAGE_KEY, "");
-        messageStoreEditor.remove(MessageReceiver.BITSTRING_ENCODED_MESSAGE_STORAGE_KEY);
-
-    	// Commit changes (i.e. remove all the stored messages)
-    	messageStoreEditor.commit();
-
-    	updateDisplay(alphaEncodedMessage, bitstringEncodedMessage);
+        // The messages stay in the journal (until replaced or cleared) so that their pages can be read as needed
+        started = true;
+        refreshTask.run();
     }
-    
+
     @Override
     public void onResume() {
     	super.onResume();
     }
 
+    @Override
+    public void onStop() {
+        started = false;
+        refreshHandler.removeCallbacks(refreshTask);
+        super.onStop();
+    }
+
+    @Override
+    public void onDestroy() {
+        journalExecutor.shutdownNow();
+        super.onDestroy();
+    }
+
     /**
      * Updates the user display with the current message which has
-     * been received so far.
+     * been received so far, and the progress of any messages which are
+     * still arriving.
+     */
+    private void updateDisplay(DisplayStatus status) {
+        receivedMessageLabel.setText(status.labelText);
+
+        // Only re-reads the visible pages when the displayed message has changed
+        pageAdapter.setMessage(status.messageKind, status.messageLength, status.messageGeneration);
+    }
+
+    /**
+     * Journal thread: opens the journal if it has not been opened yet, and
+     * reads what the display should show.
      */
-	private void updateDisplay(String alphaEncodedMessage, String bitstringEncodedMessage) {
-        String labelText = "";
-        String messageString = NO_MESSAGE_ERROR;
-		if(alphaEncodedMessage.length() > 0) {
-            labelText = "Alpha-encoding: Received " + alphaEncodedMessage.getBytes().length + " bytes\n";
-            messageString = "Alpha-encoded message:\n\n" + alphaEncodedMessage;
+	private DisplayStatus readStatus() {
+        if(segmentJournal == null) {
+            try {
+                segmentJournal = SegmentJournal.getInstance(this);
+            } catch(IOException e) {
+                Log.e(TAG, "Could not open the segment journal", e);
+                return new DisplayStatus("Could not open the message store\n", NO_MESSAGE_KIND, 0, 0);
+            }
+        }
+
+        StringBuilder labelText = new StringBuilder();
+        int displayedKind = NO_MESSAGE_KIND;
+        String messageHeader = "";
+		if(segmentJournal.getMessageLength(SegmentJournal.MESSAGE_KIND_ALPHA) > 0) {
+            labelText.append("Alpha-encoding: Received " + segmentJournal.getMessageLength(SegmentJournal.MESSAGE_KIND_ALPHA) + " bytes\n");
+            displayedKind = SegmentJournal.MESSAGE_KIND_ALPHA;
+            messageHeader = "Alpha-encoded message:";
 		}
 
-        if(bitstringEncodedMessage.length() > 0) {
-            labelText += "Bitstring-encoding: Received " + bitstringEncodedMessage.getBytes().length + " bytes\n";
-            messageString = "Bitstring-encoded message:\n\n" + bitstringEncodedMessage;
+        if(segmentJournal.getMessageLength(SegmentJournal.MESSAGE_KIND_BITSTRING) > 0) {
+            labelText.append("Bitstring-encoding: Received " + segmentJournal.getMessageLength(SegmentJournal.MESSAGE_KIND_BITSTRING) + " bytes\n");
+            displayedKind = SegmentJournal.MESSAGE_KIND_BITSTRING;
+            messageHeader = "Bitstring-encoded message:";
 		}
 
-        receivedMessageLabel.setText(labelText);
-		receivedMessageField.setText(messageString);
+        for(SegmentJournal.StreamProgress progress: segmentJournal.getStreamProgress()) {
+            labelText.append("Receiving on stream " + progress.getStreamId() + ": " + progress.getSegmentsReceived() + " of " + progress.getSegmentCount() + " segments\n");
+        }
+
+        labelText.append("\n" + messageHeader);
+        if(displayedKind == NO_MESSAGE_KIND) {
+            return new DisplayStatus(labelText.toString(), NO_MESSAGE_KIND, 0, 0);
+        }
+
+        return new DisplayStatus(labelText.toString(), displayedKind, segmentJournal.getMessageLength(displayedKind), segmentJournal.getMessageGeneration(displayedKind));
 	}
-}
\ No newline at end of file
+
+    /**
+     * Shows a message as rows of {@link #PAGE_LENGTH} characters. Each row is
+     * read from the segment journal on the journal thread when the list first
+     * asks for its view, and shown once it has been read.
+     */
+    private class MessagePageAdapter extends BaseAdapter {
+        private int messageKind = NO_MESSAGE_KIND;
+        private int messageLength;
+        private int messageGeneration;
+
+        // Pages of the current message which have been read, least recently used first
+        private final Map<Integer, String> cachedPages = new LinkedHashMap<Integer, String>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, String> eldest) {
+                return size() > MAX_CACHED_PAGES;
+            }
+        };
+
+        // Pages of the current message which are being read
+        private final Set<Integer> pendingPages = new HashSet<>();
+
+        void setMessage(int messageKind, int messageLength, int messageGeneration) {
+            if(messageKind == this.messageKind && messageLength == this.messageLength && messageGeneration == this.messageGeneration) {
+                return;
+            }
+
+            this.messageKind = messageKind;
+            this.messageLength = messageLength;
+            this.messageGeneration = messageGeneration;
+            cachedPages.clear();
+            pendingPages.clear();
+            notifyDataSetChanged();
+        }
+
+        @Override
+        public int getCount() {
+            if(messageKind == NO_MESSAGE_KIND) {
+                // A single row with the error message
+                return 1;
+            }
+
+            return (messageLength + PAGE_LENGTH - 1) / PAGE_LENGTH;
+        }
+
+        /**
+         * @return The text of the row, or {@code null} if it has not been
+         * read yet.
+         */
+        @Override
+        public Object getItem(int position) {
+            if(messageKind == NO_MESSAGE_KIND) {
+                return NO_MESSAGE_ERROR;
+            }
+
+            return cachedPages.get(position);
+        }
+
+        @Override
+        public long getItemId(int position) {
+            return position;
+        }
+
+        @Override
+        public View getView(int position, View convertView, ViewGroup parent) {
+            TextView pageView = (convertView instanceof TextView) ? (TextView) convertView : new TextView(CovertChannelReceiver.this);
+            String page = (String) getItem(position);
+            if(page == null) {
+                loadPage(position);
+                page = "";
+            }
+
+            pageView.setText(page);
+            return pageView;
+        }
+
+        // Reads a page on the journal thread, and rebinds the visible rows once it has been read
+        private void loadPage(final int position) {
+            if(!pendingPages.add(position)) {
+                return;
+            }
+
+            final int kind = messageKind;
+            final int generation = messageGeneration;
+            journalExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    String page;
+                    try {
+                        page = segmentJournal.readMessage(kind, position * PAGE_LENGTH, PAGE_LENGTH);
+                    } catch(IOException e) {
+                        Log.e(TAG, "Could not read page " + position + " of the received message from the segment journal", e);
+                        page = "";
+                    }
+
+                    final String loadedPage = page;
+                    refreshHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            // Dropped if the message has been replaced in the meantime
+                            if(kind == messageKind && generation == messageGeneration && pendingPages.remove(position)) {
+                                cachedPages.put(position, loadedPage);
+                                notifyDataSetChanged();
+                            }
+                        }
+                    });
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,367 @@
+package covertchannel.intent.receiver;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import android.content.Intent;
+import android.os.Messenger;
+import android.util.Log;
+
+import intent.covertchannel.intentencoderdecoder.BitstringEncoder;
+import intent.covertchannel.intentencoderdecoder.EncodingUtils;
+
+/**
+ * Moves received Intents through the decode, persist and acknowledge stages
+ * of the {@link MessageReceiver} on background threads.
+ *
+ * Each stage runs on its own thread and hands items to the next one through
+ * a bounded queue, so items are processed in the order in which they were
+ * submitted and a slow stage blocks the stages before it; once the first
+ * queue is full {@link #submit} blocks as well (backpressure). Shutting down
+ * lets every item which has already been submitted run through all three
+ * stages first.
+ *
+ * When constructed with {@code threaded} set to {@code false} the stages run
+ * inline in {@link #submit} instead, which is how the receiver behaved before
+ * the pipeline existed; the statistics are kept either way so that the two
+ * can be compared.
+ */
+public class DecodePipeline {
+    private static final String TAG = EncodingUtils.TRACE_TAG;
+
+    public static final int STAGE_DECODE = 0;
+    public static final int STAGE_PERSIST = 1;
+    public static final int STAGE_ACKNOWLEDGE = 2;
+    private static final int NUM_STAGES = 3;
+
+    private static final String[] STAGE_NAMES = {"decode", "persist", "acknowledge"};
+
+    // Marks the end of the submitted items; passed along by every stage before it exits
+    private static final Item SHUTDOWN = new Item(null, null, 0, null, false);
+
+    /**
+     * The work done by one stage for one item.
+     */
+    public interface Stage {
+        void process(Item item) throws Exception;
+    }
+
+    /**
+     * A received Intent along with everything the stages derive from it.
+     * Each field is written by one stage and only read by the later ones.
+     */
+    public static final class Item {
+        final Intent intent;
+
+        // How the stages handle the Intent's action (looked up once, when the Intent arrived)
+        final IntentRouter.Route route;
+
+        // When the Intent was received (in EncodingUtils.getTimeMillisAccurate() time)
+        final double receivedTime;
+
+        // When the Intent was submitted (in System.nanoTime() time), for measuring latencies
+        final long arrivalNanos;
+
+        // Where to acknowledge the batch the Intent arrived in, or null if it was delivered on its own
+        final Messenger batchReplyTo;
+
+        // Whether the Intent is the last one of its batch
+        final boolean endsBatch;
+
+        // Set by the decode stage
+        ReceiverSession session;
+        List<ReceiverSession> removedSessions;
+        BitstringEncoder bitstringEncoder;
+        BitstringEncoder.DecodedMessage decodedSegment;
+        String decodedMessage;
+        long testId;
+
+        // Whether the segment's message is only sent to measure throughput, and is dropped once it is complete
+        boolean discardsMessage;
+
+        // Whether the Intent starts a new message on its stream, abandoning any partial message
+        boolean startsMessage;
+
+        // Set by the persist stage: the journal's append sequence once the Intent has been stored
+        long journalSequence;
+
+        // Set by the decode or persist stage; broadcast by the acknowledge stage
+        Intent response;
+
+        Item(Intent intent, IntentRouter.Route route, double receivedTime, Messenger batchReplyTo, boolean endsBatch) {
+            this.intent = intent;
+            this.route = route;
+            this.receivedTime = receivedTime;
+            this.arrivalNanos = System.nanoTime();
+            this.batchReplyTo = batchReplyTo;
+            this.endsBatch = endsBatch;
+        }
+    }
+
+    private final Stage[] stages;
+    private final boolean threaded;
+    // The input queue of each stage (empty unless threaded)
+    private final List<BlockingQueue<Item>> queues;
+    private final Thread[] threads;
+    private volatile boolean shutDown;
+
+    // Statistics; each stage's counters are only written by its own thread, but are read from others
+    private final AtomicLongArray stageNanos = new AtomicLongArray(NUM_STAGES);
+    private final AtomicLongArray stageItems = new AtomicLongArray(NUM_STAGES);
+    private volatile long submitNanos;
+    private volatile long backpressureNanos;
+    private volatile long segmentsCompleted;
+
+    // The throughput is measured over the time in which the pipeline had items in it, so that the idle time between
+    // tests (and before the first one) does not count; guarded by busyLock
+    private final Object busyLock = new Object();
+    private int numItemsInPipeline;
+    private long busyStartTime;
+    private long busyNanos;
+
+    public DecodePipeline(int queueCapacity, boolean threaded, Stage decodeStage, Stage persistStage, Stage acknowledgeStage) {
+        this.stages = new Stage[] {decodeStage, persistStage, acknowledgeStage};
+        this.threaded = threaded;
+        this.queues = new ArrayList<>(NUM_STAGES);
+        this.threads = new Thread[NUM_STAGES];
+        this.shutDown = false;
+
+        if(threaded) {
+            for(int i = 0; i < NUM_STAGES; i++) {
+                queues.add(new ArrayBlockingQueue<Item>(queueCapacity));
+            }
+
+            for(int i = 0; i < NUM_STAGES; i++) {
+                threads[i] = new StageThread(i);
+                threads[i].start();
+            }
+        }
+    }
+
+    /**
+     * Queues a received Intent, blocking while the pipeline is full.
+     *
+     * @return {@code false} if the pipeline has been shut down and the Intent
+     * was dropped.
+     */
+    public boolean submit(Intent intent, IntentRouter.Route route, double receivedTime) {
+        return submit(intent, route, receivedTime, null, false);
+    }
+
+    /**
+     * Queues an Intent which arrived as part of a batch, blocking while the
+     * pipeline is full.
+     *
+     * @param batchReplyTo Where the acknowledge stage acknowledges the batch.
+     * @param endsBatch Whether this is the batch's last Intent, i.e. the one
+     * whose acknowledgement acknowledges the whole batch.
+     * @return {@code false} if the pipeline has been shut down and the Intent
+     * was dropped.
+     */
+    public boolean submit(Intent intent, IntentRouter.Route route, double receivedTime, Messenger batchReplyTo, boolean endsBatch) {
+        long startTime = System.nanoTime();
+        try {
+            if(shutDown) {
+                Log.w(TAG, "Dropping Intent with action \"" + intent.getAction() + "\"; the decode pipeline has been shut down");
+                return false;
+            }
+
+            itemEntered(startTime);
+
+            Item item = new Item(intent, route, receivedTime, batchReplyTo, endsBatch);
+            if(!threaded) {
+                for(int stage = 0; stage < NUM_STAGES; stage++) {
+                    runStage(stage, item);
+                }
+
+                return true;
+            }
+
+            if(!queues.get(STAGE_DECODE).offer(item)) {
+                long waitStart = System.nanoTime();
+                queues.get(STAGE_DECODE).put(item);
+                backpressureNanos += System.nanoTime() - waitStart;
+            }
+
+            return true;
+        } catch(InterruptedException e) {
+            itemLeft(System.nanoTime());
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            submitNanos += System.nanoTime() - startTime;
+        }
+    }
+
+    /**
+     * Stops accepting Intents and waits for the ones already submitted to
+     * pass through every stage.
+     *
+     * @return {@code true} if the pipeline drained within {@code timeoutMillis}.
+     */
+    public boolean shutdown(long timeoutMillis) {
+        if(shutDown) {
+            return true;
+        }
+
+        shutDown = true;
+        if(!threaded) {
+            return true;
+        }
+
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        try {
+            if(!queues.get(STAGE_DECODE).offer(SHUTDOWN, timeoutMillis, TimeUnit.MILLISECONDS)) {
+                return false;
+            }
+
+            for(Thread thread: threads) {
+                thread.join(Math.max(1, deadline - System.currentTimeMillis()));
+                if(thread.isAlive()) {
+                    return false;
+                }
+            }
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+
+        return true;
+    }
+
+    public boolean isThreaded() {
+        return threaded;
+    }
+
+    /**
+     * @return The time spent in {@link #submit}, i.e. on the caller's (main)
+     * thread, in milliseconds.
+     */
+    public double getSubmitMillis() {
+        return submitNanos / 1e6;
+    }
+
+    /**
+     * @return The part of {@link #getSubmitMillis()} spent waiting for space
+     * in a full pipeline.
+     */
+    public double getBackpressureMillis() {
+        return backpressureNanos / 1e6;
+    }
+
+    public double getStageMillis(int stage) {
+        return stageNanos.get(stage) / 1e6;
+    }
+
+    public long getStageItems(int stage) {
+        return stageItems.get(stage);
+    }
+
+    public long getSegmentsCompleted() {
+        return segmentsCompleted;
+    }
+
+    /**
+     * @return Decoded segments acknowledged per second, measured over the
+     * time in which there were items in the pipeline.
+     */
+    public double getSegmentsPerSecond() {
+        long elapsedNanos;
+        synchronized(busyLock) {
+            elapsedNanos = busyNanos + ((numItemsInPipeline > 0) ? System.nanoTime() - busyStartTime : 0);
+        }
+
+        return (elapsedNanos > 0) ? segmentsCompleted / (elapsedNanos / 1e9) : 0.0;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder statsBldr = new StringBuilder();
+        statsBldr.append(threaded ? "Threaded" : "Inline");
+        statsBldr.append(" decode pipeline: ").append(segmentsCompleted).append(" segments");
+        statsBldr.append(String.format(" (%.1f segments/s)", getSegmentsPerSecond()));
+        statsBldr.append(String.format(", main thread %.1f ms (%.1f ms blocked)", getSubmitMillis(), getBackpressureMillis()));
+        for(int stage = 0; stage < NUM_STAGES; stage++) {
+            statsBldr.append(String.format(", %s %.1f ms / %d", STAGE_NAMES[stage], getStageMillis(stage), getStageItems(stage)));
+        }
+
+        return statsBldr.toString();
+    }
+
+    private void runStage(int stage, Item item) {
+        long startTime = System.nanoTime();
+        try {
+            stages[stage].process(item);
+        } catch(Exception e) {
+            Log.e(TAG, "The " + STAGE_NAMES[stage] + " stage failed for Intent with action \"" + item.intent.getAction() + "\"", e);
+        } finally {
+            long endTime = System.nanoTime();
+            stageNanos.addAndGet(stage, endTime - startTime);
+            stageItems.incrementAndGet(stage);
+
+            if(stage == STAGE_ACKNOWLEDGE) {
+                if(item.decodedSegment != null) {
+                    segmentsCompleted++;
+                }
+
+                itemLeft(endTime);
+            }
+        }
+    }
+
+    // Called when an item is submitted, before it can reach any stage
+    private void itemEntered(long time) {
+        synchronized(busyLock) {
+            if(numItemsInPipeline++ == 0) {
+                busyStartTime = time;
+            }
+        }
+    }
+
+    // Called when an item has been through the last stage (or could not be queued)
+    private void itemLeft(long time) {
+        synchronized(busyLock) {
+            if(--numItemsInPipeline == 0) {
+                busyNanos += time - busyStartTime;
+            }
+        }
+    }
+
+    private class StageThread extends Thread {
+        private final int stage;
+
+        StageThread(int stage) {
+            super("DecodePipeline-" + STAGE_NAMES[stage]);
+            this.stage = stage;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            BlockingQueue<Item> input = queues.get(stage);
+            BlockingQueue<Item> output = (stage + 1 < NUM_STAGES) ? queues.get(stage + 1) : null;
+            try {
+                while(true) {
+                    Item item = input.take();
+                    if(item != SHUTDOWN) {
+                        runStage(stage, item);
+                    }
+
+                    if(output != null) {
+                        output.put(item);
+                    }
+
+                    if(item == SHUTDOWN) {
+                        return;
+                    }
+                }
+            } catch(InterruptedException e) {
+                Log.w(TAG, "The " + STAGE_NAMES[stage] + " stage was interrupted");
+            }
+        }
+    }
+}
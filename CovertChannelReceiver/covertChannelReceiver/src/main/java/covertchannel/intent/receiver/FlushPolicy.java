@@ -0,0 +1,99 @@
+package covertchannel.intent.receiver;
+
+/**
+ * When the {@link SegmentJournal} writes buffered records to disk.
+ *
+ * Records are buffered in memory and written out (and forced to the storage
+ * device) by a flush, which happens as soon as any of the enabled triggers
+ * fires:
+ * <ul>
+ *   <li>{@code maxPendingSegments} segments are waiting to be written,</li>
+ *   <li>the oldest waiting record has waited {@code maxDelayMillis},</li>
+ *   <li>a message has been completed ({@code flushOnCompletion}), or</li>
+ *   <li>{@link SegmentJournal#flush()} is called, which the
+ *   {@link MessageReceiver} does when it is destroyed.</li>
+ * </ul>
+ *
+ * Durability contract: a segment or message is durable once the flush which
+ * writes it has returned, and not before. The sender does not resend
+ * acknowledged segments, so the receiver flushes the journal through every
+ * segment an acknowledgement covers before sending it (see
+ * {@link SegmentJournal#flushThrough}); segments which are buffered while an
+ * earlier acknowledgement is being sent share the next one's flush. The
+ * triggers above therefore only bound how long segments wait when no
+ * acknowledgement is due, and a process which dies loses only segments which
+ * have not been acknowledged, which the sender resends. Records which have
+ * been flushed are never lost, and a crash during a flush is detected and
+ * truncated away when the journal is next opened.
+ */
+public final class FlushPolicy {
+    // Disables the flush timer
+    public static final long NO_DELAY_LIMIT = 0;
+
+    /**
+     * Every record is written and forced before the call which added it
+     * returns, i.e. nothing is ever buffered.
+     */
+    public static final FlushPolicy WRITE_THROUGH = new FlushPolicy(1, NO_DELAY_LIMIT, true);
+
+    private final int maxPendingSegments;
+    private final long maxDelayMillis;
+    private final boolean flushOnCompletion;
+
+    /**
+     * @param maxPendingSegments Flushes once this many segments are waiting
+     * to be written; 1 writes every segment through.
+     * @param maxDelayMillis Flushes once a record has waited this long, or
+     * {@link #NO_DELAY_LIMIT} to only flush on the other triggers.
+     * @param flushOnCompletion Flushes whenever a message is completed (or a
+     * stream is abandoned), which also compacts the journal.
+     */
+    public FlushPolicy(int maxPendingSegments, long maxDelayMillis, boolean flushOnCompletion) {
+        if(maxPendingSegments < 1) {
+            throw new IllegalArgumentException("At least one pending segment must trigger a flush; got " + maxPendingSegments);
+        }
+
+        if(maxDelayMillis < 0) {
+            throw new IllegalArgumentException("Flush delay cannot be negative; got " + maxDelayMillis + " ms");
+        }
+
+        this.maxPendingSegments = maxPendingSegments;
+        this.maxDelayMillis = maxDelayMillis;
+        this.flushOnCompletion = flushOnCompletion;
+    }
+
+    public int getMaxPendingSegments() {
+        return maxPendingSegments;
+    }
+
+    public long getMaxDelayMillis() {
+        return maxDelayMillis;
+    }
+
+    public boolean flushesOnCompletion() {
+        return flushOnCompletion;
+    }
+
+    public boolean isWriteThrough() {
+        return maxPendingSegments == 1 && flushOnCompletion;
+    }
+
+    @Override
+    public String toString() {
+        if(isWriteThrough()) {
+            return "write-through";
+        }
+
+        StringBuilder policyBldr = new StringBuilder("write-behind (every " + maxPendingSegments + " segments");
+        if(maxDelayMillis != NO_DELAY_LIMIT) {
+            policyBldr.append(", every " + maxDelayMillis + " ms");
+        }
+
+        if(flushOnCompletion) {
+            policyBldr.append(", on completion");
+        }
+
+        policyBldr.append(", on destroy)");
+        return policyBldr.toString();
+    }
+}
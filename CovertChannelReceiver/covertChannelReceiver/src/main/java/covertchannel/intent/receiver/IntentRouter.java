@@ -0,0 +1,116 @@
+package covertchannel.intent.receiver;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Routing table of the {@link MessageReceiver}: maps each action it accepts
+ * to the handler for it with a single hashed lookup, so that the cost of
+ * dispatching an Intent does not grow with the number of actions.
+ *
+ * Data actions all share one handler and are routed with their band index
+ * (their position in the action strings), which the decoder uses in place of
+ * looking the action up again. Control actions each get a handler of their
+ * own, so adding one does not touch the data path.
+ *
+ * Routes are registered before the first Intent is routed and are not
+ * changed afterwards, so lookups need no synchronization.
+ */
+public final class IntentRouter {
+    // Band index of the routes of control actions
+    public static final int NO_BAND_INDEX = -1;
+
+    /**
+     * What the pipeline stages do with the Intents of a route. Each method
+     * runs on the thread of its stage (see {@link DecodePipeline}); by
+     * default they do nothing.
+     */
+    public static abstract class ActionHandler {
+        public void decode(DecodePipeline.Item item) {
+        }
+
+        public void persist(DecodePipeline.Item item) throws IOException {
+        }
+
+        public void acknowledge(DecodePipeline.Item item) {
+        }
+    }
+
+    public static final class Route {
+        private final ActionHandler handler;
+        private final int bandIndex;
+        private final boolean streamed;
+
+        Route(ActionHandler handler, int bandIndex, boolean streamed) {
+            this.handler = handler;
+            this.bandIndex = bandIndex;
+            this.streamed = streamed;
+        }
+
+        public ActionHandler getHandler() {
+            return handler;
+        }
+
+        /**
+         * @return The position of the action in the data actions, or
+         * {@link #NO_BAND_INDEX} for a control action.
+         */
+        public int getBandIndex() {
+            return bandIndex;
+        }
+
+        /**
+         * @return Whether the Intents of the route belong to a sender stream
+         * (and therefore to a {@link ReceiverSession}).
+         */
+        public boolean isStreamed() {
+            return streamed;
+        }
+    }
+
+    private final Map<String, Route> routes = new HashMap<>();
+
+    /**
+     * Routes each of {@code actions} to {@code handler}, along with its
+     * position in the list as its band index.
+     */
+    public void registerDataActions(List<String> actions, ActionHandler handler) {
+        for(int i = 0; i < actions.size(); i++) {
+            register(actions.get(i), new Route(handler, i, true));
+        }
+    }
+
+    /**
+     * @param streamed Whether the action's Intents belong to a sender stream;
+     * see {@link Route#isStreamed()}.
+     */
+    public void registerControlAction(String action, ActionHandler handler, boolean streamed) {
+        register(action, new Route(handler, NO_BAND_INDEX, streamed));
+    }
+
+    /**
+     * @return The route for {@code action}, or {@code null} if the action is
+     * not accepted.
+     */
+    public Route route(String action) {
+        if(action == null) {
+            return null;
+        }
+
+        return routes.get(action);
+    }
+
+    public int size() {
+        return routes.size();
+    }
+
+    private void register(String action, Route route) {
+        if(routes.containsKey(action)) {
+            throw new IllegalArgumentException("A route for action \"" + action + "\" is already registered");
+        }
+
+        routes.put(action, route);
+    }
+}
@@ -0,0 +1,84 @@
+package covertchannel.intent.receiver;
+
+/**
+ * Histogram of latencies with power-of-two microsecond buckets: bucket 0
+ * counts latencies under 1 us and bucket {@code i} counts latencies from
+ * {@code 2^(i-1)} up to {@code 2^i} us. Percentiles are therefore reported
+ * as the upper bound of the bucket they fall in, i.e. to within a factor of
+ * two, which is enough to tell the receiver's stages apart while keeping
+ * recording to a few array operations.
+ */
+public final class LatencyHistogram {
+    // The last bucket also holds everything longer than about 18 minutes
+    private static final int NUM_BUCKETS = 32;
+
+    private final long[] bucketCounts = new long[NUM_BUCKETS];
+    private long count;
+    private long totalNanos;
+    private long maxNanos;
+
+    public synchronized void record(long nanos) {
+        if(nanos < 0) {
+            nanos = 0;
+        }
+
+        long micros = nanos / 1000;
+        int bucket = (micros == 0) ? 0 : Math.min(NUM_BUCKETS - 1, Long.SIZE - Long.numberOfLeadingZeros(micros));
+        bucketCounts[bucket]++;
+        count++;
+        totalNanos += nanos;
+        maxNanos = Math.max(maxNanos, nanos);
+    }
+
+    public synchronized long getCount() {
+        return count;
+    }
+
+    public synchronized double getTotalMillis() {
+        return totalNanos / 1e6;
+    }
+
+    public synchronized double getMeanMicros() {
+        return (count == 0) ? 0.0 : (totalNanos / 1e3) / count;
+    }
+
+    public synchronized double getMaxMicros() {
+        return maxNanos / 1e3;
+    }
+
+    /**
+     * @param percentile Between 0 and 100.
+     * @return The upper bound (in microseconds) of the bucket holding the
+     * given percentile, or 0 if nothing has been recorded.
+     */
+    public synchronized long getPercentileMicros(double percentile) {
+        if(percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("Percentile must be between 0 and 100; got " + percentile);
+        }
+
+        if(count == 0) {
+            return 0;
+        }
+
+        long rank = (long) Math.ceil((percentile / 100) * count);
+        long seen = 0;
+        for(int bucket = 0; bucket < NUM_BUCKETS; bucket++) {
+            seen += bucketCounts[bucket];
+            if(seen >= rank && bucketCounts[bucket] > 0) {
+                return 1L << bucket;
+            }
+        }
+
+        return 1L << (NUM_BUCKETS - 1);
+    }
+
+    public synchronized void clear() {
+        for(int bucket = 0; bucket < NUM_BUCKETS; bucket++) {
+            bucketCounts[bucket] = 0;
+        }
+
+        count = 0;
+        totalNanos = 0;
+        maxNanos = 0;
+    }
+}
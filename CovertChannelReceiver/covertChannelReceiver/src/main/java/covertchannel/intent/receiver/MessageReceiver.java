@@ -1,161 +1,545 @@
 package covertchannel.intent.receiver;
 
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Date;
-import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
-import java.util.Map;
+import java.util.List;
 import java.util.Set;
-import java.util.TreeSet;
 
 import android.app.Service;
 import android.content.Intent;
-import android.content.SharedPreferences;
 import android.os.Binder;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Messenger;
+import android.os.Process;
+import android.os.RemoteException;
+import android.os.SystemClock;
 import android.util.Log;
 
-import intent.covertchannel.intentencoderdecoder.AlphabeticalKeySequenceComparator;
+import intent.covertchannel.intentencoderdecoder.BitBuffer;
 import intent.covertchannel.intentencoderdecoder.BitstringEncoder;
+import intent.covertchannel.intentencoderdecoder.BitstringEncoderCache;
+import intent.covertchannel.intentencoderdecoder.ChannelConfig;
 import intent.covertchannel.intentencoderdecoder.EncodingScheme;
 import intent.covertchannel.intentencoderdecoder.EncodingUtils;
 import intent.covertchannel.intentencoderdecoder.LowerCaseAlphaEncoder;
 
 public class MessageReceiver extends Service {
-    protected static final String MESSAGE_STORE_KEY = "covert_message_store";
-    public static final String ALPHA_ENCODED_MESSAGE_STORAGE_KEY = "alpha_encoded";
-    public static final String BITSTRING_ENCODED_MESSAGE_STORAGE_KEY = "bitstring_encoded";
-    private static final String ELAPSED_TIME_MESSAGE_STORAGE_KEY = "elapsed_time";
-
     // TODO: Cleanup
     //private static final String TAG = "covertchannel.intent.receiver.MessageReceiver";
     private static final String TAG = EncodingUtils.TRACE_TAG;
 
-    // Used to persist received messages so that they can be accessed later
-    private SharedPreferences messageStore;
+    // Set to false to decode, persist and acknowledge on the main thread (e.g. to compare throughput)
+    private static final boolean USE_BACKGROUND_PIPELINE = true;
+
+    // Intents which can be waiting in each pipeline stage before submitting blocks
+    private static final int PIPELINE_QUEUE_CAPACITY = 64;
+    private static final long PIPELINE_DRAIN_TIMEOUT_MILLIS = 10000;
+
+    // Streams which can be received concurrently, and how long an idle stream's partial message is kept
+    private static final int MAX_SESSIONS = 16;
+    private static final long SESSION_TIME_TO_LIVE_MILLIS = 5 * 60 * 1000;
+
+    // Write-behind: segments are buffered until 16 are waiting or 100 ms have passed, unless an acknowledgement which
+    // covers them is due first
+    private static final FlushPolicy JOURNAL_FLUSH_POLICY = new FlushPolicy(16, 100, true);
+
+    // An incomplete message is NACKed once no segment of it has arrived for this long, and again after each further
+    // timeout without one, until the sender has been asked this many times
+    private static final long NACK_TIMEOUT_MILLIS = 250;
+    private static final int MAX_UNANSWERED_NACKS = 8;
+
+    // Value band which throughput test carriers are decoded with
+    private static final int THROUGHPUT_BAND_INDEX = 0;
+
+    // Submitted to the pipeline (and never accepted from other apps) when a stream's NACK timeout has passed
+    private static final String CHECK_MISSING_SEGMENTS_ACTION = "covertchannel.intent.receiver.CHECK_MISSING_SEGMENTS";
+
+    // Used to persist received segments and messages so that they can be accessed later
+    private SegmentJournal segmentJournal;
+
+    // Per-stream channel configuration and reassembly state
+    private SessionTable sessionTable;
+
+    // Handler for each accepted action
+    private IntentRouter router;
+
+    // Route of the CHECK_MISSING_SEGMENTS_ACTION Intents, which is not part of the router
+    private IntentRouter.Route missingSegmentsRoute;
+
+    // Runs the NACK timers off the main thread, since submitting a check blocks while the decode pipeline is full
+    private HandlerThread nackTimerThread;
+    private Handler nackTimerHandler;
 
 	// This is the object that receives interactions from clients.
     private final IBinder mBinder = new MessageBinder();
-    private Integer numBaseValues;
-    private Integer numExpansionCodes;
-    private Integer numActions;
-    private long testId;
-    private int segmentsSeen;
+
+    // Returned when binding with EncodingUtils.BATCH_DELIVERY_ACTION
+    private final Messenger batchMessenger = new Messenger(new CarrierBatchHandler());
+    private DecodePipeline decodePipeline;
+    private final ReceiverMetrics metrics = new ReceiverMetrics();
+
+    // Owned by the acknowledge stage: the highest journal append sequence of the Intents it has been handed, which the
+    // journal is flushed through before anything is acknowledged
+    private long journalSequenceToAcknowledge;
 
     @Override
     public void onCreate() {
 		super.onCreate();
 
         Log.d(TAG, "Receiver service starting");
-		messageStore = getSharedPreferences(MESSAGE_STORE_KEY, MODE_PRIVATE);
-        numBaseValues = null;
-        numExpansionCodes = null;
-        numActions = null;
-        testId = EncodingUtils.DEFAULT_TEST_ID;
-        segmentsSeen = 0;
+        nackTimerThread = new HandlerThread("MessageReceiverNackTimer", Process.THREAD_PRIORITY_BACKGROUND);
+        nackTimerThread.start();
+        nackTimerHandler = new Handler(nackTimerThread.getLooper());
+
+        BitstringEncoder defaultEncoder = BitstringEncoderCache.get(new ChannelConfig(EncodingScheme.NUM_BASE_VALUES, EncodingUtils.NUM_EXPANSION_CODES, EncodingUtils.ACTIONS, EncodingScheme.BUILD_VERSION));
+        sessionTable = new SessionTable(MAX_SESSIONS, SESSION_TIME_TO_LIVE_MILLIS, defaultEncoder);
+        router = createRouter();
+        missingSegmentsRoute = new IntentRouter.Route(new MissingSegmentsHandler(), IntentRouter.NO_BAND_INDEX, false);
+        Log.d(TAG, "Routing " + router.size() + " actions");
+
+        try {
+            // Replays the journal, recovering any segments received before the service last stopped
+            segmentJournal = SegmentJournal.getInstance(this);
+            segmentJournal.setFlushPolicy(JOURNAL_FLUSH_POLICY);
+            recoverSessions(segmentJournal, sessionTable);
+        } catch(IOException e) {
+            throw new RuntimeException("Could not open the segment journal", e);
+        }
+
+        decodePipeline = new DecodePipeline(PIPELINE_QUEUE_CAPACITY, USE_BACKGROUND_PIPELINE,
+                new DecodePipeline.Stage() {
+                    @Override
+                    public void process(DecodePipeline.Item item) {
+                        decodeIntent(item);
+                    }
+                },
+                new DecodePipeline.Stage() {
+                    @Override
+                    public void process(DecodePipeline.Item item) throws IOException {
+                        persistIntent(item);
+                    }
+                },
+                new DecodePipeline.Stage() {
+                    @Override
+                    public void process(DecodePipeline.Item item) {
+                        acknowledgeIntent(item);
+                    }
+                });
 	}
 
     private void handleIntent(Intent intent) {
-        if(matchesFilter(intent)) {
+        IntentRouter.Route route = router.route(intent.getAction());
+        if(route != null) {
             Log.d(TAG, "Intent filter matched for action " + intent.getAction());
 
             // TODO: Cleanup
             //long endTime = new Date().getTime();
             double endTime = EncodingUtils.getTimeMillisAccurate();
 
-            // TODO: Throughput calculations to work for bitstring and alpha-encoding methods
-            String intentAction = intent.getAction();
-            if(intentAction.equals(EncodingUtils.CALCULATE_THROUGHPUT_ACTION_ALPHA_ENCODING)) {
+            // Everything else happens in the pipeline's stages, in the order in which the Intents arrived
+            decodePipeline.submit(intent, route, endTime);
+        }
+    }
+
+    /**
+     * Submits the carriers of a batch in order. The batch is acknowledged
+     * through {@code replyTo} once its last carrier has been through the
+     * pipeline, instead of acknowledging each segment with a broadcast.
+     */
+    private void handleBatch(List<Intent> carriers, Messenger replyTo) {
+        if(replyTo == null) {
+            // Nowhere to acknowledge the batch, so each segment is acknowledged as if it had arrived on its own
+            for(Intent carrier: carriers) {
+                handleIntent(carrier);
+            }
+
+            return;
+        }
+
+        // TODO: Cleanup
+        double endTime = EncodingUtils.getTimeMillisAccurate();
+
+        List<Intent> acceptedCarriers = new ArrayList<>(carriers.size());
+        List<IntentRouter.Route> acceptedRoutes = new ArrayList<>(carriers.size());
+        for(Intent carrier: carriers) {
+            IntentRouter.Route route = router.route(carrier.getAction());
+            if(route != null) {
+                acceptedCarriers.add(carrier);
+                acceptedRoutes.add(route);
+            } else {
+                Log.d(TAG, "Dropping batched Intent with action \"" + carrier.getAction() + "\"");
+            }
+        }
+
+        Log.d(TAG, "Received a batch of " + acceptedCarriers.size() + " carriers");
+        if(acceptedCarriers.isEmpty()) {
+            acknowledgeBatch(replyTo);
+            return;
+        }
+
+        int lastCarrier = acceptedCarriers.size() - 1;
+        for(int i = 0; i <= lastCarrier; i++) {
+            decodePipeline.submit(acceptedCarriers.get(i), acceptedRoutes.get(i), endTime, replyTo, i == lastCarrier);
+        }
+    }
+
+    /**
+     * Builds the routing table: every data action, plus a handler for each
+     * control action. Each handler's methods run on the thread of their
+     * pipeline stage, with the same ownership rules as the stage methods.
+     */
+    private IntentRouter createRouter() {
+        // TODO: Implement Intent filtering so that only Intents which are
+        // covertly marked as containing a covert message (such as through
+        // the ClipData channel) will attempted to be decoded
+
+        // TODO: Represent the Intent filters as a custom class to allow the
+        // signature/pattern/microprotocol being used and looked for to
+        // vary independently
+        IntentRouter intentRouter = new IntentRouter();
+
+        // Bitstring-encoded segments, decoded with the value band of their action
+        intentRouter.registerDataActions(EncodingUtils.ACTIONS, new SegmentHandler() {
+            @Override
+            public void decode(DecodePipeline.Item item) {
+                // TODO: Cleanup
+                //long startTime = System.currentTimeMillis();
+                double startTime = EncodingUtils.getTimeMillisAccurate();
+                Log.d(TAG, "Starting to decode message: current action \"" + item.intent.getAction() + "\"; start time = " + startTime);
+
+                ReceiverSession session = item.session;
+                item.bitstringEncoder = session.bitstringEncoder;
+                item.testId = session.testId;
+                item.decodedSegment = decodeSegment(session.bitstringEncoder, item.intent, item.route.getBandIndex());
+            }
+        });
+
+        // TODO: Throughput calculations to work for bitstring and alpha-encoding methods
+        intentRouter.registerControlAction(EncodingUtils.CALCULATE_THROUGHPUT_ACTION_ALPHA_ENCODING, new IntentRouter.ActionHandler() {
+            @Override
+            public void decode(DecodePipeline.Item item) {
                 Intent responseIntent = new Intent();
                 responseIntent.setAction(EncodingUtils.SEND_TIME_ACTION);
 
                 // TODO: Cleanup
                 //responseIntent.putExtra(EncodingUtils.END_TIME_KEY, System.currentTimeMillis());
-                responseIntent.putExtra(EncodingUtils.END_TIME_KEY, endTime);
-                sendBroadcast(responseIntent);
-            } else if(intentAction.equals(EncodingUtils.CALCULATE_THROUGHPUT_ACTION_BITSTRING_ENCODING)) {
+                responseIntent.putExtra(EncodingUtils.END_TIME_KEY, item.receivedTime);
+                item.response = responseIntent;
+            }
+        }, true);
+
+        intentRouter.registerControlAction(EncodingUtils.CALCULATE_THROUGHPUT_ACTION_BITSTRING_ENCODING, new SegmentHandler() {
+            @Override
+            public void decode(DecodePipeline.Item item) {
                 Log.d(TAG, "Received CALCULATE_THROUGHPUT_ACTION_BITSTRING_ENCODING action");
                 // TODO: Cleanup
 
-                segmentsSeen++;
+                ReceiverSession session = item.session;
 
-                BitstringEncoder bitstringEncoder;
-                if(numBaseValues != null && numExpansionCodes != null && numActions != null) {
-                    Log.d(TAG, "Initializing bitstring encoder with values: base val count: " + numBaseValues + ", expansion code count: " + numExpansionCodes + ", num actions: " + numActions);
-                    bitstringEncoder = new BitstringEncoder(numBaseValues, numExpansionCodes, EncodingUtils.ACTIONS.subList(0, numActions), EncodingScheme.BUILD_VERSION);
-                } else {
-                    Log.d(TAG, "Initializing bitstring encoder with values: base val count: " + EncodingScheme.NUM_BASE_VALUES + ", expansion code count: " + EncodingUtils.NUM_EXPANSION_CODES + ", num actions: " + EncodingUtils.ACTIONS.size());
-                    bitstringEncoder = new BitstringEncoder(EncodingScheme.NUM_BASE_VALUES, EncodingUtils.NUM_EXPANSION_CODES, EncodingUtils.ACTIONS, EncodingScheme.BUILD_VERSION);
-                }
-
-                Bundle dataBundle = intent.getExtras();
-                Set<String> bundleKeys = new TreeSet<>(new AlphabeticalKeySequenceComparator());
-                bundleKeys.addAll(dataBundle.keySet());
-                Iterator<String> bundleKeyIter = bundleKeys.iterator();
-                String sigBitsInLastFragmentKey = bundleKeyIter.next();
-                String segmentNumberKey = bundleKeyIter.next();
-                String segmentCountKey = bundleKeyIter.next();
-
-                // Metadata keys do not use the action offset
-                //String sigBitsMetadataBitstring = bitstringEncoder.decodeFragmentAsBitstring(dataBundle, sigBitsInLastFragmentKey, 0, bitstringEncoder.getFragmentMinBitLength());
-                //String segmentNumberBitstring = bitstringEncoder.decodeFragmentAsBitstring(dataBundle, segmentNumberKey, 0, bitstringEncoder.getFragmentMinBitLength());
-                String segmentCountBitstring = bitstringEncoder.decodeFragmentAsBitstring(dataBundle, segmentCountKey, 0, bitstringEncoder.getFragmentMinBitLength());
-
-                //int numSigBitsInLastFragment = bitstringEncoder.bitstringToInt(sigBitsMetadataBitstring);
-                //int segmentNumber = bitstringEncoder.bitstringToInt(segmentNumberBitstring);
-                int segmentCount = bitstringEncoder.bitstringToInt(segmentCountBitstring);
-
-                if(segmentsSeen < segmentCount) {
-                    Log.d(TAG, "Sending acknowledgement for test ID: " + testId);
-                    Intent responseIntent = new Intent();
-                    responseIntent.setAction(EncodingUtils.ACKNOWLEDGE_MESSAGE_SEGMENT_ACTION);
-                    responseIntent.putExtra(EncodingUtils.TEST_ID_KEY, testId);
-                    sendBroadcast(responseIntent);
-                } else {
-                    Log.d(TAG, "Sending response with end time = " + endTime + " and test ID of " + testId);
-
-                    // Note: this does not account for decoding time
-                    Intent responseIntent = new Intent();
-                    responseIntent.setAction(EncodingUtils.SEND_TIME_ACTION);
-                    //responseIntent.putExtra(EncodingUtils.END_TIME_KEY, System.currentTimeMillis());
-                    responseIntent.putExtra(EncodingUtils.END_TIME_KEY, endTime);
-                    responseIntent.putExtra(EncodingUtils.TEST_ID_KEY, testId);
-                    sendBroadcast(responseIntent);
-                }
+                // Decoded and stored like any other segment, so that the measured throughput includes persistence (the
+                // carriers all share the throughput action instead of the action of their value band, so they are
+                // decoded as if they were in the first band, and the values cannot be decoded into the original
+                // message). The persist stage acknowledges it, or reports the end time once every segment has arrived.
+                item.bitstringEncoder = session.bitstringEncoder;
+                item.testId = session.testId;
+                item.discardsMessage = true;
+                item.decodedSegment = decodeSegment(session.bitstringEncoder, item.intent, THROUGHPUT_BAND_INDEX);
+            }
+        }, true);
 
-                //decodeAndStoreBitstring(intent);
-            } else if(intentAction.equals(EncodingUtils.CALCULATE_BIT_ERROR_RATE)) {
+        intentRouter.registerControlAction(EncodingUtils.CALCULATE_BIT_ERROR_RATE, new IntentRouter.ActionHandler() {
+            @Override
+            public void decode(DecodePipeline.Item item) {
                 LowerCaseAlphaEncoder alphaEncoder = new LowerCaseAlphaEncoder(EncodingScheme.NUM_BASE_VALUES, EncodingUtils.NUM_ALPHA_EXPANSION_CODES, Collections.singleton(EncodingUtils.ALPHA_ENCODING_ACTION), EncodingScheme.BUILD_VERSION);
-                String receivedMessage = alphaEncoder.decodeMessage(intent);
+                String receivedMessage = alphaEncoder.decodeMessage(item.intent);
 
                 Intent responseIntent = new Intent();
                 responseIntent.setAction(EncodingUtils.SEND_BIT_ERRORS_ACTION);
 
                 // TODO: Cleanup
                 //responseIntent.putExtra(EncodingUtils.END_TIME_KEY, System.currentTimeMillis());
-                responseIntent.putExtra(EncodingUtils.END_TIME_KEY, endTime);
+                responseIntent.putExtra(EncodingUtils.END_TIME_KEY, item.receivedTime);
                 responseIntent.putExtra(EncodingUtils.RECEIVED_MESSAGE_KEY, receivedMessage);
+                item.response = responseIntent;
+            }
+        }, true);
 
-                sendBroadcast(responseIntent);
-            } else if(intentAction.equals(EncodingUtils.CLEAR_MESSAGE_STORE_ACTION)) {
+        intentRouter.registerControlAction(EncodingUtils.CLEAR_MESSAGE_STORE_ACTION, new IntentRouter.ActionHandler() {
+            @Override
+            public void decode(DecodePipeline.Item item) {
+                // Every stream starts over
+                sessionTable.clear();
+            }
+
+            @Override
+            public void persist(DecodePipeline.Item item) throws IOException {
                 Log.d(TAG, "Clearing the message store");
-                messageStore.edit().clear().commit();
-            } else if(intentAction.equals(EncodingUtils.ALPHA_ENCODING_ACTION)) {
-                decodeAndStore(intent);
-            } else if(intentAction.equals(EncodingUtils.SET_CHANNEL_CONFIGURATION_ACTION)) {
-                Bundle extras = intent.getExtras();
-                this.numBaseValues = extras.getInt(EncodingUtils.NUM_BASE_VALUES_KEY);
-                this.numExpansionCodes = extras.getInt(EncodingUtils.NUM_EXPANSION_CODES_KEY);
-                this.numActions = extras.getInt(EncodingUtils.NUM_ACTIONS_KEY);
-                this.testId = extras.getLong(EncodingUtils.TEST_ID_KEY, EncodingUtils.DEFAULT_TEST_ID);
-
-                Log.d(TAG, "Configuring channel config values to: base val count: " + numBaseValues + ", expansion code count: " + numExpansionCodes + ", num actions: " + numActions);
+                segmentJournal.clear();
+            }
+        }, true);
+
+        intentRouter.registerControlAction(EncodingUtils.ALPHA_ENCODING_ACTION, new IntentRouter.ActionHandler() {
+            @Override
+            public void decode(DecodePipeline.Item item) {
+                LowerCaseAlphaEncoder alphaEncoder = new LowerCaseAlphaEncoder(EncodingScheme.NUM_BASE_VALUES, EncodingUtils.NUM_ALPHA_EXPANSION_CODES, Collections.singleton(EncodingUtils.ALPHA_ENCODING_ACTION), EncodingScheme.BUILD_VERSION);
+                item.decodedMessage = alphaEncoder.decodeMessage(item.intent);
+            }
+
+            @Override
+            public void persist(DecodePipeline.Item item) throws IOException {
+                segmentJournal.putMessage(SegmentJournal.MESSAGE_KIND_ALPHA, item.decodedMessage);
+            }
+        }, true);
+
+        intentRouter.registerControlAction(EncodingUtils.SET_CHANNEL_CONFIGURATION_ACTION, new IntentRouter.ActionHandler() {
+            @Override
+            public void decode(DecodePipeline.Item item) {
+                ReceiverSession session = item.session;
+                Bundle extras = item.intent.getExtras();
+                int numBaseValues = extras.getInt(EncodingUtils.NUM_BASE_VALUES_KEY);
+                int numExpansionCodes = extras.getInt(EncodingUtils.NUM_EXPANSION_CODES_KEY);
+                int numActions = extras.getInt(EncodingUtils.NUM_ACTIONS_KEY);
+                int packingMode = extras.getInt(EncodingUtils.PACKING_MODE_KEY, BitstringEncoder.PACKING_MODE_GREEDY);
+                session.testId = extras.getLong(EncodingUtils.TEST_ID_KEY, EncodingUtils.DEFAULT_TEST_ID);
+                item.testId = session.testId;
+
+                if(numActions < 1 || numActions > EncodingUtils.ACTIONS.size()) {
+                    throw new IllegalArgumentException("Stream " + session.getStreamId() + " cannot use " + numActions + " actions; there are " + EncodingUtils.ACTIONS.size());
+                }
+
+                Log.d(TAG, "Configuring stream " + session.getStreamId() + " channel config values to: base val count: " + numBaseValues + ", expansion code count: " + numExpansionCodes + ", num actions: " + numActions + ", packing mode: " + packingMode);
+
+                // Selects the cached encoder for the configuration (building it only the first time it is seen); it
+                // uses the first numActions data actions, so their band indices match the routing table's
+                BitstringEncoder bitstringEncoder = BitstringEncoderCache.get(new ChannelConfig(numBaseValues, numExpansionCodes, EncodingUtils.ACTIONS.subList(0, numActions), EncodingScheme.BUILD_VERSION, packingMode));
+                // The sender configures the stream before each message, so a partial message is abandoned, unless
+                // it was recovered from the journal and this is the sender configuring the stream to resume it
+                item.startsMessage = session.configured;
+                session.bitstringEncoder = bitstringEncoder;
+                session.configured = true;
+                item.bitstringEncoder = bitstringEncoder;
+            }
+
+            @Override
+            public void persist(DecodePipeline.Item item) throws IOException {
+                if(item.bitstringEncoder == null) {
+                    // The configuration was rejected, so the stream carries on with its previous one
+                    return;
+                }
+
+                // Otherwise the new message's segments would be taken for duplicates of the old one's (or be
+                // decoded with a configuration they were not encoded with)
+                ReceiverSession session = item.session;
+                if(item.startsMessage && session.reassemblyBuffer != null) {
+                    Log.d(TAG, "Abandoning the partial message on stream " + session.getStreamId() + " after reconfiguring it");
+                    abandonMessage(session);
+                }
+
+                // Each throughput test configures the channel before sending its first segment, so if none of them
+                // arrives the sender is still asked to resend them
+                awaitSegments(session, item.testId);
+            }
+        }, true);
+
+        // Answered by the acknowledge stage, once everything received before it has been acknowledged
+        intentRouter.registerControlAction(EncodingUtils.DUMP_STATS_ACTION, new IntentRouter.ActionHandler() {
+            @Override
+            public void acknowledge(DecodePipeline.Item item) {
+                Intent responseIntent = new Intent();
+                responseIntent.setAction(EncodingUtils.SEND_STATS_ACTION);
+                responseIntent.putExtra(EncodingUtils.STATS_KEY, getStatsSnapshot());
+                item.response = responseIntent;
+            }
+        }, false);
+
+        // Likewise answered once everything received before it has been acknowledged, with the journal flushed, so
+        // that a throughput sweep can start its next test as soon as the receiver has caught up with the last one
+        intentRouter.registerControlAction(EncodingUtils.AWAIT_RECEIVER_IDLE_ACTION, new IntentRouter.ActionHandler() {
+            @Override
+            public void acknowledge(DecodePipeline.Item item) {
+                try {
+                    segmentJournal.flush();
+                } catch(IOException e) {
+                    Log.e(TAG, "Could not flush the segment journal", e);
+                }
+
+                Intent responseIntent = new Intent();
+                responseIntent.setAction(EncodingUtils.RECEIVER_IDLE_ACTION);
+                responseIntent.putExtra(EncodingUtils.TEST_ID_KEY, item.intent.getLongExtra(EncodingUtils.TEST_ID_KEY, EncodingUtils.DEFAULT_TEST_ID));
+                item.response = responseIntent;
+            }
+        }, false);
+
+        return intentRouter;
+    }
+
+    /**
+     * First pipeline stage: finds the session of the Intent's stream and
+     * hands the Intent to its route's handler to be decoded. Only ever runs
+     * on one thread at a time, which owns the session table and each
+     * session's encoder, test ID and throughput segment count.
+     */
+    private void decodeIntent(DecodePipeline.Item item) {
+        metrics.recordLatency(ReceiverMetrics.LATENCY_ARRIVAL_TO_DECODE, System.nanoTime() - item.arrivalNanos);
+
+        if(item.route.isStreamed()) {
+            // The stream ID is not part of the encoded message
+            Intent intent = item.intent;
+            long streamId = intent.getLongExtra(EncodingUtils.STREAM_ID_KEY, EncodingUtils.DEFAULT_STREAM_ID);
+            intent.removeExtra(EncodingUtils.STREAM_ID_KEY);
+
+            item.session = sessionTable.get(streamId, SystemClock.elapsedRealtime());
+            item.removedSessions = sessionTable.takeRemovedSessions();
+        }
+
+        item.route.getHandler().decode(item);
+    }
+
+    // bandIndex is the position of the carrier's action in the data actions, or IntentRouter.NO_BAND_INDEX to look it up
+    private BitstringEncoder.DecodedMessage decodeSegment(BitstringEncoder bitstringEncoder, Intent carrier, int bandIndex) {
+        long startTime = System.nanoTime();
+        BitstringEncoder.DecodedMessage decodedSegment;
+        try {
+            if(bandIndex == IntentRouter.NO_BAND_INDEX) {
+                decodedSegment = bitstringEncoder.decodeMessageAsBitstring(carrier);
             } else {
-                // Must be a bitstring-encoded Intent
-                decodeAndStoreBitstring(intent);
+                decodedSegment = bitstringEncoder.decodeMessageAsBitstring(carrier, bandIndex);
+            }
+        } catch(RuntimeException e) {
+            metrics.countDecodeFailure();
+            throw e;
+        } finally {
+            metrics.recordLatency(ReceiverMetrics.LATENCY_DECODE, System.nanoTime() - startTime);
+        }
+
+        if(decodedSegment != null) {
+            long segmentBits = 0;
+            for(int i = 0; i < decodedSegment.getNumFragments(); i++) {
+                segmentBits += decodedSegment.getFragmentBitLength(i);
             }
+
+            metrics.countSegment(segmentBits);
+        }
+
+        return decodedSegment;
+    }
+
+    /**
+     * Second pipeline stage: has the Intent's route handler store decoded
+     * segments and messages and track the reassembly of each stream's
+     * message. Only ever runs on one thread at a time, which owns each
+     * session's reassembly buffer.
+     */
+    private void persistIntent(DecodePipeline.Item item) throws IOException {
+        if(item.session == null) {
+            // Not part of a stream (i.e. a stats request)
+            return;
+        }
+
+        // The partial messages of expired or evicted sessions are abandoned
+        for(ReceiverSession removedSession: item.removedSessions) {
+            segmentJournal.dropSegments(removedSession.getStreamId());
+        }
+
+        item.route.getHandler().persist(item);
+        item.journalSequence = segmentJournal.getAppendSequence();
+    }
+
+    // Stores a decoded segment, timing how long its message spends being stored
+    private void persistSegment(DecodePipeline.Item item) throws IOException {
+        if(item.decodedSegment == null) {
+            // Could not be decoded, so it counts as lost; the NACK timer has it resent
+            awaitSegments(item.session, item.testId);
+            return;
+        }
+
+        ReceiverSession session = item.session;
+        long startTime = System.nanoTime();
+        storeSegment(item);
+        session.persistNanos += System.nanoTime() - startTime;
+
+        // Reports how much of the message's transmission time was spent storing it
+        if(item.response != null && EncodingUtils.SEND_TIME_ACTION.equals(item.response.getAction())) {
+            item.response.putExtra(EncodingUtils.PERSISTENCE_TIME_KEY, session.persistNanos / 1e6);
+            session.persistNanos = 0;
+        }
+    }
+
+    /**
+     * Last pipeline stage: sends the response (if any) to the sender, and
+     * acknowledges the Intent's batch if it was the last one in it, once the
+     * journal has been flushed through everything stored before them.
+     */
+    private void acknowledgeIntent(DecodePipeline.Item item) {
+        item.route.getHandler().acknowledge(item);
+
+        // An acknowledgement covers every segment stored so far, and the sender does not resend acknowledged segments,
+        // so they have to be durable before it is sent; the acknowledgements of segments which were buffered together
+        // share a flush
+        journalSequenceToAcknowledge = Math.max(journalSequenceToAcknowledge, item.journalSequence);
+        if(item.response != null || item.endsBatch) {
+            try {
+                segmentJournal.flushThrough(journalSequenceToAcknowledge);
+            } catch(IOException e) {
+                // Not acknowledged, so the sender resends whatever was lost
+                Log.e(TAG, "Could not flush the segment journal; dropping the acknowledgement", e);
+                return;
+            }
+        }
+
+        if(item.response != null) {
+            sendResponse(item);
+        }
+
+        // Everything before it in the batch has been acknowledged as well, so the sender can send the next batch
+        if(item.endsBatch) {
+            acknowledgeBatch(item.batchReplyTo);
+        }
+    }
+
+    private void sendResponse(DecodePipeline.Item item) {
+        // The sender's elapsed time includes the time the receiver held each segment except the last
+        ReceiverSession session = item.session;
+        boolean endsMessage = EncodingUtils.SEND_TIME_ACTION.equals(item.response.getAction());
+        if(session != null && endsMessage) {
+            item.response.putExtra(EncodingUtils.RECEIVER_TIME_KEY, session.receiverNanos / 1e6);
+            session.receiverNanos = 0;
+        }
+
+        // Batched segments are acknowledged along with the rest of their batch instead
+        boolean acknowledgedByBatch = (item.batchReplyTo != null && EncodingUtils.ACKNOWLEDGE_MESSAGE_SEGMENT_ACTION.equals(item.response.getAction()));
+
+        long startTime = System.nanoTime();
+        if(!acknowledgedByBatch) {
+            sendBroadcast(item.response);
+            metrics.recordLatency(ReceiverMetrics.LATENCY_ACKNOWLEDGE, System.nanoTime() - startTime);
+        }
+
+        if(session != null && !endsMessage) {
+            // Segments are acknowledged in the order in which they arrived, so only the part of this segment's
+            // interval after the end of the previous one is new
+            long acknowledgedNanos = System.nanoTime();
+            session.receiverNanos += Math.max(0, acknowledgedNanos - Math.max(item.arrivalNanos, session.receiverBusyUntilNanos));
+            session.receiverBusyUntilNanos = acknowledgedNanos;
+        }
+    }
+
+    private void acknowledgeBatch(Messenger replyTo) {
+        long startTime = System.nanoTime();
+        try {
+            replyTo.send(Message.obtain(null, EncodingUtils.MSG_CARRIERS_ACKNOWLEDGED));
+        } catch(RemoteException e) {
+            // The sender has gone away
+            Log.w(TAG, "Could not acknowledge a carrier batch", e);
+        } finally {
+            metrics.recordLatency(ReceiverMetrics.LATENCY_ACKNOWLEDGE, System.nanoTime() - startTime);
         }
     }
 
@@ -172,6 +556,24 @@ public class MessageReceiver extends Service {
 
 	@Override
     public void onDestroy() {
+        nackTimerHandler.removeCallbacksAndMessages(null);
+        nackTimerThread.quit();
+
+        // Lets every Intent which has already been received finish before the service goes away
+        if(!decodePipeline.shutdown(PIPELINE_DRAIN_TIMEOUT_MILLIS)) {
+            Log.w(TAG, "The decode pipeline did not drain within " + PIPELINE_DRAIN_TIMEOUT_MILLIS + " ms");
+        }
+
+        Log.d(TAG, decodePipeline.toString());
+
+        try {
+            segmentJournal.flush();
+        } catch(IOException e) {
+            Log.e(TAG, "Could not flush the segment journal", e);
+        }
+
+        Log.d(TAG, segmentJournal.getFlushSummary());
+        Log.d(TAG, metrics.toString());
     	super.onDestroy();
 
         // TODO: Remove
@@ -180,264 +582,314 @@ public class MessageReceiver extends Service {
 
     @Override
     public IBinder onBind(Intent intent) {
+        if(EncodingUtils.BATCH_DELIVERY_ACTION.equals(intent.getAction())) {
+            return batchMessenger.getBinder();
+        }
+
         handleIntent(intent);
         return mBinder;
     }
 
-    private boolean matchesFilter(Intent intent) {
-	    // TODO: Implement Intent filtering so that only Intents which are
-		// covertly marked as containing a covert message (such as through
-		// the ClipData channel) will attempted to be decoded
-		
-		// TODO: Represent the Intent filters as a custom class to allow the
-		// signature/pattern/microprotocol being used and looked for to
-		// vary independently
-	    return (EncodingUtils.ALPHA_ENCODING_ACTION.equals(intent.getAction()) ||
-	    		EncodingUtils.CALCULATE_THROUGHPUT_ACTION_ALPHA_ENCODING.equals(intent.getAction()) ||
-                EncodingUtils.CALCULATE_THROUGHPUT_ACTION_BITSTRING_ENCODING.equals(intent.getAction()) ||
-	    		EncodingUtils.CALCULATE_BIT_ERROR_RATE.equals(intent.getAction()) ||
-                EncodingUtils.CLEAR_MESSAGE_STORE_ACTION.equals(intent.getAction()) ||
-                EncodingUtils.SET_CHANNEL_CONFIGURATION_ACTION.equals(intent.getAction()) ||
-                EncodingUtils.ACTIONS.contains(intent.getAction()));
+    /**
+     * @return The decode pipeline, e.g. for reading its statistics.
+     */
+    public DecodePipeline getDecodePipeline() {
+        return decodePipeline;
     }
-	
-	private void decodeAndStore(Intent messageIntent) {
-        LowerCaseAlphaEncoder alphaEncoder = new LowerCaseAlphaEncoder(EncodingScheme.NUM_BASE_VALUES, EncodingUtils.NUM_ALPHA_EXPANSION_CODES, Collections.singleton(EncodingUtils.ALPHA_ENCODING_ACTION), EncodingScheme.BUILD_VERSION);
-        String message = alphaEncoder.decodeMessage(messageIntent);
-
-        SharedPreferences.Editor messageStoreEditor = messageStore.edit();
-    	messageStoreEditor.putString(ALPHA_ENCODED_MESSAGE_STORAGE_KEY, message);
-    	messageStoreEditor.commit();
-	}
-
-    private void decodeAndStoreBitstring(Intent messageIntent) {
-        // TODO: Cleanup
-        //long startTime = System.currentTimeMillis();
-        double startTime = EncodingUtils.getTimeMillisAccurate();
-        Log.d(TAG, "Starting to decode message: current action \"" + messageIntent.getAction() + "\"; start time = " + startTime);
-        // TODO: Cleanup
-        //printMessageStore();
-
-        BitstringEncoder bitstringEncoder;
-        if(numBaseValues != null && numExpansionCodes != null && numActions != null) {
-            Log.d(TAG, "Initializing bitstring encoder with values: base val count: " + numBaseValues + ", expansion code count: " + numExpansionCodes + ", num actions: " + numActions);
-            bitstringEncoder = new BitstringEncoder(numBaseValues, numExpansionCodes, EncodingUtils.ACTIONS.subList(0, numActions), EncodingScheme.BUILD_VERSION);
-        } else {
-            Log.d(TAG, "Initializing bitstring encoder with values: base val count: " + EncodingScheme.NUM_BASE_VALUES + ", expansion code count: " + EncodingUtils.NUM_EXPANSION_CODES + ", num actions: " + EncodingUtils.ACTIONS.size());
-            bitstringEncoder = new BitstringEncoder(EncodingScheme.NUM_BASE_VALUES, EncodingUtils.NUM_EXPANSION_CODES, EncodingUtils.ACTIONS, EncodingScheme.BUILD_VERSION);
-        }
 
-        BitstringEncoder.DecodedMessage messageSegment = bitstringEncoder.decodeMessageAsBitstring(messageIntent);
-        Map<String, String> fragmentBitstringsByMessageKey = messageSegment.getFragmentBitstringsByMessageKey();
+    public ReceiverMetrics getMetrics() {
+        return metrics;
+    }
 
-        //Log.d(TAG, mapToString(fragmentBitstringsByMessageKey, "Fragment Bitstrings by Message Key:"));
+    /**
+     * @return The receiver's current latencies and counts; see
+     * {@link ReceiverMetrics} for the keys.
+     */
+    public Bundle getStatsSnapshot() {
+        return metrics.snapshot(sessionTable, decodePipeline);
+    }
 
+    private void storeSegment(DecodePipeline.Item item) throws IOException {
+        ReceiverSession session = item.session;
+        BitstringEncoder.DecodedMessage messageSegment = item.decodedSegment;
         int segmentNumber = messageSegment.getSegmentNumber();
         int segmentCount = messageSegment.getSegmentCount();
 
         //Log.d(TAG, "Current segment number: " + segmentNumber + ", segment count = " + segmentCount);
 
-        SharedPreferences.Editor messageStoreEditor = messageStore.edit();
-        Set<String> remainingSegmentKeys = new HashSet<>();
-        Map<String, String> masterBitstringMap = new HashMap<>();
-        boolean messageIsComplete = true;
-        for(int i = 0; i < segmentCount; i++) {
-            String key = String.valueOf(i);
-            if(segmentNumber == i) {
-                /*
-                if(!messageStore.contains(key)) {
-                    Log.d(TAG, "Storing bitstring map for message key \"" + key + "\" (i.e. storing the action key set and then storing the value for each key)");
-                } else {
-                    // TODO: Cleanup
-                    //throw new RuntimeException("Encountered existing entry for message key \"" + key + "\"");
-                    Log.d(TAG, "Encountered existing entry for message key \"" + key + "\": \"" + messageStore.getString(key, "") + "\"");
-                }
-                */
-
-                masterBitstringMap.putAll(fragmentBitstringsByMessageKey);
-                storeStringSet(messageStoreEditor, key, fragmentBitstringsByMessageKey.keySet());
-                storeMessageFragments(messageStoreEditor, fragmentBitstringsByMessageKey);
-                //Log.d(TAG, "Commiting changes to the message store");
-                messageStoreEditor.commit();
-                messageStoreEditor = messageStore.edit();
-            } else if(!messageStore.contains(key)) {
-                Log.d(TAG, "No bitstring found for segment key \"" + key + "\"; message is incomplete. Will wait for more segments to arrive.");
-                messageIsComplete = false;
-                break;
-            } else {
-                remainingSegmentKeys.add(key);
-            }
+        // Checked before anything is stored, so that a malformed segment can neither abandon the partial message nor
+        // end up in the journal (which would replay it on every restart)
+        int maxSegmentCount = item.bitstringEncoder.getChannelConfig().getActionStrings().size();
+        if(!ReassemblyBuffer.isValidSegment(messageSegment, maxSegmentCount)) {
+            Log.w(TAG, "Dropping invalid segment " + segmentNumber + " of " + segmentCount + " on stream " + session.getStreamId());
+            metrics.countDecodeFailure();
+            awaitSegments(session, item.testId);
+            return;
         }
 
-        // TODO: Cleanup
-        //long endTime = System.currentTimeMillis();
-        double endTime = EncodingUtils.getTimeMillisAccurate();
-
-        /* TODO: Cleanup
-        long elapsedTime = endTime - startTime;
+        long reassemblyStartTime = System.nanoTime();
+        if(session.reassemblyBuffer == null || session.reassemblyBuffer.getSegmentCount() != segmentCount) {
+            // The first segment of a new message (any partial message with a different segment count is abandoned,
+            // along with its journaled segments, which would otherwise be recovered into the new message)
+            if(session.reassemblyBuffer != null) {
+                Log.d(TAG, "Abandoning the partial message on stream " + session.getStreamId() + " for a message of " + segmentCount + " segments");
+                abandonMessage(session);
+            }
 
-        if(messageStore.contains(ELAPSED_TIME_MESSAGE_STORAGE_KEY)) {
-            elapsedTime += messageStore.getLong(ELAPSED_TIME_MESSAGE_STORAGE_KEY, 0);
+            session.reassemblyBuffer = new ReassemblyBuffer(segmentCount, maxSegmentCount);
         }
-        */
-
-        if(messageIsComplete) {
-            Log.d(TAG, "Message is complete");
 
-            // TODO: Cleanup
-            Intent responseIntent = new Intent();
-            responseIntent.setAction(EncodingUtils.SEND_TIME_ACTION);
-            responseIntent.putExtra(EncodingUtils.END_TIME_KEY, endTime);
-            responseIntent.putExtra(EncodingUtils.TEST_ID_KEY, testId);
-
-            // TODO: Cleanup
-            //responseIntent.putExtra(EncodingUtils.ELAPSED_TIME_KEY, elapsedTime);
-
-            Log.d(TAG, "Sending response with end time = " + endTime + " and test ID of " + testId);
-            Log.d(TAG, "Sending end time response of " + endTime);
-            //Log.d(TAG, "Sending elapsed time response of " + elapsedTime);
-            sendBroadcast(responseIntent);
+        if(session.reassemblyBuffer.hasSegment(segmentNumber)) {
+            // A retransmission of a segment which has already been stored; it is only acknowledged again
+            Log.d(TAG, "Ignoring duplicate segment " + segmentNumber + " of " + segmentCount + " on stream " + session.getStreamId());
+            metrics.countDuplicateSegment();
+            item.response = createSegmentAcknowledgement(EncodingUtils.ACKNOWLEDGE_MESSAGE_SEGMENT_ACTION, session, item.testId);
+            return;
+        }
 
-            for(String segmentKey: remainingSegmentKeys) {
-                //Log.d(TAG, "Retrieving fragment map for segment key \"" + segmentKey + "\"");
-                printMessageStore();
+        // Stored (along with the significant-bits value which mixed-radix unpacking needs) before it is acknowledged; the
+        // acknowledge stage makes it durable before its acknowledgement is sent
+        long persistStartTime = System.nanoTime();
+        segmentJournal.appendSegment(session.getStreamId(), messageSegment);
+        metrics.recordLatency(ReceiverMetrics.LATENCY_PERSIST, System.nanoTime() - persistStartTime);
+
+        session.reassemblyBuffer.addSegment(messageSegment);
+        boolean messageIsComplete = session.reassemblyBuffer.isComplete();
+        metrics.recordLatency(ReceiverMetrics.LATENCY_REASSEMBLY, System.nanoTime() - reassemblyStartTime);
+
+        if(!messageIsComplete) {
+            Log.d(TAG, "Message is incomplete after segment " + segmentNumber + " of " + segmentCount + "; sending segment acknowledgement");
+            item.response = createSegmentAcknowledgement(EncodingUtils.ACKNOWLEDGE_MESSAGE_SEGMENT_ACTION, session, item.testId);
+            awaitSegments(session, item.testId);
+            return;
+        }
 
-                Map<String, String> segmentBitstringMap = retrieveMessageFragmentMap(messageStore, segmentKey);
-                masterBitstringMap.putAll(segmentBitstringMap);
-            }
+        Log.d(TAG, "Message on stream " + session.getStreamId() + " is complete");
+        session.awaitingSegments = false;
 
-            String message = fragmentMapToBitstring(masterBitstringMap);
-            messageStoreEditor.clear();
-            messageStoreEditor.putString(BITSTRING_ENCODED_MESSAGE_STORAGE_KEY, message);
+        // TODO: Cleanup
+        //long endTime = System.currentTimeMillis();
+        // Note: a throughput test's end time is when its last segment arrived, so it does not account for decoding time
+        double endTime = item.discardsMessage ? item.receivedTime : EncodingUtils.getTimeMillisAccurate();
+
+        Intent responseIntent = new Intent();
+        responseIntent.setAction(EncodingUtils.SEND_TIME_ACTION);
+        responseIntent.putExtra(EncodingUtils.END_TIME_KEY, endTime);
+        responseIntent.putExtra(EncodingUtils.TEST_ID_KEY, item.testId);
+
+        Log.d(TAG, "Sending response with end time = " + endTime + " and test ID of " + item.testId);
+        item.response = responseIntent;
+
+        if(!item.discardsMessage) {
+            reassemblyStartTime = System.nanoTime();
+            BitBuffer messageBits = session.reassemblyBuffer.assemble(item.bitstringEncoder);
+            metrics.recordLatency(ReceiverMetrics.LATENCY_REASSEMBLY, System.nanoTime() - reassemblyStartTime);
+
+            // Writes the message bits straight to the message's file (without converting them into a String) and
+            // drops the message's segments from the journal
+            persistStartTime = System.nanoTime();
+            segmentJournal.completeMessage(session.getStreamId(), SegmentJournal.MESSAGE_KIND_BITSTRING, messageBits);
+            metrics.recordLatency(ReceiverMetrics.LATENCY_PERSIST, System.nanoTime() - persistStartTime);
         } else {
-            Log.d(TAG, "Message is not complete; sending segment acknowledgement");
-
-            Intent responseIntent = new Intent();
-            responseIntent.setAction(EncodingUtils.ACKNOWLEDGE_MESSAGE_SEGMENT_ACTION);
-            sendBroadcast(responseIntent);
-
-            /* TODO: Cleanup
-            Log.d(TAG, "Message is not complete; storing elapsed time");
-            messageStoreEditor.putLong(ELAPSED_TIME_MESSAGE_STORAGE_KEY, elapsedTime);
-            */
+            // Throughput test segments do not decode to a message, so there is nothing to keep
+            persistStartTime = System.nanoTime();
+            segmentJournal.dropSegments(session.getStreamId());
+            metrics.recordLatency(ReceiverMetrics.LATENCY_PERSIST, System.nanoTime() - persistStartTime);
         }
 
-        messageStoreEditor.commit();
+        session.reassemblyBuffer = null;
     }
 
-    private void printMessageStore() {
-        /*
-        Map<String, ?> messageStoreEntries = messageStore.getAll();
-        Map<String, String> messsageStoreStringMap = new HashMap<>();
-        for(Map.Entry<String, ?> entry: messageStoreEntries.entrySet()) {
-            String key = entry.getKey();
-            String value = (String) entry.getValue();
-            messsageStoreStringMap.put(key, value);
+    /**
+     * Persist stage: drops the session's partial message, in memory and in
+     * the journal.
+     */
+    private void abandonMessage(ReceiverSession session) throws IOException {
+        session.reassemblyBuffer = null;
+        segmentJournal.dropSegments(session.getStreamId());
+    }
+
+    /**
+     * @return An acknowledgement (or NACK) of everything received of the
+     * session's message so far: the highest contiguous segment and a bitmap
+     * of the segments received after it.
+     */
+    private static Intent createSegmentAcknowledgement(String action, ReceiverSession session, long testId) {
+        Intent acknowledgementIntent = new Intent();
+        acknowledgementIntent.setAction(action);
+        acknowledgementIntent.putExtra(EncodingUtils.TEST_ID_KEY, testId);
+
+        // Lets a sliding-window sender advance past every segment received so far, even if earlier acknowledgements
+        // were not delivered, and resend only the segments which are missing
+        ReassemblyBuffer reassemblyBuffer = session.reassemblyBuffer;
+        int highestContiguousSegment = (reassemblyBuffer == null) ? -1 : reassemblyBuffer.getContiguousSegmentCount() - 1;
+        acknowledgementIntent.putExtra(EncodingUtils.HIGHEST_CONTIGUOUS_SEGMENT_KEY, highestContiguousSegment);
+        if(reassemblyBuffer != null) {
+            acknowledgementIntent.putExtra(EncodingUtils.RECEIVED_SEGMENTS_KEY, reassemblyBuffer.getReceivedSegmentsBitmap());
         }
 
-        Log.d(TAG, mapToString(messsageStoreStringMap, "Message Store Data:"));
-        */
+        return acknowledgementIntent;
     }
 
-    private static String mapToString(Map<String, String> stringMap, String header) {
-        StringBuilder messageStoreStrBldr = new StringBuilder();
-        messageStoreStrBldr.append(header);
-        messageStoreStrBldr.append("\n");
+    /**
+     * Persist stage: notes that more segments of the session's message are
+     * expected, (re)starting its NACK timeout.
+     */
+    private void awaitSegments(ReceiverSession session, long testId) {
+        session.awaitingSegments = true;
+        session.lastSegmentTime = SystemClock.elapsedRealtime();
+        session.awaitedTestId = testId;
+        session.unansweredNacks = 0;
+        scheduleMissingSegmentsCheck(session, NACK_TIMEOUT_MILLIS);
+    }
 
-        for(Map.Entry<String, ?> entry: stringMap.entrySet()) {
-            String key = entry.getKey();
-            String value = (String) entry.getValue();
-            messageStoreStrBldr.append("\t");
-            messageStoreStrBldr.append(key);
-            messageStoreStrBldr.append(" => ");
-            messageStoreStrBldr.append(value);
-            messageStoreStrBldr.append("\n");
+    /**
+     * Persist stage: submits a CHECK_MISSING_SEGMENTS_ACTION Intent for the
+     * session's stream after {@code delayMillis}, unless one is already
+     * scheduled. The check goes through the pipeline so that the session is
+     * only ever handled by its stages' threads.
+     */
+    private void scheduleMissingSegmentsCheck(ReceiverSession session, long delayMillis) {
+        if(session.missingSegmentsCheckScheduled) {
+            return;
         }
 
-        return messageStoreStrBldr.toString();
+        session.missingSegmentsCheckScheduled = true;
+        final long streamId = session.getStreamId();
+        nackTimerHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                Intent checkIntent = new Intent(CHECK_MISSING_SEGMENTS_ACTION);
+                checkIntent.putExtra(EncodingUtils.STREAM_ID_KEY, streamId);
+                decodePipeline.submit(checkIntent, missingSegmentsRoute, EncodingUtils.getTimeMillisAccurate());
+            }
+        }, delayMillis);
     }
 
-    private static void storeStringSet(SharedPreferences.Editor messageStoreEditor, String key, Set<String> valueSet) {
-        StringBuilder joinedStringBldr = new StringBuilder();
+    private static void recoverSessions(SegmentJournal segmentJournal, SessionTable sessionTable) throws IOException {
+        long currentTime = SystemClock.elapsedRealtime();
+        Set<Long> invalidStreams = new HashSet<>();
+        for(SegmentJournal.StoredSegment segment: segmentJournal.readSegments()) {
+            // The stream's channel configuration is not journaled, so only the largest one is known to bound the segment
+            if(invalidStreams.contains(segment.getStreamId()) || !ReassemblyBuffer.isValidSegment(segment, EncodingUtils.ACTIONS.size())) {
+                invalidStreams.add(segment.getStreamId());
+                continue;
+            }
 
-        Iterator<String> valueIter = valueSet.iterator();
-        String value = valueIter.next();
-        while(valueIter.hasNext()) {
-            joinedStringBldr.append(value);
-            joinedStringBldr.append(", ");
-            value = valueIter.next();
-        }
-        joinedStringBldr.append(value);
+            ReceiverSession session = sessionTable.get(segment.getStreamId(), currentTime);
+            if(session.reassemblyBuffer == null || session.reassemblyBuffer.getSegmentCount() != segment.getSegmentCount()) {
+                session.reassemblyBuffer = new ReassemblyBuffer(segment.getSegmentCount(), EncodingUtils.ACTIONS.size());
+            }
 
-        //Log.d(TAG, "Storing: key -> \"" + key + "\"; value -> \"" + joinedStringBldr.toString() + "\"");
-        messageStoreEditor.putString(key, joinedStringBldr.toString());
-    }
+            session.reassemblyBuffer.addSegment(segment);
+        }
 
-    private static Set<String> retrieveStringSet(SharedPreferences messageStore, String key) {
-        String joinedString = messageStore.getString(key, "");
-        //Log.d(TAG, "Retrieved: key -> \"" + key + "\"; value -> \"" + joinedString + "\"");
+        // A stream with an invalid segment cannot be reassembled, so it is abandoned instead of being replayed again
+        for(long streamId: invalidStreams) {
+            Log.w(TAG, "Dropping the journaled segments of stream " + streamId + ", which include an invalid segment");
+            ReceiverSession session = sessionTable.peek(streamId);
+            if(session != null) {
+                session.reassemblyBuffer = null;
+            }
 
-        String[] values = joinedString.split(",");
+            segmentJournal.dropSegments(streamId);
+        }
 
-        Set<String> valueSet = new HashSet<>();
-        for(String value: values) {
-            valueSet.add(value.trim());
+        // More streams than fit in the table; the least recently received ones are abandoned
+        for(ReceiverSession removedSession: sessionTable.takeRemovedSessions()) {
+            segmentJournal.dropSegments(removedSession.getStreamId());
         }
 
-        return valueSet;
+        if(sessionTable.size() > 0) {
+            Log.d(TAG, "Recovered partial messages for " + sessionTable.size() + " streams from the segment journal");
+        }
     }
 
-    private static void storeMessageFragments(SharedPreferences.Editor messageStoreEditor, Map<String, String> fragmentBitstringsByMessageKey) {
-        for(Map.Entry<String, String> fragmentAndMessageKey: fragmentBitstringsByMessageKey.entrySet()) {
-            String key = fragmentAndMessageKey.getKey();
-            String value = fragmentAndMessageKey.getValue();
-            //Log.d(TAG, "Storing: key -> \"" + key + "\"; value -> \"" + value + "\"");
-            messageStoreEditor.putString(key, value);
+    /**
+     * NACKs the message of a stream whose NACK timeout has passed without a
+     * segment arriving, if it is still incomplete.
+     */
+    private class MissingSegmentsHandler extends IntentRouter.ActionHandler {
+        @Override
+        public void decode(DecodePipeline.Item item) {
+            // The check must not revive a session which has since been removed
+            long streamId = item.intent.getLongExtra(EncodingUtils.STREAM_ID_KEY, EncodingUtils.DEFAULT_STREAM_ID);
+            item.session = sessionTable.peek(streamId);
+            item.removedSessions = Collections.emptyList();
         }
-    }
 
-    private static Map<String, String> retrieveMessageFragmentMap(SharedPreferences messageStore, String segmentKey) {
-        Map<String, String> fragmentBitstringsByMessageKey = new HashMap<>();
-        Set<String> segmentKeys = retrieveStringSet(messageStore, segmentKey);
-        for(String key: segmentKeys) {
-            //Log.d(TAG, "Retrieving stored fragment bitstring for key \"" + key + "\"");
-            String fragmentBitstring = messageStore.getString(key, null);
-            if(fragmentBitstring != null) {
-                //Log.d(TAG, "Retrieved bitstring \"" + fragmentBitstring + "\" for key \"" + key + "\"");
-                fragmentBitstringsByMessageKey.put(key, fragmentBitstring);
-            } else {
-                throw new RuntimeException("Null fragment bitstring retrieved from the message store for key \"" + key + "\" and segment key \"" + segmentKey + "\"");
+        @Override
+        public void persist(DecodePipeline.Item item) throws IOException {
+            ReceiverSession session = item.session;
+            session.missingSegmentsCheckScheduled = false;
+            if(!session.awaitingSegments) {
+                return;
+            }
+
+            long idleMillis = SystemClock.elapsedRealtime() - session.lastSegmentTime;
+            if(idleMillis < NACK_TIMEOUT_MILLIS) {
+                // A segment has arrived since the check was scheduled
+                scheduleMissingSegmentsCheck(session, NACK_TIMEOUT_MILLIS - idleMillis);
+                return;
+            }
+
+            if(session.unansweredNacks >= MAX_UNANSWERED_NACKS) {
+                // The sender is gone; if it comes back, its segments belong to a new message
+                Log.w(TAG, "Giving up on the missing segments of stream " + session.getStreamId() + " after " + session.unansweredNacks + " NACKs");
+                session.awaitingSegments = false;
+                if(session.reassemblyBuffer != null) {
+                    abandonMessage(session);
+                }
+
+                return;
             }
+
+            Log.d(TAG, "No segment has arrived on stream " + session.getStreamId() + " for " + idleMillis + " ms; sending NACK");
+            session.unansweredNacks++;
+            session.lastSegmentTime = SystemClock.elapsedRealtime();
+            metrics.countNack();
+            item.response = createSegmentAcknowledgement(EncodingUtils.NEGATIVE_ACKNOWLEDGE_MESSAGE_SEGMENTS_ACTION, session, session.awaitedTestId);
+            scheduleMissingSegmentsCheck(session, NACK_TIMEOUT_MILLIS);
         }
+    }
 
-        return fragmentBitstringsByMessageKey;
+    /**
+     * Handles the actions whose Intents carry a bitstring-encoded segment,
+     * which is stored by the persist stage.
+     */
+    private abstract class SegmentHandler extends IntentRouter.ActionHandler {
+        @Override
+        public void persist(DecodePipeline.Item item) throws IOException {
+            persistSegment(item);
+        }
     }
 
-    private static String fragmentMapToBitstring(Map<String, String> fragmentBitstringsByMessageKey) {
-        StringBuilder bitstringBldr = new StringBuilder();
-        Set<String> msgKeys = new TreeSet<>(new AlphabeticalKeySequenceComparator());
-        msgKeys.addAll(fragmentBitstringsByMessageKey.keySet());
-        for(String key: msgKeys) {
-            bitstringBldr.append(fragmentBitstringsByMessageKey.get(key));
+    /**
+     * Receives the {@link EncodingUtils#MSG_DELIVER_CARRIERS} messages sent to
+     * {@link #batchMessenger}, each carrying a batch of carrier Intents under
+     * {@link EncodingUtils#CARRIERS_KEY}. Runs on the main thread, like
+     * {@link #onStartCommand}, so batches and individually started Intents
+     * are submitted to the pipeline in the order in which they arrive.
+     */
+    private class CarrierBatchHandler extends Handler {
+        CarrierBatchHandler() {
+            super(Looper.getMainLooper());
         }
 
-        String joinedBitstring = bitstringBldr.toString();
-        //Log.d(TAG, "Retrieved joined bitstring of \"" + joinedBitstring + "\"");
+        @Override
+        public void handleMessage(Message msg) {
+            if(msg.what != EncodingUtils.MSG_DELIVER_CARRIERS) {
+                super.handleMessage(msg);
+                return;
+            }
 
-        return BitstringEncoder.bitStringToStr(joinedBitstring);
-    }
+            List<Intent> carriers = msg.getData().getParcelableArrayList(EncodingUtils.CARRIERS_KEY);
+            if(carriers == null) {
+                Log.w(TAG, "Received a carrier batch without any carriers");
+                carriers = Collections.emptyList();
+            }
 
-    // TODO: Remove?
-    private void clearMessageSegmentEntries(SharedPreferences.Editor messageStoreEditor) {
-        Map<String, ?> messageStoreEntries = messageStore.getAll();
-        for(Map.Entry<String, ?> entry: messageStoreEntries.entrySet()) {
-            String key = entry.getKey();
-            if(!(key.equals(ALPHA_ENCODED_MESSAGE_STORAGE_KEY) || key.equals(BITSTRING_ENCODED_MESSAGE_STORAGE_KEY))) {
-                //Log.d(TAG, "Removing message store key \"" + key + "\"");
-                messageStoreEditor.remove(key);
-            } /*else {
-                Log.d(TAG, "Skipping message store key \"" + key + "\"");
-            }*/
+            handleBatch(carriers, msg.replyTo);
         }
     }
 
@@ -446,5 +898,9 @@ public class MessageReceiver extends Service {
 		{
 			return MessageReceiver.this;
 		}
+
+        public Bundle getStatsSnapshot() {
+            return MessageReceiver.this.getStatsSnapshot();
+        }
 	}
 }
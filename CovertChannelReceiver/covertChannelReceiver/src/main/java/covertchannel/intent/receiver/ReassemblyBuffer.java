@@ -0,0 +1,272 @@
+package covertchannel.intent.receiver;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+import intent.covertchannel.intentencoderdecoder.BitBuffer;
+import intent.covertchannel.intentencoderdecoder.BitstringEncoder;
+import intent.covertchannel.intentencoderdecoder.KeyTable;
+import intent.covertchannel.intentencoderdecoder.Segment;
+
+/**
+ * In-memory reassembly state for a single message.
+ *
+ * Every fragment is stored along with its message key ordinal (message keys
+ * are handed out in message order across all of the segments), and a bitmap
+ * records which segments have been received. Checking whether the message is
+ * complete is therefore a counter comparison; the fragments are only put
+ * into message order, by sorting them on their ordinals, when the message is
+ * assembled.
+ *
+ * Segments come from other apps, so their segment counts and key ordinals are
+ * checked with {@link #isValidSegment} before anything is stored for them: a
+ * message has at most one segment per action of its channel configuration,
+ * and each segment at most {@link #MAX_FRAGMENTS_PER_SEGMENT} fragments. The
+ * storage grows with the fragments which have actually been received, never
+ * with the ordinals they claim, so a carrier with a single high ordinal costs
+ * no more than any other one-fragment carrier.
+ */
+public class ReassemblyBuffer {
+    private static final int INITIAL_CAPACITY = 64;
+
+    // More than fit in a carrier: each Bundle entry takes at least 16 bytes of a binder transaction, and transactions
+    // much above 256 KB fail (the 1 MB binder buffer is shared by all of the process's transactions). The largest test
+    // message over a single action needs 4096.
+    public static final int MAX_FRAGMENTS_PER_SEGMENT = 1 << 14;
+
+    private final int segmentCount;
+    private final int maxOrdinals;
+    private final BitSet receivedSegments;
+    private int numReceivedSegments;
+
+    // In the order in which they were received
+    private int[] fragmentOrdinals;
+    private int[] fragmentValues;
+    private int[] fragmentBitLengths;
+    private int numFragments;
+
+    private int significantBitsInLastFragment;
+
+    /**
+     * @param maxSegmentCount The number of actions of the stream's channel
+     * configuration, i.e. the most segments one of its messages can have.
+     */
+    public ReassemblyBuffer(int segmentCount, int maxSegmentCount) {
+        if(segmentCount < 1 || segmentCount > maxSegmentCount) {
+            throw new IllegalArgumentException("A message must consist of between 1 and " + maxSegmentCount + " segments; got a segment count of " + segmentCount);
+        }
+
+        this.segmentCount = segmentCount;
+        maxOrdinals = maxOrdinals(segmentCount);
+        receivedSegments = new BitSet(segmentCount);
+        numReceivedSegments = 0;
+
+        fragmentOrdinals = new int[INITIAL_CAPACITY];
+        fragmentValues = new int[INITIAL_CAPACITY];
+        fragmentBitLengths = new int[INITIAL_CAPACITY];
+        numFragments = 0;
+    }
+
+    public int getSegmentCount() {
+        return segmentCount;
+    }
+
+    /**
+     * @return Whether {@code segment} can belong to a message of a stream
+     * whose channel configuration has {@code maxSegmentCount} actions: its
+     * segment number and count are in range and it has no more fragments,
+     * and no higher key ordinals, than a message of that many segments can
+     * have.
+     */
+    public static boolean isValidSegment(BitstringEncoder.DecodedMessage segment, int maxSegmentCount) {
+        if(!isValidSegment(segment.getSegmentNumber(), segment.getSegmentCount(), segment.getNumFragments(), maxSegmentCount)) {
+            return false;
+        }
+
+        int maxOrdinals = maxOrdinals(segment.getSegmentCount());
+        for(int i = 0; i < segment.getNumFragments(); i++) {
+            int ordinal = KeyTable.ordinal(segment.getMessageKey(i));
+            if(ordinal < 0 || ordinal >= maxOrdinals) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Equivalent to {@link #isValidSegment(BitstringEncoder.DecodedMessage, int)}
+     * for a segment recovered from the {@link SegmentJournal}.
+     */
+    public static boolean isValidSegment(SegmentJournal.StoredSegment segment, int maxSegmentCount) {
+        if(!isValidSegment(segment.getSegmentNumber(), segment.getSegmentCount(), segment.getNumFragments(), maxSegmentCount)) {
+            return false;
+        }
+
+        int maxOrdinals = maxOrdinals(segment.getSegmentCount());
+        for(int i = 0; i < segment.getNumFragments(); i++) {
+            int ordinal = segment.getKeyOrdinal(i);
+            if(ordinal < 0 || ordinal >= maxOrdinals) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Places the fragments of a decoded segment. Segments which have already
+     * been received (i.e. retransmissions) are ignored.
+     *
+     * @return {@code false} if the segment had already been received.
+     */
+    public boolean addSegment(BitstringEncoder.DecodedMessage segment) {
+        if(!markReceived(segment.getSegmentNumber(), segment.getSegmentCount())) {
+            return false;
+        }
+
+        for(int i = 0; i < segment.getNumFragments(); i++) {
+            placeFragment(KeyTable.ordinal(segment.getMessageKey(i)), segment.getFragmentValue(i), segment.getFragmentBitLength(i));
+        }
+
+        significantBitsInLastFragment = segment.getSignificantBitsInLastFragment();
+        return true;
+    }
+
+    /**
+     * Equivalent to {@link #addSegment(BitstringEncoder.DecodedMessage)} for
+     * a segment recovered from the {@link SegmentJournal}.
+     */
+    public boolean addSegment(SegmentJournal.StoredSegment segment) {
+        if(!markReceived(segment.getSegmentNumber(), segment.getSegmentCount())) {
+            return false;
+        }
+
+        for(int i = 0; i < segment.getNumFragments(); i++) {
+            placeFragment(segment.getKeyOrdinal(i), segment.getFragmentValue(i), segment.getFragmentBitLength(i));
+        }
+
+        significantBitsInLastFragment = segment.getSignificantBits();
+        return true;
+    }
+
+    public boolean hasSegment(int segmentNumber) {
+        return receivedSegments.get(segmentNumber);
+    }
+
+    /**
+     * @return The number of segments received without a gap from the first
+     * one, i.e. one more than the highest segment number which can be
+     * acknowledged cumulatively.
+     */
+    public int getContiguousSegmentCount() {
+        return Math.min(receivedSegments.nextClearBit(0), segmentCount);
+    }
+
+    /**
+     * @return The segments received after the first
+     * {@link #getContiguousSegmentCount()} ones, up to the highest one
+     * received, as a
+     * {@link intent.covertchannel.intentencoderdecoder.EncodingUtils#RECEIVED_SEGMENTS_KEY} bitmap
+     * (empty if there is no gap).
+     */
+    public byte[] getReceivedSegmentsBitmap() {
+        int firstSegment = getContiguousSegmentCount();
+        int numSegments = Math.max(0, receivedSegments.length() - firstSegment);
+        byte[] bitmap = new byte[(numSegments + 7) / 8];
+        for(int segment = receivedSegments.nextSetBit(firstSegment); segment >= 0; segment = receivedSegments.nextSetBit(segment + 1)) {
+            int bit = segment - firstSegment;
+            bitmap[bit >>> 3] |= (byte) (1 << (bit & 7));
+        }
+
+        return bitmap;
+    }
+
+    public boolean isComplete() {
+        return numReceivedSegments == segmentCount;
+    }
+
+    /**
+     * @return The message bits, joined according to the packing mode of
+     * {@code bitstringEncoder}.
+     */
+    public BitBuffer assemble(BitstringEncoder bitstringEncoder) {
+        if(!isComplete()) {
+            throw new IllegalStateException("Cannot assemble a message with " + numReceivedSegments + " of " + segmentCount + " segments");
+        }
+
+        // Sorted by ordinal and then by arrival, so that of the fragments which claim the same ordinal the last one
+        // received is used
+        long[] order = new long[numFragments];
+        for(int i = 0; i < numFragments; i++) {
+            order[i] = ((long) fragmentOrdinals[i] << 32) | i;
+        }
+
+        Arrays.sort(order);
+
+        int[] values = new int[numFragments];
+        int[] bitLengths = new int[numFragments];
+        int numMessageFragments = 0;
+        for(int i = 0; i < numFragments; i++) {
+            if(i + 1 < numFragments && (order[i + 1] >>> 32) == (order[i] >>> 32)) {
+                continue;
+            }
+
+            int fragment = (int) order[i];
+            values[numMessageFragments] = fragmentValues[fragment];
+            bitLengths[numMessageFragments] = fragmentBitLengths[fragment];
+            numMessageFragments++;
+        }
+
+        return bitstringEncoder.assembleFragments(values, bitLengths, numMessageFragments, significantBitsInLastFragment);
+    }
+
+    private static boolean isValidSegment(int segmentNumber, int segmentCount, int numFragments, int maxSegmentCount) {
+        return segmentCount >= 1 && segmentCount <= maxSegmentCount && segmentNumber >= 0 && segmentNumber < segmentCount &&
+                numFragments <= MAX_FRAGMENTS_PER_SEGMENT;
+    }
+
+    // Every key of a message, including the metadata keys of each of its segments, has an ordinal below this
+    private static int maxOrdinals(int segmentCount) {
+        return segmentCount * (MAX_FRAGMENTS_PER_SEGMENT + Segment.NUM_METADATA_FIELDS);
+    }
+
+    private boolean markReceived(int segmentNumber, int segmentCount) {
+        if(segmentCount != this.segmentCount) {
+            throw new IllegalArgumentException("Segment " + segmentNumber + " belongs to a message of " + segmentCount + " segments, not " + this.segmentCount);
+        }
+
+        if(segmentNumber < 0 || segmentNumber >= segmentCount) {
+            throw new IllegalArgumentException("Segment number " + segmentNumber + " is out of range for a message of " + segmentCount + " segments");
+        }
+
+        if(receivedSegments.get(segmentNumber)) {
+            return false;
+        }
+
+        receivedSegments.set(segmentNumber);
+        numReceivedSegments++;
+        return true;
+    }
+
+    private void placeFragment(int ordinal, int value, int bitLength) {
+        if(ordinal < 0) {
+            throw new IllegalArgumentException("Fragment does not have a message key");
+        }
+
+        if(ordinal >= maxOrdinals) {
+            throw new IllegalArgumentException("Key ordinal " + ordinal + " is out of range for a message of " + segmentCount + " segments");
+        }
+
+        if(numFragments == fragmentValues.length) {
+            fragmentOrdinals = Arrays.copyOf(fragmentOrdinals, numFragments * 2);
+            fragmentValues = Arrays.copyOf(fragmentValues, numFragments * 2);
+            fragmentBitLengths = Arrays.copyOf(fragmentBitLengths, numFragments * 2);
+        }
+
+        fragmentOrdinals[numFragments] = ordinal;
+        fragmentValues[numFragments] = value;
+        fragmentBitLengths[numFragments] = bitLength;
+        numFragments++;
+    }
+}
@@ -0,0 +1,178 @@
+package covertchannel.intent.receiver;
+
+import android.os.Bundle;
+
+/**
+ * Latency histograms for each step a segment goes through in the
+ * {@link MessageReceiver}, plus counts of the segments, bytes, decode
+ * failures, retransmitted segments, NACKs and sessions it has seen.
+ *
+ * Snapshots are Bundles so that they can be returned through the
+ * {@link MessageReceiver.MessageBinder} and broadcast in response to
+ * {@link intent.covertchannel.intentencoderdecoder.EncodingUtils#DUMP_STATS_ACTION}
+ * alike. Each latency is reported under its stage name with the suffixes
+ * below, in microseconds.
+ */
+public final class ReceiverMetrics {
+    // From the Intent's arrival to the start of its decoding (i.e. time spent queued)
+    public static final int LATENCY_ARRIVAL_TO_DECODE = 0;
+    public static final int LATENCY_DECODE = 1;
+
+    // Journal writes (and the flushes they trigger)
+    public static final int LATENCY_PERSIST = 2;
+    public static final int LATENCY_REASSEMBLY = 3;
+    public static final int LATENCY_ACKNOWLEDGE = 4;
+    private static final int NUM_LATENCIES = 5;
+
+    private static final String[] LATENCY_NAMES = {"arrival_to_decode", "decode", "persist", "reassembly", "acknowledge"};
+
+    public static final String COUNT_SUFFIX = "_count";
+    public static final String MEAN_SUFFIX = "_mean_us";
+    public static final String P50_SUFFIX = "_p50_us";
+    public static final String P99_SUFFIX = "_p99_us";
+    public static final String MAX_SUFFIX = "_max_us";
+
+    public static final String SEGMENTS_KEY = "segments";
+    public static final String BYTES_KEY = "bytes";
+    public static final String DECODE_FAILURES_KEY = "decode_failures";
+    public static final String DUPLICATE_SEGMENTS_KEY = "duplicate_segments";
+    public static final String NACKS_KEY = "nacks";
+    public static final String ACTIVE_SESSIONS_KEY = "sessions_active";
+    public static final String CREATED_SESSIONS_KEY = "sessions_created";
+    public static final String EXPIRED_SESSIONS_KEY = "sessions_expired";
+    public static final String EVICTED_SESSIONS_KEY = "sessions_evicted";
+    public static final String MAIN_THREAD_MILLIS_KEY = "main_thread_ms";
+
+    private final LatencyHistogram[] latencies = new LatencyHistogram[NUM_LATENCIES];
+    private long numSegments;
+    private long numBits;
+    private long numDecodeFailures;
+    private long numDuplicateSegments;
+    private long numNacks;
+
+    public ReceiverMetrics() {
+        for(int i = 0; i < NUM_LATENCIES; i++) {
+            latencies[i] = new LatencyHistogram();
+        }
+    }
+
+    public void recordLatency(int latency, long nanos) {
+        latencies[latency].record(nanos);
+    }
+
+    public LatencyHistogram getLatency(int latency) {
+        return latencies[latency];
+    }
+
+    /**
+     * Counts a decoded segment carrying the given number of fragment bits.
+     */
+    public synchronized void countSegment(long segmentBits) {
+        numSegments++;
+        numBits += segmentBits;
+    }
+
+    public synchronized void countDecodeFailure() {
+        numDecodeFailures++;
+    }
+
+    /**
+     * Counts a segment which had already been received (i.e. a
+     * retransmission) and was therefore not stored again.
+     */
+    public synchronized void countDuplicateSegment() {
+        numDuplicateSegments++;
+    }
+
+    public synchronized void countNack() {
+        numNacks++;
+    }
+
+    public synchronized long getNumSegments() {
+        return numSegments;
+    }
+
+    public synchronized long getNumBytes() {
+        return numBits / 8;
+    }
+
+    public synchronized long getNumDecodeFailures() {
+        return numDecodeFailures;
+    }
+
+    public synchronized long getNumDuplicateSegments() {
+        return numDuplicateSegments;
+    }
+
+    public synchronized long getNumNacks() {
+        return numNacks;
+    }
+
+    /**
+     * @return The current values, along with the session counts of
+     * {@code sessionTable} and the main-thread time of {@code decodePipeline}.
+     */
+    public Bundle snapshot(SessionTable sessionTable, DecodePipeline decodePipeline) {
+        Bundle stats = new Bundle();
+        for(int i = 0; i < NUM_LATENCIES; i++) {
+            LatencyHistogram latency = latencies[i];
+            synchronized(latency) {
+                stats.putLong(LATENCY_NAMES[i] + COUNT_SUFFIX, latency.getCount());
+                stats.putDouble(LATENCY_NAMES[i] + MEAN_SUFFIX, latency.getMeanMicros());
+                stats.putLong(LATENCY_NAMES[i] + P50_SUFFIX, latency.getPercentileMicros(50));
+                stats.putLong(LATENCY_NAMES[i] + P99_SUFFIX, latency.getPercentileMicros(99));
+                stats.putDouble(LATENCY_NAMES[i] + MAX_SUFFIX, latency.getMaxMicros());
+            }
+        }
+
+        synchronized(this) {
+            stats.putLong(SEGMENTS_KEY, numSegments);
+            stats.putLong(BYTES_KEY, numBits / 8);
+            stats.putLong(DECODE_FAILURES_KEY, numDecodeFailures);
+            stats.putLong(DUPLICATE_SEGMENTS_KEY, numDuplicateSegments);
+            stats.putLong(NACKS_KEY, numNacks);
+        }
+
+        synchronized(sessionTable) {
+            stats.putInt(ACTIVE_SESSIONS_KEY, sessionTable.size());
+            stats.putLong(CREATED_SESSIONS_KEY, sessionTable.getNumCreated());
+            stats.putLong(EXPIRED_SESSIONS_KEY, sessionTable.getNumExpired());
+            stats.putLong(EVICTED_SESSIONS_KEY, sessionTable.getNumEvicted());
+        }
+
+        stats.putDouble(MAIN_THREAD_MILLIS_KEY, decodePipeline.getSubmitMillis());
+        return stats;
+    }
+
+    public void clear() {
+        for(LatencyHistogram latency: latencies) {
+            latency.clear();
+        }
+
+        synchronized(this) {
+            numSegments = 0;
+            numBits = 0;
+            numDecodeFailures = 0;
+            numDuplicateSegments = 0;
+            numNacks = 0;
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder statsBldr = new StringBuilder();
+        synchronized(this) {
+            statsBldr.append("Receiver: ").append(numSegments).append(" segments, ").append(numBits / 8).append(" bytes, ");
+            statsBldr.append(numDecodeFailures).append(" decode failures, ");
+            statsBldr.append(numDuplicateSegments).append(" duplicate segments, ").append(numNacks).append(" NACKs");
+        }
+
+        for(int i = 0; i < NUM_LATENCIES; i++) {
+            LatencyHistogram latency = latencies[i];
+            statsBldr.append(String.format("; %s p50 %d us, p99 %d us, max %.0f us", LATENCY_NAMES[i],
+                    latency.getPercentileMicros(50), latency.getPercentileMicros(99), latency.getMaxMicros()));
+        }
+
+        return statsBldr.toString();
+    }
+}
@@ -0,0 +1,78 @@
+package covertchannel.intent.receiver;
+
+import intent.covertchannel.intentencoderdecoder.BitstringEncoder;
+import intent.covertchannel.intentencoderdecoder.EncodingUtils;
+
+/**
+ * Receiver state for a single sender stream: the channel configuration it is
+ * using, the reassembly state of the message it is sending and its timers.
+ *
+ * The configuration fields are only used by the decode stage of the
+ * {@link DecodePipeline} and the reassembly buffer is only used by the
+ * persist stage.
+ */
+public final class ReceiverSession {
+    private final long streamId;
+    private final long createdTime;
+    private long lastActivityTime;
+
+    // Owned by the decode stage: the shared (cached) encoder for the stream's channel configuration
+    BitstringEncoder bitstringEncoder;
+    long testId;
+
+    // Owned by the decode stage: whether the sender has configured the stream since the session was created (a session
+    // recovered from the journal uses the default configuration until then)
+    boolean configured;
+
+    // Owned by the persist stage: reassembly state of the message being received (null until its first segment arrives)
+    ReassemblyBuffer reassemblyBuffer;
+
+    // Owned by the persist stage: time spent storing the message being received
+    long persistNanos;
+
+    // Owned by the persist stage: loss detection for the message being received, which is NACKed (under the test ID
+    // of its segments) if it is incomplete and no segment has arrived for a while
+    boolean awaitingSegments;
+    long lastSegmentTime;
+    long awaitedTestId;
+    int unansweredNacks;
+    boolean missingSegmentsCheckScheduled;
+
+    // Owned by the acknowledge stage: time during which at least one of the message's segments had arrived but had
+    // not been acknowledged yet (the union of their intervals, which overlap once the sender's window is larger than
+    // one), and the end of the last interval
+    long receiverNanos;
+    long receiverBusyUntilNanos;
+
+    ReceiverSession(long streamId, BitstringEncoder bitstringEncoder, long currentTime) {
+        this.streamId = streamId;
+        this.createdTime = currentTime;
+        this.lastActivityTime = currentTime;
+
+        this.bitstringEncoder = bitstringEncoder;
+        this.testId = EncodingUtils.DEFAULT_TEST_ID;
+    }
+
+    public long getStreamId() {
+        return streamId;
+    }
+
+    /**
+     * @return When the session was created, in {@code SystemClock.elapsedRealtime()} time.
+     */
+    public long getCreatedTime() {
+        return createdTime;
+    }
+
+    /**
+     * @return When an Intent for the session was last received, in
+     * {@code SystemClock.elapsedRealtime()} time.
+     */
+    public synchronized long getLastActivityTime() {
+        return lastActivityTime;
+    }
+
+    synchronized void touch(long currentTime) {
+        lastActivityTime = currentTime;
+    }
+}
@@ -0,0 +1,911 @@
+package covertchannel.intent.receiver;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import android.content.Context;
+import android.util.Log;
+
+import intent.covertchannel.intentencoderdecoder.BitBuffer;
+import intent.covertchannel.intentencoderdecoder.BitstringEncoder;
+import intent.covertchannel.intentencoderdecoder.EncodingUtils;
+import intent.covertchannel.intentencoderdecoder.KeyTable;
+
+/**
+ * Reassembly store for the {@link MessageReceiver}: an append-only journal of
+ * length-prefixed binary records, one per decoded message segment (tagged
+ * with the stream it belongs to), plus a file for each completed message
+ * waiting to be displayed by the {@link CovertChannelReceiver}.
+ *
+ * Each record is laid out as
+ * <pre>
+ *   int    payload length
+ *   byte   record type
+ *   byte[] payload
+ *   int    CRC32 of the type and payload
+ * </pre>
+ * Records are buffered in memory and written to disk (and forced) when the
+ * {@link FlushPolicy} calls for it, which by default is before
+ * {@link #appendSegment} returns; see {@link FlushPolicy} for what is durable
+ * when. Reads of flushed records go through a memory mapping of the file. When the journal is opened it is
+ * replayed to rebuild the index, and anything after the last intact record
+ * (i.e. a record torn by a crash) is truncated away. Once a message is
+ * complete (or its stream is abandoned) its segment records are dropped by
+ * rewriting the journal with only the records which are still live.
+ *
+ * Completed messages are written straight from their bits to a file of their
+ * own (one byte per character, which is how the {@link BitstringEncoder}
+ * represents payloads) and forced before the call which stored them returns,
+ * whatever the flush policy. Their text is read back from the file a range
+ * at a time (see {@link #readMessage}), so that a large message is never held
+ * on the heap as a String.
+ *
+ * A single instance is shared by everything in the process (see
+ * {@link #getInstance(Context)}); all methods are synchronized.
+ */
+public final class SegmentJournal {
+    private static final String TAG = EncodingUtils.TRACE_TAG;
+
+    private static final String JOURNAL_FILE_NAME = "segment_journal";
+    private static final String COMPACTION_FILE_NAME = "segment_journal.tmp";
+
+    // Indexed by message kind; each is written to a temporary file first and then renamed over the last one
+    private static final String[] MESSAGE_FILE_NAMES = {"message_alpha", "message_bitstring"};
+    private static final String TEMPORARY_FILE_SUFFIX = ".tmp";
+
+    private static final int MAGIC = 0x434A524E; // "CJRN"
+    private static final int VERSION = 3;
+    private static final int HEADER_SIZE = 8;
+
+    // Length prefix, type and checksum
+    private static final int RECORD_OVERHEAD = 4 + 1 + 4;
+
+    // Guards against treating garbage as a record length during recovery
+    private static final int MAX_PAYLOAD_LENGTH = 64 * 1024 * 1024;
+
+    private static final byte RECORD_SEGMENT = 1;
+
+    public static final int MESSAGE_KIND_ALPHA = 0;
+    public static final int MESSAGE_KIND_BITSTRING = 1;
+    private static final int NUM_MESSAGE_KINDS = 2;
+
+    private static SegmentJournal instance;
+
+    private final File journalFile;
+    private final File compactionFile;
+    private final File[] messageFiles = new File[NUM_MESSAGE_KINDS];
+
+    // Null while the journal is not open for appending (e.g. if reopening it after a compaction failed)
+    private FileOutputStream appendStream;
+    private FileChannel appendChannel;
+
+    // Length of the journal including the records which have not been flushed yet, and of the part on disk
+    private long journalLength;
+    private long flushedLength;
+
+    // Read-only mapping of the flushed part of the journal; remapped when it no longer covers a requested record
+    private MappedByteBuffer mappedJournal;
+
+    private FlushPolicy flushPolicy = FlushPolicy.WRITE_THROUGH;
+
+    // Records waiting to be flushed, by file offset (in file order)
+    private final Map<Long, ByteBuffer> pendingRecords = new LinkedHashMap<>();
+    private int numPendingSegments;
+
+    // Records buffered since the journal was opened, and how many of them had been buffered as of the last flush
+    private long numAppendedRecords;
+    private long numFlushedRecords;
+
+    // Set when records have been dropped, so that the next flush rewrites the journal instead of appending to it
+    private boolean compactionPending;
+
+    private ScheduledExecutorService flushTimer;
+    private boolean flushScheduled;
+
+    // Flush statistics
+    private long numFlushes;
+    private long flushedBytes;
+    private long flushNanos;
+    private long maxFlushNanos;
+
+    // File offsets of the live segment records by stream ID and segment number
+    private final Map<Long, Map<Integer, Long>> segmentOffsets = new HashMap<>();
+
+    // Segment count of the message each stream is sending, as of its most recently stored segment
+    private final Map<Long, Integer> streamSegmentCounts = new HashMap<>();
+
+    // Lengths of the completed messages by message kind (0 if there is none)
+    private final int[] messageLengths = new int[NUM_MESSAGE_KINDS];
+
+    // Incremented whenever the message of a kind is replaced or removed
+    private final int[] messageGenerations = new int[NUM_MESSAGE_KINDS];
+
+    private final CRC32 crc = new CRC32();
+
+    /**
+     * A segment as it was decoded, with its fragments in message key order.
+     */
+    public static final class StoredSegment {
+        private final long streamId;
+        private final int segmentNumber;
+        private final int segmentCount;
+        private final int significantBits;
+        private final int[] keyOrdinals;
+        private final int[] fragmentValues;
+        private final int[] fragmentBitLengths;
+
+        StoredSegment(long streamId, int segmentNumber, int segmentCount, int significantBits, int[] keyOrdinals, int[] fragmentValues, int[] fragmentBitLengths) {
+            this.streamId = streamId;
+            this.segmentNumber = segmentNumber;
+            this.segmentCount = segmentCount;
+            this.significantBits = significantBits;
+            this.keyOrdinals = keyOrdinals;
+            this.fragmentValues = fragmentValues;
+            this.fragmentBitLengths = fragmentBitLengths;
+        }
+
+        public long getStreamId() {
+            return streamId;
+        }
+
+        public int getSegmentNumber() {
+            return segmentNumber;
+        }
+
+        public int getSegmentCount() {
+            return segmentCount;
+        }
+
+        public int getSignificantBits() {
+            return significantBits;
+        }
+
+        public int getNumFragments() {
+            return keyOrdinals.length;
+        }
+
+        public int getKeyOrdinal(int index) {
+            return keyOrdinals[index];
+        }
+
+        public int getFragmentValue(int index) {
+            return fragmentValues[index];
+        }
+
+        public int getFragmentBitLength(int index) {
+            return fragmentBitLengths[index];
+        }
+    }
+
+    /**
+     * How much of the message which a stream is sending has been stored.
+     */
+    public static final class StreamProgress {
+        private final long streamId;
+        private final int segmentsReceived;
+        private final int segmentCount;
+
+        StreamProgress(long streamId, int segmentsReceived, int segmentCount) {
+            this.streamId = streamId;
+            this.segmentsReceived = segmentsReceived;
+            this.segmentCount = segmentCount;
+        }
+
+        public long getStreamId() {
+            return streamId;
+        }
+
+        public int getSegmentsReceived() {
+            return segmentsReceived;
+        }
+
+        public int getSegmentCount() {
+            return segmentCount;
+        }
+    }
+
+    public static synchronized SegmentJournal getInstance(Context context) throws IOException {
+        if(instance == null) {
+            instance = new SegmentJournal(context.getFilesDir());
+        }
+
+        return instance;
+    }
+
+    // Package-private for the unit tests, which each use a journal in a directory of their own
+    SegmentJournal(File directory) throws IOException {
+        journalFile = new File(directory, JOURNAL_FILE_NAME);
+        compactionFile = new File(directory, COMPACTION_FILE_NAME);
+        for(int messageKind = 0; messageKind < NUM_MESSAGE_KINDS; messageKind++) {
+            messageFiles[messageKind] = new File(directory, MESSAGE_FILE_NAMES[messageKind]);
+            messageLengths[messageKind] = (int) messageFiles[messageKind].length();
+
+            // As with compaction, a leftover temporary file means the previous message is still intact
+            File temporaryFile = new File(directory, MESSAGE_FILE_NAMES[messageKind] + TEMPORARY_FILE_SUFFIX);
+            if(temporaryFile.exists() && !temporaryFile.delete()) {
+                Log.w(TAG, "Could not delete stale message file " + temporaryFile);
+            }
+        }
+
+        // A leftover compaction file means the process died before the rename; the journal is still intact
+        if(compactionFile.exists() && !compactionFile.delete()) {
+            Log.w(TAG, "Could not delete stale journal compaction file " + compactionFile);
+        }
+
+        recover();
+        openForAppend();
+        journalLength = appendChannel.size();
+        flushedLength = journalLength;
+    }
+
+    /**
+     * Changes when buffered records are written to disk, flushing anything
+     * which the previous policy had buffered.
+     */
+    public synchronized void setFlushPolicy(FlushPolicy flushPolicy) throws IOException {
+        flush();
+        this.flushPolicy = flushPolicy;
+        Log.d(TAG, "Segment journal flush policy: " + flushPolicy);
+    }
+
+    public synchronized FlushPolicy getFlushPolicy() {
+        return flushPolicy;
+    }
+
+    /**
+     * Durably appends a decoded segment of the given stream, replacing any
+     * earlier segment of the stream with the same segment number.
+     */
+    public synchronized void appendSegment(long streamId, BitstringEncoder.DecodedMessage decodedSegment) throws IOException {
+        int numFragments = decodedSegment.getNumFragments();
+        int[] keyOrdinals = new int[numFragments];
+        int[] fragmentValues = new int[numFragments];
+        int[] fragmentBitLengths = new int[numFragments];
+        for(int i = 0; i < numFragments; i++) {
+            keyOrdinals[i] = KeyTable.ordinal(decodedSegment.getMessageKey(i));
+            if(keyOrdinals[i] < 0) {
+                throw new IllegalArgumentException("Segment contains a fragment for \"" + decodedSegment.getMessageKey(i) + "\", which is not a message key");
+            }
+
+            fragmentValues[i] = decodedSegment.getFragmentValue(i);
+            fragmentBitLengths[i] = decodedSegment.getFragmentBitLength(i);
+        }
+
+        appendSegment(new StoredSegment(streamId, decodedSegment.getSegmentNumber(), decodedSegment.getSegmentCount(),
+                decodedSegment.getSignificantBitsInLastFragment(), keyOrdinals, fragmentValues, fragmentBitLengths));
+    }
+
+    synchronized void appendSegment(StoredSegment segment) throws IOException {
+        indexSegment(segment, append(segmentRecord(segment)));
+
+        numPendingSegments++;
+        if(numPendingSegments >= flushPolicy.getMaxPendingSegments()) {
+            flush();
+        } else {
+            scheduleFlush();
+        }
+    }
+
+    public synchronized boolean containsSegment(long streamId, int segmentNumber) {
+        Map<Integer, Long> streamOffsets = segmentOffsets.get(streamId);
+        return streamOffsets != null && streamOffsets.containsKey(segmentNumber);
+    }
+
+    /**
+     * @return The stored segment of the stream with the given number, read
+     * back from the journal, or {@code null} if it has not been received.
+     */
+    public synchronized StoredSegment readSegment(long streamId, int segmentNumber) throws IOException {
+        Map<Integer, Long> streamOffsets = segmentOffsets.get(streamId);
+        Long offset = (streamOffsets != null) ? streamOffsets.get(segmentNumber) : null;
+        if(offset == null) {
+            return null;
+        }
+
+        return readSegmentPayload(recordPayload(offset));
+    }
+
+    /**
+     * Reads back every live segment of every stream, e.g. to rebuild the
+     * reassembly state after a restart.
+     *
+     * @return The segments in the order in which they were appended.
+     */
+    public synchronized List<StoredSegment> readSegments() throws IOException {
+        List<Long> offsets = new ArrayList<>();
+        for(Map<Integer, Long> streamOffsets: segmentOffsets.values()) {
+            offsets.addAll(streamOffsets.values());
+        }
+
+        Collections.sort(offsets);
+
+        List<StoredSegment> segments = new ArrayList<>(offsets.size());
+        for(long offset: offsets) {
+            segments.add(readSegmentPayload(recordPayload(offset)));
+        }
+
+        return segments;
+    }
+
+    /**
+     * @return The progress of each stream which has segments in the journal,
+     * i.e. of the messages which are still being received.
+     */
+    public synchronized List<StreamProgress> getStreamProgress() {
+        List<StreamProgress> progress = new ArrayList<>(segmentOffsets.size());
+        for(Map.Entry<Long, Map<Integer, Long>> streamEntry: segmentOffsets.entrySet()) {
+            long streamId = streamEntry.getKey();
+            int segmentCount = streamSegmentCounts.get(streamId);
+
+            // Segments left over from an abandoned message with more segments are replaced as the new one arrives
+            int segmentsReceived = Math.min(streamEntry.getValue().size(), segmentCount);
+            progress.add(new StreamProgress(streamId, segmentsReceived, segmentCount));
+        }
+
+        return progress;
+    }
+
+    /**
+     * Stores a completed message of the given kind in place of any earlier
+     * one.
+     */
+    public synchronized void putMessage(int messageKind, String message) throws IOException {
+        writeMessage(messageKind, BitBuffer.fromText(message));
+    }
+
+    /**
+     * Stores the message reassembled from a stream's segments (in place of
+     * any earlier message of the same kind) and discards the stream's segment
+     * records, which compacts the journal on the next flush.
+     *
+     * @param messageBits The message's payload bits, which are written out
+     * directly rather than being converted into text first.
+     */
+    public synchronized void completeMessage(long streamId, int messageKind, BitBuffer messageBits) throws IOException {
+        writeMessage(messageKind, messageBits);
+        segmentOffsets.remove(streamId);
+        streamSegmentCounts.remove(streamId);
+        compactionPending = true;
+        flushOnCompletion();
+    }
+
+    /**
+     * Discards the segment records of a stream whose message was abandoned.
+     */
+    public synchronized void dropSegments(long streamId) throws IOException {
+        if(segmentOffsets.remove(streamId) != null) {
+            streamSegmentCounts.remove(streamId);
+            compactionPending = true;
+            flushOnCompletion();
+        }
+    }
+
+    /**
+     * @return The length (in characters, i.e. payload bytes) of the completed
+     * message of the given kind, or 0 if there is none.
+     */
+    public synchronized int getMessageLength(int messageKind) {
+        return messageLengths[messageKind];
+    }
+
+    /**
+     * @return A number which changes whenever the completed message of the
+     * given kind is replaced or removed.
+     */
+    public synchronized int getMessageGeneration(int messageKind) {
+        return messageGenerations[messageKind];
+    }
+
+    /**
+     * Reads part of the completed message of the given kind back from its
+     * file.
+     *
+     * @return Up to {@code length} characters of the message, starting at
+     * {@code start}; fewer at the end of the message, and none past it or if
+     * there is no message.
+     */
+    public synchronized String readMessage(int messageKind, int start, int length) throws IOException {
+        if(start < 0 || length < 0) {
+            throw new IllegalArgumentException("Invalid message range: " + length + " characters from " + start);
+        }
+
+        if(start >= messageLengths[messageKind]) {
+            return "";
+        }
+
+        ByteBuffer payload = ByteBuffer.allocate(Math.min(length, messageLengths[messageKind] - start));
+        RandomAccessFile file = new RandomAccessFile(messageFiles[messageKind], "r");
+        try {
+            FileChannel channel = file.getChannel();
+            while(payload.hasRemaining()) {
+                if(channel.read(payload, start + payload.position()) < 0) {
+                    throw new IOException("Message file " + messageFiles[messageKind] + " is shorter than " + messageLengths[messageKind] + " bytes");
+                }
+            }
+        } finally {
+            file.close();
+        }
+
+        char[] chars = new char[payload.capacity()];
+        for(int i = 0; i < chars.length; i++) {
+            chars[i] = (char) (payload.get(i) & 0xFF);
+        }
+
+        return new String(chars);
+    }
+
+    /**
+     * Removes and returns the completed message of the given kind.
+     *
+     * @return The message, or an empty String if there is none.
+     */
+    public synchronized String takeMessage(int messageKind) throws IOException {
+        String message = readMessage(messageKind, 0, messageLengths[messageKind]);
+        removeMessage(messageKind);
+        return message;
+    }
+
+    /**
+     * Discards every segment and message in the journal.
+     */
+    public synchronized void clear() throws IOException {
+        segmentOffsets.clear();
+        streamSegmentCounts.clear();
+        for(int messageKind = 0; messageKind < NUM_MESSAGE_KINDS; messageKind++) {
+            removeMessage(messageKind);
+        }
+
+        compactionPending = true;
+        flush();
+    }
+
+    /**
+     * Writes every buffered record to disk and forces it to the storage
+     * device, compacting the journal if any records have been dropped since
+     * the last flush.
+     *
+     * If the compacted copy cannot be written, the buffered records are
+     * appended to the journal as it is instead, and the compaction is retried
+     * by the next flush. Until it succeeds the dropped records are still on
+     * disk, and are read back in if the journal is reopened.
+     */
+    public synchronized void flush() throws IOException {
+        if(pendingRecords.isEmpty() && !compactionPending) {
+            return;
+        }
+
+        long startTime = System.nanoTime();
+        long bytesWritten;
+        if(compactionPending) {
+            try {
+                compact();
+                bytesWritten = journalLength;
+            } catch(IOException e) {
+                Log.w(TAG, "Could not compact the segment journal; appending to it instead", e);
+                bytesWritten = writePendingRecords();
+            }
+        } else {
+            bytesWritten = writePendingRecords();
+        }
+
+        numFlushedRecords = numAppendedRecords;
+
+        long elapsedNanos = System.nanoTime() - startTime;
+        numFlushes++;
+        flushedBytes += bytesWritten;
+        flushNanos += elapsedNanos;
+        maxFlushNanos = Math.max(maxFlushNanos, elapsedNanos);
+
+        Log.d(TAG, String.format("Flushed %d bytes of the segment journal in %.3f ms", bytesWritten, elapsedNanos / 1e6));
+    }
+
+    /**
+     * @return The number of records appended so far, to be passed to
+     * {@link #flushThrough} to make them (and any earlier records) durable.
+     */
+    public synchronized long getAppendSequence() {
+        return numAppendedRecords;
+    }
+
+    /**
+     * Flushes the journal unless every record up to {@code appendSequence}
+     * (as returned by {@link #getAppendSequence()}) is already durable, so
+     * that callers which each need their own records flushed share a single
+     * flush.
+     */
+    public synchronized void flushThrough(long appendSequence) throws IOException {
+        if(numFlushedRecords < appendSequence) {
+            flush();
+        }
+    }
+
+    public synchronized long getNumFlushes() {
+        return numFlushes;
+    }
+
+    public synchronized long getFlushedBytes() {
+        return flushedBytes;
+    }
+
+    public synchronized double getFlushMillis() {
+        return flushNanos / 1e6;
+    }
+
+    public synchronized double getMaxFlushMillis() {
+        return maxFlushNanos / 1e6;
+    }
+
+    public synchronized String getFlushSummary() {
+        double meanFlushMillis = (numFlushes == 0) ? 0.0 : getFlushMillis() / numFlushes;
+        return String.format("Segment journal (%s): %d flushes, %d bytes, %.1f ms (mean %.3f ms, max %.3f ms)",
+                flushPolicy, numFlushes, flushedBytes, getFlushMillis(), meanFlushMillis, getMaxFlushMillis());
+    }
+
+    private void flushOnCompletion() throws IOException {
+        if(flushPolicy.flushesOnCompletion()) {
+            flush();
+        } else {
+            scheduleFlush();
+        }
+    }
+
+    // Makes sure the buffered records are flushed within the policy's delay limit (if it has one)
+    private void scheduleFlush() {
+        if(flushScheduled || flushPolicy.getMaxDelayMillis() == FlushPolicy.NO_DELAY_LIMIT) {
+            return;
+        }
+
+        if(flushTimer == null) {
+            flushTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "SegmentJournal-flush");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+
+        flushScheduled = true;
+        flushTimer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized(SegmentJournal.this) {
+                    flushScheduled = false;
+                    try {
+                        flush();
+                    } catch(IOException e) {
+                        Log.e(TAG, "Timed flush of the segment journal failed", e);
+                    }
+                }
+            }
+        }, flushPolicy.getMaxDelayMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    private void recover() throws IOException {
+        if(!journalFile.exists() || journalFile.length() < HEADER_SIZE) {
+            writeJournal(journalFile, Collections.<StoredSegment>emptyList());
+            return;
+        }
+
+        RandomAccessFile file = new RandomAccessFile(journalFile, "rw");
+        try {
+            FileChannel channel = file.getChannel();
+            MappedByteBuffer journal = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if(journal.getInt(0) != MAGIC || journal.getInt(4) != VERSION) {
+                Log.w(TAG, "Discarding segment journal with an unrecognized header");
+                file.close();
+                writeJournal(journalFile, Collections.<StoredSegment>emptyList());
+                return;
+            }
+
+            int position = HEADER_SIZE;
+            int limit = journal.capacity();
+            while(position + RECORD_OVERHEAD <= limit) {
+                int payloadLength = journal.getInt(position);
+                if(payloadLength < 0 || payloadLength > MAX_PAYLOAD_LENGTH || position + RECORD_OVERHEAD + payloadLength > limit) {
+                    break;
+                }
+
+                byte type = journal.get(position + 4);
+                ByteBuffer payload = slice(journal, position + 4 + 1, payloadLength);
+                if(checksum(type, payload) != journal.getInt(position + 4 + 1 + payloadLength)) {
+                    break;
+                }
+
+                if(type == RECORD_SEGMENT) {
+                    indexSegment(readSegmentPayload(payload), position);
+                } else {
+                    break;
+                }
+
+                position += RECORD_OVERHEAD + payloadLength;
+            }
+
+            if(position < limit) {
+                // Everything from here on was only partially written before the process died
+                Log.w(TAG, "Truncating " + (limit - position) + " bytes of incomplete records from the segment journal");
+                channel.truncate(position);
+                channel.force(true);
+            }
+        } finally {
+            file.close();
+        }
+    }
+
+    private void openForAppend() throws IOException {
+        appendStream = new FileOutputStream(journalFile, true);
+        appendChannel = appendStream.getChannel();
+    }
+
+    /**
+     * Rewrites the journal with only its live records, including any which
+     * have not been flushed yet (via a temporary file which is renamed over
+     * the journal, so a crash leaves one or the other intact).
+     *
+     * The index and buffered records are only replaced once the rename has
+     * succeeded; if writing the copy fails, the journal is left as it was and
+     * the compaction is retried on the next flush.
+     */
+    private void compact() throws IOException {
+        List<StoredSegment> liveSegments = readSegments();
+
+        long[] offsets;
+        try {
+            offsets = writeJournal(compactionFile, liveSegments);
+            if(!compactionFile.renameTo(journalFile)) {
+                throw new IOException("Could not replace " + journalFile + " with its compacted copy");
+            }
+        } catch(IOException e) {
+            if(compactionFile.exists() && !compactionFile.delete()) {
+                Log.w(TAG, "Could not delete journal compaction file " + compactionFile);
+            }
+
+            throw e;
+        }
+
+        // The old journal has been replaced, so nothing below can leave the index pointing into it
+        FileOutputStream oldAppendStream = appendStream;
+        appendStream = null;
+        appendChannel = null;
+        mappedJournal = null;
+        pendingRecords.clear();
+        numPendingSegments = 0;
+        compactionPending = false;
+
+        segmentOffsets.clear();
+        streamSegmentCounts.clear();
+        for(int i = 0; i < liveSegments.size(); i++) {
+            indexSegment(liveSegments.get(i), offsets[i]);
+        }
+
+        journalLength = journalFile.length();
+        flushedLength = journalLength;
+
+        if(oldAppendStream != null) {
+            try {
+                oldAppendStream.close();
+            } catch(IOException e) {
+                Log.w(TAG, "Could not close the journal which was compacted", e);
+            }
+        }
+
+        // Reopened on the next flush if this fails
+        openForAppend();
+    }
+
+    private void indexSegment(StoredSegment segment, long offset) {
+        Map<Integer, Long> streamOffsets = segmentOffsets.get(segment.getStreamId());
+        if(streamOffsets == null) {
+            streamOffsets = new HashMap<>();
+            segmentOffsets.put(segment.getStreamId(), streamOffsets);
+        }
+
+        streamOffsets.put(segment.getSegmentNumber(), offset);
+        streamSegmentCounts.put(segment.getStreamId(), segment.getSegmentCount());
+    }
+
+    // Durably replaces the message of the given kind with the complete bytes of messageBits
+    private void writeMessage(int messageKind, BitBuffer messageBits) throws IOException {
+        File temporaryFile = new File(messageFiles[messageKind].getPath() + TEMPORARY_FILE_SUFFIX);
+        FileOutputStream out = new FileOutputStream(temporaryFile, false);
+        try {
+            FileChannel channel = out.getChannel();
+            messageBits.writeBytesTo(channel);
+            channel.force(true);
+        } finally {
+            out.close();
+        }
+
+        if(!temporaryFile.renameTo(messageFiles[messageKind])) {
+            throw new IOException("Could not replace " + messageFiles[messageKind] + " with the new message");
+        }
+
+        messageLengths[messageKind] = messageBits.byteLength();
+        messageGenerations[messageKind]++;
+    }
+
+    private void removeMessage(int messageKind) throws IOException {
+        if(messageFiles[messageKind].exists() && !messageFiles[messageKind].delete()) {
+            throw new IOException("Could not delete message file " + messageFiles[messageKind]);
+        }
+
+        messageLengths[messageKind] = 0;
+        messageGenerations[messageKind]++;
+    }
+
+    /**
+     * Writes a journal holding the given segments.
+     *
+     * @return The file offset of each segment's record.
+     */
+    private long[] writeJournal(File file, List<StoredSegment> segments) throws IOException {
+        long[] offsets = new long[segments.size()];
+        FileOutputStream out = new FileOutputStream(file, false);
+        try {
+            FileChannel channel = out.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).flip();
+            writeFully(channel, header);
+
+            for(int i = 0; i < segments.size(); i++) {
+                offsets[i] = channel.position();
+                writeFully(channel, segmentRecord(segments.get(i)));
+            }
+
+            channel.force(true);
+        } finally {
+            out.close();
+        }
+
+        return offsets;
+    }
+
+    // Buffers a record until the next flush
+    private long append(ByteBuffer record) {
+        long offset = journalLength;
+        journalLength += record.remaining();
+        pendingRecords.put(offset, record);
+        numAppendedRecords++;
+        return offset;
+    }
+
+    private long writePendingRecords() throws IOException {
+        if(appendChannel == null) {
+            openForAppend();
+        }
+
+        ByteBuffer[] records = pendingRecords.values().toArray(new ByteBuffer[pendingRecords.size()]);
+        long bytesWritten = journalLength - flushedLength;
+        long remaining = bytesWritten;
+        while(remaining > 0) {
+            remaining -= appendChannel.write(records);
+        }
+
+        appendChannel.force(false);
+        pendingRecords.clear();
+        numPendingSegments = 0;
+        flushedLength = journalLength;
+        return bytesWritten;
+    }
+
+    // The record at the given offset, whether or not it has been flushed
+    private ByteBuffer record(long offset) throws IOException {
+        if(offset < flushedLength) {
+            ByteBuffer journal = mapJournal();
+            return slice(journal, (int) offset, RECORD_OVERHEAD + journal.getInt((int) offset));
+        }
+
+        return pendingRecords.get(offset).duplicate();
+    }
+
+    private ByteBuffer recordPayload(long offset) throws IOException {
+        ByteBuffer record = record(offset);
+        return slice(record, 4 + 1, record.getInt(0));
+    }
+
+    private ByteBuffer mapJournal() throws IOException {
+        if(mappedJournal == null || mappedJournal.capacity() < flushedLength) {
+            RandomAccessFile file = new RandomAccessFile(journalFile, "r");
+            try {
+                mappedJournal = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, flushedLength);
+            } finally {
+                // The mapping stays valid after the file is closed
+                file.close();
+            }
+        }
+
+        return mappedJournal;
+    }
+
+    private ByteBuffer newRecord(byte type, int payloadLength) {
+        ByteBuffer record = ByteBuffer.allocate(RECORD_OVERHEAD + payloadLength);
+        record.putInt(payloadLength);
+        record.put(type);
+        return record;
+    }
+
+    // Appends the checksum of the type and payload and readies the record for writing
+    private ByteBuffer seal(ByteBuffer record) {
+        int payloadLength = record.position() - (4 + 1);
+        record.putInt(checksum(record.get(4), slice(record, 4 + 1, payloadLength)));
+        record.flip();
+        return record;
+    }
+
+    private ByteBuffer segmentRecord(StoredSegment segment) {
+        int numFragments = segment.getNumFragments();
+        ByteBuffer record = newRecord(RECORD_SEGMENT, 8 + (4 * 4) + (numFragments * (4 + 4 + 1)));
+        record.putLong(segment.getStreamId());
+        record.putInt(segment.getSegmentNumber());
+        record.putInt(segment.getSegmentCount());
+        record.putInt(segment.getSignificantBits());
+        record.putInt(numFragments);
+        for(int i = 0; i < numFragments; i++) {
+            record.putInt(segment.getKeyOrdinal(i));
+            record.putInt(segment.getFragmentValue(i));
+            record.put((byte) segment.getFragmentBitLength(i));
+        }
+
+        return seal(record);
+    }
+
+    private static StoredSegment readSegmentPayload(ByteBuffer payload) {
+        long streamId = payload.getLong();
+        int segmentNumber = payload.getInt();
+        int segmentCount = payload.getInt();
+        int significantBits = payload.getInt();
+        int numFragments = payload.getInt();
+
+        int[] keyOrdinals = new int[numFragments];
+        int[] fragmentValues = new int[numFragments];
+        int[] fragmentBitLengths = new int[numFragments];
+        for(int i = 0; i < numFragments; i++) {
+            keyOrdinals[i] = payload.getInt();
+            fragmentValues[i] = payload.getInt();
+            fragmentBitLengths[i] = payload.get() & 0xFF;
+        }
+
+        return new StoredSegment(streamId, segmentNumber, segmentCount, significantBits, keyOrdinals, fragmentValues, fragmentBitLengths);
+    }
+
+    private int checksum(byte type, ByteBuffer payload) {
+        byte[] bytes = new byte[payload.remaining()];
+        payload.get(bytes);
+        payload.rewind();
+
+        crc.reset();
+        crc.update(type);
+        crc.update(bytes, 0, bytes.length);
+        return (int) crc.getValue();
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int offset, int length) {
+        ByteBuffer duplicate = buffer.duplicate();
+        duplicate.position(offset);
+        duplicate.limit(offset + length);
+        return duplicate.slice();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while(buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package covertchannel.intent.receiver;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.util.Log;
+
+import intent.covertchannel.intentencoderdecoder.BitstringEncoder;
+import intent.covertchannel.intentencoderdecoder.EncodingUtils;
+
+/**
+ * Bounded table of the {@link ReceiverSession}s of the streams which are
+ * currently sending, keyed by stream ID.
+ *
+ * Sessions are kept in least-recently-used order. A session which has not
+ * received anything for longer than the time-to-live is expired the next time
+ * the table is used, and when a new stream would grow the table past its
+ * maximum size the least recently used session is evicted. Both kinds of
+ * removal abandon the session's partial message; the removed sessions are
+ * kept until {@link #takeRemovedSessions()} is called so that their stored
+ * segments can be discarded as well.
+ */
+public final class SessionTable {
+    private static final String TAG = EncodingUtils.TRACE_TAG;
+
+    private final int maxSessions;
+    private final long timeToLiveMillis;
+
+    // Encoder for the streams which have not sent a channel configuration
+    private final BitstringEncoder defaultEncoder;
+
+    private final Map<Long, ReceiverSession> sessionsByStreamId = new LinkedHashMap<>(16, 0.75f, true);
+    private final List<ReceiverSession> removedSessions = new ArrayList<>();
+
+    private long numCreated;
+    private long numExpired;
+    private long numEvicted;
+
+    public SessionTable(int maxSessions, long timeToLiveMillis, BitstringEncoder defaultEncoder) {
+        if(maxSessions < 1) {
+            throw new IllegalArgumentException("The session table must hold at least one session; got a maximum of " + maxSessions);
+        }
+
+        if(timeToLiveMillis <= 0) {
+            throw new IllegalArgumentException("Session time-to-live must be positive; got " + timeToLiveMillis + " ms");
+        }
+
+        this.maxSessions = maxSessions;
+        this.timeToLiveMillis = timeToLiveMillis;
+        this.defaultEncoder = defaultEncoder;
+    }
+
+    /**
+     * Looks up the session of a stream, creating it if the stream does not
+     * have one, and records activity on it.
+     *
+     * @param currentTime The current {@code SystemClock.elapsedRealtime()} time.
+     */
+    public synchronized ReceiverSession get(long streamId, long currentTime) {
+        expireSessions(currentTime);
+
+        ReceiverSession session = sessionsByStreamId.get(streamId);
+        if(session == null) {
+            session = new ReceiverSession(streamId, defaultEncoder, currentTime);
+            sessionsByStreamId.put(streamId, session);
+            numCreated++;
+
+            if(sessionsByStreamId.size() > maxSessions) {
+                Iterator<ReceiverSession> leastRecentlyUsed = sessionsByStreamId.values().iterator();
+                ReceiverSession evictedSession = leastRecentlyUsed.next();
+                leastRecentlyUsed.remove();
+                removedSessions.add(evictedSession);
+                numEvicted++;
+
+                Log.d(TAG, "Evicted the session for stream " + evictedSession.getStreamId() + " to make room for stream " + streamId);
+            }
+        }
+
+        session.touch(currentTime);
+        return session;
+    }
+
+    /**
+     * @return The session of a stream, or {@code null} if it does not have
+     * one; unlike {@link #get}, neither creates a session nor records
+     * activity on it.
+     */
+    public synchronized ReceiverSession peek(long streamId) {
+        return sessionsByStreamId.get(streamId);
+    }
+
+    /**
+     * @return The sessions which have expired or been evicted since the last
+     * call.
+     */
+    public synchronized List<ReceiverSession> takeRemovedSessions() {
+        if(removedSessions.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        List<ReceiverSession> sessions = new ArrayList<>(removedSessions);
+        removedSessions.clear();
+        return sessions;
+    }
+
+    /**
+     * Discards every session without reporting them as removed.
+     */
+    public synchronized void clear() {
+        sessionsByStreamId.clear();
+        removedSessions.clear();
+    }
+
+    public synchronized int size() {
+        return sessionsByStreamId.size();
+    }
+
+    public synchronized long getNumCreated() {
+        return numCreated;
+    }
+
+    public synchronized long getNumExpired() {
+        return numExpired;
+    }
+
+    public synchronized long getNumEvicted() {
+        return numEvicted;
+    }
+
+    private void expireSessions(long currentTime) {
+        // Least recently used first, which is also the order of their last activity
+        Iterator<ReceiverSession> sessionIter = sessionsByStreamId.values().iterator();
+        while(sessionIter.hasNext()) {
+            ReceiverSession session = sessionIter.next();
+            if(currentTime - session.getLastActivityTime() <= timeToLiveMillis) {
+                break;
+            }
+
+            sessionIter.remove();
+            removedSessions.add(session);
+            numExpired++;
+
+            Log.d(TAG, "Expired the session for stream " + session.getStreamId() + " after " + (currentTime - session.getLastActivityTime()) + " ms without activity");
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package covertchannel.intent.receiver;
+
+import junit.framework.TestCase;
+
+import intent.covertchannel.intentencoderdecoder.BitBuffer;
+import intent.covertchannel.intentencoderdecoder.BitstringEncoder;
+import intent.covertchannel.intentencoderdecoder.BitstringEncoderCache;
+import intent.covertchannel.intentencoderdecoder.ChannelConfig;
+import intent.covertchannel.intentencoderdecoder.EncodingScheme;
+import intent.covertchannel.intentencoderdecoder.EncodingUtils;
+
+/**
+ * Checks that the {@link ReassemblyBuffer} places segments which arrive out
+ * of order or more than once, that segments whose counts or key ordinals
+ * are out of range for the channel configuration are rejected before
+ * anything is allocated for them, and that the segments it reports as
+ * received (for NACKs) are exactly the ones it has.
+ */
+public class ReassemblyBufferTest extends TestCase {
+    private static final int MAX_SEGMENT_COUNT = 4;
+
+    private BitstringEncoder bitstringEncoder;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        bitstringEncoder = BitstringEncoderCache.get(new ChannelConfig(EncodingScheme.NUM_BASE_VALUES, EncodingUtils.NUM_EXPANSION_CODES, EncodingUtils.ACTIONS, EncodingScheme.BUILD_VERSION));
+    }
+
+    public void testOutOfOrderSegmentsAreAssembledInMessageOrder() {
+        ReassemblyBuffer reassemblyBuffer = new ReassemblyBuffer(3, MAX_SEGMENT_COUNT);
+        assertTrue(reassemblyBuffer.addSegment(segment(2, 3)));
+        assertTrue(reassemblyBuffer.addSegment(segment(0, 3)));
+        assertFalse(reassemblyBuffer.isComplete());
+        assertTrue(reassemblyBuffer.addSegment(segment(1, 3)));
+        assertTrue(reassemblyBuffer.isComplete());
+
+        BitBuffer messageBits = reassemblyBuffer.assemble(bitstringEncoder);
+        assertEquals(3 * 2 * 4, messageBits.length());
+        for(int segmentNumber = 0; segmentNumber < 3; segmentNumber++) {
+            assertEquals(segmentNumber, messageBits.getBits(segmentNumber * 8, 4));
+            assertEquals(segmentNumber + 8, messageBits.getBits((segmentNumber * 8) + 4, 4));
+        }
+    }
+
+    public void testDuplicateSegmentsAreIgnored() {
+        ReassemblyBuffer reassemblyBuffer = new ReassemblyBuffer(2, MAX_SEGMENT_COUNT);
+        assertTrue(reassemblyBuffer.addSegment(segment(1, 2)));
+        assertFalse(reassemblyBuffer.addSegment(segment(1, 2)));
+        assertTrue(reassemblyBuffer.hasSegment(1));
+        assertFalse(reassemblyBuffer.isComplete());
+
+        assertTrue(reassemblyBuffer.addSegment(segment(0, 2)));
+        assertFalse(reassemblyBuffer.addSegment(segment(0, 2)));
+        assertTrue(reassemblyBuffer.isComplete());
+        assertEquals(2 * 2 * 4, reassemblyBuffer.assemble(bitstringEncoder).length());
+    }
+
+    public void testFragmentsAreOrderedByOrdinalWhateverTheGaps() {
+        // A claimed ordinal near the top of the range is stored like any other
+        int highOrdinal = 2 * (ReassemblyBuffer.MAX_FRAGMENTS_PER_SEGMENT + 3) - 1;
+        ReassemblyBuffer reassemblyBuffer = new ReassemblyBuffer(2, MAX_SEGMENT_COUNT);
+        assertTrue(reassemblyBuffer.addSegment(new SegmentJournal.StoredSegment(1, 1, 2, 4, new int[] {highOrdinal, 9}, new int[] {3, 2}, new int[] {4, 4})));
+        assertTrue(reassemblyBuffer.addSegment(new SegmentJournal.StoredSegment(1, 0, 2, 4, new int[] {4, 3}, new int[] {1, 0}, new int[] {4, 4})));
+
+        BitBuffer messageBits = reassemblyBuffer.assemble(bitstringEncoder);
+        assertEquals(4 * 4, messageBits.length());
+        for(int i = 0; i < 4; i++) {
+            assertEquals(i, messageBits.getBits(i * 4, 4));
+        }
+    }
+
+    public void testSegmentsOutOfRangeForTheConfigurationAreRejected() {
+        assertTrue(ReassemblyBuffer.isValidSegment(segment(0, MAX_SEGMENT_COUNT), MAX_SEGMENT_COUNT));
+        assertTrue(ReassemblyBuffer.isValidSegment(segment(MAX_SEGMENT_COUNT - 1, MAX_SEGMENT_COUNT), MAX_SEGMENT_COUNT));
+
+        assertFalse(ReassemblyBuffer.isValidSegment(segment(0, MAX_SEGMENT_COUNT + 1), MAX_SEGMENT_COUNT));
+        assertFalse(ReassemblyBuffer.isValidSegment(segment(0, Integer.MAX_VALUE), MAX_SEGMENT_COUNT));
+        assertFalse(ReassemblyBuffer.isValidSegment(segment(0, 0), MAX_SEGMENT_COUNT));
+        assertFalse(ReassemblyBuffer.isValidSegment(segment(2, 2), MAX_SEGMENT_COUNT));
+        assertFalse(ReassemblyBuffer.isValidSegment(segment(-1, 2), MAX_SEGMENT_COUNT));
+
+        try {
+            new ReassemblyBuffer(MAX_SEGMENT_COUNT + 1, MAX_SEGMENT_COUNT);
+            fail("A segment count above the number of actions was accepted");
+        } catch(IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    public void testKeyOrdinalsBeyondTheMessageAreRejected() {
+        int maxSlots = 2 * (ReassemblyBuffer.MAX_FRAGMENTS_PER_SEGMENT + 3);
+        assertTrue(ReassemblyBuffer.isValidSegment(segment(0, 2, new int[] {maxSlots - 1}), MAX_SEGMENT_COUNT));
+        assertFalse(ReassemblyBuffer.isValidSegment(segment(0, 2, new int[] {maxSlots}), MAX_SEGMENT_COUNT));
+        assertFalse(ReassemblyBuffer.isValidSegment(segment(0, 2, new int[] {Integer.MAX_VALUE}), MAX_SEGMENT_COUNT));
+        assertFalse(ReassemblyBuffer.isValidSegment(segment(0, 2, new int[] {-1}), MAX_SEGMENT_COUNT));
+
+        ReassemblyBuffer reassemblyBuffer = new ReassemblyBuffer(2, MAX_SEGMENT_COUNT);
+        try {
+            reassemblyBuffer.addSegment(segment(0, 2, new int[] {Integer.MAX_VALUE}));
+            fail("A key ordinal beyond the message was placed");
+        } catch(IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    public void testSegmentsWithTooManyFragmentsAreRejected() {
+        int[] keyOrdinals = new int[ReassemblyBuffer.MAX_FRAGMENTS_PER_SEGMENT + 1];
+        for(int i = 0; i < keyOrdinals.length; i++) {
+            keyOrdinals[i] = i;
+        }
+
+        assertFalse(ReassemblyBuffer.isValidSegment(segment(0, 1, keyOrdinals), MAX_SEGMENT_COUNT));
+    }
+
+    public void testBitmapIsEmptyWithoutAGap() {
+        ReassemblyBuffer reassemblyBuffer = new ReassemblyBuffer(3, MAX_SEGMENT_COUNT);
+        assertEquals(0, reassemblyBuffer.getContiguousSegmentCount());
+        assertEquals(0, reassemblyBuffer.getReceivedSegmentsBitmap().length);
+
+        reassemblyBuffer.addSegment(segment(0, 3));
+        reassemblyBuffer.addSegment(segment(1, 3));
+        assertEquals(2, reassemblyBuffer.getContiguousSegmentCount());
+        assertEquals(0, reassemblyBuffer.getReceivedSegmentsBitmap().length);
+
+        reassemblyBuffer.addSegment(segment(2, 3));
+        assertEquals(3, reassemblyBuffer.getContiguousSegmentCount());
+        assertEquals(0, reassemblyBuffer.getReceivedSegmentsBitmap().length);
+    }
+
+    public void testBitmapMarksTheSegmentsAfterTheGap() {
+        int segmentCount = 20;
+        ReassemblyBuffer reassemblyBuffer = new ReassemblyBuffer(segmentCount, segmentCount);
+        for(int segmentNumber: new int[] {12, 0, 5, 3, 1}) {
+            reassemblyBuffer.addSegment(segment(segmentNumber, segmentCount));
+        }
+
+        // Bit i (least significant first) is segment 2 + i, up to segment 12
+        assertEquals(2, reassemblyBuffer.getContiguousSegmentCount());
+        byte[] bitmap = reassemblyBuffer.getReceivedSegmentsBitmap();
+        assertEquals(2, bitmap.length);
+        assertEquals(0x0A, bitmap[0]);
+        assertEquals(0x04, bitmap[1]);
+        assertReportedAsReceived(reassemblyBuffer, segmentCount);
+
+        // Filling the gap moves the bitmap along
+        reassemblyBuffer.addSegment(segment(2, segmentCount));
+        assertEquals(4, reassemblyBuffer.getContiguousSegmentCount());
+        bitmap = reassemblyBuffer.getReceivedSegmentsBitmap();
+        assertEquals(2, bitmap.length);
+        assertEquals(0x02, bitmap[0]);
+        assertEquals(0x01, bitmap[1]);
+        assertReportedAsReceived(reassemblyBuffer, segmentCount);
+    }
+
+    public void testBitmapWithoutTheFirstSegment() {
+        ReassemblyBuffer reassemblyBuffer = new ReassemblyBuffer(MAX_SEGMENT_COUNT, MAX_SEGMENT_COUNT);
+        reassemblyBuffer.addSegment(segment(MAX_SEGMENT_COUNT - 1, MAX_SEGMENT_COUNT));
+
+        assertEquals(0, reassemblyBuffer.getContiguousSegmentCount());
+        byte[] bitmap = reassemblyBuffer.getReceivedSegmentsBitmap();
+        assertEquals(1, bitmap.length);
+        assertEquals(1 << (MAX_SEGMENT_COUNT - 1), bitmap[0]);
+        assertReportedAsReceived(reassemblyBuffer, MAX_SEGMENT_COUNT);
+    }
+
+    // The sender reads the acknowledgement with EncodingUtils.isSegmentReceived()
+    private static void assertReportedAsReceived(ReassemblyBuffer reassemblyBuffer, int segmentCount) {
+        int highestContiguousSegment = reassemblyBuffer.getContiguousSegmentCount() - 1;
+        byte[] bitmap = reassemblyBuffer.getReceivedSegmentsBitmap();
+        for(int segmentNumber = 0; segmentNumber < segmentCount; segmentNumber++) {
+            assertEquals("segment " + segmentNumber, reassemblyBuffer.hasSegment(segmentNumber),
+                    EncodingUtils.isSegmentReceived(highestContiguousSegment, bitmap, segmentNumber));
+        }
+    }
+
+    // Two 4-bit fragments, segmentNumber and segmentNumber + 8, in the key order of a message whose segments are sent in
+    // order
+    private static SegmentJournal.StoredSegment segment(int segmentNumber, int segmentCount) {
+        int firstOrdinal = segmentNumber * 5;
+        return new SegmentJournal.StoredSegment(1, segmentNumber, segmentCount, 4, new int[] {firstOrdinal + 3, firstOrdinal + 4},
+                new int[] {segmentNumber, segmentNumber + 8}, new int[] {4, 4});
+    }
+
+    private static SegmentJournal.StoredSegment segment(int segmentNumber, int segmentCount, int[] keyOrdinals) {
+        return new SegmentJournal.StoredSegment(1, segmentNumber, segmentCount, 4, keyOrdinals, new int[keyOrdinals.length], new int[keyOrdinals.length]);
+    }
+}
@@ -0,0 +1,243 @@
+package covertchannel.intent.receiver;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import intent.covertchannel.intentencoderdecoder.BitBuffer;
+
+/**
+ * Checks the crash safety of the {@link SegmentJournal}: segments survive a
+ * reopen, a torn tail is truncated away on recovery, compaction keeps only
+ * the live records, and a compaction which fails leaves the journal usable.
+ * Also checks that a completed message is durable and is read back a page at
+ * a time.
+ */
+public class SegmentJournalTest extends TestCase {
+    private static final String JOURNAL_FILE_NAME = "segment_journal";
+    private static final String COMPACTION_FILE_NAME = "segment_journal.tmp";
+
+    private File directory;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        directory = File.createTempFile("SegmentJournalTest", "");
+        assertTrue(directory.delete());
+        assertTrue(directory.mkdir());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteRecursively(directory);
+        super.tearDown();
+    }
+
+    public void testSegmentsSurviveReopening() throws IOException {
+        SegmentJournal journal = new SegmentJournal(directory);
+        journal.appendSegment(segment(1, 0, 2));
+        journal.appendSegment(segment(2, 1, 3));
+
+        SegmentJournal reopenedJournal = new SegmentJournal(directory);
+        List<SegmentJournal.StoredSegment> segments = reopenedJournal.readSegments();
+        assertEquals(2, segments.size());
+        assertSegment(segment(1, 0, 2), segments.get(0));
+        assertSegment(segment(2, 1, 3), segments.get(1));
+        assertSegment(segment(2, 1, 3), reopenedJournal.readSegment(2, 1));
+    }
+
+    public void testTornTailIsTruncatedOnRecovery() throws IOException {
+        SegmentJournal journal = new SegmentJournal(directory);
+        journal.appendSegment(segment(1, 0, 2));
+        File journalFile = new File(directory, JOURNAL_FILE_NAME);
+        long intactLength = journalFile.length();
+
+        // A second record which the process died while writing
+        journal.appendSegment(segment(1, 1, 2));
+        RandomAccessFile file = new RandomAccessFile(journalFile, "rw");
+        try {
+            file.setLength(file.length() - 3);
+        } finally {
+            file.close();
+        }
+
+        SegmentJournal recoveredJournal = new SegmentJournal(directory);
+        assertEquals(intactLength, journalFile.length());
+        assertTrue(recoveredJournal.containsSegment(1, 0));
+        assertFalse(recoveredJournal.containsSegment(1, 1));
+
+        // Appends carry on from the end of the last intact record
+        recoveredJournal.appendSegment(segment(1, 1, 2));
+        assertEquals(2, new SegmentJournal(directory).readSegments().size());
+    }
+
+    public void testCorruptRecordIsTruncatedOnRecovery() throws IOException {
+        SegmentJournal journal = new SegmentJournal(directory);
+        journal.appendSegment(segment(1, 0, 2));
+        File journalFile = new File(directory, JOURNAL_FILE_NAME);
+        long intactLength = journalFile.length();
+        journal.appendSegment(segment(1, 1, 2));
+
+        // Flips a bit in the second record's payload, which its checksum catches
+        RandomAccessFile file = new RandomAccessFile(journalFile, "rw");
+        try {
+            file.seek(intactLength + 4 + 1 + 8);
+            int payloadByte = file.read();
+            file.seek(intactLength + 4 + 1 + 8);
+            file.write(payloadByte ^ 1);
+        } finally {
+            file.close();
+        }
+
+        SegmentJournal recoveredJournal = new SegmentJournal(directory);
+        assertEquals(intactLength, journalFile.length());
+        assertEquals(1, recoveredJournal.readSegments().size());
+    }
+
+    public void testCompactionKeepsOnlyLiveSegments() throws IOException {
+        SegmentJournal journal = new SegmentJournal(directory);
+        journal.appendSegment(segment(1, 0, 2));
+        journal.appendSegment(segment(2, 0, 1));
+        journal.appendSegment(segment(1, 1, 2));
+        File journalFile = new File(directory, JOURNAL_FILE_NAME);
+        long uncompactedLength = journalFile.length();
+
+        journal.dropSegments(1);
+        assertTrue(journalFile.length() < uncompactedLength);
+        assertFalse(new File(directory, COMPACTION_FILE_NAME).exists());
+
+        List<SegmentJournal.StoredSegment> segments = new SegmentJournal(directory).readSegments();
+        assertEquals(1, segments.size());
+        assertSegment(segment(2, 0, 1), segments.get(0));
+    }
+
+    public void testFailedCompactionLeavesJournalUsable() throws IOException {
+        SegmentJournal journal = new SegmentJournal(directory);
+        journal.appendSegment(segment(1, 0, 2));
+        journal.appendSegment(segment(2, 0, 2));
+
+        // A directory in the way of the compacted copy makes writing it fail
+        File compactionFile = new File(directory, COMPACTION_FILE_NAME);
+        assertTrue(compactionFile.mkdir());
+        assertTrue(new File(compactionFile, "blocker").createNewFile());
+        journal.dropSegments(1);
+        assertFalse(journal.containsSegment(1, 0));
+        assertSegment(segment(2, 0, 2), journal.readSegment(2, 0));
+
+        // Appends are still written to the uncompacted journal
+        journal.appendSegment(segment(2, 1, 2));
+        assertSegment(segment(2, 1, 2), journal.readSegment(2, 1));
+        assertTrue(new SegmentJournal(directory).containsSegment(2, 1));
+
+        // The compaction is retried by the next flush, once it can succeed
+        deleteRecursively(compactionFile);
+        journal.appendSegment(segment(3, 0, 1));
+
+        List<SegmentJournal.StoredSegment> segments = new SegmentJournal(directory).readSegments();
+        assertEquals(3, segments.size());
+        assertSegment(segment(2, 0, 2), segments.get(0));
+        assertSegment(segment(2, 1, 2), segments.get(1));
+        assertSegment(segment(3, 0, 1), segments.get(2));
+    }
+
+    public void testBufferedSegmentsAreReadableBeforeFlushing() throws IOException {
+        SegmentJournal journal = new SegmentJournal(directory);
+        journal.setFlushPolicy(new FlushPolicy(16, FlushPolicy.NO_DELAY_LIMIT, false));
+        journal.appendSegment(segment(1, 0, 2));
+        assertSegment(segment(1, 0, 2), journal.readSegment(1, 0));
+
+        // Not durable until flushed
+        assertEquals(0, new SegmentJournal(directory).readSegments().size());
+        journal.flush();
+        assertEquals(1, new SegmentJournal(directory).readSegments().size());
+    }
+
+    public void testCompletedMessageIsReadBackInPages() throws IOException {
+        StringBuilder messageBldr = new StringBuilder();
+        for(int i = 0; i < 3000; i++) {
+            messageBldr.append((char) ('a' + (i % 26)));
+        }
+
+        // Characters above 0x7F are stored as single bytes as well
+        messageBldr.append('\u00e9');
+        String message = messageBldr.toString();
+
+        SegmentJournal journal = new SegmentJournal(directory);
+        journal.appendSegment(segment(1, 0, 1));
+        int generation = journal.getMessageGeneration(SegmentJournal.MESSAGE_KIND_BITSTRING);
+        journal.completeMessage(1, SegmentJournal.MESSAGE_KIND_BITSTRING, BitBuffer.fromText(message));
+
+        assertEquals(message.length(), journal.getMessageLength(SegmentJournal.MESSAGE_KIND_BITSTRING));
+        assertTrue(generation != journal.getMessageGeneration(SegmentJournal.MESSAGE_KIND_BITSTRING));
+        assertEquals(message.substring(1024, 2048), journal.readMessage(SegmentJournal.MESSAGE_KIND_BITSTRING, 1024, 1024));
+        assertEquals(message.substring(2048), journal.readMessage(SegmentJournal.MESSAGE_KIND_BITSTRING, 2048, 1024));
+        assertEquals("", journal.readMessage(SegmentJournal.MESSAGE_KIND_BITSTRING, message.length(), 1024));
+        assertEquals("", journal.readMessage(SegmentJournal.MESSAGE_KIND_ALPHA, 0, 1024));
+        assertNull(journal.readSegment(1, 0));
+
+        // The message file is durable whatever the flush policy, and its segments are gone
+        SegmentJournal reopenedJournal = new SegmentJournal(directory);
+        assertEquals(0, reopenedJournal.readSegments().size());
+        assertEquals(message, reopenedJournal.takeMessage(SegmentJournal.MESSAGE_KIND_BITSTRING));
+        assertEquals(0, reopenedJournal.getMessageLength(SegmentJournal.MESSAGE_KIND_BITSTRING));
+        assertEquals(0, new SegmentJournal(directory).getMessageLength(SegmentJournal.MESSAGE_KIND_BITSTRING));
+    }
+
+    public void testFlushThroughSharesFlushesBetweenAcknowledgements() throws IOException {
+        SegmentJournal journal = new SegmentJournal(directory);
+        journal.setFlushPolicy(new FlushPolicy(16, FlushPolicy.NO_DELAY_LIMIT, false));
+        journal.appendSegment(segment(1, 0, 3));
+        long firstSequence = journal.getAppendSequence();
+        journal.appendSegment(segment(1, 1, 3));
+        long secondSequence = journal.getAppendSequence();
+        long numFlushes = journal.getNumFlushes();
+
+        // Flushing through the first segment makes the second one durable as well
+        journal.flushThrough(firstSequence);
+        assertEquals(numFlushes + 1, journal.getNumFlushes());
+        assertEquals(2, new SegmentJournal(directory).readSegments().size());
+
+        journal.flushThrough(secondSequence);
+        assertEquals(numFlushes + 1, journal.getNumFlushes());
+
+        journal.appendSegment(segment(1, 2, 3));
+        journal.flushThrough(journal.getAppendSequence());
+        assertEquals(numFlushes + 2, journal.getNumFlushes());
+        assertEquals(3, new SegmentJournal(directory).readSegments().size());
+    }
+
+    private static SegmentJournal.StoredSegment segment(long streamId, int segmentNumber, int segmentCount) {
+        int[] keyOrdinals = {segmentNumber * 3, (segmentNumber * 3) + 1, (segmentNumber * 3) + 2};
+        int[] fragmentValues = {segmentNumber, (int) streamId, 7};
+        int[] fragmentBitLengths = {5, 5, 3};
+        return new SegmentJournal.StoredSegment(streamId, segmentNumber, segmentCount, 3, keyOrdinals, fragmentValues, fragmentBitLengths);
+    }
+
+    private static void assertSegment(SegmentJournal.StoredSegment expected, SegmentJournal.StoredSegment actual) {
+        assertNotNull(actual);
+        assertEquals(expected.getStreamId(), actual.getStreamId());
+        assertEquals(expected.getSegmentNumber(), actual.getSegmentNumber());
+        assertEquals(expected.getSegmentCount(), actual.getSegmentCount());
+        assertEquals(expected.getSignificantBits(), actual.getSignificantBits());
+        assertEquals(expected.getNumFragments(), actual.getNumFragments());
+        for(int i = 0; i < expected.getNumFragments(); i++) {
+            assertEquals(expected.getKeyOrdinal(i), actual.getKeyOrdinal(i));
+            assertEquals(expected.getFragmentValue(i), actual.getFragmentValue(i));
+            assertEquals(expected.getFragmentBitLength(i), actual.getFragmentBitLength(i));
+        }
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if(children != null) {
+            for(File child: children) {
+                deleteRecursively(child);
+            }
+        }
+
+        file.delete();
+    }
+}
@@ -0,0 +1,77 @@
+package covertchannel.intent.receiver;
+
+import junit.framework.TestCase;
+
+import java.util.List;
+
+/**
+ * Checks that the {@link SessionTable} expires sessions which have been idle
+ * for longer than the time-to-live, evicts the least recently used session
+ * when it is full, and reports both kinds of removal exactly once.
+ */
+public class SessionTableTest extends TestCase {
+    private static final long TIME_TO_LIVE_MILLIS = 1000;
+
+    public void testIdleSessionsExpire() {
+        SessionTable sessionTable = new SessionTable(4, TIME_TO_LIVE_MILLIS, null);
+        ReceiverSession firstSession = sessionTable.get(1, 0);
+        sessionTable.get(2, 500);
+
+        // Exactly the time-to-live is not yet too long
+        assertSame(firstSession, sessionTable.get(1, TIME_TO_LIVE_MILLIS));
+        assertTrue(sessionTable.takeRemovedSessions().isEmpty());
+
+        // Stream 2 was last active at 500 ms and stream 1 at 1000 ms
+        sessionTable.get(3, 500 + TIME_TO_LIVE_MILLIS + 1);
+        List<ReceiverSession> removedSessions = sessionTable.takeRemovedSessions();
+        assertEquals(1, removedSessions.size());
+        assertEquals(2, removedSessions.get(0).getStreamId());
+        assertNull(sessionTable.peek(2));
+        assertSame(firstSession, sessionTable.peek(1));
+        assertEquals(1, sessionTable.getNumExpired());
+
+        // Reported once
+        assertTrue(sessionTable.takeRemovedSessions().isEmpty());
+    }
+
+    public void testExpiredStreamStartsANewSession() {
+        SessionTable sessionTable = new SessionTable(4, TIME_TO_LIVE_MILLIS, null);
+        ReceiverSession expiredSession = sessionTable.get(1, 0);
+        ReceiverSession newSession = sessionTable.get(1, TIME_TO_LIVE_MILLIS + 1);
+
+        assertNotSame(expiredSession, newSession);
+        assertEquals(1, sessionTable.takeRemovedSessions().size());
+        assertEquals(2, sessionTable.getNumCreated());
+        assertEquals(1, sessionTable.size());
+    }
+
+    public void testLeastRecentlyUsedSessionIsEvicted() {
+        SessionTable sessionTable = new SessionTable(2, TIME_TO_LIVE_MILLIS, null);
+        sessionTable.get(1, 0);
+        sessionTable.get(2, 1);
+
+        // Makes stream 2 the least recently used
+        sessionTable.get(1, 2);
+        sessionTable.get(3, 3);
+
+        List<ReceiverSession> removedSessions = sessionTable.takeRemovedSessions();
+        assertEquals(1, removedSessions.size());
+        assertEquals(2, removedSessions.get(0).getStreamId());
+        assertEquals(2, sessionTable.size());
+        assertNotNull(sessionTable.peek(1));
+        assertNotNull(sessionTable.peek(3));
+        assertEquals(1, sessionTable.getNumEvicted());
+        assertEquals(0, sessionTable.getNumExpired());
+    }
+
+    public void testPeekDoesNotRecordActivity() {
+        SessionTable sessionTable = new SessionTable(4, TIME_TO_LIVE_MILLIS, null);
+        sessionTable.get(1, 0);
+        assertNull(sessionTable.peek(2));
+        assertNotNull(sessionTable.peek(1));
+
+        sessionTable.get(2, TIME_TO_LIVE_MILLIS + 1);
+        assertNull(sessionTable.peek(1));
+        assertEquals(1, sessionTable.getNumCreated() - sessionTable.size());
+    }
+}
@@ -0,0 +1,152 @@
+package covertchannel.intent.sender;
+
+import android.content.Intent;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import intent.covertchannel.intentencoderdecoder.BitstringEncoder;
+import intent.covertchannel.intentencoderdecoder.ChannelConfig;
+import intent.covertchannel.intentencoderdecoder.EncodingScheme;
+import intent.covertchannel.intentencoderdecoder.EncodingUtils;
+import intent.covertchannel.intentencoderdecoder.KeyTable;
+
+/**
+ * Sweeps every channel configuration which the
+ * {@link ThroughputEvaluationService} can produce (including those the
+ * {@link ChannelConfigAutotuner} can search) and checks that fragments
+ * are sized exactly and that messages of each test size survive an
+ * encode/decode round trip without losing bits.
+ */
+public class ChannelConfigurationSweepTest extends TestCase {
+
+    public void testBitLengthsAreExact() {
+        // Powers of two (and their neighbours) are where a floating-point log2 goes wrong
+        assertBitLengths(1);
+        for(int bit = 1; bit < Integer.SIZE - 1; bit++) {
+            int powerOfTwo = 1 << bit;
+            assertBitLengths(powerOfTwo - 1);
+            assertBitLengths(powerOfTwo);
+            assertBitLengths(powerOfTwo + 1);
+        }
+
+        assertBitLengths(Integer.MAX_VALUE);
+    }
+
+    public void testEveryTestConfigurationIsSizedExactly() {
+        for(ChannelConfig config: senderConfigurations()) {
+            String description = config.toString();
+
+            assertExactBitLengths(description, config.getMaxFragmentValue(), config.getFragmentMinBitLength(), config.getFragmentMaxBitLength());
+            assertExactBitLengths(description, config.getMaxValue(), config.getSegmentMinBitLength(), config.getSegmentMaxBitLength());
+            assertTrue(description, config.getSegmentMaxBitLength() < Integer.SIZE);
+
+            // Every action must map onto the start of its own value band
+            List<String> actions = config.getActionStrings();
+            for(int i = 0; i < actions.size(); i++) {
+                assertEquals(description, i * config.getNumValuesPerAction(), config.getActionOffset(actions.get(i)));
+            }
+        }
+    }
+
+    public void testEveryTestConfigurationRoundTrips() {
+        Random random = new Random(0);
+        for(int numMessageBytes: ThroughputEvaluationService.THROUGHPUT_TEST_MESSAGE_SIZES_IN_BYTES) {
+            String message = randomMessage(random, numMessageBytes);
+            for(ChannelConfig config: senderConfigurations()) {
+                assertEquals(config + ", " + numMessageBytes + " bytes", message, roundTrip(config, message, random));
+            }
+        }
+    }
+
+    private static List<ChannelConfig> senderConfigurations() {
+        List<ChannelConfig> configs = new ArrayList<>();
+        for(int numBaseValues: ThroughputEvaluationService.BASE_VALUE_COUNTS) {
+            for(int numExpansionCodes: ThroughputEvaluationService.EXPANSION_CODE_COUNTS) {
+                for(int numActions: ThroughputEvaluationService.ACTION_STRING_COUNTS) {
+                    for(int packingMode: ThroughputEvaluationService.PACKING_MODES) {
+                        configs.add(new ChannelConfig(numBaseValues, numExpansionCodes, EncodingUtils.ACTIONS.subList(0, numActions), EncodingScheme.BUILD_VERSION, packingMode));
+                    }
+                }
+            }
+        }
+
+        // Every point the autotuner can search
+        for(int numExpansionCodes: ChannelConfigAutotuner.EXPANSION_CODE_AXIS) {
+            for(int numActions: ChannelConfigAutotuner.ACTION_COUNT_AXIS) {
+                if(numActions > EncodingUtils.ACTIONS.size()) {
+                    continue;
+                }
+
+                for(int packingMode: ChannelConfigAutotuner.PACKING_MODE_AXIS) {
+                    configs.add(new ChannelConfig(EncodingScheme.NUM_BASE_VALUES, numExpansionCodes, EncodingUtils.ACTIONS.subList(0, numActions), EncodingScheme.BUILD_VERSION, packingMode));
+                }
+            }
+        }
+
+        // The fixed encoders used for manually entered messages
+        configs.add(new ChannelConfig(EncodingScheme.NUM_BASE_VALUES, EncodingUtils.NUM_EXPANSION_CODES, EncodingUtils.ACTIONS, EncodingScheme.BUILD_VERSION));
+        configs.add(new ChannelConfig(EncodingScheme.NUM_BASE_VALUES, EncodingUtils.NUM_ALPHA_EXPANSION_CODES, Collections.singletonList(EncodingUtils.INTERCEPTIBLE_ACTION), EncodingScheme.BUILD_VERSION));
+        return configs;
+    }
+
+    private static String roundTrip(ChannelConfig config, String message, Random random) {
+        List<Intent> carriers = new ArrayList<>(new BitstringEncoder(config).encodeMessage(message));
+
+        // Carriers may arrive in any order; the receiver decodes each with its own encoder
+        Collections.shuffle(carriers, random);
+        BitstringEncoder decoder = new BitstringEncoder(config);
+
+        // Fragments are placed by message key ordinal and then compacted, as in the receiver
+        SortedMap<Integer, int[]> fragmentsByOrdinal = new TreeMap<>();
+        int significantBitsInLastFragment = -1;
+        for(Intent carrier: carriers) {
+            BitstringEncoder.DecodedMessage decodedMessage = decoder.decodeMessageAsBitstring(carrier);
+            significantBitsInLastFragment = decodedMessage.getSignificantBitsInLastFragment();
+
+            for(int i = 0; i < decodedMessage.getNumFragments(); i++) {
+                int ordinal = KeyTable.ordinal(decodedMessage.getMessageKey(i));
+                assertTrue(ordinal >= 0);
+                assertNull(fragmentsByOrdinal.put(ordinal, new int[] {decodedMessage.getFragmentValue(i), decodedMessage.getFragmentBitLength(i)}));
+            }
+        }
+
+        int numFragments = fragmentsByOrdinal.size();
+        int[] fragmentValues = new int[numFragments];
+        int[] fragmentBitLengths = new int[numFragments];
+        int i = 0;
+        for(int[] fragment: fragmentsByOrdinal.values()) {
+            fragmentValues[i] = fragment[0];
+            fragmentBitLengths[i] = fragment[1];
+            i++;
+        }
+
+        return decoder.assembleFragments(fragmentValues, fragmentBitLengths, numFragments, significantBitsInLastFragment).toText();
+    }
+
+    private static String randomMessage(Random random, int numBytes) {
+        char[] chars = new char[numBytes];
+        for(int i = 0; i < numBytes; i++) {
+            chars[i] = (char) random.nextInt(256);
+        }
+
+        return new String(chars);
+    }
+
+    private static void assertBitLengths(int maxValue) {
+        assertExactBitLengths("max value " + maxValue, maxValue,
+                BitstringEncoder.calculateMinFragmentBitLength(maxValue), BitstringEncoder.calculateMaxFragmentBitLength(maxValue));
+    }
+
+    // minBitLength must be floor(log2(maxValue)) and maxBitLength ceil(log2(maxValue))
+    private static void assertExactBitLengths(String description, int maxValue, int minBitLength, int maxBitLength) {
+        assertTrue(description, (1L << minBitLength) <= maxValue && maxValue < (1L << (minBitLength + 1)));
+        assertTrue(description, (1L << maxBitLength) >= maxValue && (maxBitLength == 0 || (1L << (maxBitLength - 1)) < maxValue));
+    }
+}
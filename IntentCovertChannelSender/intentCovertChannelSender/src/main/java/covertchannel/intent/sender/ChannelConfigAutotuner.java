@@ -0,0 +1,352 @@
+package covertchannel.intent.sender;
+
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import intent.covertchannel.intentencoderdecoder.BitstringEncoder;
+import intent.covertchannel.intentencoderdecoder.EncodingScheme;
+import intent.covertchannel.intentencoderdecoder.EncodingUtils;
+
+/**
+ * Searches the channel configurations for the one with the highest measured
+ * throughput by hill climbing, instead of sweeping every combination: each
+ * round proposes the untested neighbours of the current configuration (one
+ * step along one of the axes below), and the search moves to the best of them
+ * if it beats the current configuration by at least {@link #MIN_IMPROVEMENT}.
+ * It stops at the first round which does not, or once
+ * {@link #MAX_EVALUATIONS} configurations have been measured.
+ *
+ * The best configuration found is persisted for the device model and API
+ * level, along with its throughput. The next search on the same device
+ * measures it first, and only climbs from it if it has become slower than
+ * when it was persisted (by more than {@link #MIN_IMPROVEMENT}).
+ *
+ * The number of base values is not searched: decoding assumes the whole
+ * character set (see {@code EncodingUtils.decodeValue()}), so every
+ * candidate uses {@link EncodingScheme#NUM_BASE_VALUES}.
+ */
+public final class ChannelConfigAutotuner {
+    private static final String TAG = EncodingUtils.TRACE_TAG;
+
+    static final String PREFERENCES_NAME = "channel_autotune";
+
+    // The axes of the search space, in increasing order (action counts the action list cannot support are dropped)
+    static final int[] EXPANSION_CODE_AXIS = {0, 1, 2, 4, 8, (EncodingScheme.NUM_BASE_VALUES * 1) + 1};
+    static final int[] ACTION_COUNT_AXIS = {1, 5, 10, 25, 50, 100};
+    static final int[] PACKING_MODE_AXIS = {BitstringEncoder.PACKING_MODE_GREEDY, BitstringEncoder.PACKING_MODE_MIXED_RADIX};
+
+    // A neighbour has to be this much (relatively) faster for the search to move to it, so that it does not wander
+    // on measurement noise
+    static final double MIN_IMPROVEMENT = 0.02;
+
+    static final int MAX_EVALUATIONS = 40;
+
+    /**
+     * A point in the search space.
+     */
+    public static final class Candidate {
+        private final int numBaseValues;
+        private final int numExpansionCodes;
+        private final int numActions;
+        private final int packingMode;
+
+        public Candidate(int numBaseValues, int numExpansionCodes, int numActions, int packingMode) {
+            this.numBaseValues = numBaseValues;
+            this.numExpansionCodes = numExpansionCodes;
+            this.numActions = numActions;
+            this.packingMode = packingMode;
+        }
+
+        public int getNumBaseValues() {
+            return numBaseValues;
+        }
+
+        public int getNumExpansionCodes() {
+            return numExpansionCodes;
+        }
+
+        public int getNumActions() {
+            return numActions;
+        }
+
+        public int getPackingMode() {
+            return packingMode;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(this == o) {
+                return true;
+            }
+
+            if(!(o instanceof Candidate)) {
+                return false;
+            }
+
+            Candidate other = (Candidate) o;
+            return numBaseValues == other.numBaseValues && numExpansionCodes == other.numExpansionCodes &&
+                    numActions == other.numActions && packingMode == other.packingMode;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = numBaseValues;
+            result = 31 * result + numExpansionCodes;
+            result = 31 * result + numActions;
+            result = 31 * result + packingMode;
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            return "base val count: " + numBaseValues + ", expansion code count: " + numExpansionCodes +
+                    ", num actions: " + numActions + ", packing mode: " + ThroughputEvaluationService.packingModeName(packingMode);
+        }
+    }
+
+    private final SharedPreferences preferences;
+    private final String deviceKey;
+    private final int[][] axes;
+    private final Candidate start;
+
+    // Bits per second of the start configuration when it was persisted, or 0 if it was not
+    private final double persistedThroughput;
+
+    // Bits per second of every configuration measured so far, in the order they were measured
+    private final Map<Candidate, Double> measuredThroughputs = new LinkedHashMap<>();
+    private List<Candidate> proposedCandidates = Collections.emptyList();
+    private Candidate current;
+    private int numRounds;
+    private boolean finished;
+
+    /**
+     * @param preferences Where the best configuration of each device is kept.
+     */
+    public ChannelConfigAutotuner(SharedPreferences preferences) {
+        this.preferences = preferences;
+        this.deviceKey = Build.MODEL + "/" + Build.VERSION.SDK_INT;
+
+        axes = new int[][] {
+                EXPANSION_CODE_AXIS,
+                axisUpTo(ACTION_COUNT_AXIS, EncodingUtils.ACTIONS.size()),
+                PACKING_MODE_AXIS
+        };
+
+        Candidate persisted = loadPersistedCandidate();
+        if(persisted != null) {
+            start = persisted;
+            persistedThroughput = preferences.getFloat(deviceKey + "/bitsPerSecond", 0.0f);
+            Log.d(TAG, "Autotuning from the configuration persisted for " + deviceKey + " at " + persistedThroughput + " bits per second: " + persisted);
+        } else {
+            // The defaults of the bitstring encoder
+            start = snapToAxes(new Candidate(EncodingScheme.NUM_BASE_VALUES, EncodingUtils.NUM_EXPANSION_CODES, EncodingUtils.ACTIONS.size(), BitstringEncoder.PACKING_MODE_GREEDY));
+            persistedThroughput = 0.0;
+        }
+    }
+
+    /**
+     * @return The configurations to measure next (the throughput of each is
+     * to be passed to {@link #recordThroughput} before the next call), or an
+     * empty list once the search has finished.
+     */
+    public List<Candidate> nextCandidates() {
+        if(finished) {
+            return Collections.<Candidate>emptyList();
+        }
+
+        if(numRounds == 0) {
+            numRounds++;
+            proposedCandidates = Collections.singletonList(start);
+            return proposedCandidates;
+        }
+
+        if(current == null) {
+            // A persisted configuration which is still as fast as it was is assumed to still be the best one
+            if(persistedThroughput > 0.0 && getThroughput(start) >= persistedThroughput * (1 - MIN_IMPROVEMENT)) {
+                Log.d(TAG, "Autotuning skipped; the persisted configuration still measures " + getThroughput(start) + " bits per second: " + start);
+                return finish();
+            }
+
+            current = start;
+        } else {
+            Candidate bestProposed = null;
+            for(Candidate candidate: proposedCandidates) {
+                if(bestProposed == null || getThroughput(candidate) > getThroughput(bestProposed)) {
+                    bestProposed = candidate;
+                }
+            }
+
+            if(bestProposed == null || getThroughput(bestProposed) < getThroughput(current) * (1 + MIN_IMPROVEMENT)) {
+                Log.d(TAG, "Autotuning stopped at a local maximum after " + numRounds + " rounds: " + current);
+                return finish();
+            }
+
+            current = bestProposed;
+        }
+
+        List<Candidate> neighbours = new ArrayList<>();
+        for(Candidate neighbour: getNeighbours(current)) {
+            if(!measuredThroughputs.containsKey(neighbour) && measuredThroughputs.size() + neighbours.size() < MAX_EVALUATIONS) {
+                neighbours.add(neighbour);
+            }
+        }
+
+        if(neighbours.isEmpty()) {
+            Log.d(TAG, "Autotuning stopped after " + measuredThroughputs.size() + " configurations: " + current);
+            return finish();
+        }
+
+        numRounds++;
+        proposedCandidates = neighbours;
+        return proposedCandidates;
+    }
+
+    public void recordThroughput(Candidate candidate, double bitsPerSecond) {
+        measuredThroughputs.put(candidate, bitsPerSecond);
+    }
+
+    /**
+     * @return The fastest configuration measured so far, or {@code null} if
+     * none has been measured.
+     */
+    public Candidate getBest() {
+        Candidate best = null;
+        for(Map.Entry<Candidate, Double> entry: measuredThroughputs.entrySet()) {
+            if(best == null || entry.getValue() > measuredThroughputs.get(best)) {
+                best = entry.getKey();
+            }
+        }
+
+        return best;
+    }
+
+    public double getThroughput(Candidate candidate) {
+        Double bitsPerSecond = measuredThroughputs.get(candidate);
+        return bitsPerSecond == null ? 0.0 : bitsPerSecond;
+    }
+
+    public int getNumEvaluations() {
+        return measuredThroughputs.size();
+    }
+
+    /**
+     * @return The number of configurations in the search space, i.e. what an
+     * exhaustive sweep would have measured.
+     */
+    public int getSearchSpaceSize() {
+        int size = 1;
+        for(int[] axis: axes) {
+            size *= axis.length;
+        }
+
+        return size;
+    }
+
+    public String generateReport() {
+        StringBuilder reportBldr = new StringBuilder();
+        reportBldr.append("Autotune (" + deviceKey + "): measured " + getNumEvaluations() + " of " + getSearchSpaceSize() + " configurations in " + numRounds + " rounds, starting from " + start + "\n");
+
+        Candidate best = getBest();
+        if(best != null) {
+            reportBldr.append("Best: " + best + " at " + getThroughput(best) + " bits per second\n");
+        }
+
+        return reportBldr.toString();
+    }
+
+    private List<Candidate> finish() {
+        finished = true;
+        persistBest();
+        return Collections.emptyList();
+    }
+
+    private void persistBest() {
+        Candidate best = getBest();
+        if(best == null) {
+            return;
+        }
+
+        boolean persisted = preferences.edit()
+                .putInt(deviceKey + "/numExpansionCodes", best.getNumExpansionCodes())
+                .putInt(deviceKey + "/numActions", best.getNumActions())
+                .putInt(deviceKey + "/packingMode", best.getPackingMode())
+                .putFloat(deviceKey + "/bitsPerSecond", (float) getThroughput(best))
+                .commit();
+        if(!persisted) {
+            Log.w(TAG, "Could not persist the autotuned configuration for " + deviceKey);
+        }
+    }
+
+    private Candidate loadPersistedCandidate() {
+        if(!preferences.contains(deviceKey + "/numExpansionCodes")) {
+            return null;
+        }
+
+        // Snapped in case the axes have changed since it was persisted
+        return snapToAxes(new Candidate(
+                EncodingScheme.NUM_BASE_VALUES,
+                preferences.getInt(deviceKey + "/numExpansionCodes", EncodingUtils.NUM_EXPANSION_CODES),
+                preferences.getInt(deviceKey + "/numActions", EncodingUtils.ACTIONS.size()),
+                preferences.getInt(deviceKey + "/packingMode", BitstringEncoder.PACKING_MODE_GREEDY)));
+    }
+
+    private List<Candidate> getNeighbours(Candidate candidate) {
+        int[] indices = toIndices(candidate);
+        List<Candidate> neighbours = new ArrayList<>();
+        for(int axis = 0; axis < axes.length; axis++) {
+            for(int step = -1; step <= 1; step += 2) {
+                int index = indices[axis] + step;
+                if(index < 0 || index >= axes[axis].length) {
+                    continue;
+                }
+
+                int[] neighbourIndices = indices.clone();
+                neighbourIndices[axis] = index;
+                neighbours.add(fromIndices(neighbourIndices));
+            }
+        }
+
+        return neighbours;
+    }
+
+    private Candidate snapToAxes(Candidate candidate) {
+        return fromIndices(toIndices(candidate));
+    }
+
+    // The index of the closest value on each axis
+    private int[] toIndices(Candidate candidate) {
+        int[] values = {candidate.getNumExpansionCodes(), candidate.getNumActions(), candidate.getPackingMode()};
+        int[] indices = new int[axes.length];
+        for(int axis = 0; axis < axes.length; axis++) {
+            for(int i = 1; i < axes[axis].length; i++) {
+                if(Math.abs(axes[axis][i] - values[axis]) < Math.abs(axes[axis][indices[axis]] - values[axis])) {
+                    indices[axis] = i;
+                }
+            }
+        }
+
+        return indices;
+    }
+
+    private Candidate fromIndices(int[] indices) {
+        return new Candidate(EncodingScheme.NUM_BASE_VALUES, axes[0][indices[0]], axes[1][indices[1]], axes[2][indices[2]]);
+    }
+
+    private static int[] axisUpTo(int[] axis, int maxValue) {
+        int length = 0;
+        while(length < axis.length && axis[length] <= maxValue) {
+            length++;
+        }
+
+        int[] truncatedAxis = new int[length];
+        System.arraycopy(axis, 0, truncatedAxis, 0, length);
+        return truncatedAxis;
+    }
+}
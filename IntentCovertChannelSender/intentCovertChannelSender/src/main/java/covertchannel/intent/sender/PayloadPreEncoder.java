@@ -0,0 +1,247 @@
+package covertchannel.intent.sender;
+
+import android.content.ComponentName;
+import android.content.Intent;
+import android.os.Bundle;
+import android.os.Debug;
+import android.os.Process;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import intent.covertchannel.intentencoderdecoder.BitstringEncoderCache;
+import intent.covertchannel.intentencoderdecoder.ChannelConfig;
+import intent.covertchannel.intentencoderdecoder.EncodingUtils;
+import intent.covertchannel.intentencoderdecoder.Segment;
+
+/**
+ * Encodes the carrier sets of a throughput sweep before its timed phase, once
+ * for each message and channel configuration, in parallel on a pool of worker
+ * threads. The time and memory each set took to encode are recorded with it,
+ * so that the codec's throughput can be reported apart from the transport's.
+ */
+public final class PayloadPreEncoder {
+    private static final String TAG = EncodingUtils.TRACE_TAG;
+
+    /**
+     * The carriers of one message encoded with one channel configuration,
+     * ready to be sent to the given receiver component on the pre-encoder's
+     * stream. The carriers may be sent any number of times, but the list must
+     * not be modified.
+     */
+    public static final class EncodedPayload {
+        private final List<Intent> carriers;
+        private final long streamId;
+        private final int numDataKeys;
+        private final long encodeNanos;
+        private final long allocatedBytes;
+
+        EncodedPayload(List<Intent> carriers, long streamId, int numDataKeys, long encodeNanos, long allocatedBytes) {
+            this.carriers = Collections.unmodifiableList(carriers);
+            this.streamId = streamId;
+            this.numDataKeys = numDataKeys;
+            this.encodeNanos = encodeNanos;
+            this.allocatedBytes = allocatedBytes;
+        }
+
+        public List<Intent> getCarriers() {
+            return carriers;
+        }
+
+        public int getNumCarriers() {
+            return carriers.size();
+        }
+
+        /**
+         * @return The stream which the carriers are tagged with, and so which
+         * the receiver must be configured on before they are sent.
+         */
+        public long getStreamId() {
+            return streamId;
+        }
+
+        /**
+         * @return The number of (non-metadata) Bundle keys in the carriers.
+         */
+        public int getNumDataKeys() {
+            return numDataKeys;
+        }
+
+        public double getEncodeMillis() {
+            return encodeNanos / 1e6;
+        }
+
+        /**
+         * @return The bytes which the worker thread allocated while encoding
+         * the carriers (its own allocations only, since the count is kept per
+         * thread), or 0 if the runtime does not count allocations.
+         */
+        public long getAllocatedBytes() {
+            return allocatedBytes;
+        }
+    }
+
+    private final ComponentName receiverComponent;
+    private final String carrierAction;
+    private final long streamId;
+    private final Map<ChannelConfig, Map<String, EncodedPayload>> payloadsByConfig = new HashMap<>();
+    private int numPayloads;
+    private long totalEncodeNanos;
+
+    /**
+     * @param receiverComponent The component which the carriers are sent to.
+     * @param carrierAction The action each carrier is sent with (in place of
+     * the action it was encoded with).
+     * @param streamId The sender stream which each carrier is tagged with
+     * (see {@link EncodingUtils#STREAM_ID_KEY}).
+     */
+    public PayloadPreEncoder(ComponentName receiverComponent, String carrierAction, long streamId) {
+        this.receiverComponent = receiverComponent;
+        this.carrierAction = carrierAction;
+        this.streamId = streamId;
+    }
+
+    /**
+     * Adds {@code message} encoded with {@code config} to the payloads to be
+     * encoded; adding the same pair again has no effect.
+     */
+    public void add(ChannelConfig config, String message) {
+        Map<String, EncodedPayload> payloadsByMessage = payloadsByConfig.get(config);
+        if(payloadsByMessage == null) {
+            payloadsByMessage = new HashMap<>();
+            payloadsByConfig.put(config, payloadsByMessage);
+        }
+
+        if(!payloadsByMessage.containsKey(message)) {
+            payloadsByMessage.put(message, null);
+            numPayloads++;
+        }
+    }
+
+    public int size() {
+        return numPayloads;
+    }
+
+    /**
+     * Encodes every payload which has been added and not yet encoded, on
+     * {@code numThreads} worker threads, returning once all of them are done.
+     */
+    public void encodeAll(int numThreads) {
+        List<Callable<EncodedPayload>> encodeTasks = new ArrayList<>();
+        final List<ChannelConfig> taskConfigs = new ArrayList<>();
+        final List<String> taskMessages = new ArrayList<>();
+        for(Map.Entry<ChannelConfig, Map<String, EncodedPayload>> configEntry: payloadsByConfig.entrySet()) {
+            for(Map.Entry<String, EncodedPayload> messageEntry: configEntry.getValue().entrySet()) {
+                if(messageEntry.getValue() != null) {
+                    continue;
+                }
+
+                // Builds the config's encoder (and its key tables) now, so that it is not part of the timed encoding
+                final ChannelConfig config = configEntry.getKey();
+                BitstringEncoderCache.get(config);
+
+                final String message = messageEntry.getKey();
+                taskConfigs.add(config);
+                taskMessages.add(message);
+                encodeTasks.add(new Callable<EncodedPayload>() {
+                    @Override
+                    public EncodedPayload call() {
+                        return encode(config, message);
+                    }
+                });
+            }
+        }
+
+        ExecutorService workerPool = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+            private int numThreadsCreated;
+
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        runnable.run();
+                    }
+                }, "PayloadPreEncoder-" + numThreadsCreated++);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        // Enables the allocation counters; each worker thread's is reset and read around each of its tasks (see encode())
+        Debug.startAllocCounting();
+        try {
+            List<Future<EncodedPayload>> results = workerPool.invokeAll(encodeTasks);
+            for(int i = 0; i < results.size(); i++) {
+                EncodedPayload payload = results.get(i).get();
+                payloadsByConfig.get(taskConfigs.get(i)).put(taskMessages.get(i), payload);
+                totalEncodeNanos += payload.encodeNanos;
+            }
+        } catch(InterruptedException e) {
+            throw new RuntimeException("Interrupted while pre-encoding the carriers", e);
+        } catch(ExecutionException e) {
+            throw new RuntimeException("Could not pre-encode the carriers", e.getCause());
+        } finally {
+            Debug.stopAllocCounting();
+            workerPool.shutdownNow();
+        }
+    }
+
+    /**
+     * @return The encoded payload of {@code message} with {@code config}, or
+     * {@code null} if it has not been added and encoded.
+     */
+    public EncodedPayload get(ChannelConfig config, String message) {
+        Map<String, EncodedPayload> payloadsByMessage = payloadsByConfig.get(config);
+        return payloadsByMessage == null ? null : payloadsByMessage.get(message);
+    }
+
+    /**
+     * @return The time spent encoding, summed over the worker threads.
+     */
+    public double getTotalEncodeMillis() {
+        return totalEncodeNanos / 1e6;
+    }
+
+    // Runs on a worker thread
+    private EncodedPayload encode(ChannelConfig config, String message) {
+        // A worker thread runs several tasks, so its count must not include the earlier ones
+        Debug.resetThreadAllocSize();
+        long startTime = System.nanoTime();
+
+        Collection<Intent> encodedIntents = BitstringEncoderCache.get(config).encodeMessage(message);
+
+        List<Intent> carriers = new ArrayList<>(encodedIntents.size());
+        int numDataKeys = 0;
+        for(Intent encodedIntent: encodedIntents) {
+            Bundle extras = encodedIntent.getExtras();
+            if(extras.isEmpty()) {
+                // Don't send empty Intents
+                Log.d(TAG, "Skipping Intent with action \"" + encodedIntent.getAction() + "\"; no data");
+                continue;
+            }
+
+            numDataKeys += extras.size() - Segment.NUM_METADATA_FIELDS;
+            encodedIntent.setComponent(receiverComponent);
+            encodedIntent.setAction(carrierAction);
+            encodedIntent.putExtra(EncodingUtils.STREAM_ID_KEY, streamId);
+            carriers.add(encodedIntent);
+        }
+
+        long encodeNanos = System.nanoTime() - startTime;
+        long allocatedBytes = Debug.getThreadAllocSize();
+        return new EncodedPayload(carriers, streamId, numDataKeys, encodeNanos, allocatedBytes);
+    }
+}
@@ -5,38 +5,175 @@ import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.ServiceConnection;
 import android.os.Binder;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.Message;
+import android.os.Messenger;
+import android.os.Parcel;
+import android.os.Process;
+import android.os.RemoteException;
 import android.os.SystemClock;
 import android.util.Log;
 
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.BitSet;
 import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.UUID;
 
 import intent.covertchannel.intentencoderdecoder.BitstringEncoder;
+import intent.covertchannel.intentencoderdecoder.ChannelConfig;
 import intent.covertchannel.intentencoderdecoder.EncodingScheme;
 import intent.covertchannel.intentencoderdecoder.EncodingUtils;
 
+/**
+ * Runs the throughput test matrix in the background: every test runs on the
+ * service's own thread, along with the handling of the receiver's
+ * acknowledgements and end times, so the UI only starts a sweep and
+ * subscribes to its progress (see {@link ProgressListener}).
+ *
+ * Between tests the service waits for the receiver to report that it has
+ * caught up (see {@link CoolDown}) rather than for a fixed time.
+ */
 public class ThroughputEvaluationService extends Service {
     private final IBinder mBinder = new MessageBinder();
 
     private static final String TAG = EncodingUtils.TRACE_TAG;
 
+    private static final String REPORT_TAG = "throughput.evaluation.report";
 
+    // The longest wait between tests, for a receiver which does not report being idle (the fixed wait which the
+    // cool-down replaced)
+    static final long MAX_COOL_DOWN_MILLIS = 5000;
 
+    // The service which the carriers and control Intents are sent to
+    private static final ComponentName RECEIVER_COMPONENT = new ComponentName("covertchannel.intent.receiver", "covertchannel.intent.receiver.MessageReceiver");
 
-    public void initiateTest(Intent intent) {
-        // TODO: implement and use
+    // The test matrix is package-private so that ChannelConfigurationSweepTest covers exactly these configurations
+    // TODO: Prune any overly-large message sizes (or add more if possible)
+    // TODO: Cleanup
+    static final int[] THROUGHPUT_TEST_MESSAGE_SIZES_IN_BYTES = {256, 1024, 2048};//,  2048, 8192, 16384, 32768, 65536};//, 131072, 262144, 524288, 1048576, 2097152, 4194304, 8388608, 16777216};
+    //{256, 512, 1024, 2048, 4096, 8192};//, 16384, 32768, 65536, 131072, 262144, 524288, 1048576, 2097152, 4194304, 8388608, 16777216};
+
+    static final int[] BASE_VALUE_COUNTS = {EncodingScheme.NUM_BASE_VALUES};
+
+    static final int[] EXPANSION_CODE_COUNTS =
+            {0,
+                    1,
+                    2,
+                    (EncodingScheme.NUM_BASE_VALUES * 1) + 1, // 21 + 1 = 22
+                    //(EncodingScheme.NUM_BASE_VALUES * 5) + 1, // 105 + 1 = 106
+            };
+
+    static final int[] ACTION_STRING_COUNTS = {1, 25, 100};//{1, 5, 25, 75, 100};
+
+    static final int[] PACKING_MODES = {BitstringEncoder.PACKING_MODE_GREEDY, BitstringEncoder.PACKING_MODE_MIXED_RADIX};
+
+    // One startService() call per carrier, or batches of carriers sent through the receiver's Messenger
+    static final int DELIVERY_MODE_START_SERVICE = 0;
+    static final int DELIVERY_MODE_MESSENGER_BATCH = 1;
+
+    static final int[] DELIVERY_MODES = {DELIVERY_MODE_START_SERVICE, DELIVERY_MODE_MESSENGER_BATCH};
+
+    // Carriers which DELIVERY_MODE_START_SERVICE sends ahead of the receiver's (cumulative) acknowledgements; a window
+    // of one carrier is stop-and-wait. Batches are always sent one at a time.
+    static final int STOP_AND_WAIT_WINDOW_SIZE = 1;
+    static final int[] WINDOW_SIZES = {STOP_AND_WAIT_WINDOW_SIZE, 4, 16};
+
+    // Fraction of the carriers which DELIVERY_MODE_START_SERVICE deliberately does not send the first time (as if they
+    // had been lost), so that the receiver's NACKs and the retransmissions are part of the measurement
+    static final double NO_LOSS = 0.0;
+    static final double[] LOSS_RATES = {NO_LOSS, 0.05};
+
+    // Well under the 1 MB Binder transaction buffer, which every transaction in flight to the receiver's process shares
+    static final int MAX_BATCH_BYTES = 128 * 1024;
+
+    private static final int NUM_TEST_REPETITIONS = 5;
+
+    // The autotuner measures each configuration fewer times than the matrix, with the largest message, the deepest
+    // window and no loss (see ChannelConfigAutotuner)
+    private static final int NUM_AUTOTUNE_REPETITIONS = 2;
+
+    /**
+     * Progress of a sweep (or an autotune). Always called on the main thread.
+     */
+    public interface ProgressListener {
+        void onTestRunStarted(int testRunNumber, int numTestRuns, String configurationSummary);
+
+        void onReportUpdated(String report);
+
+        void onSweepCompleted();
+    }
+
+    // Runs the sweep; everything from here down to the listeners is only touched on its thread
+    private HandlerThread engineThread;
+    private Handler engineHandler;
+
+    // The sweep in progress, or null
+    private ThroughputCalculationReceiver currentSweep;
+    private long totalCoolDownMillis;
+    private int numCoolDowns;
+
+    // The receiver's batch delivery Messenger; null until the receiver has been bound
+    private volatile Messenger receiverMessenger;
+
+    private final ServiceConnection batchDeliveryConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder service) {
+            Log.d(TAG, "Bound to the receiver's batch delivery Messenger");
+            receiverMessenger = new Messenger(service);
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            Log.w(TAG, "Lost the receiver's batch delivery Messenger");
+            receiverMessenger = null;
+        }
+    };
+
+    // Only used on the main thread
+    private final Handler mainHandler = new Handler();
+    private final List<ProgressListener> progressListeners = new ArrayList<>();
+    private String latestReport;
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+
+        engineThread = new HandlerThread("ThroughputEvaluation", Process.THREAD_PRIORITY_BACKGROUND);
+        engineThread.start();
+        engineHandler = new Handler(engineThread.getLooper());
+
+        // Bound up front so that the Messenger is available by the time a batched throughput test runs
+        Intent batchDeliveryIntent = new Intent(EncodingUtils.BATCH_DELIVERY_ACTION);
+        batchDeliveryIntent.setComponent(RECEIVER_COMPONENT);
+        bindService(batchDeliveryIntent, batchDeliveryConnection, Context.BIND_AUTO_CREATE);
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        // Started only to keep running while a sweep is in progress without a bound client
+        return START_NOT_STICKY;
     }
 
     @Override
     public IBinder onBind(Intent intent) {
-        // TODO: Figure out what else to do here
-        //handleIntent(intent);
         return mBinder;
     }
 
+    @Override
+    public void onDestroy() {
+        engineThread.quit();
+        unbindService(batchDeliveryConnection);
+        super.onDestroy();
+    }
+
     public class MessageBinder extends Binder {
         public ThroughputEvaluationService getService()
         {
@@ -44,5 +181,1246 @@ public class ThroughputEvaluationService extends Service {
         }
     }
 
+    /**
+     * Registers {@code listener} for the progress of the current and later
+     * sweeps, passing it the latest report straight away if there is one.
+     * Must be called on the main thread.
+     */
+    public void addProgressListener(ProgressListener listener) {
+        progressListeners.add(listener);
+        if(latestReport != null) {
+            listener.onReportUpdated(latestReport);
+        }
+    }
+
+    public void removeProgressListener(ProgressListener listener) {
+        progressListeners.remove(listener);
+    }
+
+    /**
+     * Clears the receiver's message store and runs the whole test matrix,
+     * unless a sweep is already in progress. Returns straight away.
+     */
+    public void initiateTest() {
+        // Keeps the service (and the sweep) alive if the client unbinds; stopped once the sweep is complete
+        startService(new Intent(this, ThroughputEvaluationService.class));
+
+        engineHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if(currentSweep != null) {
+                    Log.w(TAG, "Attempt to start a throughput test while another one was already in progress");
+                    return;
+                }
+
+                Log.d(TAG, "Telling the receiver to clear its message store");
+                Intent resetMessageStoreIntent = new Intent();
+                resetMessageStoreIntent.setAction(EncodingUtils.CLEAR_MESSAGE_STORE_ACTION);
+                resetMessageStoreIntent.setComponent(RECEIVER_COMPONENT);
+                startService(resetMessageStoreIntent);
+
+                performThroughputTest();
+            }
+        });
+    }
+
+    /**
+     * Clears the receiver's message store and searches for the fastest
+     * channel configuration (see {@link ChannelConfigAutotuner}), unless a
+     * sweep is already in progress. Returns straight away.
+     */
+    public void initiateAutotune() {
+        startService(new Intent(this, ThroughputEvaluationService.class));
+
+        engineHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if(currentSweep != null) {
+                    Log.w(TAG, "Attempt to start autotuning while a throughput test was already in progress");
+                    return;
+                }
+
+                Log.d(TAG, "Telling the receiver to clear its message store");
+                Intent resetMessageStoreIntent = new Intent();
+                resetMessageStoreIntent.setAction(EncodingUtils.CLEAR_MESSAGE_STORE_ACTION);
+                resetMessageStoreIntent.setComponent(RECEIVER_COMPONENT);
+                startService(resetMessageStoreIntent);
+
+                ChannelConfigAutotuner autotuner = new ChannelConfigAutotuner(getSharedPreferences(ChannelConfigAutotuner.PREFERENCES_NAME, MODE_PRIVATE));
+                startSweep(new ThroughputCalculationReceiver(NUM_AUTOTUNE_REPETITIONS, autotuner));
+            }
+        });
+    }
+
+    // TODO: Cleanup
+    public class TestRunEntry {//} implements Runnable {
+        private int numMessageBytes;
+        private int numBaseValues;
+        private int numExpansionCodes;
+        private int numActions;
+        private int numUniqueValues;
+        private int packingMode;
+        private int deliveryMode;
+        private int windowSize;
+        private double lossRate;
+        private String message; // Redundant with the numMessageBytes
+        private int numCarriers;
+        private int numDataKeys;
+        //private Long elapsedTime;
+        private Double startTime;
+        private Double endTime;
+        private double persistenceTimeMillis;
+        private double receiverTimeMillis;
+        private long senderNanos;
+        private long testRunId;
+        private List<Intent> testMessageIntents;
+        private int nextCarrier;
+        private int numAcknowledgedCarriers;
+        private BitSet acknowledgedCarriers;
+        private Random lossGenerator;
+        private int numTransmissions;
+        private int numRetransmissions;
+        private int numDroppedCarriers;
+        private List<ArrayList<Intent>> testMessageBatches;
+        private BroadcastReceiver acknowledgementReceiver;
+        private PayloadPreEncoder.EncodedPayload encodedPayload;
+        private Messenger batchReplyMessenger;
+
+        public TestRunEntry(int numMessageBytes, int numBaseValues, int numExpansionCodes, int numActions, int numUniqueValues, int packingMode, int deliveryMode, int windowSize, double lossRate, String message) {
+            testRunId = UUID.randomUUID().getLeastSignificantBits();
+            testMessageIntents = new ArrayList<>();
+            acknowledgedCarriers = new BitSet();
+            lossGenerator = new Random(testRunId);
+
+            this.numMessageBytes = numMessageBytes;
+            this.numBaseValues = numBaseValues;
+            this.numExpansionCodes = numExpansionCodes;
+            this.numActions = numActions;
+            this.numUniqueValues = numUniqueValues;
+            this.packingMode = packingMode;
+            this.deliveryMode = deliveryMode;
+            this.windowSize = windowSize;
+            this.lossRate = lossRate;
+            this.message = message;
+            this.numCarriers = 0;
+            this.numDataKeys = 0;
+            //this.elapsedTime = null;
+            this.startTime = null;
+            this.endTime = null;
+            this.acknowledgementReceiver = null;
+        }
+
+        public long getTestRunId() {
+            return testRunId;
+        }
+
+        public void setEndTime(double endTime) {
+            if(acknowledgementReceiver != null) {
+                unregisterReceiver(acknowledgementReceiver);
+                acknowledgementReceiver = null;
+            }
+
+            this.endTime = endTime;
+        }
+
+        public void setPersistenceTimeMillis(double persistenceTimeMillis) {
+            this.persistenceTimeMillis = persistenceTimeMillis;
+        }
+
+        /**
+         * @return The time the receiver spent storing the message's segments.
+         */
+        public double getPersistenceTimeMillis() {
+            return persistenceTimeMillis;
+        }
+
+        /**
+         * @return The fraction of the elapsed time which the receiver spent
+         * storing the message's segments.
+         */
+        public double getPersistenceFraction() {
+            return persistenceTimeMillis / getElapsedTimeMillis();
+        }
+
+        public void setReceiverTimeMillis(double receiverTimeMillis) {
+            this.receiverTimeMillis = receiverTimeMillis;
+        }
+
+        /**
+         * @return The part of the elapsed time during which the receiver was
+         * processing segments.
+         */
+        public double getReceiverTimeMillis() {
+            return receiverTimeMillis;
+        }
+
+        /**
+         * @return The part of the elapsed time spent sending segments and
+         * handling their acknowledgements on this side.
+         */
+        public double getSenderTimeMillis() {
+            return senderNanos / 1e6;
+        }
+
+        /**
+         * @return The rest of the elapsed time, i.e. Intent delivery in both
+         * directions, or {@link Double#NaN} for window sizes above
+         * {@link #STOP_AND_WAIT_WINDOW_SIZE}: the sender then sends while the
+         * receiver is processing earlier segments, so their times overlap and
+         * do not split the elapsed time.
+         */
+        public double getTransportTimeMillis() {
+            if(windowSize != STOP_AND_WAIT_WINDOW_SIZE) {
+                return Double.NaN;
+            }
+
+            return Math.max(0.0, getElapsedTimeMillis() - getSenderTimeMillis() - getReceiverTimeMillis());
+        }
+
+        private void sendSegment(Intent encodedIntent) {
+            long sendStartTime = System.nanoTime();
+            Log.d(TAG, "Starting service with Intent with action of " + encodedIntent.getAction());
+            startService(encodedIntent);
+            senderNanos += System.nanoTime() - sendStartTime;
+        }
+
+        private void sendBatch(ArrayList<Intent> batch) {
+            long sendStartTime = System.nanoTime();
+            Message batchMessage = Message.obtain(null, EncodingUtils.MSG_DELIVER_CARRIERS);
+            batchMessage.getData().putParcelableArrayList(EncodingUtils.CARRIERS_KEY, batch);
+            batchMessage.replyTo = batchReplyMessenger;
+
+            Log.d(TAG, "Sending batch of " + batch.size() + " carriers");
+            try {
+                receiverMessenger.send(batchMessage);
+            } catch(RemoteException e) {
+                throw new RuntimeException("Could not send a carrier batch to the receiver", e);
+            }
+
+            senderNanos += System.nanoTime() - sendStartTime;
+        }
+
+        public boolean hasBeenCompleted() {
+            return (startTime != null && endTime != null);
+            //return elapsedTime != null;
+        }
+
+        public double getElapsedTimeMillis() {
+            return Math.abs(endTime - startTime);
+            //return elapsedTime;
+        }
+
+        /**
+         * @return The goodput: message bits delivered per second.
+         */
+        public double getBitsPerSecond() {
+            return (numMessageBytes * 8 * 1000) / getElapsedTimeMillis();
+        }
+
+        /**
+         * @return The carrier bits sent per second, counting each
+         * retransmission and each dropped carrier.
+         */
+        public double getRawBitsPerSecond() {
+            return (getBitsPerCarrier() * numTransmissions * 1000) / getElapsedTimeMillis();
+        }
+
+        public int getNumRetransmissions() {
+            return numRetransmissions;
+        }
+
+        public int getNumCarriers() {
+            return numCarriers;
+        }
+
+        /**
+         * @return The number of message bits sent per carrier Intent.
+         */
+        public double getBitsPerCarrier() {
+            return numCarriers == 0 ? 0.0 : ((double) numMessageBytes * 8) / numCarriers;
+        }
+
+        /**
+         * @return The number of message bits sent per (non-metadata) Bundle key.
+         */
+        public double getBitsPerKey() {
+            return numDataKeys == 0 ? 0.0 : ((double) numMessageBytes * 8) / numDataKeys;
+        }
+
+        /**
+         * Sets the carriers to send, encoded before the test (see
+         * {@link PayloadPreEncoder}).
+         */
+        public void setEncodedPayload(PayloadPreEncoder.EncodedPayload encodedPayload) {
+            this.encodedPayload = encodedPayload;
+        }
+
+        /**
+         * @return The message bits encoded per second, apart from sending them.
+         */
+        public double getCodecBitsPerSecond() {
+            return (numMessageBytes * 8 * 1000) / encodedPayload.getEncodeMillis();
+        }
+
+        public String getTestConfigurationSummary() {
+            StringBuilder strBldr = new StringBuilder();
+            strBldr.append("\tNumber of message bytes: " + numMessageBytes + "\n");
+            strBldr.append("\tNumber of base values: " + numBaseValues + "\n");
+            strBldr.append("\tNumber of expansion codes: " + numExpansionCodes + "\n");
+            strBldr.append("\tNumber of actions: " + numActions + "\n");
+            strBldr.append("\tNumber of unique values: " + numUniqueValues + "\n");
+            strBldr.append("\tPacking mode: " + packingModeName(packingMode) + "\n");
+            strBldr.append("\tDelivery mode: " + deliveryModeName(deliveryMode) + "\n");
+            strBldr.append("\tWindow size: " + windowSize + "\n");
+            strBldr.append("\tLoss rate: " + lossRate + "\n");
+            //strBldr.append("\tMessage: " + message + "\n");
+
+            return strBldr.toString();
+        }
+
+        public String toString() {
+            StringBuilder strBldr = new StringBuilder();
+            strBldr.append("Test Run Information:\n");
+            strBldr.append(this.getTestConfigurationSummary());
+            strBldr.append("\tStart time: " + startTime + "\n");
+            strBldr.append("\tEnd time: " + endTime + "\n");
+
+            if(this.hasBeenCompleted()) {
+                strBldr.append("\tElapsed time: " + this.getElapsedTimeMillis() + " milliseconds\n");
+                strBldr.append("\tBits per Second: " + this.getBitsPerSecond() + "\n");
+                strBldr.append("\tRaw bits per Second: " + this.getRawBitsPerSecond() + "\n");
+                strBldr.append("\tDropped carriers: " + numDroppedCarriers + "\n");
+                strBldr.append("\tRetransmissions: " + this.getNumRetransmissions() + "\n");
+                strBldr.append("\tCarriers: " + this.getNumCarriers() + "\n");
+                strBldr.append("\tBits per Carrier: " + this.getBitsPerCarrier() + "\n");
+                strBldr.append("\tBits per Key: " + this.getBitsPerKey() + "\n");
+                strBldr.append("\tEncode time (before the test): " + encodedPayload.getEncodeMillis() + " milliseconds\n");
+                strBldr.append("\tEncode allocation: " + encodedPayload.getAllocatedBytes() + " bytes\n");
+                strBldr.append("\tCodec bits per Second: " + this.getCodecBitsPerSecond() + "\n");
+                strBldr.append("\tPersistence time: " + this.getPersistenceTimeMillis() + " milliseconds (" + (this.getPersistenceFraction() * 100) + "% of elapsed)\n");
+                strBldr.append("\tSender time: " + this.getSenderTimeMillis() + " milliseconds\n");
+                strBldr.append("\tReceiver time: " + this.getReceiverTimeMillis() + " milliseconds\n");
+                if(windowSize == STOP_AND_WAIT_WINDOW_SIZE) {
+                    strBldr.append("\tTransport time: " + this.getTransportTimeMillis() + " milliseconds\n");
+                }
+            }
+
+            return strBldr.toString();
+        }
+
+
+        // TODO: Cleanup
+        //@Override
+        //public void run() {
+        public void runTest() {
+            //Log.d(TAG, "Running test case with " + this.toString());
+
+            if(deliveryMode == DELIVERY_MODE_START_SERVICE) {
+                configureReceiver(ThroughputEvaluationService.this, numBaseValues, numExpansionCodes, numActions, packingMode, encodedPayload.getStreamId(), testRunId);
+            }
+
+            // Encoded before the sweep, so that encoding is neither part of the test nor of the setup between tests;
+            // copied since batched delivery adds the configuration Intent to the list
+            testMessageIntents.clear();
+            testMessageIntents.addAll(encodedPayload.getCarriers());
+            numCarriers = encodedPayload.getNumCarriers();
+            numDataKeys = encodedPayload.getNumDataKeys();
+
+            if(deliveryMode == DELIVERY_MODE_MESSENGER_BATCH) {
+                runBatchedTest();
+                return;
+            }
+
+            IntentFilter filter = new IntentFilter();
+            filter.addAction(EncodingUtils.ACKNOWLEDGE_MESSAGE_SEGMENT_ACTION);
+            filter.addAction(EncodingUtils.NEGATIVE_ACKNOWLEDGE_MESSAGE_SEGMENTS_ACTION);
+
+            if(this.acknowledgementReceiver != null) {
+                unregisterReceiver(this.acknowledgementReceiver);
+                this.acknowledgementReceiver = null;
+            }
+
+            this.acknowledgementReceiver = new BroadcastReceiver() {
+                @Override
+                public void onReceive(Context context, Intent intent) {
+                    if(intent.getLongExtra(EncodingUtils.TEST_ID_KEY, EncodingUtils.DEFAULT_TEST_ID) != testRunId) {
+                        // Left over from an earlier test
+                        return;
+                    }
+
+                    // The carriers are sent in segment order, so the cumulative acknowledgement covers the carriers
+                    // before it and the bitmap the ones received after a gap; without them, each acknowledgement
+                    // stands for the next carrier
+                    if(intent.hasExtra(EncodingUtils.HIGHEST_CONTIGUOUS_SEGMENT_KEY)) {
+                        int highestContiguousSegment = intent.getIntExtra(EncodingUtils.HIGHEST_CONTIGUOUS_SEGMENT_KEY, -1);
+                        byte[] receivedSegments = intent.getByteArrayExtra(EncodingUtils.RECEIVED_SEGMENTS_KEY);
+                        for(int carrier = numAcknowledgedCarriers; carrier < nextCarrier; carrier++) {
+                            if(EncodingUtils.isSegmentReceived(highestContiguousSegment, receivedSegments, carrier)) {
+                                acknowledgedCarriers.set(carrier);
+                            }
+                        }
+                    } else {
+                        acknowledgedCarriers.set(numAcknowledgedCarriers);
+                    }
+
+                    numAcknowledgedCarriers = acknowledgedCarriers.nextClearBit(numAcknowledgedCarriers);
+
+                    if(EncodingUtils.NEGATIVE_ACKNOWLEDGE_MESSAGE_SEGMENTS_ACTION.equals(intent.getAction())) {
+                        retransmitUnacknowledgedCarriers();
+                    }
+
+                    // Stays registered until the receiver reports the end time, since carriers may still need resending
+                    fillWindow();
+                }
+            };
+
+            registerReceiver(acknowledgementReceiver, filter, null, engineHandler);
+
+            this.senderNanos = 0;
+            this.nextCarrier = 0;
+            this.numAcknowledgedCarriers = 0;
+            this.acknowledgedCarriers.clear();
+            this.numTransmissions = 0;
+            this.numRetransmissions = 0;
+            this.numDroppedCarriers = 0;
+            this.startTime = EncodingUtils.getTimeMillisAccurate();
+            fillWindow();
+        }
+
+        /**
+         * Sends carriers until {@link #windowSize} of them are waiting to be
+         * acknowledged, or there are none left to send.
+         */
+        private void fillWindow() {
+            while(nextCarrier < testMessageIntents.size() && nextCarrier - numAcknowledgedCarriers < windowSize) {
+                numTransmissions++;
+                if(lossRate > NO_LOSS && lossGenerator.nextDouble() < lossRate) {
+                    // Left for the receiver to NACK
+                    Log.d(TAG, "Dropping message segment " + nextCarrier + " for test " + testRunId);
+                    numDroppedCarriers++;
+                } else {
+                    Log.d(TAG, "Sending message segment " + nextCarrier + " for test " + testRunId);
+                    sendSegment(testMessageIntents.get(nextCarrier));
+                }
+
+                nextCarrier++;
+            }
+        }
+
+        /**
+         * Resends (selective repeat) each carrier in the window which the
+         * receiver has not acknowledged, once it has NACKed the message.
+         * Retransmissions are never dropped.
+         */
+        private void retransmitUnacknowledgedCarriers() {
+            for(int carrier = acknowledgedCarriers.nextClearBit(numAcknowledgedCarriers); carrier < nextCarrier; carrier = acknowledgedCarriers.nextClearBit(carrier + 1)) {
+                Log.d(TAG, "Resending message segment " + carrier + " for test " + testRunId);
+                numTransmissions++;
+                numRetransmissions++;
+                sendSegment(testMessageIntents.get(carrier));
+            }
+        }
+
+        /**
+         * Sends the carriers in as few Messenger transactions as fit under
+         * {@link #MAX_BATCH_BYTES}, sending each batch once the receiver has
+         * acknowledged the previous one.
+         */
+        private void runBatchedTest() {
+            if(receiverMessenger == null) {
+                throw new RuntimeException("Not bound to the receiver's batch delivery Messenger");
+            }
+
+            // Sent in the first batch, since a separately started configuration Intent could arrive after it
+            testMessageIntents.add(0, createChannelConfigurationIntent(numBaseValues, numExpansionCodes, numActions, packingMode, encodedPayload.getStreamId(), testRunId));
+            testMessageBatches = splitIntoBatches(testMessageIntents, MAX_BATCH_BYTES);
+            testMessageIntents.clear();
+
+            Log.d(TAG, "Sending " + numCarriers + " carriers for test " + testRunId + " in " + testMessageBatches.size() + " batches");
+
+            batchReplyMessenger = new Messenger(new Handler(engineThread.getLooper()) {
+                @Override
+                public void handleMessage(Message msg) {
+                    if(msg.what != EncodingUtils.MSG_CARRIERS_ACKNOWLEDGED) {
+                        super.handleMessage(msg);
+                    } else if(!testMessageBatches.isEmpty()) {
+                        Log.d(TAG, "Sending next carrier batch for test " + testRunId);
+                        sendBatch(testMessageBatches.remove(0));
+                    } else {
+                        Log.d(TAG, "Test " + testRunId + " is complete");
+                    }
+                }
+            });
+
+            this.senderNanos = 0;
+            this.numTransmissions = numCarriers;
+            this.startTime = EncodingUtils.getTimeMillisAccurate();
+            sendBatch(testMessageBatches.remove(0));
+        }
+
+        /* TODO: Remove
+        public void setElapsedTime(long elapsedTime) {
+            this.elapsedTime = elapsedTime;
+        }
+        */
+    }
+
+
+    // TODO: Need a bitstring and original encoding version
+    private class TestRun {
+        private int numRepitions;
+        private List<TestRunEntry> testsToRun;
+        private List<TestRunEntry> completedTests;
+        private TestRunEntry currentTest;
+        private int numMessageBytes;
+        private int numBaseValues;
+        private int numExpansionCodes;
+        private int numActions;
+        private int numUniqueValues;
+        private int packingMode;
+        private int deliveryMode;
+        private int windowSize;
+        private double lossRate;
+        private String message;
+        private PayloadPreEncoder.EncodedPayload encodedPayload;
+
+        public TestRun(int numRepitions, int numMessageBytes, int numBaseValues, int numExpansionCodes, int numActions, int packingMode, int deliveryMode, int windowSize, double lossRate, String message) {
+            this.numRepitions = numRepitions;
+            this.testsToRun = new ArrayList<>();
+            this.completedTests = new ArrayList<>();
+            this.numMessageBytes = numMessageBytes;
+            this.numBaseValues = numBaseValues;
+            this.numExpansionCodes = numExpansionCodes;
+            this.numActions = numActions;
+            this.packingMode = packingMode;
+            this.deliveryMode = deliveryMode;
+            this.windowSize = windowSize;
+            this.lossRate = lossRate;
+            this.message = message;
+
+            this.numUniqueValues = numBaseValues * (numExpansionCodes + 1) * numActions;
+
+            currentTest = null;
+
+            for(int i = 0; i < numRepitions; i++) {
+                testsToRun.add(new TestRunEntry(numMessageBytes, numBaseValues, numExpansionCodes, numActions, numUniqueValues, packingMode, deliveryMode, windowSize, lossRate, message));
+            }
+        }
+
+        public void startTestRun() {
+            if(currentTest != null) {
+                Log.w(TAG, "Attempt to start a test while another test was already in progress");
+                return;
+            }
+
+            if(!testsToRun.isEmpty()) {
+                currentTest = testsToRun.remove(0);
+
+                Log.d(TAG, "Starting test: " + currentTest.getTestConfigurationSummary());
+                Log.d(REPORT_TAG, "Starting test: " + currentTest.getTestConfigurationSummary());
+
+                // TODO: Cleanup
+                currentTest.runTest();
+                //new Thread(currentTest).start();
+            } else {
+                throw new RuntimeException("Out of tests to run");
+            }
+        }
+
+        public void endTestRun(double endTime, double persistenceTimeMillis, double receiverTimeMillis) {
+            //public void endTestRun(long elapsedTime) {
+            // TODO: Cleanup
+            currentTest.setEndTime(endTime);
+            currentTest.setPersistenceTimeMillis(persistenceTimeMillis);
+            currentTest.setReceiverTimeMillis(receiverTimeMillis);
+            //currentTest.setElapsedTime(elapsedTime);
+
+            String testSummary = currentTest.toString();
+            Log.d(TAG, "Finished test: " + testSummary);
+            Log.d(REPORT_TAG, "Finished test: " + testSummary);
+
+            double currentBitsPerSecond = currentTest.getBitsPerSecond();
+            if(currentBitsPerSecond == Double.POSITIVE_INFINITY || currentBitsPerSecond == Double.NEGATIVE_INFINITY) {
+                // Re-run the test
+                testsToRun.add(0, currentTest);
+            } else {
+                completedTests.add(currentTest);
+            }
+
+            currentTest = null;
+        }
+
+        public boolean isComplete() {
+            return testsToRun.isEmpty() && currentTest == null;
+        }
+
+        private double getAverageThroughput() {
+            if(!isComplete()) {
+                throw new RuntimeException("Tried to get average throughput before test was complete");
+            }
+
+            double combinedBitsPerSecond = 0.0;
+            for(TestRunEntry testRunEntry: completedTests) {
+                combinedBitsPerSecond += testRunEntry.getBitsPerSecond();
+            }
+
+            return combinedBitsPerSecond / numRepitions;
+        }
+
+        private double getAverageRawThroughput() {
+            double combinedRawBitsPerSecond = 0.0;
+            for(TestRunEntry testRunEntry: completedTests) {
+                combinedRawBitsPerSecond += testRunEntry.getRawBitsPerSecond();
+            }
+
+            return completedTests.isEmpty() ? 0.0 : combinedRawBitsPerSecond / completedTests.size();
+        }
+
+        private double getAverageRetransmissions() {
+            double combinedRetransmissions = 0.0;
+            for(TestRunEntry testRunEntry: completedTests) {
+                combinedRetransmissions += testRunEntry.getNumRetransmissions();
+            }
+
+            return completedTests.isEmpty() ? 0.0 : combinedRetransmissions / completedTests.size();
+        }
+
+        private double getAveragePersistenceFraction() {
+            double combinedPersistenceFraction = 0.0;
+            for(TestRunEntry testRunEntry: completedTests) {
+                combinedPersistenceFraction += testRunEntry.getPersistenceFraction();
+            }
+
+            return completedTests.isEmpty() ? 0.0 : combinedPersistenceFraction / completedTests.size();
+        }
+
+        public String generateTestReport() {
+            if(!isComplete()) {
+                throw new RuntimeException("Tried to generate summary before test was complete");
+            }
+
+            StringBuilder reportBuilder = new StringBuilder();
+            reportBuilder.append("Test Report:\n");
+            reportBuilder.append(completedTests.get(0).getTestConfigurationSummary());
+            reportBuilder.append("\n");
+            reportBuilder.append("Average Throughput: " + getAverageThroughput() + " bits per second\n");
+            reportBuilder.append("Average Raw Throughput: " + getAverageRawThroughput() + " bits per second\n");
+            reportBuilder.append("Average Retransmissions: " + getAverageRetransmissions() + "\n");
+            reportBuilder.append("Codec Throughput: " + getCodecThroughput() + " bits per second (" + getEncodeMillis() + " ms and " + getEncodeAllocatedBytes() + " bytes to encode)\n");
+            reportBuilder.append("Bits per Carrier: " + getBitsPerCarrier() + "\n");
+            reportBuilder.append("Bits per Key: " + getBitsPerKey() + "\n");
+            reportBuilder.append("Time spent on receiver persistence: " + (getAveragePersistenceFraction() * 100) + "%\n");
+            reportBuilder.append("\n\n");
+
+            return reportBuilder.toString();
+        }
+
+        public int getNumMessageBytes() {
+            return numMessageBytes;
+        }
+
+        public int getNumBaseValues() {
+            return numBaseValues;
+        }
+
+        public int getNumExpansionCodes() {
+            return numExpansionCodes;
+        }
+
+        public int getNumActions() {
+            return numActions;
+        }
+
+        public int getNumUniqueValues() {
+            return numUniqueValues;
+        }
+
+        public int getPackingMode() {
+            return packingMode;
+        }
+
+        public int getDeliveryMode() {
+            return deliveryMode;
+        }
+
+        public int getWindowSize() {
+            return windowSize;
+        }
+
+        public double getLossRate() {
+            return lossRate;
+        }
+
+        /**
+         * @return Whether the other test run sent the same message with the
+         * same channel configuration, delivery mode and loss rate (i.e.
+         * differs from this one at most in its window size).
+         */
+        public boolean hasSameConfiguration(TestRun other) {
+            return numMessageBytes == other.numMessageBytes && numBaseValues == other.numBaseValues &&
+                    numExpansionCodes == other.numExpansionCodes && numActions == other.numActions &&
+                    packingMode == other.packingMode && deliveryMode == other.deliveryMode &&
+                    lossRate == other.lossRate;
+        }
+
+        // The carrier layout is deterministic for a configuration, so any completed repetition can be used
+        public int getNumCarriers() {
+            return completedTests.isEmpty() ? 0 : completedTests.get(0).getNumCarriers();
+        }
+
+        public double getBitsPerCarrier() {
+            return completedTests.isEmpty() ? 0.0 : completedTests.get(0).getBitsPerCarrier();
+        }
+
+        public double getBitsPerKey() {
+            return completedTests.isEmpty() ? 0.0 : completedTests.get(0).getBitsPerKey();
+        }
+
+        public long getCurrentTestId() {
+            return currentTest == null ? EncodingUtils.DEFAULT_TEST_ID : currentTest.getTestRunId();
+        }
+
+        public ChannelConfig getChannelConfig() {
+            return new ChannelConfig(numBaseValues, numExpansionCodes, EncodingUtils.ACTIONS.subList(0, numActions), EncodingScheme.BUILD_VERSION, packingMode);
+        }
+
+        public String getMessage() {
+            return message;
+        }
+
+        /**
+         * Sets the carriers which every repetition sends; the encode metrics
+         * are those of this payload.
+         */
+        public void setEncodedPayload(PayloadPreEncoder.EncodedPayload encodedPayload) {
+            this.encodedPayload = encodedPayload;
+            for(TestRunEntry testRunEntry: testsToRun) {
+                testRunEntry.setEncodedPayload(encodedPayload);
+            }
+        }
+
+        public double getEncodeMillis() {
+            return encodedPayload == null ? 0.0 : encodedPayload.getEncodeMillis();
+        }
+
+        public long getEncodeAllocatedBytes() {
+            return encodedPayload == null ? 0 : encodedPayload.getAllocatedBytes();
+        }
+
+        /**
+         * @return The message bits encoded per second, i.e. the throughput of
+         * the codec alone (as opposed to the goodput of sending the message).
+         */
+        public double getCodecThroughput() {
+            return encodedPayload == null ? 0.0 : (numMessageBytes * 8 * 1000) / encodedPayload.getEncodeMillis();
+        }
+
+        public String getCurrentTestConfigurationSummary() {
+            return currentTest == null ? "" : currentTest.getTestConfigurationSummary();
+        }
+    }
+
+    // Note: This class assumes it has been registered as a receiver before it is constructed
+    private class ThroughputCalculationReceiver extends BroadcastReceiver {
+        // TODO: Cleanup
+        private int numRepitions;
+        private List<TestRun> pendingTestRuns;
+        private List<TestRun> completedTests;
+        //private Map<Long, TestRun> completedTestsByTestId;
+        private TestRun currentTestRun;
+
+        // Chooses the test runs one round at a time when autotuning; null when running the test matrix
+        private ChannelConfigAutotuner autotuner;
+        private int autotuneMessageBytes;
+        private String autotuneMessage;
+
+        // Every test of the sweep is sent on this stream, so that its segments are never reassembled with another
+        // sender's (or an earlier sweep's)
+        private final long streamId = EncodingUtils.newStreamId();
+
+        // TODO: Run tests for both encoding strategies
+        public ThroughputCalculationReceiver(int numRepitions, int[] throughputTestMessageSizesInBytes, int[] baseValueCounts, int[] expansionCodeCounts, int[] actionStringCounts, int[] packingModes, int[] deliveryModes, int[] windowSizes, double[] lossRates) {
+            this.numRepitions = numRepitions;
+            pendingTestRuns = new ArrayList<>();
+            // TODO: Cleanup
+            completedTests = new ArrayList<>();
+            //completedTestsByTestId = new HashMap<>();
+            currentTestRun = null;
+
+            for (int numMessageBytes: throughputTestMessageSizesInBytes) {
+                final String message = readMessage(numMessageBytes);
+
+                for(int numBaseValues: baseValueCounts) {
+                    for (int numExpansionCodes: expansionCodeCounts) {
+                        for (int numActions: actionStringCounts) {
+                            for (int packingMode: packingModes) {
+                                for (int deliveryMode: deliveryModes) {
+                                    for (int windowSize: windowSizes) {
+                                        for (double lossRate: lossRates) {
+                                            if(deliveryMode == DELIVERY_MODE_MESSENGER_BATCH && (windowSize != STOP_AND_WAIT_WINDOW_SIZE || lossRate != NO_LOSS)) {
+                                                // Batches are neither windowed nor retransmitted
+                                                continue;
+                                            }
+
+                                            pendingTestRuns.add(new TestRun(numRepitions, numMessageBytes, numBaseValues, numExpansionCodes, numActions, packingMode, deliveryMode, windowSize, lossRate, message));
+                                        }
+                                    }
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        public ThroughputCalculationReceiver(int numRepitions, ChannelConfigAutotuner autotuner) {
+            this.numRepitions = numRepitions;
+            this.autotuner = autotuner;
+            pendingTestRuns = new ArrayList<>();
+            completedTests = new ArrayList<>();
+            currentTestRun = null;
+
+            autotuneMessageBytes = THROUGHPUT_TEST_MESSAGE_SIZES_IN_BYTES[THROUGHPUT_TEST_MESSAGE_SIZES_IN_BYTES.length - 1];
+            autotuneMessage = readMessage(autotuneMessageBytes);
+            addAutotuneRound();
+        }
+
+        /**
+         * Queues a test run for each configuration the autotuner wants
+         * measured next.
+         *
+         * @return Whether there were any.
+         */
+        private boolean addAutotuneRound() {
+            int windowSize = WINDOW_SIZES[WINDOW_SIZES.length - 1];
+            for(ChannelConfigAutotuner.Candidate candidate: autotuner.nextCandidates()) {
+                pendingTestRuns.add(new TestRun(numRepitions, autotuneMessageBytes, candidate.getNumBaseValues(), candidate.getNumExpansionCodes(), candidate.getNumActions(), candidate.getPackingMode(), DELIVERY_MODE_START_SERVICE, windowSize, NO_LOSS, autotuneMessage));
+            }
+
+            return !pendingTestRuns.isEmpty();
+        }
+
+        /**
+         * Encodes the carriers of every pending test run ahead of the timed
+         * tests, once for each message and channel configuration (the window
+         * sizes, loss rates and delivery modes all send the same carriers).
+         */
+        private void preEncodeCarriers() {
+            PayloadPreEncoder preEncoder = new PayloadPreEncoder(RECEIVER_COMPONENT, EncodingUtils.CALCULATE_THROUGHPUT_ACTION_BITSTRING_ENCODING, streamId);
+            for(TestRun testRun: pendingTestRuns) {
+                preEncoder.add(testRun.getChannelConfig(), testRun.getMessage());
+            }
+
+            int numThreads = Runtime.getRuntime().availableProcessors();
+            long startTime = SystemClock.elapsedRealtime();
+            preEncoder.encodeAll(numThreads);
+            Log.d(REPORT_TAG, "Pre-encoded " + preEncoder.size() + " carrier sets on " + numThreads + " threads in " + (SystemClock.elapsedRealtime() - startTime) + " ms (" + preEncoder.getTotalEncodeMillis() + " ms of encoding)");
+
+            for(TestRun testRun: pendingTestRuns) {
+                testRun.setEncodedPayload(preEncoder.get(testRun.getChannelConfig(), testRun.getMessage()));
+            }
+        }
+
+        private void runNextTest() {
+            if(currentTestRun == null) {
+                currentTestRun = pendingTestRuns.remove(0);
+            }
+
+            // TODO: Cleanup
+
+            // Assumes that the fresh test-run entry has at least one repetition to be performed;
+            // will call back to this receiver once the message transmission is complete
+            startCurrentTestRun();
+            //currentTestRun.startTestRun(System.currentTimeMillis());
+            //currentTestRun.startTestRun(new Date().getTime());
+        }
+
+        private void startCurrentTestRun() {
+            currentTestRun.startTestRun();
+
+            int testRunNumber = completedTests.size() + 1;
+            publishTestRunStarted(testRunNumber, testRunNumber + pendingTestRuns.size(), currentTestRun.getCurrentTestConfigurationSummary());
+        }
+
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            //Log.d(TAG, "Received end time acknowledgement from the receiver");
+            //Log.d(REPORT_TAG, "Received end time acknowledgement from the receiver");
+
+            // TODO: Cleanup
+            double endTime = intent.getDoubleExtra(EncodingUtils.END_TIME_KEY, 0.0);
+            long testId = intent.getLongExtra(EncodingUtils.TEST_ID_KEY, EncodingUtils.DEFAULT_TEST_ID);
+            double persistenceTimeMillis = intent.getDoubleExtra(EncodingUtils.PERSISTENCE_TIME_KEY, 0.0);
+            double receiverTimeMillis = intent.getDoubleExtra(EncodingUtils.RECEIVER_TIME_KEY, 0.0);
+            Log.d(TAG, "Received end time of " + endTime + " (" + persistenceTimeMillis + " ms of persistence) for test ID: " + testId);
+            //long elapsedTime = intent.getLongExtra(EncodingUtils.ELAPSED_TIME_KEY, 0);
+            //currentTestRun.endTestRun(elapsedTime);
 
+            //
+
+            if(currentTestRun != null && testId == currentTestRun.getCurrentTestId()) {
+                currentTestRun.endTestRun(endTime, persistenceTimeMillis, receiverTimeMillis);
+
+                if (currentTestRun.isComplete()) {
+                    String completedTestReport = currentTestRun.generateTestReport();
+                    Log.d(REPORT_TAG, "Completed test: " + completedTestReport);
+                    completedTests.add(currentTestRun);
+                    //completedTestsByTestId.put(currentTestRun.get)
+                    updateTestingReport(completedTests);
+
+                    if(autotuner != null) {
+                        autotuner.recordThroughput(new ChannelConfigAutotuner.Candidate(currentTestRun.getNumBaseValues(), currentTestRun.getNumExpansionCodes(), currentTestRun.getNumActions(), currentTestRun.getPackingMode()), currentTestRun.getAverageThroughput());
+                        if(pendingTestRuns.isEmpty() && addAutotuneRound()) {
+                            preEncodeCarriers();
+                        }
+                    }
+
+                    if (pendingTestRuns.isEmpty()) {
+                        currentTestRun = null;
+                        finishSweep();
+                        return;
+                    }
+                    currentTestRun = pendingTestRuns.remove(0);
+                }
+
+                // Lets the receiver catch up (which also lowers the continuous system load) before the next test
+                new CoolDown(testId, new Runnable() {
+                    @Override
+                    public void run() {
+                        // TODO: Cleanup
+                        //currentTestRun.startTestRun(new Date().getTime());
+                        //currentTestRun.startTestRun(System.currentTimeMillis());
+                        startCurrentTestRun();
+                    }
+                }).start();
+            } else {
+                if(currentTestRun == null) {
+                    Log.d(TAG, "Received end time response with a test ID of " + testId + " when no test is ongoing");
+                } else {
+                    Log.d(TAG, "Received end time for a test ID of " + testId + ", which does not match the current test ID: " + currentTestRun.getCurrentTestId());
+                }
+            }
+        }
+
+        private void finishSweep() {
+            unregisterReceiver(this);
+            currentSweep = null;
+
+            Log.d(REPORT_TAG, "Cooled down for " + totalCoolDownMillis + " ms in total over " + numCoolDowns + " cool-downs");
+            if(autotuner != null) {
+                String autotuneReport = autotuner.generateReport();
+                Log.d(REPORT_TAG, autotuneReport);
+                publishReport(autotuneReport + "\n" + generateTestingReport(completedTests));
+            }
+
+            requestReceiverStats();
+            publishSweepCompleted();
+            stopSelf();
+        }
+    }
+
+    /**
+     * Waits between tests until the receiver reports that it is idle (it has
+     * processed, stored and acknowledged everything sent before), or for at
+     * most {@link #MAX_COOL_DOWN_MILLIS} if it does not, then runs the next
+     * test. Runs on the sweep's thread.
+     */
+    private class CoolDown extends BroadcastReceiver implements Runnable {
+        private final long testId;
+        private final Runnable nextTest;
+        private long startTime;
+        private boolean finished;
+
+        // testId identifies the receiver's answer to this cool-down
+        CoolDown(long testId, Runnable nextTest) {
+            this.testId = testId;
+            this.nextTest = nextTest;
+        }
+
+        void start() {
+            startTime = SystemClock.elapsedRealtime();
+            registerReceiver(this, new IntentFilter(EncodingUtils.RECEIVER_IDLE_ACTION), null, engineHandler);
+            engineHandler.postDelayed(this, MAX_COOL_DOWN_MILLIS);
+
+            Intent idleRequestIntent = new Intent();
+            idleRequestIntent.setAction(EncodingUtils.AWAIT_RECEIVER_IDLE_ACTION);
+            idleRequestIntent.putExtra(EncodingUtils.TEST_ID_KEY, testId);
+            idleRequestIntent.setComponent(RECEIVER_COMPONENT);
+            startService(idleRequestIntent);
+        }
+
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if(intent.getLongExtra(EncodingUtils.TEST_ID_KEY, EncodingUtils.DEFAULT_TEST_ID) != testId) {
+                // The answer to an earlier cool-down which timed out
+                return;
+            }
+
+            finish();
+        }
+
+        // Called when the cool-down times out
+        @Override
+        public void run() {
+            Log.w(TAG, "The receiver did not report being idle within " + MAX_COOL_DOWN_MILLIS + " ms");
+            finish();
+        }
+
+        private void finish() {
+            if(finished) {
+                return;
+            }
+
+            finished = true;
+            unregisterReceiver(this);
+            engineHandler.removeCallbacks(this);
+
+            long coolDownMillis = SystemClock.elapsedRealtime() - startTime;
+            totalCoolDownMillis += coolDownMillis;
+            numCoolDowns++;
+            Log.d(TAG, "Cooled down for " + coolDownMillis + " ms");
+
+            nextTest.run();
+        }
+    }
+
+    // Runs on the sweep's thread
+    private void performThroughputTest() {
+        // TODO: Add evaluating the original implementation
+        // TODO: Cleanup
+        ThroughputCalculationReceiver endTimeReceiver = new ThroughputCalculationReceiver(NUM_TEST_REPETITIONS, THROUGHPUT_TEST_MESSAGE_SIZES_IN_BYTES, BASE_VALUE_COUNTS, EXPANSION_CODE_COUNTS, ACTION_STRING_COUNTS, PACKING_MODES, DELIVERY_MODES, WINDOW_SIZES, LOSS_RATES);
+
+        /*
+        // Current throughput: 71.77 bits per second
+        int[] messageSizes = {2048}; //{65536};
+        int[] baseValueCounts = BASE_VALUE_COUNTS;
+        int[] expansionCodeCounts = {22};
+        int[] actionStringCounts = {5};
+
+        ThroughputCalculationReceiver endTimeReceiver = new ThroughputCalculationReceiver(5, messageSizes, baseValueCounts, expansionCodeCounts, actionStringCounts);
+        */
+
+        startSweep(endTimeReceiver);
+    }
+
+    // Runs on the sweep's thread
+    private void startSweep(ThroughputCalculationReceiver endTimeReceiver) {
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(EncodingUtils.SEND_TIME_ACTION);
+        endTimeReceiver.preEncodeCarriers();
+        registerReceiver(endTimeReceiver, filter, null, engineHandler);
+        currentSweep = endTimeReceiver;
+        totalCoolDownMillis = 0;
+        numCoolDowns = 0;
+
+        // Waits for the message store to be cleared, then assumes that there is at least one test to run
+        new CoolDown(EncodingUtils.DEFAULT_TEST_ID, new Runnable() {
+            @Override
+            public void run() {
+                currentSweep.runNextTest();
+            }
+        }).start();
+    }
+
+    private String readMessage(int bytesToSend) {
+        return EncodingUtils.readRawTextFile(this, R.raw.taming_of_the_shrew, bytesToSend);
+    }
+
+    private void publishTestRunStarted(final int testRunNumber, final int numTestRuns, final String configurationSummary) {
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for(ProgressListener listener: progressListeners) {
+                    listener.onTestRunStarted(testRunNumber, numTestRuns, configurationSummary);
+                }
+            }
+        });
+    }
+
+    private void publishReport(final String report) {
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                latestReport = report;
+                for(ProgressListener listener: progressListeners) {
+                    listener.onReportUpdated(report);
+                }
+            }
+        });
+    }
+
+    private void publishSweepCompleted() {
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for(ProgressListener listener: progressListeners) {
+                    listener.onSweepCompleted();
+                }
+            }
+        });
+    }
+    /**
+     * Asks the receiver for its stage latencies and counts, which are logged
+     * to the report once they arrive.
+     */
+    private void requestReceiverStats() {
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(EncodingUtils.SEND_STATS_ACTION);
+        registerReceiver(new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                unregisterReceiver(this);
+
+                Bundle stats = intent.getBundleExtra(EncodingUtils.STATS_KEY);
+                StringBuilder statsBldr = new StringBuilder("Receiver stats:\n");
+                for(String key: new TreeSet<>(stats.keySet())) {
+                    statsBldr.append("\t" + key + ": " + stats.get(key) + "\n");
+                }
+
+                Log.d(REPORT_TAG, statsBldr.toString());
+            }
+        }, filter, null, engineHandler);
+
+        Intent statsRequestIntent = new Intent();
+        statsRequestIntent.setAction(EncodingUtils.DUMP_STATS_ACTION);
+        ComponentName cn = new ComponentName("covertchannel.intent.receiver", "covertchannel.intent.receiver.MessageReceiver");
+        statsRequestIntent.setComponent(cn);
+        startService(statsRequestIntent);
+    }
+
+    /**
+     * Sends the receiver the channel configuration of the carriers which
+     * {@code context} is about to send on {@code streamId}. There is no
+     * acknowledgement to wait for: the receiver handles the Intents started
+     * by one app in the order in which they were started, so the carriers
+     * which follow are decoded with the new configuration.
+     */
+    static void configureReceiver(Context context, int numBaseValues, int numExpansionCodes, int numActions, int packingMode, long streamId, long testId) {
+        Intent channelConfigIntent = createChannelConfigurationIntent(numBaseValues, numExpansionCodes, numActions, packingMode, streamId, testId);
+
+        Log.d(TAG, "Sending Intent to configure stream " + streamId + " channel config values to: base val count: " + numBaseValues + ", expansion code count: " + numExpansionCodes + ", num actions: " + numActions + ", packing mode: " + packingModeName(packingMode) + ", and test ID: " + testId);
+        context.startService(channelConfigIntent);
+    }
+
+    static Intent createChannelConfigurationIntent(int numBaseValues, int numExpansionCodes, int numActions, int packingMode, long streamId, long testId) {
+        Intent channelConfigIntent = new Intent();
+        channelConfigIntent.setAction(EncodingUtils.SET_CHANNEL_CONFIGURATION_ACTION);
+        channelConfigIntent.putExtra(EncodingUtils.NUM_BASE_VALUES_KEY, numBaseValues);
+        channelConfigIntent.putExtra(EncodingUtils.NUM_EXPANSION_CODES_KEY, numExpansionCodes);
+        channelConfigIntent.putExtra(EncodingUtils.NUM_ACTIONS_KEY, numActions);
+        channelConfigIntent.putExtra(EncodingUtils.PACKING_MODE_KEY, packingMode);
+        channelConfigIntent.putExtra(EncodingUtils.TEST_ID_KEY, testId);
+        channelConfigIntent.putExtra(EncodingUtils.STREAM_ID_KEY, streamId);
+        ComponentName cn = new ComponentName("covertchannel.intent.receiver", "covertchannel.intent.receiver.MessageReceiver");
+        channelConfigIntent.setComponent(cn);
+        return channelConfigIntent;
+    }
+
+    /**
+     * Splits carriers into consecutive batches of at most
+     * {@code maxBatchBytes} parcelled bytes each; a carrier larger than that
+     * is sent in a batch of its own.
+     */
+    static List<ArrayList<Intent>> splitIntoBatches(List<Intent> carriers, int maxBatchBytes) {
+        List<ArrayList<Intent>> batches = new ArrayList<>();
+        ArrayList<Intent> batch = new ArrayList<>();
+        int batchBytes = 0;
+        for(Intent carrier: carriers) {
+            int carrierBytes = getParcelledSize(carrier);
+            if(!batch.isEmpty() && batchBytes + carrierBytes > maxBatchBytes) {
+                batches.add(batch);
+                batch = new ArrayList<>();
+                batchBytes = 0;
+            }
+
+            batch.add(carrier);
+            batchBytes += carrierBytes;
+        }
+
+        if(!batch.isEmpty()) {
+            batches.add(batch);
+        }
+
+        return batches;
+    }
+
+    private static int getParcelledSize(Intent carrier) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            carrier.writeToParcel(parcel, 0);
+            return parcel.dataSize();
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    private void updateTestingReport(List<TestRun> completedTests) {
+        String report = generateTestingReport(completedTests);
+        Log.d(TAG, "Current test report:\n\n" + report);
+        publishReport(report);
+    }
+
+    private String generateTestingReport(List<TestRun> completedTests) {
+        StringBuilder reportBldr = new StringBuilder();
+        reportBldr.append("Message Bytes | Num Base Values | Num Ex Codes | Num Actions | Num Unique Vals | Packing | Delivery | Window | Loss | Carriers | Bits per Carrier | Bits per Key | Avg Goodput | Avg Raw Throughput | Codec Throughput | Encode ms | Encode Alloc Bytes | Persistence %\n");
+        for (TestRun testRunInfo : completedTests) {
+            reportBldr.append("" + testRunInfo.getNumMessageBytes() + " | " + testRunInfo.getNumBaseValues() + " | " +
+                    testRunInfo.getNumExpansionCodes() + " | " + testRunInfo.getNumActions() + " | " +
+                    testRunInfo.getNumUniqueValues() + " | " + packingModeName(testRunInfo.getPackingMode()) + " | " +
+                    deliveryModeName(testRunInfo.getDeliveryMode()) + " | " + testRunInfo.getWindowSize() + " | " +
+                    testRunInfo.getLossRate() + " | " + testRunInfo.getNumCarriers() + " | " +
+                    testRunInfo.getBitsPerCarrier() + " | " + testRunInfo.getBitsPerKey() + " | " +
+                    testRunInfo.getAverageThroughput() + " | " + testRunInfo.getAverageRawThroughput() + " | " +
+                    testRunInfo.getCodecThroughput() + " | " + testRunInfo.getEncodeMillis() + " | " +
+                    testRunInfo.getEncodeAllocatedBytes() + " | " + (testRunInfo.getAveragePersistenceFraction() * 100) + "\n");
+        }
+
+        reportBldr.append("\n");
+        appendWindowSizeReport(reportBldr, completedTests);
+
+        return reportBldr.toString();
+    }
+
+    /**
+     * Appends the average throughput for each window size, along with how
+     * many times faster it was than stop-and-wait for the same configurations
+     * (averaged over the configurations which have been tested with both).
+     */
+    private static void appendWindowSizeReport(StringBuilder reportBldr, List<TestRun> completedTests) {
+        reportBldr.append("Window | Test Runs | Avg Throughput | Speedup over Stop-and-Wait\n");
+        for(int windowSize: WINDOW_SIZES) {
+            int numTestRuns = 0;
+            double combinedThroughput = 0.0;
+            int numCompared = 0;
+            double combinedSpeedup = 0.0;
+            for(TestRun testRunInfo: completedTests) {
+                if(testRunInfo.getWindowSize() != windowSize) {
+                    continue;
+                }
+
+                numTestRuns++;
+                combinedThroughput += testRunInfo.getAverageThroughput();
+                for(TestRun stopAndWaitRun: completedTests) {
+                    if(stopAndWaitRun.getWindowSize() == STOP_AND_WAIT_WINDOW_SIZE && stopAndWaitRun.hasSameConfiguration(testRunInfo)) {
+                        combinedSpeedup += testRunInfo.getAverageThroughput() / stopAndWaitRun.getAverageThroughput();
+                        numCompared++;
+                        break;
+                    }
+                }
+            }
+
+            if(numTestRuns > 0) {
+                reportBldr.append("" + windowSize + " | " + numTestRuns + " | " + (combinedThroughput / numTestRuns) + " | " +
+                        (numCompared == 0 ? "n/a" : "" + (combinedSpeedup / numCompared)) + "\n");
+            }
+        }
+    }
+
+    static String packingModeName(int packingMode) {
+        return packingMode == BitstringEncoder.PACKING_MODE_MIXED_RADIX ? "mixed-radix" : "greedy";
+    }
+
+    static String deliveryModeName(int deliveryMode) {
+        return deliveryMode == DELIVERY_MODE_MESSENGER_BATCH ? "messenger-batch" : "startService";
+    }
 }
@@ -0,0 +1,401 @@
+package intent.covertchannel.intentencoderdecoder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+/**
+ * Growable, packed sequence of bits backed by a {@code long[]}. Bits are
+ * stored most-significant-first so that the n-th bit written is the n-th
+ * character of the equivalent '0'/'1' bitstring.
+ *
+ * Writes always append at the end of the buffer (the write cursor is equal
+ * to {@link #length()}); reads consume bits from an independent read cursor
+ * (see {@link #position()}).
+ */
+public class BitBuffer {
+    private static final int BITS_PER_WORD = 64;
+    private static final int DEFAULT_CAPACITY_BITS = 256;
+
+    // Bytes copied at a time when writing to a stream or channel
+    private static final int WRITE_CHUNK_BYTES = 8192;
+
+    private long[] words;
+    private int length;
+    private int position;
+
+    public BitBuffer() {
+        this(DEFAULT_CAPACITY_BITS);
+    }
+
+    public BitBuffer(int initialCapacityBits) {
+        words = new long[Math.max(1, wordCount(initialCapacityBits))];
+        length = 0;
+        position = 0;
+    }
+
+    /**
+     * Creates a buffer holding the eight bits of each byte in {@code bytes}.
+     */
+    public static BitBuffer fromBytes(byte[] bytes) {
+        BitBuffer buffer = new BitBuffer(bytes.length * 8);
+        for(byte b: bytes) {
+            buffer.write(b & 0xFF, 8);
+        }
+
+        return buffer;
+    }
+
+    /**
+     * Creates a buffer holding eight bits for each character in {@code text}
+     * (i.e. the low-order byte of each character), which is the payload
+     * representation used by the {@link BitstringEncoder}.
+     */
+    public static BitBuffer fromText(String text) {
+        int numChars = text.length();
+        BitBuffer buffer = new BitBuffer(numChars * 8);
+        for(int i = 0; i < numChars; i++) {
+            buffer.write(text.charAt(i) & 0xFF, 8);
+        }
+
+        return buffer;
+    }
+
+    /**
+     * @throws NumberFormatException If {@code bitstring} contains anything
+     * other than '0' and '1' characters.
+     */
+    public static BitBuffer fromBitstring(String bitstring) throws NumberFormatException {
+        int numBits = bitstring.length();
+        BitBuffer buffer = new BitBuffer(numBits);
+        for(int i = 0; i < numBits; i++) {
+            char bit = bitstring.charAt(i);
+            if(bit == '1') {
+                buffer.writeBit(true);
+            } else if(bit == '0') {
+                buffer.writeBit(false);
+            } else {
+                throw new NumberFormatException("Invalid bit character '" + bit + "' in bitstring \"" + bitstring + "\"");
+            }
+        }
+
+        return buffer;
+    }
+
+    /**
+     * @return The number of bits written to this buffer.
+     */
+    public int length() {
+        return length;
+    }
+
+    /**
+     * @return The index of the next bit to be returned by the read methods.
+     */
+    public int position() {
+        return position;
+    }
+
+    public void setPosition(int position) {
+        if(position < 0 || position > length) {
+            throw new IndexOutOfBoundsException("Position " + position + " is outside of [0, " + length + "]");
+        }
+
+        this.position = position;
+    }
+
+    public int remaining() {
+        return length - position;
+    }
+
+    public boolean hasRemaining() {
+        return position < length;
+    }
+
+    /**
+     * Discards all bits and resets both cursors without releasing storage.
+     */
+    public void clear() {
+        Arrays.fill(words, 0, wordCount(length), 0L);
+        length = 0;
+        position = 0;
+    }
+
+    public void writeBit(boolean bit) {
+        ensureCapacity(length + 1);
+        if(bit) {
+            words[length >>> 6] |= (1L << (BITS_PER_WORD - 1 - (length & 63)));
+        }
+
+        length++;
+    }
+
+    /**
+     * Appends the {@code numBits} low-order bits of {@code value}, most
+     * significant bit first.
+     */
+    public void write(int value, int numBits) {
+        if(numBits < 0 || numBits > 32) {
+            throw new IllegalArgumentException("Cannot write " + numBits + " bits from an int");
+        }
+
+        writeLong(value & 0xFFFFFFFFL, numBits);
+    }
+
+    /**
+     * Appends the {@code numBits} low-order bits of {@code value}, most
+     * significant bit first.
+     */
+    public void writeLong(long value, int numBits) {
+        if(numBits < 0 || numBits > BITS_PER_WORD) {
+            throw new IllegalArgumentException("Cannot write " + numBits + " bits from a long");
+        }
+
+        if(numBits == 0) {
+            return;
+        }
+
+        ensureCapacity(length + numBits);
+
+        if(numBits < BITS_PER_WORD) {
+            value &= (1L << numBits) - 1;
+        }
+
+        int wordIndex = length >>> 6;
+        int bitOffset = length & 63;
+        int freeBits = BITS_PER_WORD - bitOffset;
+        if(numBits <= freeBits) {
+            words[wordIndex] |= value << (freeBits - numBits);
+        } else {
+            int overflowBits = numBits - freeBits;
+            words[wordIndex] |= value >>> overflowBits;
+            words[wordIndex + 1] |= value << (BITS_PER_WORD - overflowBits);
+        }
+
+        length += numBits;
+    }
+
+    /**
+     * Appends every bit of {@code other} (independently of its read cursor).
+     */
+    public void write(BitBuffer other) {
+        int offset = 0;
+        while(offset < other.length) {
+            int numBits = Math.min(BITS_PER_WORD, other.length - offset);
+            writeLong(other.getBitsAsLong(offset, numBits), numBits);
+            offset += numBits;
+        }
+    }
+
+    public boolean getBit(int index) {
+        checkRange(index, 1);
+        return ((words[index >>> 6] >>> (BITS_PER_WORD - 1 - (index & 63))) & 1L) != 0;
+    }
+
+    /**
+     * @return The {@code numBits} (at most 32) bits starting at
+     * {@code offset} as a non-negative value (for fewer than 32 bits).
+     */
+    public int getBits(int offset, int numBits) {
+        if(numBits > 32) {
+            throw new IllegalArgumentException("Cannot read " + numBits + " bits into an int");
+        }
+
+        return (int) getBitsAsLong(offset, numBits);
+    }
+
+    public long getBitsAsLong(int offset, int numBits) {
+        if(numBits < 0 || numBits > BITS_PER_WORD) {
+            throw new IllegalArgumentException("Cannot read " + numBits + " bits into a long");
+        }
+
+        if(numBits == 0) {
+            return 0L;
+        }
+
+        checkRange(offset, numBits);
+
+        int wordIndex = offset >>> 6;
+        int bitOffset = offset & 63;
+        int availableBits = BITS_PER_WORD - bitOffset;
+
+        long result;
+        if(numBits <= availableBits) {
+            result = words[wordIndex] >>> (availableBits - numBits);
+        } else {
+            int overflowBits = numBits - availableBits;
+            result = (words[wordIndex] << overflowBits) | (words[wordIndex + 1] >>> (BITS_PER_WORD - overflowBits));
+        }
+
+        return numBits == BITS_PER_WORD ? result : result & ((1L << numBits) - 1);
+    }
+
+    public boolean readBit() {
+        boolean bit = getBit(position);
+        position++;
+        return bit;
+    }
+
+    public int read(int numBits) {
+        int value = getBits(position, numBits);
+        position += numBits;
+        return value;
+    }
+
+    public long readLong(int numBits) {
+        long value = getBitsAsLong(position, numBits);
+        position += numBits;
+        return value;
+    }
+
+    /**
+     * @return The number of complete bytes held by this buffer.
+     */
+    public int byteLength() {
+        return length / 8;
+    }
+
+    /**
+     * @return The complete bytes held by this buffer; any trailing bits which
+     * do not form a full byte are dropped.
+     */
+    public byte[] toByteArray() {
+        byte[] bytes = new byte[byteLength()];
+        for(int i = 0; i < bytes.length; i++) {
+            bytes[i] = getByte(i);
+        }
+
+        return bytes;
+    }
+
+    /**
+     * Puts the complete bytes held by this buffer into {@code out}, starting
+     * at its position. Trailing bits which do not form a full byte are
+     * dropped.
+     *
+     * @return The number of bytes written.
+     * @throws BufferOverflowException If {@code out} does not have room for
+     * all of the bytes, in which case nothing is written.
+     */
+    public int writeBytesTo(ByteBuffer out) {
+        int numBytes = byteLength();
+        if(out.remaining() < numBytes) {
+            throw new BufferOverflowException();
+        }
+
+        for(int i = 0; i < numBytes; i++) {
+            out.put(getByte(i));
+        }
+
+        return numBytes;
+    }
+
+    /**
+     * Writes the complete bytes held by this buffer to {@code out} a chunk at
+     * a time, i.e. without copying all of them first. Trailing bits which do
+     * not form a full byte are dropped.
+     *
+     * @return The number of bytes written.
+     */
+    public int writeBytesTo(OutputStream out) throws IOException {
+        int numBytes = byteLength();
+        byte[] chunk = new byte[Math.max(1, Math.min(WRITE_CHUNK_BYTES, numBytes))];
+        int written = 0;
+        while(written < numBytes) {
+            int chunkLength = Math.min(chunk.length, numBytes - written);
+            for(int i = 0; i < chunkLength; i++) {
+                chunk[i] = getByte(written + i);
+            }
+
+            out.write(chunk, 0, chunkLength);
+            written += chunkLength;
+        }
+
+        return numBytes;
+    }
+
+    /**
+     * Writes the complete bytes held by this buffer to {@code out} (e.g. a
+     * {@link java.nio.channels.FileChannel}) a chunk at a time, i.e. without
+     * copying all of them first. Trailing bits which do not form a full byte
+     * are dropped.
+     *
+     * @return The number of bytes written.
+     */
+    public int writeBytesTo(WritableByteChannel out) throws IOException {
+        int numBytes = byteLength();
+        ByteBuffer chunk = ByteBuffer.allocate(Math.max(1, Math.min(WRITE_CHUNK_BYTES, numBytes)));
+        int written = 0;
+        while(written < numBytes) {
+            int chunkLength = Math.min(chunk.capacity(), numBytes - written);
+            for(int i = 0; i < chunkLength; i++) {
+                chunk.put(getByte(written + i));
+            }
+
+            chunk.flip();
+            while(chunk.hasRemaining()) {
+                out.write(chunk);
+            }
+
+            chunk.clear();
+            written += chunkLength;
+        }
+
+        return numBytes;
+    }
+
+    /**
+     * Inverse of {@link #fromText(String)}: converts each complete byte into a
+     * character. Trailing bits which do not form a full byte are dropped.
+     */
+    public String toText() {
+        int numChars = byteLength();
+        char[] chars = new char[numChars];
+        for(int i = 0; i < numChars; i++) {
+            chars[i] = (char) (getByte(i) & 0xFF);
+        }
+
+        return new String(chars);
+    }
+
+    public String toBitstring() {
+        char[] bits = new char[length];
+        for(int i = 0; i < length; i++) {
+            bits[i] = getBit(i) ? '1' : '0';
+        }
+
+        return new String(bits);
+    }
+
+    @Override
+    public String toString() {
+        return "BitBuffer[length = " + length + ", position = " + position + "]";
+    }
+
+    // The index-th complete byte; bytes never straddle a word since words hold a whole number of them
+    private byte getByte(int index) {
+        return (byte) (words[index >>> 3] >>> (56 - ((index & 7) << 3)));
+    }
+
+    private void checkRange(int offset, int numBits) {
+        if(offset < 0 || offset + numBits > length) {
+            throw new IndexOutOfBoundsException("Bits [" + offset + ", " + (offset + numBits) + ") are outside of [0, " + length + ")");
+        }
+    }
+
+    private void ensureCapacity(int numBits) {
+        int requiredWords = wordCount(numBits);
+        if(requiredWords > words.length) {
+            long[] grownWords = new long[Math.max(requiredWords, words.length * 2)];
+            System.arraycopy(words, 0, grownWords, 0, words.length);
+            words = grownWords;
+        }
+    }
+
+    private static int wordCount(int numBits) {
+        return (numBits + BITS_PER_WORD - 1) / BITS_PER_WORD;
+    }
+}
@@ -13,7 +13,6 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.TreeSet;
 
 /**
  * Created by Tim on 5/24/2016.
@@ -25,6 +24,25 @@ public class BitstringEncoder implements EncodingScheme {
     // TODO: Cleanup
     //private static final String TAG = "intent.covertchannel.intentencoderdecoder.BitstringEncoder";
     private static final String TAG = EncodingUtils.TRACE_TAG;
+
+    // Packing modes for splitting the message bits into Bundle values
+    /**
+     * Greedily cuts the message bits into fragments of segmentMinBitLength or
+     * segmentMaxBitLength bits (the original packing strategy).
+     */
+    public static final int PACKING_MODE_GREEDY = 0;
+
+    /**
+     * Treats the message bits as a number in base numUniqueValues (see
+     * {@link MixedRadixPacker}) so that each key carries the full
+     * log2(numUniqueValues) bits.
+     */
+    public static final int PACKING_MODE_MIXED_RADIX = 1;
+
+    // Passed to decodeBitstring() when the carrier's action has to be looked up to find its value band
+    private static final int UNKNOWN_ACTION_INDEX = -1;
+
+    private final ChannelConfig config;
     private final int numUniqueValues;
     private final int maxValue;
     private final int fragmentMaxBitLength;
@@ -38,45 +56,80 @@ public class BitstringEncoder implements EncodingScheme {
 
     // Comparator for ordering the String keys in a Bundle.
     protected Comparator<String> keyComparator;
-    private int numBaseValues;
-    private int numExpansionCodes;
-    private List<String> actionStrings;
-    private int buildVersion;
+    private final int numBaseValues;
+    private final int numExpansionCodes;
+    private final List<String> actionStrings;
+    private final int buildVersion;
 
-    private int maxBaseValue;
+    private final int maxBaseValue;
+    private final int packingMode;
+
+    // Only used for PACKING_MODE_MIXED_RADIX
+    private final MixedRadixPacker radixPacker;
 
     public BitstringEncoder(int numBaseValues, int numExpansionCodes, List<String> actionStrings, int buildVersion) {
-        this.numBaseValues = numBaseValues;
+        this(numBaseValues, numExpansionCodes, actionStrings, buildVersion, PACKING_MODE_GREEDY);
+    }
+
+    public BitstringEncoder(int numBaseValues, int numExpansionCodes, List<String> actionStrings, int buildVersion, int packingMode) {
+        this(new ChannelConfig(numBaseValues, numExpansionCodes, actionStrings, buildVersion, packingMode));
+    }
+
+    /**
+     * Creates an encoder which uses the tables precomputed by {@code config}.
+     * Encoders do not keep any per-message state, so prefer sharing them
+     * through the {@link BitstringEncoderCache}.
+     */
+    public BitstringEncoder(ChannelConfig config) {
+        this.config = config;
+        this.numBaseValues = config.getNumBaseValues();
         this.maxBaseValue = numBaseValues - 1;
-        this.numExpansionCodes = numExpansionCodes;
-        this.actionStrings = actionStrings;
-        this.buildVersion = buildVersion;
+        this.numExpansionCodes = config.getNumExpansionCodes();
+        this.actionStrings = config.getActionStrings();
+        this.buildVersion = config.getBuildVersion();
 
-        // There are NUM_EXANSION_CODES + 1 different value sets (the first value set has no expansion code)
-        this.numValuesPerAction = numBaseValues * (numExpansionCodes + 1);
-        this.maxFragmetValue = numValuesPerAction - 1;
-        this.fragmentMaxBitLength = calculateMaxFragmentBitLength(maxFragmetValue);
-        this.fragmentMinBitLength = calculateMinFragmentBitLength(maxFragmetValue);
+        this.numValuesPerAction = config.getNumValuesPerAction();
+        this.maxFragmetValue = config.getMaxFragmentValue();
+        this.fragmentMaxBitLength = config.getFragmentMaxBitLength();
+        this.fragmentMinBitLength = config.getFragmentMinBitLength();
 
-        this.numUniqueValues = numValuesPerAction * actionStrings.size();
-        this.maxValue = numUniqueValues - 1;
-        this.segmentMaxBitLength = calculateMaxFragmentBitLength(maxValue);
-        this.segmentMinBitLength = calculateMinFragmentBitLength(maxValue);
+        this.numUniqueValues = config.getNumUniqueValues();
+        this.maxValue = config.getMaxValue();
+        this.segmentMaxBitLength = config.getSegmentMaxBitLength();
+        this.segmentMinBitLength = config.getSegmentMinBitLength();
 
         this.keyGenerator = new AlphabeticalKeySequence();
         this.keyComparator = new AlphabeticalKeySequenceComparator();
+
+        this.packingMode = config.getPackingMode();
+        this.radixPacker = config.getRadixPacker();
     }
 
     @Override
     public Collection<Intent> encodeMessage(String message) {
-        Message messageToSend = buildMessage(strToBitString(message), maxValue, segmentMaxBitLength, segmentMinBitLength);
-        List<String> fragments = messageToSend.getFragments();
+        BitBuffer payload = BitBuffer.fromText(message);
 
         //Log.d(TAG, "Message Fragments with Keys:");
-        SegmentMap segmentMap = new SegmentMap(actionStrings, numUniqueValues);
-        for(String fragment: fragments) {
-            String key = segmentMap.putFragment(fragment);
-            //Log.d(TAG, "\"" + key + "\" => " + fragment + "(" + Integer.parseInt(fragment, 2) + ")");
+        SegmentMap segmentMap = new SegmentMap(config);
+        if(packingMode == PACKING_MODE_MIXED_RADIX) {
+            // Every digit is a complete value, so there is no per-fragment bit length; the
+            // significant-bits metadata field holds the bit count of the last block instead
+            for(int digit: radixPacker.pack(payload)) {
+                segmentMap.putFragment(digit, 0);
+            }
+        } else {
+            Message messageToSend = buildMessage(payload, maxValue, segmentMaxBitLength, segmentMinBitLength);
+            for(int i = 0; i < messageToSend.size(); i++) {
+                String key = segmentMap.putFragment(messageToSend.getFragmentValue(i), messageToSend.getFragmentBitLength(i));
+                //Log.d(TAG, "\"" + key + "\" => " + messageToSend.getFragmentValue(i));
+            }
+
+            // Only the message's final fragment can be padded; its segment reports how many of its bits are real
+            int lastIndex = messageToSend.size() - 1;
+            int lengthOfLastFragment = messageToSend.getLengthOfLastFragment();
+            if(lastIndex >= 0 && lengthOfLastFragment > 0 && lengthOfLastFragment < messageToSend.getFragmentBitLength(lastIndex)) {
+                segmentMap.setSignificantBitsInLastFragment(messageToSend.getFragmentValue(lastIndex), lengthOfLastFragment);
+            }
         }
 
         //Log.d(TAG, "Message Segments");
@@ -97,7 +150,7 @@ public class BitstringEncoder implements EncodingScheme {
 
             if(!segment.isEmpty()) {
                 //Log.d(TAG, "Encoding segment \"" + segment.getAction() + "\"");
-                segment.setMetadataValue(Segment.SEGMENT_NUMBER_KEY, Integer.toBinaryString(segmentIndex));
+                segment.setMetadataValue(Segment.SEGMENT_NUMBER_KEY, segmentIndex);
                 segmentsToEncode.add(segment);
                 segmentIndex++;
                 segmentCount++;
@@ -105,7 +158,10 @@ public class BitstringEncoder implements EncodingScheme {
         }
 
         for(Segment segment: segmentsToEncode) {
-            segment.setMetadataValue(Segment.MESSAGE_SEGMENT_COUNT_KEY, Integer.toBinaryString(segmentCount));
+            segment.setMetadataValue(Segment.MESSAGE_SEGMENT_COUNT_KEY, segmentCount);
+            if(packingMode == PACKING_MODE_MIXED_RADIX) {
+                segment.setMetadataValue(Segment.SIGNIFICANT_BITS_IN_LAST_FRAGMENT_KEY, radixPacker.getLastBlockBitLength(payload.length()));
+            }
             carriers.add(encodeSegment(segment));
         }
 
@@ -113,6 +169,23 @@ public class BitstringEncoder implements EncodingScheme {
     }
 
     public DecodedMessage decodeMessageAsBitstring(Intent carrier) {
+        return decodeBitstring(carrier, UNKNOWN_ACTION_INDEX);
+    }
+
+    /**
+     * Decodes a carrier whose action is already known to be the one at
+     * {@code actionIndex} in the configuration's action strings (e.g. from a
+     * routing table), which saves looking the action up again.
+     */
+    public DecodedMessage decodeMessageAsBitstring(Intent carrier, int actionIndex) {
+        if(actionIndex < 0) {
+            throw new IllegalArgumentException("Invalid action index " + actionIndex);
+        }
+
+        return decodeBitstring(carrier, actionIndex);
+    }
+
+    private DecodedMessage decodeBitstring(Intent carrier, int actionIndex) {
         //Log.d(TAG, "Starting to decode bitstring for \"" + carrier.getAction() + "\"");
 
         if (carrier == null) {
@@ -138,59 +211,61 @@ public class BitstringEncoder implements EncodingScheme {
             throw new IllegalArgumentException("Data bundle must contain data fields in addition to metadata fields");
         }
 
-        Set<String> bundleKeys = new TreeSet<>(keyComparator);
-        bundleKeys.addAll(dataBundle.keySet());
+        // Ordering the keys by ordinal is equivalent to sorting them with the keyComparator
+        List<String> bundleKeys = KeyTable.sortKeys(dataBundle.keySet());
 
-        int actionOffset = calculateActionOffset(carrier.getAction());
+        int actionOffset = (actionIndex == UNKNOWN_ACTION_INDEX) ? calculateActionOffset(carrier.getAction()) : config.getActionOffset(actionIndex);
 
-        List<String> messageFragments = new ArrayList<>();
         Iterator<String> bundleKeyIter = bundleKeys.iterator();
         String sigBitsInLastFragmentKey = bundleKeyIter.next();
         String segmentNumberKey = bundleKeyIter.next();
         String segmentCountKey = bundleKeyIter.next();
 
         // Metadata keys do not use the action offset
-        String sigBitsMetadataBitstring = decodeFragmentAsBitstring(dataBundle, sigBitsInLastFragmentKey, 0, fragmentMinBitLength);
-        String segmentNumberBitstring = decodeFragmentAsBitstring(dataBundle, segmentNumberKey, 0, fragmentMinBitLength);
-        String segmentCountBitstring = decodeFragmentAsBitstring(dataBundle, segmentCountKey, 0, fragmentMinBitLength);
-
-        int numSigBitsInLastFragment = bitstringToInt(sigBitsMetadataBitstring);
-        int segmentNumber = bitstringToInt(segmentNumberBitstring);
-        int segmentCount = bitstringToInt(segmentCountBitstring);
+        int numSigBitsInLastFragment = decodeFragmentValue(dataBundle, sigBitsInLastFragmentKey, 0);
+        int segmentNumber = decodeFragmentValue(dataBundle, segmentNumberKey, 0);
+        int segmentCount = decodeFragmentValue(dataBundle, segmentCountKey, 0);
 
         //Log.d(TAG, "Decoded metadata field values: numSigBitsInLastFragment = " + numSigBitsInLastFragment + ", segmentNumber = " + segmentNumber + ", segmentCount = " + segmentCount);
 
         DecodedMessage decodedMessage = new DecodedMessage(segmentNumber, segmentCount);
+        decodedMessage.setPacking(radixPacker, numSigBitsInLastFragment);
 
         try {
+            if(packingMode == PACKING_MODE_MIXED_RADIX) {
+                while(bundleKeyIter.hasNext()) {
+                    String key = bundleKeyIter.next();
+                    decodedMessage.putFragment(key, decodeFragmentValue(dataBundle, key, actionOffset), 0);
+                }
+
+                return decodedMessage;
+            }
+
             String key = bundleKeyIter.next();
             while (bundleKeyIter.hasNext()) {
-                String fragment = decodeFragmentAsBitstring(dataBundle, key, actionOffset, segmentMinBitLength);
-                messageFragments.add(fragment);
-                decodedMessage.putBitstring(key, fragment);
+                int fragmentValue = decodeFragmentValue(dataBundle, key, actionOffset);
+                decodedMessage.putFragment(key, fragmentValue, fragmentBitLength(fragmentValue, segmentMinBitLength));
                 key = bundleKeyIter.next();
             }
 
-            // Join the message fragments together, accounting for the fact that the last fragment might have
-            // been padded (and therefore need to have the padding removed from the end [least significant
-            // bits])
-            /* TODO: Move or remove
-            for(int i = 0; i < messageFragments.size() - 1; i++) {
-                msgBuilder.append(messageFragments.get(i));
-            }
-            */
-
-            String lastFragmentBitstring = decodeFragmentAsBitstring(dataBundle, key, actionOffset, segmentMinBitLength);
-            //Log.d(TAG, "Last fragment: \"" + lastFragmentBitstring + "\"; num bits: " + lastFragmentBitstring.length() + ", significant bits in fragment: " + numSigBitsInLastFragment);
-            if(numSigBitsInLastFragment < fragmentMinBitLength) {
-                int numPaddingBits = lastFragmentBitstring.length() - numSigBitsInLastFragment;
-                lastFragmentBitstring = lastFragmentBitstring.substring(0, lastFragmentBitstring.length() - numPaddingBits);
-                //Log.d(TAG, "Last fragment with padding removed: \"" + lastFragmentBitstring + "\"");
+            // The last fragment might have been padded (and therefore need to have the padding removed from
+            // the end [least significant bits])
+            int lastFragmentValue = decodeFragmentValue(dataBundle, key, actionOffset);
+            int lastFragmentBitLength = fragmentBitLength(lastFragmentValue, segmentMinBitLength);
+            //Log.d(TAG, "Last fragment: " + lastFragmentValue + "; num bits: " + lastFragmentBitLength + ", significant bits in fragment: " + numSigBitsInLastFragment);
+            if(numSigBitsInLastFragment < lastFragmentBitLength) {
+                int numPaddingBits = lastFragmentBitLength - numSigBitsInLastFragment;
+                lastFragmentValue >>>= numPaddingBits;
+                lastFragmentBitLength = numSigBitsInLastFragment;
+                //Log.d(TAG, "Last fragment with padding removed: " + lastFragmentValue);
             }
 
-            decodedMessage.putBitstring(key, lastFragmentBitstring);
+            decodedMessage.putFragment(key, lastFragmentValue, lastFragmentBitLength);
         } catch(IllegalArgumentException e) {
-            Log.w(TAG, "Could not fully decode message: " + e.getMessage() + "\n" + e.getStackTrace().toString());
+            // A partially decoded segment would be reassembled into a corrupt message; failing it lets the receiver
+            // treat the carrier as lost and have it retransmitted
+            Log.w(TAG, "Could not fully decode message: " + e.getMessage());
+            throw e;
         }
 
         return decodedMessage;
@@ -203,45 +278,59 @@ public class BitstringEncoder implements EncodingScheme {
         return message.getMessageString();
     }
 
+    /**
+     * Adapter for {@link #decodeFragmentValue(Bundle, String, int)} which
+     * returns the fragment as a bitstring that is left-padded with zeroes to
+     * at least {@code minBitLength} bits.
+     */
     public String decodeFragmentAsBitstring(Bundle dataBundle, String key, int actionOffset, int minBitLength) {
-        int value;
-        if(EncodingUtils.containsExpansionCode(dataBundle, key)) {
-            //Log.d(TAG, "Decoding value and expansion code for key \"" + key + "\"");
-            value = decodeExpansionCodeAndValue(dataBundle, key);
-        } else {
-            //Log.d(TAG, "Decoding value without expansion code for key \"" + key + "\"");
-            value = EncodingUtils.decodeValueForEntry(dataBundle, key, 0, buildVersion);
-        }
-
-        value += actionOffset;
+        int value = decodeFragmentValue(dataBundle, key, actionOffset);
         String msgBitstring = Integer.toBinaryString(value);
 
         //Log.d(TAG, "Decoded fragment bitstring: \"" + msgBitstring + "\" (" + msgBitstring.length() + " bits; min bits => " + minBitLength + ") for key \"" + key + "\" with action offset of " + actionOffset);
         if(msgBitstring.length() < minBitLength) {
             msgBitstring = leftPadWithZeroes(msgBitstring, minBitLength - msgBitstring.length());
-            //Log.d(TAG, "Bitstring with zero padding: \"" + msgBitstring + "\" (" + msgBitstring.length() + " bits)");
         }
 
-        //Log.d(TAG, "Decoded bitstring " + msgBitstring + " for key \"" + key + "\" with an actionOffset of " + actionOffset);
         return msgBitstring;
     }
 
-    private static String leftPadWithZeroes(String msgBitstring, int numZeroes) {
-        String padding = "";
-        for(int i = 0; i < numZeroes; i++) {
-            padding += "0";
+    public int decodeFragmentValue(Bundle dataBundle, String key, int actionOffset) {
+        int value;
+        Object entry = dataBundle.get(key);
+        if(entry instanceof Bundle) {
+            //Log.d(TAG, "Decoding value and expansion code for key \"" + key + "\"");
+            value = decodeExpansionCodeAndValue((Bundle) entry);
+        } else {
+            //Log.d(TAG, "Decoding value without expansion code for key \"" + key + "\"");
+            value = EncodingUtils.decodeValue(entry, key, 0, buildVersion);
         }
 
-        return padding + msgBitstring;
+        //Log.d(TAG, "Decoded value " + value + " for key \"" + key + "\" with an actionOffset of " + actionOffset);
+        return value + actionOffset;
     }
 
-    private int decodeExpansionCodeAndValue(Bundle dataBundle, String baseKey) {
-        //Log.d(TAG, "Decoding expansion code and value for base key \"" + baseKey + "\"");
+    /**
+     * @return The number of bits a decoded fragment with the given value
+     * represents: its binary length, but never less than {@code minBitLength}
+     * (leading zeroes are implied by the minimum length).
+     */
+    private static int fragmentBitLength(int value, int minBitLength) {
+        int valueBitLength = (value == 0) ? 1 : Integer.SIZE - Integer.numberOfLeadingZeros(value);
+        return Math.max(minBitLength, valueBitLength);
+    }
 
-        Bundle nestedBundle = dataBundle.getBundle(baseKey);
+    private static String leftPadWithZeroes(String msgBitstring, int numZeroes) {
+        StringBuilder paddedBldr = new StringBuilder(msgBitstring.length() + numZeroes);
+        for(int i = 0; i < numZeroes; i++) {
+            paddedBldr.append('0');
+        }
+
+        return paddedBldr.append(msgBitstring).toString();
+    }
 
-        Set<String> bundleKeys = new TreeSet<>(keyComparator);
-        bundleKeys.addAll(nestedBundle.keySet());
+    private int decodeExpansionCodeAndValue(Bundle nestedBundle) {
+        List<String> bundleKeys = KeyTable.sortKeys(nestedBundle.keySet());
 
         int expansionCode = 1; // The implicit one (the fact that there is a nested Bundle is treated as an expansion code of one)
 
@@ -252,11 +341,12 @@ public class BitstringEncoder implements EncodingScheme {
         while(keyIter.hasNext()) {
             //Log.d(TAG, "Decoding nested key \"" + key + "\"");
 
-            if(EncodingUtils.containsExpansionCode(nestedBundle, key)) {
+            Object entry = nestedBundle.get(key);
+            if(entry instanceof Bundle) {
                 //Log.d(TAG, "Found deeper nesting; decoding recursively");
-                expansionCode += decodeExpansionCodeAndValue(nestedBundle, key);
+                expansionCode += decodeExpansionCodeAndValue((Bundle) entry);
             } else {
-                expansionCode += EncodingUtils.decodeValueForEntry(nestedBundle, key, 0, buildVersion);
+                expansionCode += EncodingUtils.decodeValue(entry, key, 0, buildVersion);
             }
 
             key = keyIter.next();
@@ -264,108 +354,67 @@ public class BitstringEncoder implements EncodingScheme {
 
         int baseValue = EncodingUtils.decodeValueForEntry(nestedBundle, key, expansionCode, buildVersion);
 
-        //Log.d(TAG, "Expansion code for root key \"" + baseKey + "\" => " + expansionCode);
-        //Log.d(TAG, "Base value for root key \"" + baseKey + "\" => " + baseValue);
+        //Log.d(TAG, "Expansion code => " + expansionCode);
+        //Log.d(TAG, "Base value => " + baseValue);
 
         return baseValue;
     }
 
-    // Taken from http://stackoverflow.com/questions/3305059/how-do-you-calculate-log-base-2-in-java-for-integers;
-    // as noted in the answer, this approach might not be completely accurate, but it should be sufficient for current
-    // purposes
+    /**
+     * @return ceil(log2(maxValue)), computed exactly with integer arithmetic.
+     */
     public static int calculateMaxFragmentBitLength(int maxValue) {
-        double maxBitLength = Math.log(maxValue) / Math.log(2);
-        if(maxBitLength % 1 == 0) {
-            return (int) maxBitLength;
-        }
-
-        return ((int) maxBitLength) + 1;
+        checkMaxValue(maxValue);
+        return Integer.SIZE - Integer.numberOfLeadingZeros(maxValue - 1);
     }
 
+    /**
+     * @return floor(log2(maxValue)), computed exactly with integer arithmetic.
+     */
     public static int calculateMinFragmentBitLength(int maxValue) {
-        double minBitLength = Math.log(maxValue) / Math.log(2);
-        return (int) minBitLength;
+        checkMaxValue(maxValue);
+        return (Integer.SIZE - 1) - Integer.numberOfLeadingZeros(maxValue);
+    }
+
+    private static void checkMaxValue(int maxValue) {
+        if(maxValue < 1) {
+            throw new IllegalArgumentException("The maximum value must be at least 1 to size fragments; got " + maxValue);
+        }
     }
 
     private int calculateActionOffset(String action) {
-        return EncodingUtils.ACTIONS.indexOf(action) * numValuesPerAction;
+        return config.getActionOffset(action);
     }
 
+    /**
+     * Adapter for {@link BitBuffer#fromText(String)}.
+     */
     public static String strToBitString(String text) {
         try {
-            String[] byteStrings = new String[text.length()];
-
-            //Log.d(TAG, "String \"" + text + "\" as bytes:");
-
-            int i = 0;
-            for (char c: text.toCharArray()) {
-                String byteString = Integer.toBinaryString((int) c);
-
-                // Pad to a full byte
-                while(byteString.length() < 8) {
-                    byteString = "0" + byteString;
-                }
-
-                byteStrings[i] = byteString;
-                i++;
-
-                // TODO: Remove
-                //Log.d(TAG, byteString);
-                //
-            }
-
-            String result = "";
-            for(String byteStr: byteStrings) {
-                result += byteStr;
-            }
-
-            return result;
+            return BitBuffer.fromText(text).toBitstring();
         } catch(Exception e) {
             return "Exception!";
         }
     }
 
     public static String[] bitstringToByteStrings(String bitstring) {
-        int bitsInByte = 0;
-        int byteIndex = 0;
-
         // Assumes that the provided bitstring is evenly divisible
-        // by 8 (i.e. consists of full-formed bytes)
+        // by 8 (i.e. consists of full-formed bytes); any trailing
+        // partial byte is dropped
         String[] bytes = new String[bitstring.length() / 8];
-        //String b = "0"; // Prime a leftmost 0 which will be the most significant digit
-        String b = "";
-        for (char bit: bitstring.toCharArray()) {
-            b += bit;
-            bitsInByte++;
-
-            if(bitsInByte == 8) {
-                bytes[byteIndex] = b;
-                bitsInByte = 0;
-                b = "";
-                byteIndex++;
-            }
+        for(int i = 0; i < bytes.length; i++) {
+            bytes[i] = bitstring.substring(i * 8, (i + 1) * 8);
         }
 
         return bytes;
     }
 
+    /**
+     * Adapter for {@link BitBuffer#toText()}.
+     */
     public static String bitStringToStr(String bitstring) throws NumberFormatException {
         //Log.d(TAG, "Converting bitstring\"" + bitstring + "\" to a text string");
-
-        String[] byteStrings = bitstringToByteStrings(bitstring);
-        String msgStr = "";
-        for(String byteStr: byteStrings) {
-            //Log.d(TAG, "byteStr = " + byteStr);
-
-            char c = (char) Integer.parseInt(byteStr, 2);
-
-            //Log.d(TAG, "Character: " + c);
-
-            msgStr += "" + c;
-        }
-
-        //Log.d(TAG, "\"" + bitstring + "\" as text string: " + msgStr);
-        return msgStr;
+        return BitBuffer.fromBitstring(bitstring).toText();
     }
 
     public static int bitstringToInt(String inputString) {
@@ -390,66 +439,86 @@ public class BitstringEncoder implements EncodingScheme {
         return new BigInteger(inputString, 2).intValue();
     }
 
-    private Message buildMessage(String bitstring, int maxValue, int fragmentMaxBitLength, int fragmentMinBitLength) {
+    private Message buildMessage(BitBuffer payload, int maxValue, int fragmentMaxBitLength, int fragmentMinBitLength) {
         /*
-        Log.d(TAG, "Building message for bitstring: \"" + bitstring + "\"\nwith max value = " +
+        Log.d(TAG, "Building message for " + payload.length() + " bits with max value = " +
                 maxValue + ", fragmentMaxBitLength = " + fragmentMaxBitLength + ", fragmentMinBitLength = " + fragmentMinBitLength);
                 */
 
-        List<String> fragments = new ArrayList<String>();
+        BitBuffer fragmentBits = new BitBuffer(payload.length() + fragmentMaxBitLength);
+        int[] fragmentOffsets = new int[(payload.length() / Math.max(1, fragmentMinBitLength)) + 2];
+        int numFragments = 0;
 
-        String currentFragment = "";
-        int lengthOfLastFragment = 0;
-        int fragmentLength = 0;
-        for(char bit: bitstring.toCharArray()) {
-            String newFragment = currentFragment + bit;
-            if(bitstringToInt(newFragment) > maxValue) {
-                //Log.d(TAG, "Adding fragment \"" + currentFragment + "\"");
-                fragments.add(currentFragment);
-                currentFragment = "" + bit;
-                fragmentLength = 1;
+        // The fragment currently being accumulated, along with its first (leading) bit
+        long currentValue = 0;
+        int currentLength = 0;
+        boolean currentLeadingBit = false;
+
+        int numPayloadBits = payload.length();
+        for(int i = 0; i < numPayloadBits; i++) {
+            boolean bit = payload.getBit(i);
+            long newValue = (currentValue << 1) | (bit ? 1 : 0);
+            int newLength = currentLength + 1;
+            boolean newLeadingBit = (currentLength == 0) ? bit : currentLeadingBit;
+
+            if(newValue > maxValue) {
+                fragmentOffsets = appendFragment(fragmentBits, fragmentOffsets, numFragments++, currentValue, currentLength);
+                currentValue = bit ? 1 : 0;
+                currentLength = 1;
+                currentLeadingBit = bit;
 
             // TODO: Test this case (suspect it's not 100% efficient at bit packing
-            } else if((newFragment.startsWith("0") && newFragment.length() == fragmentMinBitLength) ||
-                    (newFragment.startsWith("1") && newFragment.length() == fragmentMaxBitLength)) {
-                //Log.d(TAG, "Adding fragment \"" + newFragment + "\"");
-                fragments.add(newFragment);
-                currentFragment = "";
-                fragmentLength = 0;
+            } else if((!newLeadingBit && newLength == fragmentMinBitLength) ||
+                    (newLeadingBit && newLength == fragmentMaxBitLength)) {
+                fragmentOffsets = appendFragment(fragmentBits, fragmentOffsets, numFragments++, newValue, newLength);
+                currentValue = 0;
+                currentLength = 0;
             } else {
-                currentFragment += bit;
-                fragmentLength++;
+                currentValue = newValue;
+                currentLength = newLength;
+                currentLeadingBit = newLeadingBit;
             }
         }
 
-        lengthOfLastFragment = fragmentLength;
+        int lengthOfLastFragment = currentLength;
 
-        if(currentFragment.length() != 0) {
-            //Log.d(TAG, "Padding the last fragment \"" + currentFragment + "\"");
-            while(currentFragment.length() < fragmentMinBitLength) {
-                currentFragment += "0";
-            }
+        if(currentLength != 0) {
+            // Pad the last fragment with zeroes in its least significant bits
+            int paddedLength = Math.max(currentLength, fragmentMinBitLength);
+            long paddedValue = currentValue << (paddedLength - currentLength);
 
-            //Log.d(TAG, "Adding padded fragment \"" + currentFragment + "\" with a significant bit length of " + lengthOfLastFragment);
-            fragments.add(currentFragment);
+            //Log.d(TAG, "Adding padded fragment " + paddedValue + " with a significant bit length of " + lengthOfLastFragment);
+            fragmentOffsets = appendFragment(fragmentBits, fragmentOffsets, numFragments++, paddedValue, paddedLength);
         }
 
-        return new Message(fragments, lengthOfLastFragment);
+        return new Message(fragmentBits, fragmentOffsets, numFragments, lengthOfLastFragment);
+    }
+
+    private static int[] appendFragment(BitBuffer fragmentBits, int[] fragmentOffsets, int fragmentIndex, long value, int bitLength) {
+        if(fragmentIndex + 2 > fragmentOffsets.length) {
+            int[] grownOffsets = new int[fragmentOffsets.length * 2];
+            System.arraycopy(fragmentOffsets, 0, grownOffsets, 0, fragmentOffsets.length);
+            fragmentOffsets = grownOffsets;
+        }
+
+        fragmentBits.writeLong(value, bitLength);
+        fragmentOffsets[fragmentIndex + 1] = fragmentBits.length();
+        return fragmentOffsets;
     }
 
     public static String fragmentsToBitString(Collection<String> fragments, int lengthOfLastFragment) {
-        String bitstring = "";
+        StringBuilder bitstringBldr = new StringBuilder();
         Iterator<String> iter = fragments.iterator();
         while(iter.hasNext()) {
             String fragment = iter.next();
             if(!iter.hasNext()) { // if last fragment
-                bitstring += fragment.substring(0, lengthOfLastFragment);
+                bitstringBldr.append(fragment, 0, lengthOfLastFragment);
             } else {
-                bitstring += fragment;
+                bitstringBldr.append(fragment);
             }
         }
 
-        return bitstring;
+        return bitstringBldr.toString();
     }
 
     private Intent encodeSegment(Segment segment) {
@@ -460,20 +529,18 @@ public class BitstringEncoder implements EncodingScheme {
 
         Bundle msgBundle = new Bundle();
 
-        Set<String> metadataKeys = segment.getMetadataKeys();
-        Map<String, String> bitstringsByMessageKey = segment.getFragmentMessageKeyMap();
-        for(String msgKey: bitstringsByMessageKey.keySet()) {
-            String fragmentBits = bitstringsByMessageKey.get(msgKey);
-            int value = bitstringToInt(fragmentBits);
+        int numFragments = segment.length();
+        for(int i = 0; i < numFragments; i++) {
+            // Subtract minVal to account for the action-defined value band that this segment belongs to
+            int value = segment.getFragmentValue(i) - segment.getMinVal();
 
-            // Don't use action off set for metadata keys
-            if(!metadataKeys.contains(msgKey)) {
-                // Subtract minVal to account for the action-defined value band that this segment belongs to
-                value -= segment.getMinVal();
-            }
+            //Log.d(TAG, "Encoding fragment " + segment.getFragmentValue(i) + " as value " + value + " with action " + segment.getAction());
+            msgBundle = encodeValue(msgBundle, segment.getAction(), value, segment.getFragmentKey(i));
+        }
 
-            //Log.d(TAG, "Encoding bitstring " + fragmentBits + " as value " + value + " with action " + segment.getAction());
-            msgBundle = encodeValue(msgBundle, segment.getAction(), value, msgKey);
+        // Don't use action off set for metadata keys
+        for(int i = 0; i < Segment.NUM_METADATA_FIELDS; i++) {
+            msgBundle = encodeValue(msgBundle, segment.getAction(), segment.getMetadataValue(i), segment.getMetadataKey(i));
         }
 
         encodedIntent.putExtras(msgBundle);
@@ -509,25 +576,73 @@ public class BitstringEncoder implements EncodingScheme {
         // value is decoded).
 
         Bundle nestedBundle = new Bundle();
-        KeyGenerator nestedKeyGenerator = new AlphabeticalKeySequence();
+        int nestedKeyOrdinal = 0;
         expansionCode--; // Decrement by one to signify the implicit one
 
         while (expansionCode > 0) {
             if(expansionCode >= maxBaseValue) {
-                nestedBundle = EncodingUtils.encodeValue(nestedBundle, nestedKeyGenerator.next(), maxBaseValue, buildVersion);
+                nestedBundle = EncodingUtils.encodeValue(nestedBundle, KeyTable.key(nestedKeyOrdinal++), maxBaseValue, buildVersion);
             } else {
-                nestedBundle = EncodingUtils.encodeValue(nestedBundle, nestedKeyGenerator.next(), expansionCode, buildVersion);
+                nestedBundle = EncodingUtils.encodeValue(nestedBundle, KeyTable.key(nestedKeyOrdinal++), expansionCode, buildVersion);
             }
 
             expansionCode -= maxBaseValue;
         }
 
-        nestedBundle = EncodingUtils.encodeValue(nestedBundle, nestedKeyGenerator.next(), baseValue, buildVersion);
+        nestedBundle = EncodingUtils.encodeValue(nestedBundle, KeyTable.key(nestedKeyOrdinal++), baseValue, buildVersion);
 
         msgBundle.putBundle(key, nestedBundle);
         return msgBundle;
     }
 
+    /**
+     * Joins fragments which have been decoded (possibly from several carriers)
+     * back into the message bits according to this encoder's packing mode.
+     *
+     * @param fragmentValues The decoded fragment values, in message key order.
+     * @param fragmentBitLengths The bit length of each fragment (ignored when
+     * mixed-radix packing is used).
+     * @param significantBitsInLastFragment The decoded significant-bits
+     * metadata value (only used by mixed-radix packing).
+     */
+    public BitBuffer assembleFragments(int[] fragmentValues, int[] fragmentBitLengths, int numFragments, int significantBitsInLastFragment) {
+        return assembleFragments(radixPacker, fragmentValues, fragmentBitLengths, numFragments, significantBitsInLastFragment);
+    }
+
+    private static BitBuffer assembleFragments(MixedRadixPacker radixPacker, int[] fragmentValues, int[] fragmentBitLengths, int numFragments, int significantBitsInLastFragment) {
+        if(radixPacker != null) {
+            return radixPacker.unpack(fragmentValues, numFragments, significantBitsInLastFragment);
+        }
+
+        BitBuffer bits = new BitBuffer();
+        for(int i = 0; i < numFragments; i++) {
+            bits.write(fragmentValues[i], fragmentBitLengths[i]);
+        }
+
+        return bits;
+    }
+
+    public int getPackingMode() {
+        return packingMode;
+    }
+
+    public ChannelConfig getChannelConfig() {
+        return config;
+    }
+
+    /**
+     * @return The average number of message bits carried by each data key when
+     * using mixed-radix packing, or log2(numUniqueValues) rounded down for the
+     * greedy packing's guaranteed minimum.
+     */
+    public double getBitsPerFragment() {
+        if(radixPacker != null) {
+            return radixPacker.getBitsPerDigit();
+        }
+
+        return segmentMinBitLength;
+    }
+
     public List<String> getOrderedMessageActionStrings() {
         return new ArrayList<String>(actionStrings);
     }
@@ -537,16 +652,22 @@ public class BitstringEncoder implements EncodingScheme {
     }
 
     public static class DecodedMessage {
-        private Map<String, String> fragmentBitstringsByMessageKey;
+        private static final int INITIAL_FRAGMENT_CAPACITY = 16;
+
+        private List<String> messageKeys;
+        private int[] fragmentValues;
+        private int[] fragmentBitLengths;
         private int segmentNumber;
         private int segmentCount;
-        private Comparator<String> keyComparator;
+        private int significantBitsInLastFragment;
+        private MixedRadixPacker radixPacker;
 
         public DecodedMessage(int segmentNumber, int segmentCount) {
             this.segmentNumber = segmentNumber;
             this.segmentCount = segmentCount;
-            fragmentBitstringsByMessageKey = new HashMap<>();
-            keyComparator = new AlphabeticalKeySequenceComparator();
+            messageKeys = new ArrayList<>();
+            fragmentValues = new int[INITIAL_FRAGMENT_CAPACITY];
+            fragmentBitLengths = new int[INITIAL_FRAGMENT_CAPACITY];
         }
 
         public int getSegmentNumber() {
@@ -557,26 +678,76 @@ public class BitstringEncoder implements EncodingScheme {
             return segmentCount;
         }
 
-        public Map<String, String> getFragmentBitstringsByMessageKey() {
-            return fragmentBitstringsByMessageKey;
+        /**
+         * @return The decoded significant-bits metadata value; for mixed-radix
+         * packing this is the bit count of the message's last block.
+         */
+        public int getSignificantBitsInLastFragment() {
+            return significantBitsInLastFragment;
         }
 
-        private void putBitstring(String key, String bitstring) {
-            //Log.d(TAG, "Key \"" + key + "\" => bitstring: \"" + bitstring +"\"");
-            fragmentBitstringsByMessageKey.put(key, bitstring);
+        private void setPacking(MixedRadixPacker radixPacker, int significantBitsInLastFragment) {
+            this.radixPacker = radixPacker;
+            this.significantBitsInLastFragment = significantBitsInLastFragment;
         }
 
-        public String getMessageString() {
-            StringBuilder msgBuilder = new StringBuilder();
-            Set<String> msgKeys = new TreeSet<>(keyComparator);
-            msgKeys.addAll(fragmentBitstringsByMessageKey.keySet());
+        public int getNumFragments() {
+            return messageKeys.size();
+        }
 
-            for(String msgKey: msgKeys) {
-                msgBuilder.append(fragmentBitstringsByMessageKey.get(msgKey));
+        public String getMessageKey(int index) {
+            return messageKeys.get(index);
+        }
+
+        public int getFragmentValue(int index) {
+            return fragmentValues[index];
+        }
+
+        public int getFragmentBitLength(int index) {
+            return fragmentBitLengths[index];
+        }
+
+        /**
+         * Adapter which returns a copy of the decoded fragments as bitstrings.
+         */
+        public Map<String, String> getFragmentBitstringsByMessageKey() {
+            Map<String, String> fragmentBitstringsByMessageKey = new HashMap<>();
+            for(int i = 0; i < messageKeys.size(); i++) {
+                fragmentBitstringsByMessageKey.put(messageKeys.get(i), new Segment.FragmentEntry(fragmentValues[i], fragmentBitLengths[i]).getValueAsBitstring());
+            }
+
+            return fragmentBitstringsByMessageKey;
+        }
+
+        private void putFragment(String key, int value, int bitLength) {
+            //Log.d(TAG, "Key \"" + key + "\" => value: " + value + " (" + bitLength + " bits)");
+            int index = messageKeys.size();
+            if(index == fragmentValues.length) {
+                int[] grownValues = new int[index * 2];
+                int[] grownBitLengths = new int[index * 2];
+                System.arraycopy(fragmentValues, 0, grownValues, 0, index);
+                System.arraycopy(fragmentBitLengths, 0, grownBitLengths, 0, index);
+                fragmentValues = grownValues;
+                fragmentBitLengths = grownBitLengths;
             }
 
-            String consolidatedBitstring = msgBuilder.toString();
-            return bitStringToStr(consolidatedBitstring);
+            messageKeys.add(key);
+            fragmentValues[index] = value;
+            fragmentBitLengths[index] = bitLength;
+        }
+
+        /**
+         * @return The bits of all decoded fragments, joined in message key order.
+         * Note that a mixed-radix message can only be unpacked on its own if
+         * it consists of a single segment.
+         */
+        public BitBuffer getBits() {
+            // Fragments are decoded (and therefore stored) in message key order
+            return assembleFragments(radixPacker, fragmentValues, fragmentBitLengths, messageKeys.size(), significantBitsInLastFragment);
+        }
+
+        public String getMessageString() {
+            return getBits().toText();
         }
     }
 }
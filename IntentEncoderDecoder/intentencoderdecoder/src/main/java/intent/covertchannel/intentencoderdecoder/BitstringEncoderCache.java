@@ -0,0 +1,51 @@
+package intent.covertchannel.intentencoderdecoder;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bounded, least-recently-used cache of {@link BitstringEncoder}s keyed by
+ * {@link ChannelConfig}. Encoders do not hold any per-message state, so a
+ * single instance can be shared by every caller which uses the same
+ * configuration.
+ */
+public final class BitstringEncoderCache {
+    // Enough for every configuration in the sender's throughput test matrix
+    private static final int MAX_ENTRIES = 64;
+
+    private static final Map<ChannelConfig, BitstringEncoder> encodersByConfig =
+            new LinkedHashMap<ChannelConfig, BitstringEncoder>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<ChannelConfig, BitstringEncoder> eldest) {
+                    return size() > MAX_ENTRIES;
+                }
+            };
+
+    private BitstringEncoderCache() {}
+
+    /**
+     * @return The shared encoder for {@code config}, creating it if needed.
+     */
+    public static BitstringEncoder get(ChannelConfig config) {
+        synchronized(encodersByConfig) {
+            BitstringEncoder encoder = encodersByConfig.get(config);
+            if(encoder == null) {
+                encoder = new BitstringEncoder(config);
+                encodersByConfig.put(config, encoder);
+            }
+
+            return encoder;
+        }
+    }
+
+    public static BitstringEncoder get(int numBaseValues, int numExpansionCodes, List<String> actionStrings, int buildVersion, int packingMode) {
+        return get(new ChannelConfig(numBaseValues, numExpansionCodes, actionStrings, buildVersion, packingMode));
+    }
+
+    public static void clear() {
+        synchronized(encodersByConfig) {
+            encodersByConfig.clear();
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package intent.covertchannel.intentencoderdecoder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable description of a covert channel configuration (the number of
+ * base values, expansion codes, the action strings, the Android build
+ * version and the packing mode) together with every table derived from it,
+ * so that they are computed once per configuration instead of once per
+ * encoder or per Intent.
+ *
+ * Instances are thread-safe and can be shared between encoders (see
+ * {@link BitstringEncoderCache}); two configs with the same parameters are
+ * equal.
+ */
+public final class ChannelConfig {
+    private final int numBaseValues;
+    private final int numExpansionCodes;
+    private final List<String> actionStrings;
+    private final int buildVersion;
+    private final int packingMode;
+
+    // Derived values
+    private final int numValuesPerAction;
+    private final int maxFragmentValue;
+    private final int fragmentMaxBitLength;
+    private final int fragmentMinBitLength;
+    private final int numUniqueValues;
+    private final int maxValue;
+    private final int segmentMaxBitLength;
+    private final int segmentMinBitLength;
+    private final SegmentBandTable bandTable;
+    private final Map<String, Integer> actionOffsets;
+
+    // Only used for PACKING_MODE_MIXED_RADIX
+    private final MixedRadixPacker radixPacker;
+
+    private final int hashCode;
+
+    public ChannelConfig(int numBaseValues, int numExpansionCodes, List<String> actionStrings, int buildVersion) {
+        this(numBaseValues, numExpansionCodes, actionStrings, buildVersion, BitstringEncoder.PACKING_MODE_GREEDY);
+    }
+
+    public ChannelConfig(int numBaseValues, int numExpansionCodes, List<String> actionStrings, int buildVersion, int packingMode) {
+        if(actionStrings.isEmpty()) {
+            throw new IllegalArgumentException("A channel configuration requires at least one action string");
+        }
+
+        this.numBaseValues = numBaseValues;
+        this.numExpansionCodes = numExpansionCodes;
+        this.actionStrings = Collections.unmodifiableList(new ArrayList<String>(actionStrings));
+        this.buildVersion = buildVersion;
+        this.packingMode = packingMode;
+
+        if(numBaseValues < 1 || numExpansionCodes < 0 || (long) numBaseValues * (numExpansionCodes + 1L) * actionStrings.size() > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Unsupported channel configuration: " + numBaseValues + " base values, " +
+                    numExpansionCodes + " expansion codes, " + actionStrings.size() + " actions");
+        }
+
+        // There are NUM_EXANSION_CODES + 1 different value sets (the first value set has no expansion code)
+        this.numValuesPerAction = numBaseValues * (numExpansionCodes + 1);
+        this.maxFragmentValue = numValuesPerAction - 1;
+        this.fragmentMaxBitLength = BitstringEncoder.calculateMaxFragmentBitLength(maxFragmentValue);
+        this.fragmentMinBitLength = BitstringEncoder.calculateMinFragmentBitLength(maxFragmentValue);
+
+        this.numUniqueValues = numValuesPerAction * actionStrings.size();
+        this.maxValue = numUniqueValues - 1;
+        this.segmentMaxBitLength = BitstringEncoder.calculateMaxFragmentBitLength(maxValue);
+        this.segmentMinBitLength = BitstringEncoder.calculateMinFragmentBitLength(maxValue);
+
+        this.bandTable = new SegmentBandTable(SegmentMap.initializeSegments(this.actionStrings, numUniqueValues));
+
+        // Decoded values are offset by the start of the value band of the carrier's action; the
+        // bands are assigned in the order of the configuration's actions (see SegmentMap)
+        Map<String, Integer> offsets = new HashMap<String, Integer>();
+        for(int i = 0; i < this.actionStrings.size(); i++) {
+            offsets.put(this.actionStrings.get(i), i * numValuesPerAction);
+        }
+        this.actionOffsets = Collections.unmodifiableMap(offsets);
+
+        if(packingMode == BitstringEncoder.PACKING_MODE_MIXED_RADIX) {
+            this.radixPacker = new MixedRadixPacker(numUniqueValues);
+        } else if(packingMode == BitstringEncoder.PACKING_MODE_GREEDY) {
+            this.radixPacker = null;
+        } else {
+            throw new IllegalArgumentException("Unsupported packing mode " + packingMode);
+        }
+
+        int hash = numBaseValues;
+        hash = (31 * hash) + numExpansionCodes;
+        hash = (31 * hash) + this.actionStrings.hashCode();
+        hash = (31 * hash) + buildVersion;
+        hash = (31 * hash) + packingMode;
+        this.hashCode = hash;
+    }
+
+    public int getNumBaseValues() {
+        return numBaseValues;
+    }
+
+    public int getNumExpansionCodes() {
+        return numExpansionCodes;
+    }
+
+    /**
+     * @return An unmodifiable view of the action strings.
+     */
+    public List<String> getActionStrings() {
+        return actionStrings;
+    }
+
+    public int getBuildVersion() {
+        return buildVersion;
+    }
+
+    public int getPackingMode() {
+        return packingMode;
+    }
+
+    public int getNumValuesPerAction() {
+        return numValuesPerAction;
+    }
+
+    public int getMaxFragmentValue() {
+        return maxFragmentValue;
+    }
+
+    public int getFragmentMaxBitLength() {
+        return fragmentMaxBitLength;
+    }
+
+    public int getFragmentMinBitLength() {
+        return fragmentMinBitLength;
+    }
+
+    public int getNumUniqueValues() {
+        return numUniqueValues;
+    }
+
+    public int getMaxValue() {
+        return maxValue;
+    }
+
+    public int getSegmentMaxBitLength() {
+        return segmentMaxBitLength;
+    }
+
+    public int getSegmentMinBitLength() {
+        return segmentMinBitLength;
+    }
+
+    public SegmentBandTable getBandTable() {
+        return bandTable;
+    }
+
+    /**
+     * @return The value offset for Intents carrying the given action.
+     * @throws IllegalArgumentException If {@code action} is not one of this
+     * configuration's actions, i.e. it has no value band.
+     */
+    public int getActionOffset(String action) {
+        Integer offset = actionOffsets.get(action);
+        if(offset == null) {
+            throw new IllegalArgumentException("\"" + action + "\" is not one of the " + actionStrings.size() + " actions of the channel configuration");
+        }
+
+        return offset;
+    }
+
+    /**
+     * @return The value offset for Intents carrying the action at
+     * {@code actionIndex} in the action strings. For configurations which use
+     * the first actions of {@link EncodingUtils#ACTIONS} this is the same as
+     * the offset of {@code EncodingUtils.ACTIONS.get(actionIndex)}.
+     * @throws IllegalArgumentException If there is no action at
+     * {@code actionIndex}.
+     */
+    public int getActionOffset(int actionIndex) {
+        if(actionIndex < 0 || actionIndex >= actionStrings.size()) {
+            throw new IllegalArgumentException("Action index " + actionIndex + " is out of range for a channel configuration with " + actionStrings.size() + " actions");
+        }
+
+        return actionIndex * numValuesPerAction;
+    }
+
+    /**
+     * @return The packer for PACKING_MODE_MIXED_RADIX, or {@code null} for
+     * any other packing mode.
+     */
+    public MixedRadixPacker getRadixPacker() {
+        return radixPacker;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if(this == other) {
+            return true;
+        }
+
+        if(!(other instanceof ChannelConfig)) {
+            return false;
+        }
+
+        ChannelConfig otherConfig = (ChannelConfig) other;
+        return numBaseValues == otherConfig.numBaseValues &&
+                numExpansionCodes == otherConfig.numExpansionCodes &&
+                buildVersion == otherConfig.buildVersion &&
+                packingMode == otherConfig.packingMode &&
+                actionStrings.equals(otherConfig.actionStrings);
+    }
+
+    @Override
+    public int hashCode() {
+        return hashCode;
+    }
+
+    @Override
+    public String toString() {
+        return "ChannelConfig[base values = " + numBaseValues + ", expansion codes = " + numExpansionCodes +
+                ", actions = " + actionStrings.size() + ", build version = " + buildVersion + ", packing mode = " + packingMode + "]";
+    }
+}
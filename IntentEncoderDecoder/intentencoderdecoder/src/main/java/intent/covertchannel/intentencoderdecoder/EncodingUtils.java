@@ -5,8 +5,11 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.Set;
 
 import android.content.Context;
@@ -44,10 +47,33 @@ public class EncodingUtils {
     public static final String NUM_BASE_VALUES_KEY = "num_base_values";
     public static final String NUM_EXPANSION_CODES_KEY = "num_expansion_codes";
     public static final String NUM_ACTIONS_KEY = "num_actions";
+    public static final String PACKING_MODE_KEY = "packing_mode";
     public static final String TEST_ID_KEY = "test_id";
+    public static final String PERSISTENCE_TIME_KEY = "persistence_time";
+    public static final String RECEIVER_TIME_KEY = "receiver_time";
+    public static final String STATS_KEY = "receiver_stats";
+
+    // The carrier Intents of a batch delivered through the receiver's Messenger
+    public static final String CARRIERS_KEY = "carriers";
+
+    // Identifies the sender stream (i.e. the receiver session) which an Intent belongs to
+    public static final String STREAM_ID_KEY = "stream_id";
+
+    // Cumulative acknowledgement: the highest segment number up to which every segment of the message has been
+    // received (-1 if the first one has not), sent with each ACKNOWLEDGE_MESSAGE_SEGMENT_ACTION
+    public static final String HIGHEST_CONTIGUOUS_SEGMENT_KEY = "highest_contiguous_segment";
+
+    // Selective acknowledgement sent along with HIGHEST_CONTIGUOUS_SEGMENT_KEY: a bitmap of the segments received after
+    // the highest contiguous one, up to the highest one received (see isSegmentReceived())
+    public static final String RECEIVED_SEGMENTS_KEY = "received_segments";
 
     public static final int DEFAULT_TEST_ID = 0;
 
+    // Stream of the Intents which do not carry a stream ID
+    public static final long DEFAULT_STREAM_ID = 0;
+
+    private static final Random STREAM_ID_GENERATOR = new Random();
+
     public static final String TRACE_TAG = "intent.covertchannel.trace";
     private static final String TAG = "intent.covertchannel.intentencoderdecoder.EncodingUtils";
 
@@ -67,6 +93,23 @@ public class EncodingUtils {
     public static final String SET_CHANNEL_CONFIGURATION_ACTION = "set_channel_config";
     public static final String ACKNOWLEDGE_MESSAGE_SEGMENT_ACTION = "ack_message_segment";
 
+    // Sent when segments of a message have stopped arriving before it was complete, so that the missing ones are resent
+    public static final String NEGATIVE_ACKNOWLEDGE_MESSAGE_SEGMENTS_ACTION = "nack_message_segments";
+    public static final String DUMP_STATS_ACTION = "dump_receiver_stats";
+    public static final String SEND_STATS_ACTION = "send_receiver_stats";
+
+    // Answered with RECEIVER_IDLE_ACTION (and the request's TEST_ID_KEY) once the receiver has processed, stored and
+    // acknowledged everything it received before the request
+    public static final String AWAIT_RECEIVER_IDLE_ACTION = "await_receiver_idle";
+    public static final String RECEIVER_IDLE_ACTION = "receiver_idle";
+
+    // Binding with this action returns the receiver's batch delivery Messenger
+    public static final String BATCH_DELIVERY_ACTION = "batch_delivery";
+
+    // Message.what values used with the batch delivery Messenger
+    public static final int MSG_DELIVER_CARRIERS = 1;
+    public static final int MSG_CARRIERS_ACKNOWLEDGED = 2;
+
     public static final String[] ACTION_ARRAY = {
             "data_0", "data_1", "data_2", "data_3", "data_4", "data_5", "data_6", "data_7", "data_8", "data_9",
             "data_10", "data_11", "data_12", "data_13", "data_14", "data_15", "data_16", "data_17", "data_18", "data_19",
@@ -82,6 +125,198 @@ public class EncodingUtils {
 
     public static final List<String> ACTIONS = Arrays.asList(ACTION_ARRAY);
 
+    // Position of each action in ACTIONS, so carriers can be placed without a linear search
+    private static final Map<String, Integer> ACTION_INDICES = new HashMap<String, Integer>();
+    static {
+        for(int i = 0; i < ACTION_ARRAY.length; i++) {
+            ACTION_INDICES.put(ACTION_ARRAY[i], i);
+        }
+    }
+
+    /*
+     * Shared sentinel payloads written by encodeValue(). Only the type of a
+     * value carries information, so every key encoding the same value code
+     * can share one instance instead of allocating a new marker object per
+     * key. Only values which cannot be modified are shared (empty arrays, a
+     * String and boxed primitives): Bundle.get() hands the stored instance
+     * back as-is within a process, so the ArrayList and SparseArray
+     * sentinels only identify their value codes, and every key gets a fresh
+     * empty instance of its own.
+     */
+    private static final boolean[] EMPTY_BOOLEAN_ARRAY = new boolean[0];
+    private static final byte[] EMPTY_BYTE_ARRAY = new byte[0];
+    private static final char[] EMPTY_CHAR_ARRAY = new char[0];
+    private static final CharSequence SENTINEL_CHAR_SEQUENCE = "1";
+    private static final CharSequence[] EMPTY_CHAR_SEQUENCE_ARRAY = new CharSequence[0];
+    private static final ArrayList<CharSequence> EMPTY_CHAR_SEQUENCE_ARRAY_LIST = new ArrayList<CharSequence>(0);
+    private static final Double SENTINEL_DOUBLE = 1.0;
+    private static final double[] EMPTY_DOUBLE_ARRAY = new double[0];
+    private static final Float SENTINEL_FLOAT = (float) 1.0;
+    private static final float[] EMPTY_FLOAT_ARRAY = new float[0];
+    private static final int[] EMPTY_INT_ARRAY = new int[0];
+    private static final long[] EMPTY_LONG_ARRAY = new long[0];
+    private static final Parcelable[] EMPTY_PARCELABLE_ARRAY = new Parcelable[0];
+    private static final short[] EMPTY_SHORT_ARRAY = new short[0];
+    private static final SparseArray<Parcelable> EMPTY_SPARSE_PARCELABLE_ARRAY = new SparseArray<Parcelable>(0);
+
+    /**
+     * Writes the sentinel payload for a single value code into a Bundle.
+     */
+    private static abstract class ValueWriter {
+        private final Object sentinel;
+
+        ValueWriter(Object sentinel) {
+            this.sentinel = sentinel;
+        }
+
+        Object getSentinel() {
+            return sentinel;
+        }
+
+        abstract void put(Bundle bundle, String key);
+    }
+
+    // TODO: Document the fact that the lower order codes (i.e. smaller integer values) will be encoded using the smaller Bundle fields
+    // Indexed by value code; the order here defines the encoding
+    private static final ValueWriter[] BASE_VALUE_WRITERS = {
+            new ValueWriter(Boolean.TRUE) {
+                void put(Bundle bundle, String key) { bundle.putBoolean(key, true); }
+            },
+            new ValueWriter(EMPTY_BOOLEAN_ARRAY) {
+                void put(Bundle bundle, String key) { bundle.putBooleanArray(key, EMPTY_BOOLEAN_ARRAY); }
+            },
+            new ValueWriter((byte) 1) {
+                void put(Bundle bundle, String key) { bundle.putByte(key, (byte) 1); }
+            },
+            new ValueWriter(EMPTY_BYTE_ARRAY) {
+                void put(Bundle bundle, String key) { bundle.putByteArray(key, EMPTY_BYTE_ARRAY); }
+            },
+            new ValueWriter((char) 1) {
+                void put(Bundle bundle, String key) { bundle.putChar(key, (char) 1); }
+            },
+            new ValueWriter(EMPTY_CHAR_ARRAY) {
+                void put(Bundle bundle, String key) { bundle.putCharArray(key, EMPTY_CHAR_ARRAY); }
+            },
+            new ValueWriter(SENTINEL_CHAR_SEQUENCE) {
+                void put(Bundle bundle, String key) { bundle.putCharSequence(key, SENTINEL_CHAR_SEQUENCE); }
+            },
+
+            // Note that the use of CharSequenceArrays and Strings for encoding
+            // data is mutually exclusive (i.e. either putCharSequenceArray()
+            // or putString() can be used, but not both)
+            new ValueWriter(EMPTY_CHAR_SEQUENCE_ARRAY) {
+                void put(Bundle bundle, String key) { bundle.putCharSequenceArray(key, EMPTY_CHAR_SEQUENCE_ARRAY); }
+            },
+
+            // Note that all ArrayList types are mutually exclusive for the
+            // purposes of covert message encoding using this channel
+            new ValueWriter(EMPTY_CHAR_SEQUENCE_ARRAY_LIST) {
+                void put(Bundle bundle, String key) { bundle.putCharSequenceArrayList(key, new ArrayList<CharSequence>(0)); }
+            },
+            new ValueWriter(SENTINEL_DOUBLE) {
+                void put(Bundle bundle, String key) { bundle.putDouble(key, SENTINEL_DOUBLE); }
+            },
+            new ValueWriter(EMPTY_DOUBLE_ARRAY) {
+                void put(Bundle bundle, String key) { bundle.putDoubleArray(key, EMPTY_DOUBLE_ARRAY); }
+            },
+            new ValueWriter(SENTINEL_FLOAT) {
+                void put(Bundle bundle, String key) { bundle.putFloat(key, SENTINEL_FLOAT); }
+            },
+            new ValueWriter(EMPTY_FLOAT_ARRAY) {
+                void put(Bundle bundle, String key) { bundle.putFloatArray(key, EMPTY_FLOAT_ARRAY); }
+            },
+            new ValueWriter(1) {
+                void put(Bundle bundle, String key) { bundle.putInt(key, 1); }
+            },
+            new ValueWriter(EMPTY_INT_ARRAY) {
+                void put(Bundle bundle, String key) { bundle.putIntArray(key, EMPTY_INT_ARRAY); }
+            },
+            new ValueWriter(1L) {
+                void put(Bundle bundle, String key) { bundle.putLong(key, 1L); }
+            },
+            new ValueWriter(EMPTY_LONG_ARRAY) {
+                void put(Bundle bundle, String key) { bundle.putLongArray(key, EMPTY_LONG_ARRAY); }
+            },
+            new ValueWriter(EMPTY_PARCELABLE_ARRAY) {
+                void put(Bundle bundle, String key) { bundle.putParcelableArray(key, EMPTY_PARCELABLE_ARRAY); }
+            },
+            new ValueWriter((short) 1) {
+                void put(Bundle bundle, String key) { bundle.putShort(key, (short) 1); }
+            },
+            new ValueWriter(EMPTY_SHORT_ARRAY) {
+                void put(Bundle bundle, String key) { bundle.putShortArray(key, EMPTY_SHORT_ARRAY); }
+            },
+            new ValueWriter(EMPTY_SPARSE_PARCELABLE_ARRAY) {
+                void put(Bundle bundle, String key) { bundle.putSparseParcelableArray(key, new SparseArray<Parcelable>(0)); }
+            }
+    };
+
+    /*
+     * Value writer tables by build version: VALUE_WRITERS_BY_BUILD_VERSION[i]
+     * is used for build versions of at least MIN_BUILD_VERSIONS[i] (sorted in
+     * ascending order). Version-specific value sets are added here.
+     */
+    private static final int[] MIN_BUILD_VERSIONS = {1};
+    private static final ValueWriter[][] VALUE_WRITERS_BY_BUILD_VERSION = {BASE_VALUE_WRITERS};
+
+    // Runtime classes of the sentinels written by encodeValue() (plus the
+    // equivalent types the old getter chain accepted), mapped onto value codes
+    private static final Map<Class<?>, Integer> VALUE_CODES_BY_CLASS = new HashMap<>();
+    static {
+        for(int code = 0; code < BASE_VALUE_WRITERS.length; code++) {
+            VALUE_CODES_BY_CLASS.put(BASE_VALUE_WRITERS[code].getSentinel().getClass(), code);
+        }
+
+        VALUE_CODES_BY_CLASS.put(String[].class, 7);
+    }
+
+    /**
+     * Equivalent to {@code ACTIONS.indexOf(action)}, in constant time.
+     *
+     * @return The index of {@code action} in {@link #ACTIONS}, or -1 if it
+     * is not one of the data actions.
+     */
+    public static int getActionIndex(String action) {
+        Integer index = ACTION_INDICES.get(action);
+        return (index == null) ? -1 : index;
+    }
+
+    /**
+     * Reads a segment acknowledgement: every segment up to
+     * {@code highestContiguousSegment} has been received, and bit {@code i}
+     * of {@code receivedSegments} (least significant bit of each byte first)
+     * is set if segment {@code highestContiguousSegment + 1 + i} has been.
+     *
+     * @param receivedSegments The {@link #RECEIVED_SEGMENTS_KEY} bitmap, or
+     * {@code null} if the acknowledgement did not have one.
+     */
+    public static boolean isSegmentReceived(int highestContiguousSegment, byte[] receivedSegments, int segmentNumber) {
+        if(segmentNumber <= highestContiguousSegment) {
+            return true;
+        }
+
+        int bit = segmentNumber - highestContiguousSegment - 1;
+        if(receivedSegments == null || bit >= receivedSegments.length * 8) {
+            return false;
+        }
+
+        return (receivedSegments[bit >>> 3] & (1 << (bit & 7))) != 0;
+    }
+
+    /**
+     * @return A random ID for a new sender stream, to be sent under
+     * {@link #STREAM_ID_KEY} with each of the stream's Intents; never
+     * {@link #DEFAULT_STREAM_ID}.
+     */
+    public static long newStreamId() {
+        long streamId;
+        do {
+            streamId = STREAM_ID_GENERATOR.nextLong();
+        } while(streamId == DEFAULT_STREAM_ID);
+
+        return streamId;
+    }
+
     /**
 	 * Returns the number of characters which can be encoded without the use of
 	 * expansion codes when using the provided android build version.
@@ -94,11 +329,19 @@ public class EncodingUtils {
 	public static int getCharacterSetSize(int buildVersion)
 		throws IllegalArgumentException
 	{
-		// TODO: use a constant instead of a hard-coded value
-		return BitstringEncoder.NUM_BASE_VALUES;
+		return getValueWriters(buildVersion).length;
 	}
 
-    // TODO: Document the fact that the lower order codes (i.e. smaller integer values) will be encoded using the smaller Bundle fields
+    private static ValueWriter[] getValueWriters(int buildVersion) {
+        for(int i = MIN_BUILD_VERSIONS.length - 1; i > 0; i--) {
+            if(buildVersion >= MIN_BUILD_VERSIONS[i]) {
+                return VALUE_WRITERS_BY_BUILD_VERSION[i];
+            }
+        }
+
+        return VALUE_WRITERS_BY_BUILD_VERSION[0];
+    }
+
     /**
      * Build version constants: http://developer.android.com/reference/android/os/Build.VERSION_CODES.html
      */
@@ -109,85 +352,14 @@ public class EncodingUtils {
             throw new IllegalArgumentException("In encodeValue(): Unsupported negative value " + value);
         }
 
-        switch(value) {
-            case 0:
-                bundle.putBoolean(key, true);
-                break;
-            case 1:
-                bundle.putBooleanArray(key, new boolean[0]);
-                break;
-            case 2:
-                bundle.putByte(key, (byte)1);
-                break;
-            case 3:
-                bundle.putByteArray(key, new byte[0]);
-                break;
-            case 4:
-                bundle.putChar(key, (char) 1);
-                break;
-            case 5:
-                bundle.putCharArray(key, new char[0]);
-                break;
-            case 6:
-                bundle.putCharSequence(key, (CharSequence) "1");
-                break;
-
-            // Note that the use of CharSequenceArrays and Strings for encoding
-            // data is mutually exclusive (i.e. either putCharSequenceArray()
-            // or putString() can be used, but not both)
-            case 7:
-                bundle.putCharSequenceArray(key, new CharSequence[0]);
-                // bundle.putString(key, "1");
-                break;
-
-            // Note that all ArrayList types are mutually exclusive for the
-            // purposes of covert message encoding using this channel
-            case 8:
-                bundle.putCharSequenceArrayList(key, new ArrayList<CharSequence>());
-                // bundle.putIntegerArrayList(key, new ArrayList<Integer>());
-                // bundle.putParcelableArrayList(key, new ArrayList<Parcelable>());
-                break;
-            case 9:
-                bundle.putDouble(key, 1.0);
-                break;
-            case 10:
-                bundle.putDoubleArray(key, new double[0]);
-                break;
-            case 11:
-                bundle.putFloat(key, (float) 1.0);
-                break;
-            case 12:
-                bundle.putFloatArray(key, new float[0]);
-                break;
-            case 13:
-                bundle.putInt(key, 1);
-                break;
-            case 14:
-                bundle.putIntArray(key, new int[0]);
-                break;
-            case 15:
-                bundle.putLong(key, 1L);
-                break;
-            case 16:
-                bundle.putLongArray(key, new long[0]);
-                break;
-            case 17:
-                bundle.putParcelableArray(key, new Parcelable[0]);
-                break;
-            case 18:
-                bundle.putShort(key, (short) 1);
-                break;
-            case 19:
-                bundle.putShortArray(key, new short[0]);
-                break;
-            case 20:
-                bundle.putSparseParcelableArray(key, new SparseArray<Parcelable>());
-                break;
-            default:
-                throw new IllegalArgumentException("In EncodingUtils.encodeChar(): Unsupported " +
-                        "value " + value + " encountered");
+        ValueWriter[] valueWriters = getValueWriters(buildVersion);
+        if(value >= valueWriters.length) {
+            throw new IllegalArgumentException("In EncodingUtils.encodeChar(): Unsupported " +
+                    "value " + value + " encountered");
         }
 
+        valueWriters[value].put(bundle, key);
+
         return bundle;
 
 		/* TODO: Figure out how to get this working (if it is even possible)
@@ -219,7 +391,9 @@ public class EncodingUtils {
     public static boolean containsExpansionCode(Bundle dataPacket, String key) {
         // TODO: Move into concrete EncodingScheme classes (need different version for all three mechanisms)
 
-        boolean containsExCode = (dataPacket.getBundle(key) != null);
+        // Bundle.get() is used instead of getBundle() since a failed typed
+        // lookup is handled (and logged) by Bundle as a ClassCastException
+        boolean containsExCode = (dataPacket.get(key) instanceof Bundle);
         //Log.d(TRACE_TAG, "Key \"" + key + "\" maps to an expansion code value: " + containsExCode);
         return containsExCode;
     }
@@ -234,109 +408,113 @@ public class EncodingUtils {
     // TODO: change to decodeValue
     public static int decodeValueForEntry(Bundle dataPacket, String key, int expansionCode, int buildVersion) {
         //Log.d(TRACE_TAG, "Decoding value for key \"" + key + "\"");
+        return decodeValue(dataPacket.get(key), key, expansionCode, buildVersion);
+    }
 
-        /**
-         Notes and TODO's:
-         --------------------------------------------------------------------------------
-
-         // TODO: Figure out if there is a better way to do this (maybe request
-         // specific ArrayList types to allow encoding schemas to vary which arraylist
-         // type is is used to enable the schemas to have more control over their
-         // signatures
-         //
-         // All ArrayList types are treated as being equivalent by the Bundle
-         // get-by-type methods and as such on the CharSequence ArrayList type
-         // is used for encoding data
-         //
-         // Note: getShort() and getShortArray() are distinct, but both will
-         // cause getSerializable() to return a non-null value
-         //
-
-         --------------------------------------------------------------------------------
-         * Additional Possible Data Types to Use:
-         --------------------------------------------------------------------------------
-
-         if(charCodeBundle.getString(key) != null) {
-         c = 'z';
-         }
-
-         // Note that getSerializable()  non-null if either the short
-         // or short array is set
-         else if(charCodeBundle.getSerializable(key) != null) {
-         c = 'v';
-         }
-
-         else if(charCodeBundle.getIntegerArrayList(key) != null) {
-         charCode = 15;
-         }
-
-         else if(charCodeBundle.getParcelableArrayList(key) != null) {
-         charCode = 19;
-         }
-
-         else if(dataPacket.getParcelable(key) != null)
-         {
-         c = 's';
-         }
-         */
-
-        int charSetSize = getCharacterSetSize(buildVersion);
-
-        int charCode;
-        if(dataPacket.getBoolean(key)) {
-            charCode = 0;
-        } else if(dataPacket.getBooleanArray(key) != null) {
-            charCode = 1;
-        } else if(dataPacket.getByte(key) != 0) {
-            charCode = 2;
-        } else if(dataPacket.getByteArray(key) != null) {
-            charCode = 3;
-        } else if(dataPacket.getChar(key) != 0) {
-            charCode = 4;
-        } else if(dataPacket.getCharArray(key) != null){
-            charCode = 5;
-        } else if(dataPacket.getCharSequence(key) != null) {
-            charCode = 6;
-        } else if(dataPacket.getCharSequenceArray(key) != null) {
-            charCode = 7;
-        } else if(dataPacket.getCharSequenceArrayList(key) != null) {
-            charCode = 8;
-        } else if(dataPacket.getDouble(key) != 0.0) {
-            charCode = 9;
-        } else if(dataPacket.getDoubleArray(key) != null) {
-            charCode = 10;
-        } else if(dataPacket.getFloat(key) != 0.0) {
-            charCode = 11;
-        } else if(dataPacket.getFloatArray(key) != null) {
-            charCode = 12;
-        } else if(dataPacket.getInt(key) != 0) {
-            charCode = 13;
-        } else if(dataPacket.getIntArray(key) != null) {
-            charCode = 14;
-        } else if(dataPacket.getLong(key) != 0) {
-            charCode = 15;
-        } else if(dataPacket.getLongArray(key) != null) {
-            charCode = 16;
-        } else if(dataPacket.getParcelableArray(key) != null) {
-            charCode = 17;
-        } else if(dataPacket.getShort(key) != 0) {
-            charCode = 18;
-        } else if(dataPacket.getShortArray(key) != null) {
-            charCode = 19;
-        } else if(dataPacket.getSparseParcelableArray(key) != null) {
-            charCode = 20;
-        } else {
+    /**
+     * Decodes a value which has already been retrieved from a {@link Bundle}
+     * (via {@link Bundle#get(String)}) so that callers which need to inspect
+     * the entry (e.g. to check for a nested expansion code Bundle) only have
+     * to look the key up once.
+     *
+     * @throws IllegalArgumentException If no value code maps to the type of
+     * {@code value} (including {@code null}).
+     */
+    public static int decodeValue(Object value, String key, int expansionCode, int buildVersion) {
+        int charCode = getValueCode(value);
+        if(charCode < 0) {
             throw new IllegalArgumentException("In EncodingUtils.decodeValueForEntry():" +
                     " No value could be decoded for the given key (" + key + ")");
         }
 
-		// Applies the effects of the expansion code
-		charCode += (charSetSize * expansionCode);
+        // Applies the effects of the expansion code
+        charCode += (getCharacterSetSize(buildVersion) * expansionCode);
 
         //Log.d(TRACE_TAG, "Decoded char code of " + charCode + " for key " + "\"" + key + "\"");
 
-		return charCode;
-	}
+        return charCode;
+    }
+
+    /**
+     * Maps the runtime type of a Bundle value onto the value code which
+     * {@link #encodeValue(Bundle, String, int, int)} uses for that type.
+     *
+     * This replaces probing each of the typed Bundle getters in turn, each
+     * miss of which costs Bundle a caught (and logged) ClassCastException.
+     * The results match the old getter chain:
+     * <ul>
+     *     <li>Any CharSequence (String included) is code 6 and any
+     *     CharSequence[] (String[] included) is code 7, since
+     *     getCharSequence() and getCharSequenceArray() were probed first</li>
+     *     <li>All ArrayList types are code 8 and all SparseArray types are
+     *     code 20 (the typed getters cannot tell them apart)</li>
+     *     <li>Short is code 18 and short[] is code 19</li>
+     *     <li>Scalar values which are false or zero are not decodable, just as
+     *     the getter chain could not tell them apart from a missing key</li>
+     * </ul>
+     *
+     * @return The value code, or -1 if the value cannot be decoded.
+     */
+    public static int getValueCode(Object value) {
+        if(value == null) {
+            return -1;
+        }
+
+        Integer code = VALUE_CODES_BY_CLASS.get(value.getClass());
+        if(code == null) {
+            return getValueCodeForSubtype(value);
+        }
+
+        int valueCode = code;
+        if(isScalarValueCode(valueCode) && isZeroScalar(value)) {
+            return -1;
+        }
+
+        return valueCode;
+    }
+
+    // Handles subclasses of the table types, checked in the same order as the old getter chain
+    private static int getValueCodeForSubtype(Object value) {
+        if(value instanceof CharSequence) {
+            return 6;
+        } else if(value instanceof CharSequence[]) {
+            return 7;
+        } else if(value instanceof ArrayList) {
+            return 8;
+        } else if(value instanceof Parcelable[]) {
+            return 17;
+        } else if(value instanceof SparseArray) {
+            return 20;
+        }
+
+        return -1;
+    }
+
+    private static boolean isScalarValueCode(int valueCode) {
+        switch(valueCode) {
+            case 0:
+            case 2:
+            case 4:
+            case 9:
+            case 11:
+            case 13:
+            case 15:
+            case 18:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static boolean isZeroScalar(Object value) {
+        if(value instanceof Boolean) {
+            return !((Boolean) value);
+        } else if(value instanceof Character) {
+            return ((Character) value) == 0;
+        }
+
+        return ((Number) value).doubleValue() == 0.0;
+    }
 	
     /**
      * Method for reading data from a text resource file in the res/raw/ folder
@@ -0,0 +1,193 @@
+package intent.covertchannel.intentencoderdecoder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Shared table of the alphabetical Bundle keys ("A", "B", ..., "Z", "AA",
+ * "AB", ...) indexed by ordinal, where "A" has an ordinal of zero. Keys are
+ * generated once, interned and reused by every {@link KeyGenerator}, so key
+ * generation does not allocate once the table has grown large enough.
+ *
+ * The ordering of the ordinals is the same as the ordering defined by the
+ * {@link AlphabeticalKeySequenceComparator}, which allows decoders to place
+ * values by {@link #ordinal(String)} instead of sorting the keys.
+ *
+ * The table grows lazily and may be read from any thread.
+ */
+public final class KeyTable {
+    private static final int RADIX = 'Z' - 'A' + 1;
+    private static final int INITIAL_SIZE = 1024;
+
+    // Keys beyond this many ordinals are generated on demand instead of cached
+    private static final int MAX_SIZE = 1 << 20;
+
+    // The length of the key for the largest int ordinal
+    private static final int MAX_KEY_LENGTH = 7;
+
+    // sortedOrdinals() only uses a bitmap when the ordinals span at most this many bits per key (the keys come from
+    // received carriers, so their span is not otherwise bounded)
+    private static final int MAX_BITMAP_BITS_PER_KEY = 8;
+
+    private static final Object growLock = new Object();
+
+    // Replaced (never modified in place once published) when the table grows
+    private static volatile String[] keys = buildKeys(new String[0], INITIAL_SIZE);
+
+    private KeyTable() {}
+
+    /**
+     * @return The key with the given (zero-based) ordinal.
+     */
+    public static String key(int ordinal) {
+        if(ordinal < 0) {
+            throw new IllegalArgumentException("Key ordinals cannot be negative; got " + ordinal);
+        }
+
+        String[] table = keys;
+        if(ordinal < table.length) {
+            return table[ordinal];
+        }
+
+        if(ordinal >= MAX_SIZE) {
+            return buildKey(ordinal, new char[MAX_KEY_LENGTH]);
+        }
+
+        return grow(ordinal)[ordinal];
+    }
+
+    /**
+     * Inverse of {@link #key(int)}.
+     *
+     * @return The ordinal of {@code key}, or -1 if {@code key} is not an
+     * alphabetical key (e.g. it is empty or contains anything other than the
+     * characters 'A' through 'Z').
+     */
+    public static int ordinal(String key) {
+        int length = (key == null) ? 0 : key.length();
+        if(length == 0 || length > MAX_KEY_LENGTH) {
+            return -1;
+        }
+
+        // Keys are bijective base-26 numbers with digits 'A' (1) through 'Z' (26)
+        long value = 0;
+        for(int i = 0; i < length; i++) {
+            int digit = key.charAt(i) - 'A' + 1;
+            if(digit < 1 || digit > RADIX) {
+                return -1;
+            }
+
+            value = (value * RADIX) + digit;
+        }
+
+        return (value - 1 > Integer.MAX_VALUE) ? -1 : (int) (value - 1);
+    }
+
+    /**
+     * Orders a set of distinct alphabetical keys by ordinal without comparing
+     * them: each key is parsed into its ordinal and marked in a bitmap
+     * covering the range of ordinals present, which is then scanned in order.
+     * Ordinals which are too sparse for a bitmap are sorted instead.
+     *
+     * @return The ordinals of {@code keys} in ascending order, or {@code null}
+     * if any of the keys is not an alphabetical key.
+     */
+    public static int[] sortedOrdinals(Collection<String> keys) {
+        int[] ordinals = new int[keys.size()];
+        int minOrdinal = Integer.MAX_VALUE;
+        int maxOrdinal = -1;
+        int i = 0;
+        for(String key: keys) {
+            int ordinal = ordinal(key);
+            if(ordinal < 0) {
+                return null;
+            }
+
+            ordinals[i++] = ordinal;
+            minOrdinal = Math.min(minOrdinal, ordinal);
+            maxOrdinal = Math.max(maxOrdinal, ordinal);
+        }
+
+        if(i == 0) {
+            return ordinals;
+        }
+
+        if((long) maxOrdinal - minOrdinal + 1 > (long) MAX_BITMAP_BITS_PER_KEY * ordinals.length) {
+            Arrays.sort(ordinals);
+            return ordinals;
+        }
+
+        BitSet present = new BitSet(maxOrdinal - minOrdinal + 1);
+        for(int ordinal: ordinals) {
+            present.set(ordinal - minOrdinal);
+        }
+
+        i = 0;
+        for(int bit = present.nextSetBit(0); bit >= 0; bit = present.nextSetBit(bit + 1)) {
+            ordinals[i++] = bit + minOrdinal;
+        }
+
+        return ordinals;
+    }
+
+    /**
+     * @return {@code keys} in the order defined by the
+     * {@link AlphabeticalKeySequenceComparator}; keys which are not
+     * alphabetical keys are handled by falling back on the comparator.
+     */
+    public static List<String> sortKeys(Collection<String> keys) {
+        int[] ordinals = sortedOrdinals(keys);
+        if(ordinals == null) {
+            List<String> sortedKeys = new ArrayList<String>(keys);
+            Collections.sort(sortedKeys, new AlphabeticalKeySequenceComparator());
+            return sortedKeys;
+        }
+
+        List<String> sortedKeys = new ArrayList<String>(ordinals.length);
+        for(int ordinal: ordinals) {
+            sortedKeys.add(key(ordinal));
+        }
+
+        return sortedKeys;
+    }
+
+    private static String[] grow(int ordinal) {
+        synchronized(growLock) {
+            String[] table = keys;
+            if(ordinal >= table.length) {
+                table = buildKeys(table, Math.min(MAX_SIZE, Math.max(ordinal + 1, table.length * 2)));
+                keys = table;
+            }
+
+            return table;
+        }
+    }
+
+    private static String[] buildKeys(String[] existingKeys, int size) {
+        String[] table = new String[size];
+        System.arraycopy(existingKeys, 0, table, 0, existingKeys.length);
+
+        char[] buffer = new char[MAX_KEY_LENGTH];
+        for(int ordinal = existingKeys.length; ordinal < size; ordinal++) {
+            table[ordinal] = buildKey(ordinal, buffer).intern();
+        }
+
+        return table;
+    }
+
+    private static String buildKey(int ordinal, char[] buffer) {
+        int start = buffer.length;
+        long value = (long) ordinal + 1;
+        while(value > 0) {
+            value--;
+            buffer[--start] = (char) ('A' + (value % RADIX));
+            value /= RADIX;
+        }
+
+        return new String(buffer, start, buffer.length - start);
+    }
+}
@@ -2,7 +2,6 @@ package intent.covertchannel.intentencoderdecoder;
 
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -11,8 +10,6 @@ import java.util.Set;
 import android.content.Intent;
 import android.os.Bundle;
 
-import java.util.TreeSet;
-
 import android.util.Log;
 
 // TODO: Make the encoding scheme more intelligent by encoding the more
@@ -32,8 +29,6 @@ public class LowerCaseAlphaEncoder implements EncodingScheme
     // TODO: Use a more intelligent, less detectable key generation scheme?
     private AlphabeticalKeySequence keySequence;
 
-    // Comparator for ordering the String keys in a Bundle.
-    private Comparator<String> keyComparator;
     private int numBaseValues;
 
     // TODO: Use this value
@@ -49,7 +44,6 @@ public class LowerCaseAlphaEncoder implements EncodingScheme
         this.buildVersion = buildVersion;
         this.dictionary = new LowerCaseAlphaEncodingDictionary();
         this.keySequence = new AlphabeticalKeySequence();
-        this.keyComparator = new AlphabeticalKeySequenceComparator();
     }
 
     @Override
@@ -102,9 +96,7 @@ public class LowerCaseAlphaEncoder implements EncodingScheme
             throw new IllegalArgumentException("Cannot decode message; extras Bundle is null");
         }
 
-        Set<String> bundleKeys;
-        bundleKeys = new TreeSet<String>(keyComparator);
-        bundleKeys.addAll(dataBundle.keySet());
+        List<String> bundleKeys = KeyTable.sortKeys(dataBundle.keySet());
 
         // Create a StringBuilder with an initial capacity equal to the number
         // of Bundle keys (which is equivalent to the possible number of
@@ -114,13 +106,14 @@ public class LowerCaseAlphaEncoder implements EncodingScheme
         try {
             int currentExpansionCode = 0;
             for(String key: bundleKeys) {
-                if(EncodingUtils.containsExpansionCode(dataBundle, key)) {
-                    currentExpansionCode = decodeExpansionCode(dataBundle.getBundle(key), buildVersion);
+                Object entry = dataBundle.get(key);
+                if(entry instanceof Bundle) {
+                    currentExpansionCode = decodeExpansionCode((Bundle) entry, buildVersion);
                     Log.d(EncodingUtils.TRACE_TAG, "Expansion code for key \"" + key + "\" is " + currentExpansionCode);
                     continue;
                 }
 
-                char c = decodeChar(dataBundle, key, currentExpansionCode, buildVersion);
+                char c = decodeChar(entry, key, currentExpansionCode, buildVersion);
 
                 Log.d(EncodingUtils.TRACE_TAG, "Decoded char '" + c + "' for key \"" + key + "\"");
 
@@ -146,22 +139,21 @@ public class LowerCaseAlphaEncoder implements EncodingScheme
             return 0;
         }
 
-        Set<String> bundleKeys;
-        bundleKeys = new TreeSet<String>(keyComparator);
-        bundleKeys.addAll(nestedBundle.keySet());
+        List<String> bundleKeys = KeyTable.sortKeys(nestedBundle.keySet());
 
         int exCodeValue = 0;
 
         try {
             int currentExpansionCode = 0;
             for(String bundleKey: bundleKeys) {
-                if(EncodingUtils.containsExpansionCode(nestedBundle, bundleKey)) {
+                Object entry = nestedBundle.get(bundleKey);
+                if(entry instanceof Bundle) {
                     currentExpansionCode += decodeExpansionCode(nestedBundle, buildVersion);
                     Log.d(EncodingUtils.TRACE_TAG, "Expansion code for key \"" + bundleKey + "\" is " + currentExpansionCode);
                     continue;
                 }
 
-                exCodeValue += EncodingUtils.decodeValueForEntry(nestedBundle, bundleKey, currentExpansionCode, buildVersion);
+                exCodeValue += EncodingUtils.decodeValue(entry, bundleKey, currentExpansionCode, buildVersion);
 
                 if(currentExpansionCode != 0) {
                     currentExpansionCode = 0;
@@ -252,12 +244,12 @@ public class LowerCaseAlphaEncoder implements EncodingScheme
         Log.d(EncodingUtils.TRACE_TAG, "Encoding expansion code " + expansionCode + " with key \"" + key + "\"");
 
         Bundle nestedBundle = new Bundle();
-        KeyGenerator nestedKeyGenerator = new AlphabeticalKeySequence();
+        int nestedKeyOrdinal = 0;
         while (expansionCode > 0) {
             if(expansionCode >= numBaseValues) {
-                nestedBundle = EncodingUtils.encodeValue(nestedBundle, nestedKeyGenerator.next(), numBaseValues, buildVersion);
+                nestedBundle = EncodingUtils.encodeValue(nestedBundle, KeyTable.key(nestedKeyOrdinal++), numBaseValues, buildVersion);
             } else {
-                nestedBundle = EncodingUtils.encodeValue(nestedBundle, nestedKeyGenerator.next(), expansionCode, buildVersion);
+                nestedBundle = EncodingUtils.encodeValue(nestedBundle, KeyTable.key(nestedKeyOrdinal++), expansionCode, buildVersion);
             }
 
             expansionCode -= numBaseValues;
@@ -296,15 +288,15 @@ public class LowerCaseAlphaEncoder implements EncodingScheme
 
 
     /**
-     * Decodes the character encoded in the given {@link android.os.Bundle} for the given
-     * {@code key}.
+     * Decodes the character encoded in the given {@link android.os.Bundle} entry (retrieved
+     * with {@link android.os.Bundle#get(String)}) for the given {@code key}.
      *
      * @throws IllegalArgumentException	If the provided {@code key} does not
      * exist in the given {@link android.os.Bundle} or if no character encoding was found
      * for that {@code key}.
      */
-    private char decodeChar(Bundle dataPacket, String key, int expansionCode, int buildVersion) throws IllegalArgumentException {
-        int charCode = EncodingUtils.decodeValueForEntry(dataPacket, key, expansionCode, buildVersion);
+    private char decodeChar(Object entry, String key, int expansionCode, int buildVersion) throws IllegalArgumentException {
+        int charCode = EncodingUtils.decodeValue(entry, key, expansionCode, buildVersion);
 
         Log.d(EncodingUtils.TRACE_TAG, "Decoded char code of " + charCode + "for the key \"" + key + "\"");
 
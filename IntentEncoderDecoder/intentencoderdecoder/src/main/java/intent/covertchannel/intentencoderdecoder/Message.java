@@ -1,22 +1,78 @@
 package intent.covertchannel.intentencoderdecoder;
 
-import java.util.Collection;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 import java.util.NoSuchElementException;
 
+/**
+ * A message which has been split into fragments. The fragment bits are held
+ * back-to-back in a single {@link BitBuffer}, with the bit offset of each
+ * fragment recorded alongside.
+ */
 public class Message implements Iterable<String> {
-    private List<String> fragments;
+    private BitBuffer fragmentBits;
+    private int[] fragmentOffsets;
+    private int numFragments;
     private int lengthOfLastFragment;
 
+    public Message(BitBuffer fragmentBits, int[] fragmentOffsets, int numFragments, int lengthOfLastFragment) {
+        this.fragmentBits = fragmentBits;
+        this.fragmentOffsets = fragmentOffsets;
+        this.numFragments = numFragments;
+        this.lengthOfLastFragment = lengthOfLastFragment;
+    }
+
+    /**
+     * Adapter for fragments which are represented as '0'/'1' bitstrings.
+     */
     public Message(List<String> fragments, int lengthOfLastFragment) {
-        this.fragments = fragments;
+        this.fragmentBits = new BitBuffer();
+        this.fragmentOffsets = new int[fragments.size() + 1];
+        this.numFragments = fragments.size();
         this.lengthOfLastFragment = lengthOfLastFragment;
+
+        int i = 0;
+        for(String fragment: fragments) {
+            fragmentBits.write(BitBuffer.fromBitstring(fragment));
+            fragmentOffsets[++i] = fragmentBits.length();
+        }
+    }
+
+    public int size() {
+        return numFragments;
+    }
+
+    public int getFragmentValue(int index) {
+        return fragmentBits.getBits(fragmentOffsets[index], getFragmentBitLength(index));
+    }
+
+    public int getFragmentBitLength(int index) {
+        if(index < 0 || index >= numFragments) {
+            throw new IndexOutOfBoundsException("Fragment index " + index + " is outside of [0, " + numFragments + ")");
+        }
+
+        return fragmentOffsets[index + 1] - fragmentOffsets[index];
+    }
+
+    /**
+     * @return The bits of all fragments, including any padding on the last
+     * fragment.
+     */
+    public BitBuffer getFragmentBits() {
+        return fragmentBits;
     }
 
+    /**
+     * Adapter which converts each fragment into a '0'/'1' bitstring.
+     */
     public List<String> getFragments() {
-        // TODO: Return a copy instead of the actual collection for safety
-        return this.fragments;
+        List<String> fragments = new ArrayList<String>(numFragments);
+        for(int i = 0; i < numFragments; i++) {
+            fragments.add(fragmentToBitstring(i, getFragmentBitLength(i)));
+        }
+
+        return fragments;
     }
 
     public int getLengthOfLastFragment() {
@@ -28,36 +84,79 @@ public class Message implements Iterable<String> {
         return new MessageIterator();
     }
 
-    // TODO: Create custom Message iterator
-    private class MessageIterator implements Iterator {
-        private Iterator<String> iterator;
+    // Shifts the bits of the later fragments down over the removed one
+    private void removeFragment(int index) {
+        int removedBits = getFragmentBitLength(index);
+        BitBuffer remainingBits = new BitBuffer(fragmentBits.length() - removedBits);
+        for(int i = 0; i < numFragments; i++) {
+            if(i != index) {
+                for(int bit = fragmentOffsets[i]; bit < fragmentOffsets[i + 1]; bit++) {
+                    remainingBits.writeBit(fragmentBits.getBit(bit));
+                }
+            }
+        }
+
+        for(int i = index + 1; i <= numFragments; i++) {
+            fragmentOffsets[i - 1] = fragmentOffsets[i] - removedBits;
+        }
+
+        fragmentBits = remainingBits;
+        numFragments--;
+    }
 
-        public MessageIterator() {
-            this.iterator = fragments.iterator(); // TODO: Really do use a copy
+    private String fragmentToBitstring(int index, int numBits) {
+        StringBuilder bitstringBldr = new StringBuilder(numBits);
+        int offset = fragmentOffsets[index];
+        for(int i = 0; i < numBits; i++) {
+            bitstringBldr.append(fragmentBits.getBit(offset + i) ? '1' : '0');
         }
 
+        return bitstringBldr.toString();
+    }
+
+    /**
+     * Iterates over the fragment bitstrings, with the padding removed from
+     * the last fragment.
+     */
+    private class MessageIterator implements Iterator<String> {
+        private int index = 0;
+
+        // The index of the fragment last returned by next(), or -1 if it has been removed (or none has been returned)
+        private int lastIndex = -1;
+
         @Override
         public boolean hasNext() {
-            return iterator.hasNext();
+            return index < numFragments;
         }
 
         @Override
-        public Object next() {
-            if(!iterator.hasNext()) {
+        public String next() {
+            if(!hasNext()) {
                 throw new NoSuchElementException();
             }
 
-            String next = iterator.next();
-            if(iterator.hasNext()) {
-                return next;
+            int numBits = getFragmentBitLength(index);
+            if(index == numFragments - 1) {
+                numBits = lengthOfLastFragment;
             }
 
-            return next.substring(0 , lengthOfLastFragment);
+            lastIndex = index;
+            return fragmentToBitstring(index++, numBits);
         }
 
+        /**
+         * Removes the last fragment returned from the message (the length of
+         * the last fragment is left as it is).
+         */
         @Override
         public void remove() {
-            iterator.remove();
+            if(lastIndex < 0) {
+                throw new IllegalStateException("next() has not been called since the last remove()");
+            }
+
+            removeFragment(lastIndex);
+            index = lastIndex;
+            lastIndex = -1;
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,180 @@
+package intent.covertchannel.intentencoderdecoder;
+
+/**
+ * Packs a payload into digits of an arbitrary radix (i.e. the number of
+ * unique values a single Bundle key can carry) so that every key carries the
+ * full log2(radix) bits, even when the radix is not a power of two.
+ *
+ * The payload is processed in fixed-size blocks: each block of
+ * {@link #getBitsPerBlock()} bits is treated as a number in base
+ * {@code radix} and written as {@link #getDigitsPerBlock()} digits, most
+ * significant digit first. Block sizes are chosen once (so that a block fits
+ * in a {@code long}) which keeps packing and unpacking linear in the payload
+ * length. A trailing partial block uses only as many digits as its bit count
+ * requires; that bit count must be supplied when unpacking.
+ */
+public class MixedRadixPacker {
+    private final int radix;
+    private final int digitsPerBlock;
+    private final int bitsPerBlock;
+
+    // powers[d] = radix^d and capacityBits[d] = floor(log2(radix^d)) for d in [0, digitsPerBlock]
+    private final long[] powers;
+    private final int[] capacityBits;
+
+    public MixedRadixPacker(int radix) {
+        if(radix < 2) {
+            throw new IllegalArgumentException("Mixed-radix packing requires a radix of at least 2; got " + radix);
+        }
+
+        this.radix = radix;
+
+        // Pick the number of digits per block which packs the most bits per digit
+        // while keeping radix^digits within a (non-negative) long
+        int bestDigits = 1;
+        int bestBits = floorLog2(radix);
+        long power = radix;
+        int digits = 1;
+        while(power <= Long.MAX_VALUE / radix) {
+            power *= radix;
+            digits++;
+
+            int bits = floorLog2(power);
+            if(bits * bestDigits > bestBits * digits) {
+                bestDigits = digits;
+                bestBits = bits;
+            }
+        }
+
+        this.digitsPerBlock = bestDigits;
+        this.bitsPerBlock = bestBits;
+
+        powers = new long[digitsPerBlock + 1];
+        capacityBits = new int[digitsPerBlock + 1];
+        powers[0] = 1;
+        for(int d = 1; d <= digitsPerBlock; d++) {
+            powers[d] = powers[d - 1] * radix;
+            capacityBits[d] = floorLog2(powers[d]);
+        }
+    }
+
+    public int getRadix() {
+        return radix;
+    }
+
+    public int getDigitsPerBlock() {
+        return digitsPerBlock;
+    }
+
+    public int getBitsPerBlock() {
+        return bitsPerBlock;
+    }
+
+    /**
+     * @return The average number of payload bits carried by each digit.
+     */
+    public double getBitsPerDigit() {
+        return ((double) bitsPerBlock) / digitsPerBlock;
+    }
+
+    /**
+     * @return The number of digits {@link #pack(BitBuffer)} produces for a
+     * payload of {@code numPayloadBits} bits.
+     */
+    public int getDigitCount(int numPayloadBits) {
+        return (numPayloadBits / bitsPerBlock) * digitsPerBlock + digitsForBits(numPayloadBits % bitsPerBlock);
+    }
+
+    /**
+     * @return The number of payload bits held by the last block of a payload of
+     * {@code numPayloadBits} bits; this is the value which must be passed to
+     * {@link #unpack(int[], int, int)}.
+     */
+    public int getLastBlockBitLength(int numPayloadBits) {
+        int tailBits = numPayloadBits % bitsPerBlock;
+        if(tailBits == 0 && numPayloadBits > 0) {
+            return bitsPerBlock;
+        }
+
+        return tailBits;
+    }
+
+    /**
+     * @return The digits (each in [0, radix)) representing every bit of
+     * {@code payload}, independently of its read cursor.
+     */
+    public int[] pack(BitBuffer payload) {
+        int numPayloadBits = payload.length();
+        int[] digits = new int[getDigitCount(numPayloadBits)];
+
+        int offset = 0;
+        int digitIndex = 0;
+        while(numPayloadBits - offset >= bitsPerBlock) {
+            writeDigits(payload.getBitsAsLong(offset, bitsPerBlock), digitsPerBlock, digits, digitIndex);
+            offset += bitsPerBlock;
+            digitIndex += digitsPerBlock;
+        }
+
+        int tailBits = numPayloadBits - offset;
+        if(tailBits > 0) {
+            writeDigits(payload.getBitsAsLong(offset, tailBits), digitsForBits(tailBits), digits, digitIndex);
+        }
+
+        return digits;
+    }
+
+    /**
+     * Inverse of {@link #pack(BitBuffer)}.
+     *
+     * @param lastBlockBits The number of payload bits in the last block (see
+     * {@link #getLastBlockBitLength(int)}).
+     */
+    public BitBuffer unpack(int[] digits, int numDigits, int lastBlockBits) {
+        int tailDigits = (lastBlockBits <= 0 || lastBlockBits >= bitsPerBlock) ? 0 : digitsForBits(lastBlockBits);
+        int numFullBlocks = Math.max(0, numDigits - tailDigits) / digitsPerBlock;
+
+        BitBuffer payload = new BitBuffer(numFullBlocks * bitsPerBlock + lastBlockBits);
+        int digitIndex = 0;
+        for(int i = 0; i < numFullBlocks; i++) {
+            payload.writeLong(readDigits(digits, digitIndex, digitsPerBlock), bitsPerBlock);
+            digitIndex += digitsPerBlock;
+        }
+
+        int remainingDigits = numDigits - digitIndex;
+        if(remainingDigits > 0) {
+            int numBits = (remainingDigits == tailDigits) ? lastBlockBits : capacityBits[Math.min(remainingDigits, digitsPerBlock)];
+            payload.writeLong(readDigits(digits, digitIndex, remainingDigits), numBits);
+        }
+
+        return payload;
+    }
+
+    private int digitsForBits(int numBits) {
+        int digits = 0;
+        while(capacityBits[digits] < numBits) {
+            digits++;
+        }
+
+        return digits;
+    }
+
+    private void writeDigits(long value, int numDigits, int[] digits, int startIndex) {
+        for(int i = numDigits - 1; i >= 0; i--) {
+            digits[startIndex + i] = (int) (value % radix);
+            value /= radix;
+        }
+    }
+
+    private long readDigits(int[] digits, int startIndex, int numDigits) {
+        long value = 0;
+        for(int i = 0; i < numDigits; i++) {
+            value = (value * radix) + digits[startIndex + i];
+        }
+
+        return value;
+    }
+
+    private static int floorLog2(long value) {
+        return (Long.SIZE - 1) - Long.numberOfLeadingZeros(value);
+    }
+}
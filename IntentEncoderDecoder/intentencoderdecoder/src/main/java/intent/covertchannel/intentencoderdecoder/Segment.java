@@ -1,12 +1,10 @@
 package intent.covertchannel.intentencoderdecoder;
 
-import android.content.Intent;
-import android.os.Bundle;
-
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -18,16 +16,16 @@ public class Segment {
 
     public static class MetadataEntry {
         private String key;
-        private String valueAsBitstring;
+        private int value;
 
-        public MetadataEntry(String key, String valueAsBitstring) {
+        public MetadataEntry(String key, int value) {
             this.key = key;
-            this.valueAsBitstring = valueAsBitstring;
+            this.value = value;
         }
 
         public MetadataEntry() {
             this.key = null;
-            this.valueAsBitstring = null;
+            this.value = 0;
         }
 
         public String getKey() {
@@ -38,12 +36,52 @@ public class Segment {
             this.key = key;
         }
 
+        public int getValue() {
+            return value;
+        }
+
+        public void setValue(int value) {
+            this.value = value;
+        }
+
         public String getValueAsBitstring() {
-            return valueAsBitstring;
+            return Integer.toBinaryString(value);
         }
 
         public void setValueAsBitstring(String valueAsBitstring) {
-            this.valueAsBitstring = valueAsBitstring;
+            this.value = BitstringEncoder.bitstringToInt(valueAsBitstring);
+        }
+    }
+
+    /**
+     * A message fragment held as its integer value along with the number of
+     * bits that it was cut from (which preserves any leading zeroes).
+     */
+    public static class FragmentEntry {
+        private final int value;
+        private final int bitLength;
+
+        public FragmentEntry(int value, int bitLength) {
+            this.value = value;
+            this.bitLength = bitLength;
+        }
+
+        public int getValue() {
+            return value;
+        }
+
+        public int getBitLength() {
+            return bitLength;
+        }
+
+        public String getValueAsBitstring() {
+            String bitstring = Integer.toBinaryString(value);
+            StringBuilder bitstringBldr = new StringBuilder(bitLength);
+            for(int i = bitstring.length(); i < bitLength; i++) {
+                bitstringBldr.append('0');
+            }
+
+            return bitstringBldr.append(bitstring).toString();
         }
     }
 
@@ -54,23 +92,37 @@ public class Segment {
 
     public static final int NUM_METADATA_FIELDS = 3;
 
+    private static final int INITIAL_FRAGMENT_CAPACITY = 16;
+    private static final int NO_KEY = -1;
+
     private String action;
     private int minVal;
     private int maxVal;
-    private Map<String, String> bitstringsByMessageKey;
-    private List<MetadataEntry> metadataEntries;
+
+    // Fragment i is stored at index i of each array (in the order the fragments were added),
+    // with the message key held as its KeyTable ordinal
+    private int[] fragmentKeyOrdinals;
+    private int[] fragmentValues;
+    private int[] fragmentBitLengths;
+    private int numFragments;
+
+    // Indexed by metadata field
+    private int[] metadataKeyOrdinals;
+    private int[] metadataValues;
 
     public Segment(String action, int minVal, int maxVal) {
         this.action = action;
         this.minVal = minVal;
         this.maxVal = maxVal;
 
-        bitstringsByMessageKey = new HashMap<String, String>();
-        metadataEntries = new ArrayList<MetadataEntry>();
+        fragmentKeyOrdinals = new int[INITIAL_FRAGMENT_CAPACITY];
+        fragmentValues = new int[INITIAL_FRAGMENT_CAPACITY];
+        fragmentBitLengths = new int[INITIAL_FRAGMENT_CAPACITY];
+        numFragments = 0;
 
-        for(int i = 0; i < NUM_METADATA_FIELDS; i++) {
-            metadataEntries.add(new MetadataEntry());
-        }
+        metadataKeyOrdinals = new int[NUM_METADATA_FIELDS];
+        metadataValues = new int[NUM_METADATA_FIELDS];
+        Arrays.fill(metadataKeyOrdinals, NO_KEY);
     }
 
     public String getAction() {
@@ -89,72 +141,188 @@ public class Segment {
         return (fragmentVal >= minVal) && (fragmentVal <= maxVal);
     }
 
+    public void addFragment(int keyOrdinal, int fragmentValue, int bitLength) {
+        if(numFragments == fragmentValues.length) {
+            int capacity = numFragments * 2;
+            fragmentKeyOrdinals = grow(fragmentKeyOrdinals, capacity);
+            fragmentValues = grow(fragmentValues, capacity);
+            fragmentBitLengths = grow(fragmentBitLengths, capacity);
+        }
+
+        fragmentKeyOrdinals[numFragments] = keyOrdinal;
+        fragmentValues[numFragments] = fragmentValue;
+        fragmentBitLengths[numFragments] = bitLength;
+        numFragments++;
+    }
+
+    public void addFragment(String key, int fragmentValue, int bitLength) {
+        addFragment(toKeyOrdinal(key), fragmentValue, bitLength);
+    }
+
     public void addFragment(String key, String fragmentBits) {
-        bitstringsByMessageKey.put(key, fragmentBits);
+        addFragment(key, BitstringEncoder.bitstringToInt(fragmentBits), fragmentBits.length());
+    }
+
+    /*
+     * Index-based access to the data fragments (in the order they were added),
+     * which does not copy anything
+     */
+
+    public int getFragmentKeyOrdinal(int index) {
+        checkFragmentIndex(index);
+        return fragmentKeyOrdinals[index];
+    }
+
+    public String getFragmentKey(int index) {
+        return KeyTable.key(getFragmentKeyOrdinal(index));
+    }
+
+    public int getFragmentValue(int index) {
+        checkFragmentIndex(index);
+        return fragmentValues[index];
+    }
+
+    public int getFragmentBitLength(int index) {
+        checkFragmentIndex(index);
+        return fragmentBitLengths[index];
+    }
+
+    /**
+     * Adapter which returns a copy of the data fragments of this Segment, in
+     * the order they were added.
+     */
+    public Map<String, FragmentEntry> getFragments() {
+        Map<String, FragmentEntry> fragmentsByMessageKey = new LinkedHashMap<String, FragmentEntry>();
+        for(int i = 0; i < numFragments; i++) {
+            fragmentsByMessageKey.put(KeyTable.key(fragmentKeyOrdinals[i]), new FragmentEntry(fragmentValues[i], fragmentBitLengths[i]));
+        }
+
+        return fragmentsByMessageKey;
+    }
+
+    /**
+     * Adapter which returns a copy of the metadata entries, indexed by
+     * metadata field.
+     */
+    public List<MetadataEntry> getMetadataEntries() {
+        List<MetadataEntry> metadataEntries = new ArrayList<MetadataEntry>(NUM_METADATA_FIELDS);
+        for(int i = 0; i < NUM_METADATA_FIELDS; i++) {
+            metadataEntries.add(new MetadataEntry(getMetadataKey(i), metadataValues[i]));
+        }
+
+        return metadataEntries;
     }
 
+    /**
+     * Adapter which returns a copy of both the data and metadata entries with
+     * their values as bitstrings.
+     */
     public Map<String, String> getFragmentMessageKeyMap() {
-        Map<String, String> fragmentMessageKeyMap  = new HashMap(bitstringsByMessageKey);
+        Map<String, String> fragmentMessageKeyMap = new HashMap<String, String>();
+        for(int i = 0; i < numFragments; i++) {
+            fragmentMessageKeyMap.put(KeyTable.key(fragmentKeyOrdinals[i]), new FragmentEntry(fragmentValues[i], fragmentBitLengths[i]).getValueAsBitstring());
+        }
 
-        for(MetadataEntry metadataEntry: metadataEntries) {
-            fragmentMessageKeyMap.put(metadataEntry.getKey(), metadataEntry.getValueAsBitstring());
+        for(int i = 0; i < NUM_METADATA_FIELDS; i++) {
+            fragmentMessageKeyMap.put(getMetadataKey(i), Integer.toBinaryString(metadataValues[i]));
         }
 
         return fragmentMessageKeyMap;
     }
 
     public boolean hasMetadataKey(int keyIndex) {
-        return metadataEntries.get(keyIndex).getKey() != null;
+        return metadataKeyOrdinals[keyIndex] != NO_KEY;
+    }
+
+    public void setMetadataKeyOrdinal(int keyIndex, int keyOrdinal) {
+        metadataKeyOrdinals[keyIndex] = keyOrdinal;
     }
 
     public void setMetadataKey(int keyIndex, String key) {
-        metadataEntries.get(keyIndex).setKey(key);
+        setMetadataKeyOrdinal(keyIndex, toKeyOrdinal(key));
+    }
+
+    /**
+     * @return The KeyTable ordinal of the key for the given metadata field,
+     * or -1 if no key has been assigned yet.
+     */
+    public int getMetadataKeyOrdinal(int keyIndex) {
+        return metadataKeyOrdinals[keyIndex];
     }
 
     public String getMetadataKey(int keyIndex) {
-        return metadataEntries.get(keyIndex).getKey();
+        int keyOrdinal = metadataKeyOrdinals[keyIndex];
+        return (keyOrdinal == NO_KEY) ? null : KeyTable.key(keyOrdinal);
     }
 
+    /**
+     * Adapter which returns a copy of the metadata keys.
+     */
     public Set<String> getMetadataKeys() {
-        Set<String> metadataKeys = new HashSet();
-        for(MetadataEntry entry: metadataEntries) {
-            metadataKeys.add(entry.getKey());
+        Set<String> metadataKeys = new HashSet<String>();
+        for(int i = 0; i < NUM_METADATA_FIELDS; i++) {
+            metadataKeys.add(getMetadataKey(i));
         }
 
         return metadataKeys;
     }
 
+    public int getMetadataValue(int keyIndex) {
+        return metadataValues[keyIndex];
+    }
+
+    public void setMetadataValue(int keyIndex, int value) {
+        metadataValues[keyIndex] = value;
+    }
+
     public void setMetadataValue(int keyIndex, String value) {
-        metadataEntries.get(keyIndex).setValueAsBitstring(value);
+        setMetadataValue(keyIndex, BitstringEncoder.bitstringToInt(value));
     }
 
     /**
      * @return The number of data entries in this Segment.
      */
     public int length() {
-        int length = 0;
-        for(Map.Entry<String, String> entry: bitstringsByMessageKey.entrySet()) {
-            if(entry.getKey() != null && entry.getValue() != null) {
-                length++;
-            }
-        }
-
-        return length;
+        return numFragments;
     }
 
     public boolean isEmpty() {
-        return length() == 0;
+        return numFragments == 0;
     }
 
     public String toString() {
         StringBuilder stringBuilder = new StringBuilder();
         stringBuilder.append("Segment[action = " + action + "]\n");
 
-        Map<String, String> fragmentMessageKeyMap = this.getFragmentMessageKeyMap();
-        for(Map.Entry<String, String> entry: fragmentMessageKeyMap.entrySet()) {
-            stringBuilder.append(entry.getKey() + " => " + entry.getValue() + "\n");
+        for(int i = 0; i < numFragments; i++) {
+            stringBuilder.append(KeyTable.key(fragmentKeyOrdinals[i]) + " => " + new FragmentEntry(fragmentValues[i], fragmentBitLengths[i]).getValueAsBitstring() + "\n");
+        }
+
+        for(int i = 0; i < NUM_METADATA_FIELDS; i++) {
+            stringBuilder.append(getMetadataKey(i) + " => " + Integer.toBinaryString(metadataValues[i]) + "\n");
         }
 
         return stringBuilder.toString();
     }
+
+    private void checkFragmentIndex(int index) {
+        if(index < 0 || index >= numFragments) {
+            throw new IndexOutOfBoundsException("Fragment index " + index + " is outside of [0, " + numFragments + ")");
+        }
+    }
+
+    private static int toKeyOrdinal(String key) {
+        int keyOrdinal = KeyTable.ordinal(key);
+        if(keyOrdinal < 0) {
+            throw new IllegalArgumentException("Segment keys must be alphabetical message keys; got \"" + key + "\"");
+        }
+
+        return keyOrdinal;
+    }
+
+    private static int[] grow(int[] values, int capacity) {
+        int[] grownValues = new int[capacity];
+        System.arraycopy(values, 0, grownValues, 0, values.length);
+        return grownValues;
+    }
 }
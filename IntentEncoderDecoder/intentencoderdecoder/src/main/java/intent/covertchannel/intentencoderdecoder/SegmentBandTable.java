@@ -0,0 +1,100 @@
+package intent.covertchannel.intentencoderdecoder;
+
+import java.util.List;
+
+/**
+ * Maps a fragment value onto the index of the {@link Segment} whose value
+ * band contains it in constant time.
+ *
+ * The value range is divided into buckets no wider than the narrowest band,
+ * so each bucket overlaps at most two bands; the bucket holds the index of
+ * the first of them and a lookup needs at most one extra comparison. When
+ * all bands have the same width (the usual case) every bucket is exactly one
+ * band.
+ */
+public class SegmentBandTable {
+    private final int[] minVals;
+    private final int[] maxVals;
+    private final int lowestVal;
+    private final int highestVal;
+    private final int bucketWidth;
+    private final int[] firstSegmentByBucket;
+
+    /**
+     * @param segments Segments with non-overlapping value bands in ascending
+     * order (as created by {@link SegmentMap#initializeSegments}); empty
+     * bands are never matched.
+     */
+    public SegmentBandTable(List<Segment> segments) {
+        int numSegments = segments.size();
+        minVals = new int[numSegments];
+        maxVals = new int[numSegments];
+
+        int narrowestBand = Integer.MAX_VALUE;
+        int highest = -1;
+        int lowest = Integer.MAX_VALUE;
+        for(int i = 0; i < numSegments; i++) {
+            Segment segment = segments.get(i);
+            minVals[i] = segment.getMinVal();
+            maxVals[i] = segment.getMaxVal();
+
+            if(minVals[i] > maxVals[i]) {
+                continue;
+            }
+
+            if(minVals[i] <= highest) {
+                throw new IllegalArgumentException("Segment value bands must be in ascending order and must not overlap; band [" +
+                        minVals[i] + ", " + maxVals[i] + "] for action \"" + segment.getAction() + "\" does not");
+            }
+
+            lowest = Math.min(lowest, minVals[i]);
+            highest = maxVals[i];
+            narrowestBand = Math.min(narrowestBand, maxVals[i] - minVals[i] + 1);
+        }
+
+        if(highest < 0) {
+            // No non-empty bands
+            lowestVal = 0;
+            highestVal = -1;
+            bucketWidth = 1;
+            firstSegmentByBucket = new int[0];
+            return;
+        }
+
+        lowestVal = lowest;
+        highestVal = highest;
+        bucketWidth = narrowestBand;
+        firstSegmentByBucket = new int[((highestVal - lowestVal) / bucketWidth) + 1];
+
+        // Each bucket points at the first non-empty band which ends at or after the bucket's first value
+        int segmentIndex = 0;
+        for(int bucket = 0; bucket < firstSegmentByBucket.length; bucket++) {
+            int bucketStart = lowestVal + (bucket * bucketWidth);
+            while(minVals[segmentIndex] > maxVals[segmentIndex] || maxVals[segmentIndex] < bucketStart) {
+                segmentIndex++;
+            }
+
+            firstSegmentByBucket[bucket] = segmentIndex;
+        }
+    }
+
+    /**
+     * @return The index of the Segment whose band contains {@code fragmentVal},
+     * or -1 if there is no such Segment.
+     */
+    public int indexOf(int fragmentVal) {
+        if(fragmentVal < lowestVal || fragmentVal > highestVal) {
+            return -1;
+        }
+
+        int segmentIndex = firstSegmentByBucket[(fragmentVal - lowestVal) / bucketWidth];
+        if(fragmentVal > maxVals[segmentIndex]) {
+            // Skip over the remainder of the bucket's first band (and any empty bands after it)
+            do {
+                segmentIndex++;
+            } while(minVals[segmentIndex] > maxVals[segmentIndex]);
+        }
+
+        return (fragmentVal >= minVals[segmentIndex]) ? segmentIndex : -1;
+    }
+}
@@ -3,6 +3,7 @@ package intent.covertchannel.intentencoderdecoder;
 import android.util.Log;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
@@ -24,10 +25,22 @@ public class SegmentMap {
     private int maxFragmentLength;
     private int minFragmentLength;
     private List<Segment> segments;
-    private KeyGenerator keyGenerator;
-    private Map<String, String> fragmentKeyMap;
+    private SegmentBandTable bandTable;
+    private int nextKeyOrdinal;
 
     public SegmentMap(Collection<String> actionStrings, int numUniqueValues) {
+        this(actionStrings, numUniqueValues, null);
+    }
+
+    /**
+     * Creates an empty SegmentMap which reuses the band table precomputed by
+     * {@code config}.
+     */
+    public SegmentMap(ChannelConfig config) {
+        this(config.getActionStrings(), config.getNumUniqueValues(), config.getBandTable());
+    }
+
+    private SegmentMap(Collection<String> actionStrings, int numUniqueValues, SegmentBandTable bandTable) {
         this.actionStrings = actionStrings;
         this.numUniqueValues = numUniqueValues;
 
@@ -36,22 +49,37 @@ public class SegmentMap {
         maxFragmentLength = BitstringEncoder.calculateMaxFragmentBitLength(maxVal);
         minFragmentLength = BitstringEncoder.calculateMinFragmentBitLength(maxVal);
 
+        // The Segments hold the fragments and are therefore always new, but their bands never change
         segments = initializeSegments(actionStrings, numUniqueValues);
-        keyGenerator = new AlphabeticalKeySequence();
-        fragmentKeyMap = new HashMap<String, String>();
+        this.bandTable = (bandTable != null) ? bandTable : new SegmentBandTable(segments);
+        nextKeyOrdinal = 0; // Keys are handed out in the same order as an AlphabeticalKeySequence
     }
 
     public static List<Segment> initializeSegments(Collection<String> actionStrings, int numUniqueValues) {
+        // Every action gets an equal-width band of values
+        int[] bandWidths = new int[actionStrings.size()];
+        Arrays.fill(bandWidths, numUniqueValues / actionStrings.size());
+
+        return initializeSegments(actionStrings, numUniqueValues, bandWidths);
+    }
+
+    /**
+     * Creates one Segment per action using an explicit band table, where
+     * {@code bandWidths[i]} is the number of consecutive values assigned to
+     * the i-th action. Bands do not need to be of equal width; see
+     * {@link SegmentBandTable} for how values are routed to them.
+     */
+    public static List<Segment> initializeSegments(Collection<String> actionStrings, int numUniqueValues, int[] bandWidths) {
         List<Segment> segments = new ArrayList<>();
-        int valsPerSegment = numUniqueValues / actionStrings.size();
 
         int val = 0;
+        int bandIndex = 0;
 
         //Log.d(TAG, "Initializing segments: numActions = " + actionStrings.size() + ", numUniqueValues = " + numUniqueValues);
 
         Iterator<String> actionIter = actionStrings.iterator();
-        while(val < numUniqueValues && actionIter.hasNext()) {
-            int nextVal = val + valsPerSegment - 1;
+        while(val < numUniqueValues && actionIter.hasNext() && bandIndex < bandWidths.length) {
+            int nextVal = val + bandWidths[bandIndex++] - 1;
 
             //Log.d(TAG, "val = " + val + ", nextVal = " + nextVal);
 
@@ -76,62 +104,96 @@ public class SegmentMap {
         return fragmentVal;
     }
 
-    public String putFragment(String fragment) {
-        int fragmentVal = validateAndConvertFragment(fragment);
-
-        for(Segment segment: this.segments) {
-            if(segment.valueWithinLimits(fragmentVal)) {
-                if(!segment.hasMetadataKey(Segment.SIGNIFICANT_BITS_IN_LAST_FRAGMENT_KEY)) {
-                    String sigBitsKey = keyGenerator.next();
-                    //Log.d(TAG, "Setting sig-bit metadata key for \"" + segment.getAction() + "\" to \"" + sigBitsKey + "\"");
-                    segment.setMetadataKey(Segment.SIGNIFICANT_BITS_IN_LAST_FRAGMENT_KEY, sigBitsKey);
-
-                    String segmentNumberKey = keyGenerator.next();
-                    //Log.d(TAG, "Setting segment number metadata key for \"" + segment.getAction() + "\" to \"" + segmentNumberKey + "\"");
-                    segment.setMetadataKey(Segment.SEGMENT_NUMBER_KEY, segmentNumberKey);
+    private void validateFragmentValue(int fragmentVal) {
+        if(fragmentVal > maxVal || fragmentVal < minVal) {
+            throw new IllegalArgumentException("Fragment value " + fragmentVal + " must be between the decimal values " + minVal + " and " + maxVal);
+        }
+    }
 
-                    String segmentCountKey = keyGenerator.next();
-                    //Log.d(TAG, "Setting segment count metadata key for \"" + segment.getAction() + "\" to \"" + segmentCountKey + "\"");
-                    segment.setMetadataKey(Segment.MESSAGE_SEGMENT_COUNT_KEY, segmentCountKey);
-                }
+    public String putFragment(String fragment) {
+        return putFragment(validateAndConvertFragment(fragment), fragment.length());
+    }
 
-                String key = keyGenerator.next();
+    /**
+     * Adds a fragment with the given value, which was cut from
+     * {@code bitLength} bits of the message, to the Segment whose value band
+     * contains it.
+     *
+     * @return The message key assigned to the fragment.
+     */
+    public String putFragment(int fragmentVal, int bitLength) {
+        validateFragmentValue(fragmentVal);
+
+        int segmentIndex = bandTable.indexOf(fragmentVal);
+        if(segmentIndex < 0) {
+            return null; // This should never happen
+        }
 
-                // TODO: Remove the duplication between these
-                segment.addFragment(key, fragment);
-                fragmentKeyMap.put(key, fragment);
+        Segment segment = segments.get(segmentIndex);
+        if(!segment.hasMetadataKey(Segment.SIGNIFICANT_BITS_IN_LAST_FRAGMENT_KEY)) {
+            //Log.d(TAG, "Setting metadata keys for \"" + segment.getAction() + "\" starting at \"" + KeyTable.key(nextKeyOrdinal) + "\"");
+            segment.setMetadataKeyOrdinal(Segment.SIGNIFICANT_BITS_IN_LAST_FRAGMENT_KEY, nextKeyOrdinal++);
+            segment.setMetadataKeyOrdinal(Segment.SEGMENT_NUMBER_KEY, nextKeyOrdinal++);
+            segment.setMetadataKeyOrdinal(Segment.MESSAGE_SEGMENT_COUNT_KEY, nextKeyOrdinal++);
+        }
 
-                // Update the number of significant bits in the last fragment (i.e. the one that was just added)
-                int sigBitsInFragment = fragment.length();
+        int keyOrdinal = nextKeyOrdinal++;
+        segment.addFragment(keyOrdinal, fragmentVal, bitLength);
 
-                //Log.d(TAG, "Setting significant bits for \"" + segment.getAction() + "\" to " + sigBitsInFragment);
+        // Update the number of significant bits in the last fragment (i.e. the one that was just added)
+        //Log.d(TAG, "Setting significant bits for \"" + segment.getAction() + "\" to " + bitLength);
+        segment.setMetadataValue(Segment.SIGNIFICANT_BITS_IN_LAST_FRAGMENT_KEY, bitLength);
+        return KeyTable.key(keyOrdinal);
+    }
 
-                String sigBitsMetadataFragmentBitstring = Integer.toBinaryString(sigBitsInFragment);
-                segment.setMetadataValue(Segment.SIGNIFICANT_BITS_IN_LAST_FRAGMENT_KEY, sigBitsMetadataFragmentBitstring);
-                return key;
-            }
+    /**
+     * Records that only the leading {@code significantBits} bits of the given
+     * (padded) fragment carry message data. Must be called for the last
+     * fragment put into the map, as that is the one whose significant bit
+     * count its segment reports.
+     */
+    public void setSignificantBitsInLastFragment(int fragmentVal, int significantBits) {
+        validateFragmentValue(fragmentVal);
+
+        int segmentIndex = bandTable.indexOf(fragmentVal);
+        if(segmentIndex < 0) {
+            throw new RuntimeException("Failed to find segment for valid fragment value " + fragmentVal + "; this should never happen");
         }
 
-        return null; // This should never happen
+        segments.get(segmentIndex).setMetadataValue(Segment.SIGNIFICANT_BITS_IN_LAST_FRAGMENT_KEY, significantBits);
     }
 
     public List<Segment> getSegments() {
         return segments;
     }
 
+    /**
+     * Adapter which returns a copy of every data fragment, from all Segments,
+     * as a bitstring.
+     */
     public Map<String, String> getFragmentKeyMap() {
-        // TODO: return a copy for better safety
+        Map<String, String> fragmentKeyMap = new HashMap<String, String>();
+        for(Segment segment: segments) {
+            for(int i = 0; i < segment.length(); i++) {
+                fragmentKeyMap.put(segment.getFragmentKey(i), new Segment.FragmentEntry(segment.getFragmentValue(i), segment.getFragmentBitLength(i)).getValueAsBitstring());
+            }
+        }
+
         return fragmentKeyMap;
     }
 
     public String getActionForFragment(String fragment) {
-        int fragmentVal = validateAndConvertFragment(fragment);
-        for(Segment segment: segments) {
-            if(segment.valueWithinLimits(fragmentVal)) {
-                return segment.getAction();
-            }
+        return getActionForFragment(validateAndConvertFragment(fragment));
+    }
+
+    public String getActionForFragment(int fragmentVal) {
+        validateFragmentValue(fragmentVal);
+
+        int segmentIndex = bandTable.indexOf(fragmentVal);
+        if(segmentIndex < 0) {
+            throw new RuntimeException("Failed to find action string for valid fragment value " + fragmentVal + "; this should never happen");
         }
 
-        throw new RuntimeException("Failed to find action string for valid fragment value \"" + fragment + "\"; this should never happen");
+        return segments.get(segmentIndex).getAction();
     }
 }
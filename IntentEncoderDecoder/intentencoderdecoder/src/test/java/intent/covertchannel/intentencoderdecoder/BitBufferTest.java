@@ -0,0 +1,70 @@
+package intent.covertchannel.intentencoderdecoder;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Checks that every byte sink of {@link BitBuffer} receives exactly the
+ * bytes of {@link BitBuffer#toByteArray()}, across chunk boundaries and with
+ * trailing bits which do not form a full byte.
+ */
+public class BitBufferTest extends TestCase {
+
+    public void testSinksReceiveTheCompleteBytes() throws IOException {
+        // Empty, less than a chunk and more than two chunks
+        for(int numBytes: new int[] {0, 1, 100, 20000}) {
+            BitBuffer bits = BitBuffer.fromBytes(randomBytes(numBytes));
+            byte[] expected = bits.toByteArray();
+            assertEquals(numBytes, expected.length);
+
+            ByteBuffer buffer = ByteBuffer.allocate(numBytes);
+            assertEquals(numBytes, bits.writeBytesTo(buffer));
+            assertTrue(Arrays.equals(expected, buffer.array()));
+
+            ByteArrayOutputStream stream = new ByteArrayOutputStream();
+            assertEquals(numBytes, bits.writeBytesTo(stream));
+            assertTrue(Arrays.equals(expected, stream.toByteArray()));
+
+            ByteArrayOutputStream channelStream = new ByteArrayOutputStream();
+            assertEquals(numBytes, bits.writeBytesTo(Channels.newChannel(channelStream)));
+            assertTrue(Arrays.equals(expected, channelStream.toByteArray()));
+        }
+    }
+
+    public void testTrailingBitsAreDropped() throws IOException {
+        BitBuffer bits = BitBuffer.fromText("ab");
+        bits.write(5, 3);
+        assertEquals(2, bits.byteLength());
+
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        assertEquals(2, bits.writeBytesTo(stream));
+        assertEquals("ab", new String(stream.toByteArray(), "ISO-8859-1"));
+        assertEquals("ab", bits.toText());
+    }
+
+    public void testFullByteBufferIsLeftUntouched() {
+        BitBuffer bits = BitBuffer.fromText("abc");
+        ByteBuffer buffer = ByteBuffer.allocate(2);
+        try {
+            bits.writeBytesTo(buffer);
+            fail("Wrote 3 bytes into a buffer with room for 2");
+        } catch(BufferOverflowException e) {
+            // Expected
+        }
+
+        assertEquals(0, buffer.position());
+    }
+
+    private static byte[] randomBytes(int numBytes) {
+        byte[] bytes = new byte[numBytes];
+        new Random(numBytes).nextBytes(bytes);
+        return bytes;
+    }
+}
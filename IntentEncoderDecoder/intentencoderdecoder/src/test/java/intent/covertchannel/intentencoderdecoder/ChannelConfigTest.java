@@ -0,0 +1,52 @@
+package intent.covertchannel.intentencoderdecoder;
+
+import junit.framework.TestCase;
+
+import java.util.List;
+
+/**
+ * Checks that {@link ChannelConfig} only hands out value offsets for the
+ * actions of the configuration, by index or by action string.
+ */
+public class ChannelConfigTest extends TestCase {
+    private static final int NUM_ACTIONS = 5;
+
+    private List<String> actions;
+    private ChannelConfig config;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        actions = EncodingUtils.ACTIONS.subList(0, NUM_ACTIONS);
+        config = new ChannelConfig(EncodingScheme.NUM_BASE_VALUES, EncodingUtils.NUM_EXPANSION_CODES, actions, EncodingScheme.BUILD_VERSION);
+    }
+
+    public void testOffsetsOfTheConfiguredActions() {
+        for(int i = 0; i < NUM_ACTIONS; i++) {
+            assertEquals(i * config.getNumValuesPerAction(), config.getActionOffset(i));
+            assertEquals(config.getActionOffset(i), config.getActionOffset(actions.get(i)));
+        }
+    }
+
+    public void testIndicesOutOfRangeAreRejected() {
+        for(int actionIndex: new int[] {-1, NUM_ACTIONS, Integer.MAX_VALUE}) {
+            try {
+                config.getActionOffset(actionIndex);
+                fail("Action index " + actionIndex + " was given an offset");
+            } catch(IllegalArgumentException e) {
+                // Expected
+            }
+        }
+    }
+
+    public void testActionsOutsideTheConfigurationAreRejected() {
+        for(String action: new String[] {EncodingUtils.ACTIONS.get(NUM_ACTIONS), "not.an.action"}) {
+            try {
+                config.getActionOffset(action);
+                fail("\"" + action + "\" was given an offset");
+            } catch(IllegalArgumentException e) {
+                // Expected
+            }
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package intent.covertchannel.intentencoderdecoder;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks that {@link KeyTable} orders keys exactly as the
+ * {@link AlphabeticalKeySequenceComparator} does, for both dense and sparse
+ * ordinals.
+ */
+public class KeyTableTest extends TestCase {
+
+    public void testOrdinalIsInverseOfKey() {
+        assertEquals("A", KeyTable.key(0));
+        assertEquals("Z", KeyTable.key(25));
+        assertEquals("AA", KeyTable.key(26));
+
+        for(int ordinal: new int[] {0, 1, 25, 26, 701, 702, 1023, 1024, 1 << 20, Integer.MAX_VALUE}) {
+            assertEquals("ordinal " + ordinal, ordinal, KeyTable.ordinal(KeyTable.key(ordinal)));
+        }
+    }
+
+    public void testOrdinalRejectsNonAlphabeticalKeys() {
+        assertEquals(-1, KeyTable.ordinal(null));
+        assertEquals(-1, KeyTable.ordinal(""));
+        assertEquals(-1, KeyTable.ordinal("a"));
+        assertEquals(-1, KeyTable.ordinal("A1"));
+        assertEquals(-1, KeyTable.ordinal("ZZZZZZZZ"));
+        assertNull(KeyTable.sortedOrdinals(Arrays.asList("A", "not a key")));
+    }
+
+    public void testDenseKeysAreSortedLikeTheComparator() {
+        Random random = new Random(0);
+        List<String> keys = new ArrayList<>();
+        for(int ordinal = 0; ordinal < 2000; ordinal += 1 + random.nextInt(3)) {
+            keys.add(KeyTable.key(ordinal));
+        }
+
+        assertSortedLikeComparator(keys, random);
+    }
+
+    public void testSparseKeysAreSortedLikeTheComparator() {
+        // A span far too wide for a bitmap over so few keys
+        assertSortedLikeComparator(Arrays.asList("A", "B", "ZZZZZZ", "FXSHRXW", "AAAA"), new Random(0));
+    }
+
+    public void testEmptyKeySet() {
+        assertEquals(0, KeyTable.sortedOrdinals(Collections.<String>emptyList()).length);
+    }
+
+    private static void assertSortedLikeComparator(List<String> keys, Random random) {
+        List<String> shuffledKeys = new ArrayList<>(keys);
+        Collections.shuffle(shuffledKeys, random);
+
+        List<String> expected = new ArrayList<>(keys);
+        Collections.sort(expected, new AlphabeticalKeySequenceComparator());
+
+        assertEquals(expected, KeyTable.sortKeys(shuffledKeys));
+    }
+}